@@ -0,0 +1,34 @@
+package com.platypus.android.server;
+
+import android.hardware.usb.UsbAccessory;
+import android.os.ParcelFileDescriptor;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+
+/**
+ * A transport over the file descriptor of an open USB accessory.
+ * <p/>
+ * The descriptor is accessed through file channels, so reads and writes go directly between
+ * the device and the controller's direct buffers.
+ */
+public class AccessoryTransport extends ChannelTransport {
+    /**
+     * Creates a transport over an accessory that has been opened with
+     * {@link android.hardware.usb.UsbManager#openAccessory(UsbAccessory)}.
+     *
+     * @param accessory  the open accessory
+     * @param descriptor the file descriptor returned when the accessory was opened
+     */
+    public AccessoryTransport(UsbAccessory accessory, ParcelFileDescriptor descriptor) {
+        this(accessory, descriptor,
+                new FileInputStream(descriptor.getFileDescriptor()),
+                new FileOutputStream(descriptor.getFileDescriptor()));
+    }
+
+    private AccessoryTransport(UsbAccessory accessory, ParcelFileDescriptor descriptor,
+                               FileInputStream input, FileOutputStream output) {
+        super(String.valueOf(accessory), input.getChannel(), output.getChannel(),
+                input, output, descriptor);
+    }
+}
@@ -1,6 +1,5 @@
 package com.platypus.android.server;
 
-import android.util.Log;
 
 import com.platypus.crw.VehicleController;
 import com.platypus.crw.VehicleServer;
@@ -56,13 +55,14 @@ public enum AirboatController {
 
 
 			// Get the current waypoint, or return if there are none
-			UtmPose[] waypoints = server.getWaypoints();
-			if (waypoints == null || waypoints.length <= 0) {
+			VehicleServerImpl server_impl = (VehicleServerImpl) server;
+			UtmPose currentWaypoint = server_impl.getCurrentWaypoint();
+			if (currentWaypoint == null) {
 				server.setVelocity(twist);
 
 				return;
 			}
-			Pose3D waypoint = waypoints[0].pose;
+			Pose3D waypoint = currentWaypoint.pose;
 
 
 			double distanceSq = planarDistanceSq(pose, waypoint);
@@ -73,7 +73,6 @@ public enum AirboatController {
 //			}
 			if (distanceSq <= 9)
 			{
-				Log.i("POINT_AND_SHOOT:", "Arrived Waypoint");
 				// if reached the target, reset the buffer and previous angle
 				bIndex = 0;
 				bSum = 0;
@@ -81,11 +80,7 @@ public enum AirboatController {
 				prev_angle_destination = 0;
 
 				// If we are "at" the destination, de-queue current waypoint
-				UtmPose[] queuedWaypoints = new UtmPose[waypoints.length - 1];
-				System.arraycopy(waypoints, 1, queuedWaypoints, 0,
-						queuedWaypoints.length);
-				server.startWaypoints(queuedWaypoints,
-						AirboatController.POINT_AND_SHOOT.toString());
+				server_impl.advanceWaypoint();
 			}
 			else
 			{
@@ -102,8 +97,7 @@ public enum AirboatController {
 				double angle_between = normalizeAngle(angle_destination - angle_boat);
 
 				// use gyro information from arduino to get rotation rate of heading
-				double[] _gyroReadings = ((VehicleServerImpl) server).getGyro();
-				double drz = _gyroReadings[2];
+				double drz = server_impl.getState().getGyro(2);
 
 				// use previous data to get rate of change of destination angle
 				double angle_destination_change = (angle_destination - prev_angle_destination) / dt;
@@ -116,7 +110,6 @@ public enum AirboatController {
 				buffer[bIndex] = error;
 
 				// Define PID constants and boundary pos constants
-				VehicleServerImpl server_impl = (VehicleServerImpl) server;
 				double[] rudder_pids = server_impl.getGains(5);
 
 				double pos = rudder_pids[0]*(angle_between) + rudder_pids[2]*(angle_destination_change - drz) + rudder_pids[1]*bSum;
@@ -240,14 +233,14 @@ public enum AirboatController {
 				public void run() {
 					// TODO Auto-generated method stub
 					// retrieve state information
-					VehicleServerImpl server_impl = (VehicleServerImpl) server;
-					double yawVel = server_impl.getGyro()[2];
-					Pose3D pose = server_impl.getPose().pose;
+					VehicleState state = ((VehicleServerImpl) server).getState();
+					double yawVel = state.getGyro(2);
+					Pose3D pose = state.getPose().pose;
 					double xPos = pose.getX();
 					double yPos = pose.getY();
 					double heading = pose.getRotation().toYaw();
-					double rudder = server_impl.getVelocity().drz();
-					double thrust = server_impl.getVelocity().dx();
+					double rudder = state.getVelocity().drz();
+					double thrust = state.getVelocity().dx();
 				}
 			};
 
@@ -278,12 +271,12 @@ public enum AirboatController {
 			Pose3D pose = state.pose;
 
 			// Get the current waypoint, or return if there are none
-			UtmPose[] waypoints = server.getWaypoints();
-			if (waypoints == null || waypoints.length <= 0) {
+			UtmPose currentWaypoint = ((VehicleServerImpl) server).getCurrentWaypoint();
+			if (currentWaypoint == null) {
 				server.setVelocity(twist);
 				return;
 			}
-			Pose3D waypoint = waypoints[0].pose;
+			Pose3D waypoint = currentWaypoint.pose;
 
 			// TODO: handle different UTM zones!
 			// Compute the distance and angle to the waypoint
@@ -306,12 +299,10 @@ public enum AirboatController {
 			// Set the desired velocity
 			server.setVelocity(twist);
 
-			System.out.println(isNovel(pose, waypoint, PlanningMethod.SIMPLE));
 			// First check if we are actually set to capture
 			if (lastPose == null
 					|| isNovel(pose, waypoint, PlanningMethod.SIMPLE) > 0.8) {
 				lastPose.pose = pose.clone();
-				System.out.println("Should Capture now!!!!!");
 				server.startCamera(1, 0.0, 640, 480);
 			}
 
@@ -0,0 +1,453 @@
+package com.platypus.android.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Encodes and decodes the compact binary framing used between the phone and controller boards
+ * that support it, as an alternative to newline-terminated JSON.
+ * <p/>
+ * Each record has a four byte header, a payload and a two byte checksum:
+ * <pre>
+ *     [SYNC] [type] [length lo] [length hi] [payload ...] [crc lo] [crc hi]
+ * </pre>
+ * The checksum is CRC-16/CCITT-FALSE over the type, length and payload.  All multi-byte values
+ * are little-endian.  The payload depends on the record type:
+ * <ul>
+ * <li>{@link #TYPE_MOTOR}, {@link #TYPE_SERVO}: a list of six byte entries, each holding the
+ * actuator index, the single character field name and a 32-bit float value.</li>
+ * <li>{@link #TYPE_SENSOR}: the sensor channel, the length of the sensor type name, the ASCII
+ * type name, and then a list of 32-bit float values.</li>
+ * <li>{@link #TYPE_ERROR}: an ASCII error message.</li>
+ * <li>{@link #TYPE_JSON}: a single JSON object in ASCII, without a line terminator.  This carries
+ * any message that has no compact form.</li>
+ * <li>{@link #TYPE_SEQUENCE}: the 32-bit sequence number of the command records preceding it.
+ * Boards echo it back once the command has been applied.</li>
+ * <li>{@link #TYPE_TIME}: the 32-bit board time in milliseconds at which the record following
+ * it was produced.</li>
+ * </ul>
+ * Binary framing is negotiated when a board is connected: the phone sends
+ * {@link #NEGOTIATION_REQUEST} as a JSON line, and a board that supports the protocol replies
+ * with the same object as a JSON line before switching to binary records.  Boards that do not
+ * reply continue to use JSON.
+ */
+public final class BinaryFrameCodec {
+    /**
+     * First byte of every record.  This can never start a JSON line.
+     */
+    public static final byte SYNC = (byte) 0xA5;
+
+    public static final int TYPE_MOTOR = 1;
+    public static final int TYPE_SERVO = 2;
+    public static final int TYPE_SENSOR = 3;
+    public static final int TYPE_ERROR = 4;
+    public static final int TYPE_JSON = 5;
+    public static final int TYPE_SEQUENCE = 6;
+    public static final int TYPE_TIME = 7;
+
+    public static final int HEADER_LENGTH = 4;
+    public static final int CHECKSUM_LENGTH = 2;
+    public static final int MAX_PAYLOAD_LENGTH = 1024;
+    public static final int MAX_FRAME_LENGTH = HEADER_LENGTH + MAX_PAYLOAD_LENGTH + CHECKSUM_LENGTH;
+
+    /**
+     * Length of a single actuator entry in a motor or servo record.
+     */
+    public static final int ACTUATOR_ENTRY_LENGTH = 6;
+
+    /**
+     * Name of the binary protocol used in negotiation.
+     */
+    public static final String PROTOCOL_NAME = "bin1";
+    /**
+     * JSON object sent to request binary framing, and echoed by boards that accept it.
+     */
+    public static final String NEGOTIATION_REQUEST = "{\"proto\":\"" + PROTOCOL_NAME + "\"}";
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int[] CRC_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; ++i) {
+            int crc = i << 8;
+            for (int bit = 0; bit < 8; ++bit)
+                crc = ((crc & 0x8000) != 0) ? (crc << 1) ^ 0x1021 : crc << 1;
+            CRC_TABLE[i] = crc & 0xFFFF;
+        }
+    }
+
+    private BinaryFrameCodec() {
+        // This class only contains static methods.
+    }
+
+    /**
+     * Computes the CRC-16/CCITT-FALSE checksum of a range of bytes.
+     */
+    public static int crc16(byte[] buffer, int offset, int length) {
+        int crc = 0xFFFF;
+        for (int i = offset; i < offset + length; ++i)
+            crc = ((crc << 8) ^ CRC_TABLE[((crc >>> 8) ^ buffer[i]) & 0xFF]) & 0xFFFF;
+        return crc;
+    }
+
+    /**
+     * Encodes the actuator fields of a command as motor and servo records.
+     * <p/>
+     * Only numeric fields of actuators named {@code m<digit>} and {@code s<digit>} with single
+     * character field names have a binary form.  If the command contains any other field, nothing
+     * is written and the command should be sent as JSON instead.
+     *
+     * @param command the command to encode
+     * @param out     the destination buffer, of at least {@link #MAX_FRAME_LENGTH} bytes
+     * @return the number of bytes written, or -1 if the command has no binary form
+     */
+    public static int encodeCommand(CommandEncoder command, byte[] out) {
+        int count = command.getFieldCount();
+        for (int i = 0; i < count; ++i) {
+            String actuator = command.getActuator(i);
+            if (command.isFlag(i) || command.getField(i).length() != 1 || actuator.length() != 2
+                    || !Character.isDigit(actuator.charAt(1))
+                    || (actuator.charAt(0) != 'm' && actuator.charAt(0) != 's'))
+                return -1;
+        }
+
+        int pos = encodeActuators(command, 'm', TYPE_MOTOR, out, 0);
+        pos = encodeActuators(command, 's', TYPE_SERVO, out, pos);
+        if (command.hasSequence())
+            pos = encodeSequence(out, pos, command.getSequence());
+        return pos;
+    }
+
+    /**
+     * Encodes a command sequence number as a sequence record.
+     *
+     * @param out      the destination buffer
+     * @param pos      the position in the buffer at which to write the record
+     * @param sequence the sequence number
+     * @return the position in the buffer after the record
+     */
+    public static int encodeSequence(byte[] out, int pos, int sequence) {
+        writeInt(out, pos + HEADER_LENGTH, sequence);
+        return finishFrame(out, pos, TYPE_SEQUENCE, 4);
+    }
+
+    private static int encodeActuators(CommandEncoder command, char prefix, int type,
+                                       byte[] out, int pos) {
+        int start = pos;
+        pos += HEADER_LENGTH;
+        for (int i = 0; i < command.getFieldCount(); ++i) {
+            String actuator = command.getActuator(i);
+            if (actuator.charAt(0) != prefix)
+                continue;
+
+            out[pos++] = (byte) (actuator.charAt(1) - '0');
+            out[pos++] = (byte) command.getField(i).charAt(0);
+            pos = writeFloat(out, pos, (float) command.getValue(i));
+        }
+
+        // Omit the record entirely if there were no matching actuators.
+        int length = pos - start - HEADER_LENGTH;
+        if (length == 0)
+            return start;
+        return finishFrame(out, start, type, length);
+    }
+
+    /**
+     * Encodes a sensor reading as a sensor record.
+     *
+     * @param out     the destination buffer
+     * @param pos     the position in the buffer at which to write the record
+     * @param channel the sensor channel
+     * @param type    the name of the sensor type, such as "es2"
+     * @param values  the values of the reading
+     * @return the position in the buffer after the record
+     */
+    public static int encodeSensor(byte[] out, int pos, int channel, String type, double[] values) {
+        int p = pos + HEADER_LENGTH;
+        out[p++] = (byte) channel;
+        out[p++] = (byte) type.length();
+        for (int i = 0; i < type.length(); ++i)
+            out[p++] = (byte) type.charAt(i);
+        for (double value : values)
+            p = writeFloat(out, p, (float) value);
+        return finishFrame(out, pos, TYPE_SENSOR, p - pos - HEADER_LENGTH);
+    }
+
+    /**
+     * Encodes an error message as an error record.
+     *
+     * @param out     the destination buffer
+     * @param pos     the position in the buffer at which to write the record
+     * @param message the error message
+     * @return the position in the buffer after the record
+     */
+    public static int encodeError(byte[] out, int pos, String message) {
+        byte[] text = message.getBytes(ASCII);
+        System.arraycopy(text, 0, out, pos + HEADER_LENGTH, text.length);
+        return finishFrame(out, pos, TYPE_ERROR, text.length);
+    }
+
+    /**
+     * Encodes a JSON message as a JSON record.  A trailing line terminator is not included.
+     *
+     * @param out    the destination buffer
+     * @param pos    the position in the buffer at which to write the record
+     * @param json   the buffer containing the JSON message
+     * @param offset the offset of the message within its buffer
+     * @param length the length of the message, optionally including a line terminator
+     * @return the position in the buffer after the record
+     */
+    public static int encodeJson(byte[] out, int pos, byte[] json, int offset, int length) {
+        while (length > 0 && (json[offset + length - 1] == '\n' || json[offset + length - 1] == '\r'))
+            length--;
+        System.arraycopy(json, offset, out, pos + HEADER_LENGTH, length);
+        return finishFrame(out, pos, TYPE_JSON, length);
+    }
+
+    /**
+     * Encodes an arbitrary payload as a record of the given type.
+     *
+     * @param out     the destination buffer
+     * @param pos     the position in the buffer at which to write the record
+     * @param type    the record type, such as {@link #TYPE_MOTOR}
+     * @param payload the buffer containing the payload
+     * @param offset  the offset of the payload within its buffer
+     * @param length  the length of the payload
+     * @return the position in the buffer after the record
+     */
+    public static int encodeRecord(byte[] out, int pos, int type,
+                                   byte[] payload, int offset, int length) {
+        System.arraycopy(payload, offset, out, pos + HEADER_LENGTH, length);
+        return finishFrame(out, pos, type, length);
+    }
+
+    /**
+     * Fills in the header and checksum of a record whose payload has already been written.
+     *
+     * @return the position in the buffer after the record
+     */
+    private static int finishFrame(byte[] out, int pos, int type, int length) {
+        if (length > MAX_PAYLOAD_LENGTH)
+            throw new IllegalArgumentException("Payload is too long: " + length + " bytes.");
+
+        out[pos] = SYNC;
+        out[pos + 1] = (byte) type;
+        out[pos + 2] = (byte) length;
+        out[pos + 3] = (byte) (length >>> 8);
+
+        int end = pos + HEADER_LENGTH + length;
+        int crc = crc16(out, pos + 1, HEADER_LENGTH - 1 + length);
+        out[end] = (byte) crc;
+        out[end + 1] = (byte) (crc >>> 8);
+        return end + CHECKSUM_LENGTH;
+    }
+
+    /**
+     * Writes a 32-bit little-endian float.
+     *
+     * @return the position in the buffer after the value
+     */
+    public static int writeFloat(byte[] out, int pos, float value) {
+        return writeInt(out, pos, Float.floatToIntBits(value));
+    }
+
+    /**
+     * Reads a 32-bit little-endian float.
+     */
+    public static float readFloat(byte[] buffer, int pos) {
+        return Float.intBitsToFloat(readInt(buffer, pos));
+    }
+
+    /**
+     * Writes a 32-bit little-endian integer.
+     *
+     * @return the position in the buffer after the value
+     */
+    public static int writeInt(byte[] out, int pos, int value) {
+        out[pos] = (byte) value;
+        out[pos + 1] = (byte) (value >>> 8);
+        out[pos + 2] = (byte) (value >>> 16);
+        out[pos + 3] = (byte) (value >>> 24);
+        return pos + 4;
+    }
+
+    /**
+     * Reads a 32-bit little-endian integer.
+     */
+    public static int readInt(byte[] buffer, int pos) {
+        return (buffer[pos] & 0xFF)
+                | (buffer[pos + 1] & 0xFF) << 8
+                | (buffer[pos + 2] & 0xFF) << 16
+                | (buffer[pos + 3] & 0xFF) << 24;
+    }
+
+    /**
+     * Extracts binary records from a stream of bytes using reusable buffers.
+     * <p/>
+     * Received bytes are written in chunks as they arrive, and complete records are then
+     * extracted one at a time with {@link #next()}.  Bytes that do not
+     * form a valid record, including records with a bad checksum, are skipped until the next
+     * sync byte, so the decoder recovers from corruption without losing later records.
+     * <p/>
+     * This class is not thread-safe, except that the counters may be read from any thread.
+     */
+    public static class Decoder {
+        private final byte[] mBuffer = new byte[4 * MAX_FRAME_LENGTH];
+        private int mStart = 0;
+        private int mEnd = 0;
+
+        private final byte[] mPayload = new byte[MAX_PAYLOAD_LENGTH];
+        private int mType = 0;
+        private int mPayloadLength = 0;
+
+        private volatile long mFrameCount = 0;
+        private volatile long mErrorCount = 0;
+
+        /**
+         * Discards all buffered data, including any partial record.
+         */
+        public void clear() {
+            mStart = mEnd = 0;
+            mType = 0;
+            mPayloadLength = 0;
+        }
+
+        /**
+         * Adds received bytes to the decoder.  All available records should be extracted with
+         * {@link #next()} before writing more data.
+         *
+         * @param buffer the buffer containing the received bytes
+         * @param offset the offset of the received bytes within the buffer
+         * @param length the number of received bytes, which together with any partial record
+         *               must fit within four maximum length records
+         * @throws IllegalArgumentException if more bytes are written than the decoder can hold
+         */
+        public void write(byte[] buffer, int offset, int length) {
+            if (mStart == mEnd)
+                mStart = mEnd = 0;
+            if (mEnd + length > mBuffer.length) {
+                // Move the unprocessed bytes to the front of the buffer to make room.
+                System.arraycopy(mBuffer, mStart, mBuffer, 0, mEnd - mStart);
+                mEnd -= mStart;
+                mStart = 0;
+                if (mEnd + length > mBuffer.length)
+                    throw new IllegalArgumentException("Cannot write " + length + " bytes to decoder.");
+            }
+
+            System.arraycopy(buffer, offset, mBuffer, mEnd, length);
+            mEnd += length;
+        }
+
+        /**
+         * Adds all remaining bytes of a buffer to the decoder, such as the bytes just read from
+         * a channel, without an intermediate copy.
+         *
+         * @param buffer the buffer containing the received bytes
+         * @throws IllegalArgumentException if more bytes are written than the decoder can hold
+         * @see #write(byte[], int, int)
+         */
+        public void write(ByteBuffer buffer) {
+            int length = buffer.remaining();
+            if (mStart == mEnd)
+                mStart = mEnd = 0;
+            if (mEnd + length > mBuffer.length) {
+                System.arraycopy(mBuffer, mStart, mBuffer, 0, mEnd - mStart);
+                mEnd -= mStart;
+                mStart = 0;
+                if (mEnd + length > mBuffer.length)
+                    throw new IllegalArgumentException("Cannot write " + length + " bytes to decoder.");
+            }
+
+            buffer.get(mBuffer, mEnd, length);
+            mEnd += length;
+        }
+
+        /**
+         * Extracts the next valid record, if one is available.  The record can then be read with
+         * {@link #getType()}, {@link #getPayload()} and {@link #getPayloadLength()} until the next
+         * call to this method.
+         *
+         * @return true if a record was extracted, or false if more data is needed
+         */
+        public boolean next() {
+            while (mEnd - mStart >= HEADER_LENGTH + CHECKSUM_LENGTH) {
+                if (mBuffer[mStart] != SYNC) {
+                    skip();
+                    continue;
+                }
+
+                int length = (mBuffer[mStart + 2] & 0xFF) | (mBuffer[mStart + 3] & 0xFF) << 8;
+                if (length > MAX_PAYLOAD_LENGTH) {
+                    skip();
+                    continue;
+                }
+
+                int frameLength = HEADER_LENGTH + length + CHECKSUM_LENGTH;
+                if (mEnd - mStart < frameLength)
+                    return false;
+
+                int end = mStart + HEADER_LENGTH + length;
+                int crc = (mBuffer[end] & 0xFF) | (mBuffer[end + 1] & 0xFF) << 8;
+                if (crc != crc16(mBuffer, mStart + 1, HEADER_LENGTH - 1 + length)) {
+                    skip();
+                    continue;
+                }
+
+                mType = mBuffer[mStart + 1] & 0xFF;
+                mPayloadLength = length;
+                System.arraycopy(mBuffer, mStart + HEADER_LENGTH, mPayload, 0, length);
+                mStart += frameLength;
+                mFrameCount++;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Discards the first buffered byte and everything up to the next sync byte.
+         */
+        private void skip() {
+            mErrorCount++;
+            mStart++;
+            while (mStart < mEnd && mBuffer[mStart] != SYNC)
+                mStart++;
+        }
+
+        /**
+         * Returns the type of the most recently extracted record.
+         */
+        public int getType() {
+            return mType;
+        }
+
+        /**
+         * Returns the buffer containing the payload of the most recently extracted record.
+         * The buffer is reused and will be overwritten by the next call to {@link #next()}.
+         */
+        public byte[] getPayload() {
+            return mPayload;
+        }
+
+        /**
+         * Returns the length of the payload of the most recently extracted record.
+         */
+        public int getPayloadLength() {
+            return mPayloadLength;
+        }
+
+        /**
+         * Returns the total number of valid records extracted.
+         */
+        public long getFrameCount() {
+            return mFrameCount;
+        }
+
+        /**
+         * Returns the number of times invalid data was skipped, such as a record with a bad
+         * checksum or bytes outside of any record.
+         */
+        public long getErrorCount() {
+            return mErrorCount;
+        }
+    }
+}
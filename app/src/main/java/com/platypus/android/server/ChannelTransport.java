@@ -0,0 +1,150 @@
+package com.platypus.android.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A transport over a pair of NIO channels, such as those of a TCP socket, a serial port or an
+ * in-process pipe.
+ * <p/>
+ * This does not depend on Android, so it can be used to connect a {@link Controller} to a
+ * {@link SimulatedBoard} on a plain JVM, or to a controller board from a Linux companion
+ * computer.
+ */
+public class ChannelTransport implements Transport {
+    /**
+     * Longest time to wait for a TCP connection to be established.
+     */
+    public static final int CONNECT_TIMEOUT_MS = 5000;
+
+    private final String mName;
+    private final ReadableByteChannel mInput;
+    private final WritableByteChannel mOutput;
+    private final Closeable[] mResources;
+
+    /**
+     * Creates a transport over the given channels, which must be in blocking mode.
+     *
+     * @param name      a description of the transport, used in log messages
+     * @param input     the channel from which bytes are read
+     * @param output    the channel to which bytes are written
+     * @param resources other resources to close when the transport is closed
+     */
+    public ChannelTransport(String name, ReadableByteChannel input, WritableByteChannel output,
+                            Closeable... resources) {
+        mName = name;
+        mInput = input;
+        mOutput = output;
+        mResources = resources;
+    }
+
+    /**
+     * Creates a transport over a connected socket channel.
+     *
+     * @param channel the connected socket channel
+     * @throws IOException if the channel cannot be configured
+     */
+    public static ChannelTransport of(SocketChannel channel) throws IOException {
+        channel.configureBlocking(true);
+        channel.socket().setTcpNoDelay(true);
+        return new ChannelTransport("tcp:" + channel.socket().getRemoteSocketAddress(),
+                channel, channel);
+    }
+
+    /**
+     * Opens a TCP connection to a controller board, or to a simulated board.
+     *
+     * @param host the host name or address of the board
+     * @param port the TCP port of the board
+     * @throws IOException if the connection cannot be established
+     */
+    public static ChannelTransport connect(String host, int port) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+            return of(channel);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a serial device, such as {@code /dev/ttyUSB0} or {@code /dev/ttyACM0}.
+     * <p/>
+     * Java cannot set the line settings of a serial port, so the port must already be in raw
+     * mode at the speed of the board, for example with
+     * {@code stty -F /dev/ttyUSB0 115200 raw -echo}.  The device is opened twice so that a
+     * blocked read does not hold up writes.
+     *
+     * @param path the path of the serial device
+     * @throws IOException if the device cannot be opened
+     */
+    public static ChannelTransport openSerial(String path) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(path, "r");
+        try {
+            RandomAccessFile output = new RandomAccessFile(path, "rw");
+            return new ChannelTransport("serial:" + path,
+                    input.getChannel(), output.getChannel(), input, output);
+        } catch (IOException e) {
+            input.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Creates two transports connected to each other through in-process pipes, so that bytes
+     * written to one can be read from the other.
+     *
+     * @return the two ends of the connection
+     * @throws IOException if the pipes cannot be opened
+     */
+    public static ChannelTransport[] createPipe() throws IOException {
+        Pipe forward = Pipe.open();
+        Pipe backward = Pipe.open();
+        return new ChannelTransport[]{
+                new ChannelTransport("pipe", backward.source(), forward.sink()),
+                new ChannelTransport("pipe", forward.source(), backward.sink())
+        };
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        return mInput.read(dst);
+    }
+
+    @Override
+    public void write(ByteBuffer src) throws IOException {
+        while (src.hasRemaining())
+            mOutput.write(src);
+    }
+
+    @Override
+    public void close() {
+        // Errors while closing are ignored, since nothing more can be done with the transport.
+        closeQuietly(mInput);
+        closeQuietly(mOutput);
+        for (Closeable resource : mResources)
+            closeQuietly(resource);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Ignore, see close().
+        }
+    }
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+}
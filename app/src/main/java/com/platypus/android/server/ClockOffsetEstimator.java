@@ -0,0 +1,200 @@
+package com.platypus.android.server;
+
+/**
+ * Estimates the offset and drift between a remote clock, such as the clock of a controller
+ * board, and the local monotonic clock, from messages stamped by the remote clock and received
+ * locally.
+ * <p/>
+ * Each message gives one observation of {@code offset = receiveTime - remoteTime}, which is the
+ * true clock offset plus a transmission delay that is never negative and is occasionally close
+ * to zero.  Observations are grouped into windows of fixed remote duration and only the smallest
+ * offset of each window, the one with the least delay, is kept.  A least-squares line through
+ * the recent window minima then gives the offset at any time together with the drift rate of
+ * the remote clock, so queueing and scheduling delays on the link do not bias the estimate.
+ * <p/>
+ * If the remote clock jumps backwards, such as when the board is reset, the estimator starts
+ * over.  Adding observations does not allocate.
+ * <p/>
+ * This class is not thread-safe; callers must provide their own synchronization.
+ */
+public class ClockOffsetEstimator {
+    /**
+     * Default remote duration of each window of observations.
+     */
+    public static final long DEFAULT_WINDOW_NS = 1000000000L;
+    /**
+     * Default number of window minima used to fit the offset and drift.
+     */
+    public static final int DEFAULT_WINDOW_COUNT = 30;
+
+    private final long mWindowNs;
+    private final long[] mMinRemoteNs;
+    private final long[] mMinOffsetNs;
+    private int mCount = 0;
+    private int mNext = 0;
+
+    // The window currently being filled.
+    private long mWindowStartNs = Long.MIN_VALUE;
+    private long mWindowRemoteNs = 0;
+    private long mWindowOffsetNs = Long.MAX_VALUE;
+    private long mLastRemoteNs = Long.MIN_VALUE;
+    private long mObservationCount = 0;
+
+    // Fitted line: offset = mOffsetNs + mDrift * (remote - mReferenceNs).
+    private long mReferenceNs = 0;
+    private long mOffsetNs = 0;
+    private double mDrift = 0.0;
+    private boolean mIsValid = false;
+
+    /**
+     * Creates an estimator with the default window duration and count.
+     */
+    public ClockOffsetEstimator() {
+        this(DEFAULT_WINDOW_NS, DEFAULT_WINDOW_COUNT);
+    }
+
+    /**
+     * Creates an estimator.
+     *
+     * @param windowNs    the remote duration of each window of observations
+     * @param windowCount the number of window minima used to fit the offset and drift
+     */
+    public ClockOffsetEstimator(long windowNs, int windowCount) {
+        if (windowNs <= 0 || windowCount < 2)
+            throw new IllegalArgumentException("Invalid window: " + windowCount + " x "
+                    + windowNs + "ns");
+        mWindowNs = windowNs;
+        mMinRemoteNs = new long[windowCount];
+        mMinOffsetNs = new long[windowCount];
+    }
+
+    /**
+     * Discards all observations.
+     */
+    public void reset() {
+        mCount = 0;
+        mNext = 0;
+        mWindowStartNs = Long.MIN_VALUE;
+        mWindowOffsetNs = Long.MAX_VALUE;
+        mLastRemoteNs = Long.MIN_VALUE;
+        mObservationCount = 0;
+        mDrift = 0.0;
+        mIsValid = false;
+    }
+
+    /**
+     * Adds an observation of a message stamped by the remote clock.
+     *
+     * @param remoteNs  the remote time at which the message was sent
+     * @param receiveNs the local monotonic time at which the message was received
+     */
+    public void add(long remoteNs, long receiveNs) {
+        if (remoteNs < mLastRemoteNs)
+            reset();
+        mLastRemoteNs = remoteNs;
+        mObservationCount++;
+
+        if (mWindowStartNs != Long.MIN_VALUE && remoteNs - mWindowStartNs >= mWindowNs)
+            closeWindow();
+        if (mWindowStartNs == Long.MIN_VALUE)
+            mWindowStartNs = remoteNs;
+
+        long offsetNs = receiveNs - remoteNs;
+        if (offsetNs < mWindowOffsetNs) {
+            mWindowOffsetNs = offsetNs;
+            mWindowRemoteNs = remoteNs;
+        }
+
+        // Until the first window closes, the running minimum is the best estimate.
+        if (mCount == 0) {
+            mReferenceNs = mWindowRemoteNs;
+            mOffsetNs = mWindowOffsetNs;
+            mIsValid = true;
+        }
+    }
+
+    /**
+     * Stores the minimum of the current window and refits the offset and drift.
+     */
+    private void closeWindow() {
+        mMinRemoteNs[mNext] = mWindowRemoteNs;
+        mMinOffsetNs[mNext] = mWindowOffsetNs;
+        mNext = (mNext + 1) % mMinRemoteNs.length;
+        mCount = Math.min(mCount + 1, mMinRemoteNs.length);
+        mWindowStartNs = Long.MIN_VALUE;
+        mWindowOffsetNs = Long.MAX_VALUE;
+        fit();
+    }
+
+    /**
+     * Fits a line through the stored window minima, relative to the newest minimum so that
+     * the sums stay small enough to be exact in double precision.
+     */
+    private void fit() {
+        int newest = (mNext + mMinRemoteNs.length - 1) % mMinRemoteNs.length;
+        long referenceNs = mMinRemoteNs[newest];
+        long baseOffsetNs = mMinOffsetNs[newest];
+
+        double sumX = 0, sumY = 0, sumXX = 0, sumXY = 0;
+        for (int i = 0; i < mCount; ++i) {
+            double x = mMinRemoteNs[i] - referenceNs;
+            double y = mMinOffsetNs[i] - baseOffsetNs;
+            sumX += x;
+            sumY += y;
+            sumXX += x * x;
+            sumXY += x * y;
+        }
+
+        double denominator = mCount * sumXX - sumX * sumX;
+        double drift = (mCount >= 2 && denominator > 0)
+                ? (mCount * sumXY - sumX * sumY) / denominator : 0.0;
+        double intercept = (sumY - drift * sumX) / mCount;
+
+        mReferenceNs = referenceNs;
+        mOffsetNs = baseOffsetNs + Math.round(intercept);
+        mDrift = drift;
+        mIsValid = true;
+    }
+
+    /**
+     * Returns whether any observations have been added, so that times can be converted.
+     */
+    public boolean isValid() {
+        return mIsValid;
+    }
+
+    /**
+     * Converts a remote time into the local monotonic clock.
+     *
+     * @param remoteNs the remote time
+     * @return the corresponding local time
+     * @throws IllegalStateException if no observations have been added
+     */
+    public long toLocalNs(long remoteNs) {
+        if (!mIsValid)
+            throw new IllegalStateException("No clock observations.");
+        return remoteNs + getOffsetNs(remoteNs);
+    }
+
+    /**
+     * Returns the estimated offset of the local clock from the remote clock at a remote time.
+     */
+    public long getOffsetNs(long remoteNs) {
+        return mOffsetNs + Math.round(mDrift * (remoteNs - mReferenceNs));
+    }
+
+    /**
+     * Returns the estimated rate at which the offset changes, in parts per million.  A positive
+     * value means that the remote clock runs slow.
+     */
+    public double getDriftPpm() {
+        return mDrift * 1e6;
+    }
+
+    /**
+     * Returns the number of observations added since the estimator was last reset.
+     */
+    public long getObservationCount() {
+        return mObservationCount;
+    }
+}
@@ -0,0 +1,395 @@
+package com.platypus.android.server;
+
+/**
+ * Builds controller board commands without allocating.
+ * <p/>
+ * A command is a set of actuator fields, such as the velocity {@code "v"} of motor {@code "m0"}.
+ * Fields are collected into preallocated tables and then written as a single JSON line directly
+ * into a reused byte buffer, producing the same wire format the board expects:
+ * <pre>
+ *     {"m0":{"v":0.5},"m1":{"v":-0.25}}\r\n
+ * </pre>
+ * Fields of the same actuator are grouped together in the order that the actuator first appeared.
+ * Setting a field that is already present replaces its value, so several commands can be
+ * merged into one with {@link #putAll(CommandEncoder)}.
+ * <p/>
+ * A command may also carry a sequence number, written as a top-level {@code "seq"} field, which
+ * the board echoes back so that the round-trip time of the command can be measured.
+ * <p/>
+ * Numbers are written with at most six decimal places and without trailing zeros, which is finer
+ * than the single-precision values parsed by the board.  Actuator and field names must be short
+ * ASCII identifiers that do not need JSON escaping.
+ * <p/>
+ * This class is not thread-safe.
+ */
+public class CommandEncoder {
+    /**
+     * Maximum number of fields that can be held in one command.
+     */
+    public static final int MAX_FIELDS = 16;
+    /**
+     * Maximum length of an actuator or field name.
+     */
+    public static final int MAX_NAME_LENGTH = 16;
+    /**
+     * Largest magnitude of a numeric value that can be encoded.
+     */
+    public static final double MAX_VALUE = 1e12;
+    /**
+     * Size of the output buffer, large enough for a full command with maximum length names.
+     */
+    public static final int MAX_LENGTH = 1024;
+
+    private static final int DECIMALS = 6;
+    private static final long SCALE = 1000000L;
+
+    private final String[] mActuators = new String[MAX_FIELDS];
+    private final String[] mFields = new String[MAX_FIELDS];
+    private final double[] mValues = new double[MAX_FIELDS];
+    private final boolean[] mIsFlag = new boolean[MAX_FIELDS];
+    private int mCount = 0;
+    private int mSequence = -1;
+
+    private final byte[] mBuffer = new byte[MAX_LENGTH];
+    private int mJsonLength = 0;
+    private int mLength = 0;
+
+    private final byte[] mBinaryBuffer = new byte[BinaryFrameCodec.MAX_FRAME_LENGTH];
+    private int mBinaryLength = 0;
+
+    /**
+     * Removes all fields from this command.
+     *
+     * @return this encoder
+     */
+    public CommandEncoder clear() {
+        for (int i = 0; i < mCount; ++i) {
+            mActuators[i] = null;
+            mFields[i] = null;
+        }
+        mCount = 0;
+        mSequence = -1;
+        return this;
+    }
+
+    /**
+     * Returns whether this command contains no fields.
+     */
+    public boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    /**
+     * Sets a numeric field of an actuator.
+     *
+     * @param actuator the name of the actuator, such as "m0"
+     * @param field    the name of the field, such as "v"
+     * @param value    the value of the field
+     * @return this encoder
+     * @throws IllegalArgumentException if the value is not finite or is too large
+     */
+    public CommandEncoder put(String actuator, String field, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value) || Math.abs(value) >= MAX_VALUE)
+            throw new IllegalArgumentException("Invalid value for " + actuator + "." + field
+                    + ": " + value);
+
+        int i = slot(actuator, field);
+        mValues[i] = value;
+        mIsFlag[i] = false;
+        return this;
+    }
+
+    /**
+     * Sets a boolean field of an actuator.
+     *
+     * @param actuator the name of the actuator, such as "s0"
+     * @param field    the name of the field, such as "sample"
+     * @param value    the value of the field
+     * @return this encoder
+     */
+    public CommandEncoder put(String actuator, String field, boolean value) {
+        int i = slot(actuator, field);
+        mValues[i] = value ? 1.0 : 0.0;
+        mIsFlag[i] = true;
+        return this;
+    }
+
+    /**
+     * Attaches a sequence number to this command.  It is removed by {@link #clear()}.
+     *
+     * @param sequence the non-negative sequence number
+     * @return this encoder
+     */
+    public CommandEncoder setSequence(int sequence) {
+        if (sequence < 0)
+            throw new IllegalArgumentException("Invalid sequence number: " + sequence);
+        mSequence = sequence;
+        return this;
+    }
+
+    /**
+     * Returns whether a sequence number is attached to this command.
+     */
+    public boolean hasSequence() {
+        return mSequence >= 0;
+    }
+
+    /**
+     * Returns the sequence number attached to this command, or -1 if there is none.
+     */
+    public int getSequence() {
+        return mSequence;
+    }
+
+    /**
+     * Copies all fields of another command into this one, replacing the values of fields
+     * that are already present.
+     *
+     * @param command the command to merge into this one
+     * @return this encoder
+     */
+    public CommandEncoder putAll(CommandEncoder command) {
+        for (int i = 0; i < command.mCount; ++i) {
+            int j = slot(command.mActuators[i], command.mFields[i]);
+            mValues[j] = command.mValues[i];
+            mIsFlag[j] = command.mIsFlag[i];
+        }
+        return this;
+    }
+
+    /**
+     * Writes the command as a JSON line into the internal buffer.
+     *
+     * @return the length of the encoded line, including the line terminator
+     */
+    public int encode() {
+        byte[] buf = mBuffer;
+        int pos = 0;
+
+        buf[pos++] = '{';
+        for (int i = 0; i < mCount; ++i) {
+            // Each actuator object is written once, at the first field that refers to it.
+            if (indexOfActuator(mActuators[i]) != i)
+                continue;
+
+            if (pos > 1)
+                buf[pos++] = ',';
+            pos = writeName(buf, pos, mActuators[i]);
+            buf[pos++] = ':';
+            buf[pos++] = '{';
+
+            boolean isFirst = true;
+            for (int j = i; j < mCount; ++j) {
+                if (!mActuators[j].equals(mActuators[i]))
+                    continue;
+
+                if (!isFirst)
+                    buf[pos++] = ',';
+                isFirst = false;
+
+                pos = writeName(buf, pos, mFields[j]);
+                buf[pos++] = ':';
+                pos = mIsFlag[j]
+                        ? writeBoolean(buf, pos, mValues[j] != 0.0)
+                        : writeNumber(buf, pos, mValues[j]);
+            }
+            buf[pos++] = '}';
+        }
+        if (mSequence >= 0) {
+            if (pos > 1)
+                buf[pos++] = ',';
+            pos = writeName(buf, pos, "seq");
+            buf[pos++] = ':';
+            pos = writeDigits(buf, pos, mSequence);
+        }
+        buf[pos++] = '}';
+        mJsonLength = pos;
+
+        buf[pos++] = '\r';
+        buf[pos++] = '\n';
+        mLength = pos;
+        return pos;
+    }
+
+    /**
+     * Returns the buffer containing the most recently encoded command.
+     * The buffer is reused and will be overwritten by the next call to {@link #encode()}.
+     */
+    public byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    /**
+     * Returns the length of the most recently encoded command, including the line terminator.
+     */
+    public int getLength() {
+        return mLength;
+    }
+
+    /**
+     * Returns the length of the JSON object in the most recently encoded command,
+     * excluding the line terminator.
+     */
+    public int getJsonLength() {
+        return mJsonLength;
+    }
+
+    /**
+     * Writes the command as binary motor and servo records into an internal buffer.
+     *
+     * @return the length of the encoded records, or -1 if the command has no binary form
+     * @see BinaryFrameCodec#encodeCommand(CommandEncoder, byte[])
+     */
+    public int encodeBinary() {
+        mBinaryLength = BinaryFrameCodec.encodeCommand(this, mBinaryBuffer);
+        return mBinaryLength;
+    }
+
+    /**
+     * Returns the buffer containing the most recently encoded binary records.
+     * The buffer is reused and will be overwritten by the next call to {@link #encodeBinary()}.
+     */
+    public byte[] getBinaryBuffer() {
+        return mBinaryBuffer;
+    }
+
+    /**
+     * Returns the length of the most recently encoded binary records,
+     * or -1 if the command had no binary form.
+     */
+    public int getBinaryLength() {
+        return mBinaryLength;
+    }
+
+    /**
+     * Returns the number of fields in this command.
+     */
+    public int getFieldCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the actuator name of a field, such as "m0".
+     *
+     * @param index the index of the field, in the order the fields were first set
+     */
+    public String getActuator(int index) {
+        return mActuators[index];
+    }
+
+    /**
+     * Returns the name of a field, such as "v".
+     *
+     * @param index the index of the field, in the order the fields were first set
+     */
+    public String getField(int index) {
+        return mFields[index];
+    }
+
+    /**
+     * Returns the value of a field.  Boolean fields have a value of 1 or 0.
+     *
+     * @param index the index of the field, in the order the fields were first set
+     */
+    public double getValue(int index) {
+        return mValues[index];
+    }
+
+    /**
+     * Returns whether a field is a boolean field.
+     *
+     * @param index the index of the field, in the order the fields were first set
+     */
+    public boolean isFlag(int index) {
+        return mIsFlag[index];
+    }
+
+    private int slot(String actuator, String field) {
+        for (int i = 0; i < mCount; ++i) {
+            if (mActuators[i].equals(actuator) && mFields[i].equals(field))
+                return i;
+        }
+
+        if (mCount >= MAX_FIELDS)
+            throw new IllegalStateException("Command cannot hold more than " + MAX_FIELDS + " fields.");
+        if (actuator.length() > MAX_NAME_LENGTH || field.length() > MAX_NAME_LENGTH)
+            throw new IllegalArgumentException("Name is too long: " + actuator + "." + field);
+
+        mActuators[mCount] = actuator;
+        mFields[mCount] = field;
+        return mCount++;
+    }
+
+    private int indexOfActuator(String actuator) {
+        for (int i = 0; i < mCount; ++i) {
+            if (mActuators[i].equals(actuator))
+                return i;
+        }
+        return -1;
+    }
+
+    static int writeName(byte[] buf, int pos, String name) {
+        buf[pos++] = '"';
+        for (int i = 0; i < name.length(); ++i)
+            buf[pos++] = (byte) name.charAt(i);
+        buf[pos++] = '"';
+        return pos;
+    }
+
+    private static int writeBoolean(byte[] buf, int pos, boolean value) {
+        String text = value ? "true" : "false";
+        for (int i = 0; i < text.length(); ++i)
+            buf[pos++] = (byte) text.charAt(i);
+        return pos;
+    }
+
+    /**
+     * Writes a number in fixed-point notation, omitting the fraction if it is zero
+     * (the same way integral values are written by JSONObject).
+     */
+    static int writeNumber(byte[] buf, int pos, double value) {
+        long scaled = Math.round(Math.abs(value) * SCALE);
+        if (value < 0 && scaled != 0)
+            buf[pos++] = '-';
+
+        pos = writeDigits(buf, pos, scaled / SCALE);
+
+        long fraction = scaled % SCALE;
+        if (fraction != 0) {
+            int digits = DECIMALS;
+            while (fraction % 10 == 0) {
+                fraction /= 10;
+                digits--;
+            }
+
+            buf[pos++] = '.';
+            for (int d = digits - 1; d >= 0; --d) {
+                buf[pos + d] = (byte) ('0' + fraction % 10);
+                fraction /= 10;
+            }
+            pos += digits;
+        }
+        return pos;
+    }
+
+    static int writeDigits(byte[] buf, int pos, long value) {
+        if (value == 0) {
+            buf[pos++] = '0';
+            return pos;
+        }
+
+        int start = pos;
+        while (value > 0) {
+            buf[pos++] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+
+        // Digits were written least-significant first, so reverse them in place.
+        for (int i = start, j = pos - 1; i < j; ++i, --j) {
+            byte tmp = buf[i];
+            buf[i] = buf[j];
+            buf[j] = tmp;
+        }
+        return pos;
+    }
+}
@@ -0,0 +1,358 @@
+package com.platypus.android.server;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A fixed-rate scheduler that owns all periodic vehicle work.
+ * <p/>
+ * A single high-priority thread ticks at a constant period measured against the monotonic clock.
+ * Each scheduled task runs every N ticks, aligned to the absolute tick count so that tasks with
+ * related intervals stay in phase with each other.  Within a tick, tasks run in order of their
+ * stage (sense, control, actuate, then report), and in the order they were scheduled within a
+ * stage, so a command is always computed from the state sensed in the same tick and sent out in
+ * that tick.  Each task receives the real time elapsed since its previous run.
+ * <p/>
+ * The loop sleeps until shortly before each deadline and then spins, which keeps wake-up jitter
+ * well below a millisecond.  If a tick overruns its period, the overrun is counted; if whole
+ * periods are lost, they are counted as missed and skipped rather than run as a burst.  Tasks
+ * that were due during the skipped ticks run once in the next tick, and then return to their
+ * usual alignment.
+ */
+public class ControlLoop {
+    private static final String TAG = ControlLoop.class.getSimpleName();
+    /**
+     * Time before a deadline at which the loop stops sleeping and starts spinning.
+     */
+    private static final long SPIN_THRESHOLD_NS = 500000;
+
+    /**
+     * Stage for tasks that sample and estimate the vehicle state.
+     */
+    public static final int STAGE_SENSE = 0;
+    /**
+     * Stage for tasks that compute commands from the current vehicle state.
+     */
+    public static final int STAGE_CONTROL = 1;
+    /**
+     * Stage for tasks that send commands to the actuators.
+     */
+    public static final int STAGE_ACTUATE = 2;
+    /**
+     * Stage for tasks that report or record information, and other background work.
+     */
+    public static final int STAGE_REPORT = 3;
+
+    /**
+     * A unit of periodic work that is executed by the control loop.
+     */
+    public interface Task {
+        /**
+         * Called from the control loop thread each time this task is due.
+         *
+         * @param dt the measured time since this task last ran, in seconds
+         */
+        void run(double dt);
+    }
+
+    private static class Entry {
+        final Task task;
+        final long interval;
+        final int stage;
+        long lastRunNs = 0;
+        /**
+         * The first tick at which the task is due, or -1 if the loop has not seen it yet.
+         */
+        long nextTick = -1;
+
+        Entry(Task task, long interval, int stage) {
+            this.task = task;
+            this.interval = interval;
+            this.stage = stage;
+        }
+    }
+
+    private final long mPeriodNs;
+    private final TraceBuffer mTrace;
+    private final Object mEntriesLock = new Object();
+    private volatile Entry[] mEntries = new Entry[0];
+    private volatile boolean mIsRunning = false;
+    private final Thread mThread;
+
+    // Loop statistics, written only by the loop thread.
+    private final TimingStats mJitter = new TimingStats();
+    private final TimingStats mTickDuration = new TimingStats();
+    private volatile long mTick = 0;
+    private volatile long mOverruns = 0;
+    private volatile long mMissed = 0;
+
+    /**
+     * Creates a new control loop.  The loop does not run until {@link #start()} is called.
+     *
+     * @param periodMs the base tick period in milliseconds
+     */
+    public ControlLoop(long periodMs) {
+        this(periodMs, null);
+    }
+
+    /**
+     * Creates a new control loop that records the start of each tick in a trace buffer.
+     * The loop does not run until {@link #start()} is called.
+     *
+     * @param periodMs the base tick period in milliseconds
+     * @param trace    the buffer in which to record {@link TraceBuffer#TICK_START} events,
+     *                 or null to disable tracing
+     */
+    public ControlLoop(long periodMs, TraceBuffer trace) {
+        mPeriodNs = periodMs * 1000000L;
+        mTrace = trace;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, TAG);
+        mThread.setDaemon(true);
+        mThread.setPriority(Thread.MAX_PRIORITY);
+    }
+
+    /**
+     * Starts the loop thread.
+     */
+    public void start() {
+        mIsRunning = true;
+        mThread.start();
+    }
+
+    /**
+     * Stops the loop thread and waits for any tick in progress to finish.  Tasks will not be run
+     * again after this returns, unless it is called from a task, in which case the remaining
+     * tasks of the current tick still run.
+     */
+    public void shutdown() {
+        mIsRunning = false;
+        LockSupport.unpark(mThread);
+        if (Thread.currentThread() == mThread)
+            return;
+
+        boolean isInterrupted = false;
+        while (mThread.isAlive()) {
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                isInterrupted = true;
+            }
+        }
+        if (isInterrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Returns the base tick period of this loop in milliseconds.
+     */
+    public long getPeriodMs() {
+        return mPeriodNs / 1000000L;
+    }
+
+    /**
+     * Converts a desired interval into a whole number of ticks of this loop.
+     *
+     * @param intervalMs the desired interval in milliseconds
+     * @return the closest interval in ticks, at least one
+     */
+    public long ticks(double intervalMs) {
+        return Math.max(1, Math.round(intervalMs * 1000000.0 / mPeriodNs));
+    }
+
+    /**
+     * Schedules a task in the {@link #STAGE_REPORT} stage to run every {@code interval} ticks.
+     *
+     * @param task     the task to run
+     * @param interval the number of ticks between runs of the task
+     * @see #schedule(Task, long, int)
+     */
+    public void schedule(Task task, long interval) {
+        schedule(task, interval, STAGE_REPORT);
+    }
+
+    /**
+     * Schedules a task to run every {@code interval} ticks in the given stage.  If the task was
+     * already scheduled, it is rescheduled with the new interval and stage.  This may be called
+     * from any thread, including from a task.
+     *
+     * @param task     the task to run
+     * @param interval the number of ticks between runs of the task
+     * @param stage    the stage of each tick in which the task runs
+     */
+    public void schedule(Task task, long interval, int stage) {
+        if (interval < 1)
+            throw new IllegalArgumentException("Interval must be at least one tick.");
+
+        synchronized (mEntriesLock) {
+            Entry[] entries = mEntries;
+            for (int i = 0; i < entries.length; ++i) {
+                if (entries[i].task == task && entries[i].stage == stage) {
+                    Entry[] updated = entries.clone();
+                    updated[i] = new Entry(task, interval, stage);
+                    mEntries = updated;
+                    return;
+                }
+            }
+            cancel(task);
+            entries = mEntries;
+
+            // Insert the new task after all other tasks of the same or an earlier stage.
+            int index = 0;
+            while (index < entries.length && entries[index].stage <= stage)
+                index++;
+
+            Entry[] updated = new Entry[entries.length + 1];
+            System.arraycopy(entries, 0, updated, 0, index);
+            updated[index] = new Entry(task, interval, stage);
+            System.arraycopy(entries, index, updated, index + 1, entries.length - index);
+            mEntries = updated;
+        }
+    }
+
+    /**
+     * Removes a task from the loop.  This may be called from any thread, including from a task.
+     *
+     * @param task the task to remove
+     */
+    public void cancel(Task task) {
+        if (task == null)
+            return;
+
+        synchronized (mEntriesLock) {
+            Entry[] entries = mEntries;
+            for (int i = 0; i < entries.length; ++i) {
+                if (entries[i].task == task) {
+                    Entry[] updated = new Entry[entries.length - 1];
+                    System.arraycopy(entries, 0, updated, 0, i);
+                    System.arraycopy(entries, i + 1, updated, i, updated.length - i);
+                    mEntries = updated;
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of ticks elapsed since the loop started, including missed ticks.
+     */
+    public long getTickCount() {
+        return mTick;
+    }
+
+    /**
+     * Returns the number of ticks whose work took longer than the loop period.
+     */
+    public long getOverrunCount() {
+        return mOverruns;
+    }
+
+    /**
+     * Returns the number of tick deadlines that were skipped because of overruns or stalls.
+     */
+    public long getMissedCount() {
+        return mMissed;
+    }
+
+    /**
+     * Returns statistics of the delay between each tick deadline and the actual tick start.
+     */
+    public TimingStats getJitter() {
+        return mJitter;
+    }
+
+    /**
+     * Returns statistics of the time spent executing the tasks of each tick.
+     */
+    public TimingStats getTickDuration() {
+        return mTickDuration;
+    }
+
+    private void loop() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_DISPLAY);
+
+        long deadline = System.nanoTime();
+        while (mIsRunning) {
+            long start = System.nanoTime();
+            mJitter.record(start - deadline);
+            if (mTrace != null)
+                mTrace.record(TraceBuffer.TICK_START, mTick);
+
+            runTasks(start);
+            deadline = advance(deadline, start, System.nanoTime());
+            waitUntil(deadline);
+        }
+    }
+
+    /**
+     * Runs the tasks that are due in the current tick, in order of their stage.  A task is due
+     * on every tick that is a multiple of its interval, or on the first tick after such a tick
+     * was skipped.  This is only called from the loop thread, and by tests in its place.
+     *
+     * @param now the monotonic time at which the tick started
+     */
+    void runTasks(long now) {
+        long tick = mTick;
+        Entry[] entries = mEntries;
+        for (Entry entry : entries) {
+            // Newly scheduled tasks are first due at the next multiple of their interval.
+            if (entry.nextTick < 0)
+                entry.nextTick = (tick + entry.interval - 1) / entry.interval * entry.interval;
+            if (tick < entry.nextTick)
+                continue;
+            entry.nextTick = tick - tick % entry.interval + entry.interval;
+
+            double dt = (entry.lastRunNs == 0)
+                    ? (entry.interval * mPeriodNs) / 1e9
+                    : (now - entry.lastRunNs) / 1e9;
+            entry.lastRunNs = now;
+
+            try {
+                entry.task.run(dt);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Control loop task failed.", e);
+            }
+        }
+    }
+
+    /**
+     * Ends the current tick and returns the deadline of the next one, skipping any periods that
+     * were lost entirely.  This is only called from the loop thread, and by tests in its place.
+     *
+     * @param deadline the deadline of the tick that ended
+     * @param start    the monotonic time at which the tick started
+     * @param end      the monotonic time at which its tasks finished
+     * @return the deadline of the next tick
+     */
+    long advance(long deadline, long start, long end) {
+        mTickDuration.record(end - start);
+
+        mTick++;
+        deadline += mPeriodNs;
+        if (end > deadline) {
+            mOverruns++;
+            long missed = (end - deadline) / mPeriodNs;
+            if (missed > 0) {
+                mMissed += missed;
+                mTick += missed;
+                deadline += missed * mPeriodNs;
+            }
+        }
+        return deadline;
+    }
+
+    private void waitUntil(long deadline) {
+        long remaining;
+        while (mIsRunning && (remaining = deadline - System.nanoTime()) > SPIN_THRESHOLD_NS)
+            LockSupport.parkNanos(remaining - SPIN_THRESHOLD_NS);
+        while (mIsRunning && System.nanoTime() < deadline) {
+            // Spin for the last fraction of the period to minimize wake-up jitter.
+        }
+    }
+}
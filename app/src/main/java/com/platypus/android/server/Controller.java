@@ -7,24 +7,69 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.hardware.usb.UsbAccessory;
 import android.hardware.usb.UsbManager;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.ParcelFileDescriptor;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
+import com.platypus.crw.data.SensorData;
+
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Wrapper for interfacing with the Platypus Controller board.
  * <p/>
  * This class provides simple JSON-based send and receive functionality to a
- * Platypus controller board.  The class is automatically kept up to date with
- * accessories by listening to USB connection and disconnection Intents.
+ * Platypus controller board.  When created with a {@link Context}, the class is automatically
+ * kept up to date with accessories by listening to USB connection and disconnection Intents.
+ * Boards may also be connected over any other {@link Transport} with {@link #open(Transport)},
+ * such as a TCP connection to a {@link SimulatedBoard}, in which case no Context is needed.
+ * <p/>
+ * Reading and writing are independent: outgoing messages are placed in a lock-free queue and
+ * written to the board by a dedicated writer thread, while incoming messages are read without
+ * holding any lock, so sending is never blocked behind a pending read.  The connection lock is
+ * only held while the connection is opened or closed.
+ * <p/>
+ * Actuator setpoints are posted with {@link #post(CommandEncoder)} and merged until the
+ * control loop calls {@link #flush()}, so all setpoints produced during a tick reach the board
+ * in a single write.  Since a flushed setpoint may be replaced by a newer one or discarded by a
+ * stop before it is written, one-off commands such as winch movements and sampler triggers are
+ * sent in order with {@link #send(CommandEncoder)} instead.
+ * <p/>
+ * Outgoing messages are prioritized by the lanes of an {@link OutboundQueue}: commands sent with
+ * {@link #sendSafety(CommandEncoder)} are written before anything else, a flushed command
+ * replaces an earlier one that has not been written yet, and all other messages are written in
+ * order once neither of these is waiting.
+ * <p/>
+ * The connection moves through the states of {@link ConnectionState}.  While no board is
+ * connected, {@link #receive()} blocks until a connection is opened.  If an open connection
+ * fails, reconnection is attempted with exponential backoff for as long as the accessory
+ * remains attached.
+ * <p/>
+ * If enabled, the compact binary framing of {@link BinaryFrameCodec} is negotiated with each
+ * newly connected board, falling back to JSON lines if the board does not accept it.  Callers
+ * always exchange JSON objects and commands; the framing used on the wire is transparent.
+ * <p/>
+ * Traffic over the link is counted in both directions, and the latencies of writes and,
+ * optionally, of complete command round trips are kept in {@link LatencyHistogram}s.  Round trips
+ * are measured by attaching a sequence number to each flushed command, which the board echoes
+ * back once the command has been applied.
+ * <p/>
+ * Every received message is stamped with the monotonic time of the read that completed it.
+ * Boards may also stamp messages with their own clock, as a top-level {@code "t"} field in
+ * milliseconds, or as a {@link BinaryFrameCodec#TYPE_TIME} record before a binary record.  The
+ * offset and drift of the board clock are then estimated with a {@link ClockOffsetEstimator},
+ * so that each message can be placed on the phone's clock at the time the board acquired it.
  */
 public class Controller {
     private static final String ACTION_USB_PERMISSION = "com.platypus.android.server.USB_PERMISSION";
@@ -34,6 +79,69 @@ public class Controller {
      * Maximum packet size that can be received from the board.
      */
     private static final int MAX_PACKET_SIZE = 1024;
+    /**
+     * Maximum number of outgoing safety messages waiting to be written to the board.
+     */
+    private static final int SAFETY_QUEUE_SIZE = 4;
+    /**
+     * Maximum number of other outgoing messages waiting to be written to the board.
+     */
+    private static final int BULK_QUEUE_SIZE = 32;
+    /**
+     * Maximum number of bytes written to the board at once.  A safety message waits for at most
+     * one write of this length before it is written.  This is large enough for any message,
+     * including a maximum length JSON message wrapped in a binary record.
+     */
+    private static final int MAX_WRITE_LENGTH = BinaryFrameCodec.MAX_FRAME_LENGTH;
+    /**
+     * Delay before the first attempt to reopen a failed connection.
+     */
+    private static final long RECONNECT_MIN_DELAY_MS = 250;
+    /**
+     * Longest delay between attempts to reopen a failed connection.
+     */
+    private static final long RECONNECT_MAX_DELAY_MS = 10000;
+    /**
+     * Number of recent command sequence numbers whose send times are kept.  Echoes of older
+     * commands are counted as unmatched.
+     */
+    private static final int SEQUENCE_WINDOW = 64;
+
+    /**
+     * The states of the connection to the controller board.
+     */
+    public enum ConnectionState {
+        /**
+         * No accessory is attached.
+         */
+        DISCONNECTED,
+        /**
+         * An accessory is attached and permission to open it has been requested.
+         */
+        PERMISSION_PENDING,
+        /**
+         * An accessory is open and messages can be exchanged.
+         */
+        CONNECTED,
+        /**
+         * An accessory is attached but could not be opened or accessed.
+         */
+        FAILED
+    }
+
+    /**
+     * Listener that is notified whenever the connection state changes.
+     */
+    public interface ConnectionListener {
+        /**
+         * Called when the connection changes state.  This is called while the connection is
+         * being changed, so it must return quickly and must not open or close the connection.
+         *
+         * @param state the new state of the connection
+         */
+        void onConnectionStateChanged(ConnectionState state);
+    }
+
     private final Context mContext;
     /**
      * Listen for connection events for accessory and request permission to connect to it.
@@ -46,17 +154,116 @@ public class Controller {
 
             // Request permission to connect to this device.
             // TODO: only detect Platypus Hardware!
-            UsbManager usbManager = (UsbManager) mContext.getSystemService(Context.USB_SERVICE);
-            PendingIntent permissionIntent = PendingIntent.getBroadcast(
-                    mContext, 0, new Intent(ACTION_USB_PERMISSION), 0);
-            usbManager.requestPermission(accessory, permissionIntent);
+            synchronized (mUsbLock) {
+                requestPermission(accessory);
+            }
         }
     };
+    /**
+     * Guards changes to the connection.  This is never held during reads or writes.
+     */
     private final Object mUsbLock = new Object();
     private UsbAccessory mUsbAccessory = null;
-    private ParcelFileDescriptor mUsbDescriptor = null;
-    private FileInputStream mUsbInputStream = null;
-    private FileOutputStream mUsbOutputStream = null;
+    private volatile Connection mConnection = null;
+    private ConnectionState mState = ConnectionState.DISCONNECTED;
+    private ConnectionListener mListener = null;
+    private final Handler mHandler;
+    private long mReconnectDelayMs = RECONNECT_MIN_DELAY_MS;
+    /**
+     * Reopens the accessory after a failure, if it is still attached.
+     */
+    private final Runnable mReconnectTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mUsbLock) {
+                if (!mIsRunning || mConnection != null)
+                    return;
+
+                // Only USB accessories are reopened automatically.
+                if (mUsbAccessory == null)
+                    return;
+
+                UsbManager usbManager = (UsbManager) mContext.getSystemService(Context.USB_SERVICE);
+                UsbAccessory[] usbAccessoryList = usbManager.getAccessoryList();
+                if (usbAccessoryList == null || usbAccessoryList.length == 0) {
+                    mUsbAccessory = null;
+                    setState(ConnectionState.DISCONNECTED);
+                    return;
+                }
+
+                if (usbManager.hasPermission(usbAccessoryList[0])) {
+                    mUsbAccessory = usbAccessoryList[0];
+                    connect();
+                } else {
+                    requestPermission(usbAccessoryList[0]);
+                }
+            }
+        }
+    };
+    /**
+     * Reusable buffers that split received data into messages.  These are only used by the
+     * thread calling {@link #receive()}.
+     */
+    // Direct buffers let the transport read and write without a temporary native copy.
+    private final ByteBuffer mReadBuffer = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+    private final LineFramer mFramer = new LineFramer(MAX_PACKET_SIZE);
+    private final BinaryFrameCodec.Decoder mDecoder = new BinaryFrameCodec.Decoder();
+    private final byte[] mHandoverBuffer = new byte[4 * MAX_PACKET_SIZE];
+    private Connection mFramedConnection = null;
+    private volatile boolean mIsBinaryEnabled = false;
+    /**
+     * Counters of received data, which are only updated by the thread calling
+     * {@link #receive()}.
+     */
+    private volatile long mReceivedByteCount = 0;
+    private volatile long mParseErrorCount = 0;
+    private volatile long mBoardErrorCount = 0;
+    private volatile long mUnmatchedEchoCount = 0;
+    private final LatencyHistogram mRoundTripLatency = new LatencyHistogram();
+    /**
+     * Send times of recently flushed commands, indexed by sequence number modulo the window.
+     * The sequence number of each slot is stored alongside so that stale echoes are detected.
+     */
+    private final AtomicLongArray mSequenceTimesNs = new AtomicLongArray(SEQUENCE_WINDOW);
+    private final AtomicIntegerArray mSequenceNumbers = new AtomicIntegerArray(SEQUENCE_WINDOW);
+    private int mNextSequence = 0;
+    private volatile boolean mIsSequenceEnabled = false;
+    /**
+     * Receive timestamps and the board clock, which are only used by the thread calling
+     * {@link #receive()}.  The clock estimate is also published for other threads.
+     */
+    private final ClockOffsetEstimator mBoardClock = new ClockOffsetEstimator();
+    private long mReceiveTimeNs = 0;
+    private long mMessageTimeNs = 0;
+    private long mPendingBoardTimeMs = -1;
+    private final SensorMessage mSensorMessage = new SensorMessage();
+    private JSONObject mMessage = null;
+    private long mLastBoardTimeMs = -1;
+    private long mBoardTimeMs = 0;
+    private volatile long mClockOffsetNs = 0;
+    private volatile double mClockDriftPpm = 0.0;
+    /**
+     * Outgoing messages, which are written to the board by the writer thread.
+     */
+    private final OutboundQueue mSendQueue =
+            new OutboundQueue(SAFETY_QUEUE_SIZE, BULK_QUEUE_SIZE, MAX_PACKET_SIZE);
+    /**
+     * Actuator commands posted since the last flush, merged by actuator and field.
+     */
+    private final CommandEncoder mPendingCommand = new CommandEncoder();
+    private final Thread mWriterThread;
+    private volatile boolean mIsRunning = true;
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    /**
+     * Counters of sent data, which are only updated by the writer thread.
+     */
+    private volatile long mSentMessageCount = 0;
+    private volatile long mSentByteCount = 0;
+    private volatile long mWriteCount = 0;
+    private final LatencyHistogram mSendLatency = new LatencyHistogram();
+    private final LatencyHistogram mSafetyLatency = new LatencyHistogram();
+    private final LatencyHistogram mPipelineLatency = new LatencyHistogram();
+    private volatile TraceBuffer mTrace = null;
     /**
      * Listen for disconnection events for accessory and close connection if we were using it.
      */
@@ -69,8 +276,10 @@ public class Controller {
 
             // Close this connection if this accessory matches the one we have open.
             synchronized (mUsbLock) {
-                if (accessory.equals(mUsbAccessory))
+                if (accessory.equals(mUsbAccessory)) {
                     disconnect();
+                    setState(ConnectionState.DISCONNECTED);
+                }
             }
         }
     };
@@ -89,8 +298,15 @@ public class Controller {
             UsbAccessory accessory = intent.getParcelableExtra(UsbManager.EXTRA_ACCESSORY);
 
             // Ignore the permission response if access was denied.
-            if (!intent.getBooleanExtra(UsbManager.EXTRA_PERMISSION_GRANTED, false))
+            if (!intent.getBooleanExtra(UsbManager.EXTRA_PERMISSION_GRANTED, false)) {
+                synchronized (mUsbLock) {
+                    if (mState == ConnectionState.PERMISSION_PENDING) {
+                        Log.w(TAG, "Permission denied for " + accessory);
+                        setState(ConnectionState.FAILED);
+                    }
+                }
                 return;
+            }
 
             // Connect to the new USB accessory.
             synchronized (mUsbLock) {
@@ -101,9 +317,13 @@ public class Controller {
         }
     };
 
+    /**
+     * Creates a controller that connects to USB accessories as they become available.
+     *
+     * @param context the context used to access the USB accessories
+     */
     public Controller(Context context) {
-        // Store the context of the calling activity or service.
-        mContext = context;
+        this(context, new Handler(Looper.getMainLooper()));
 
         // Register listeners for various USB device events.
         mContext.registerReceiver(mUsbPermissionReceiver,
@@ -119,15 +339,52 @@ public class Controller {
         searchDevices();
     }
 
+    /**
+     * Creates a controller without USB support, which is connected with {@link #open(Transport)}.
+     * Failed connections are not reopened automatically.
+     */
+    public Controller() {
+        this(null, null);
+    }
+
+    private Controller(Context context, Handler handler) {
+        // Store the context of the calling activity or service.
+        mContext = context;
+        mHandler = handler;
+
+        // Start a thread to write outgoing messages to the board.
+        mWriterThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, TAG + "Writer");
+        mWriterThread.setDaemon(true);
+        mWriterThread.setPriority(Thread.MAX_PRIORITY);
+        mWriterThread.start();
+    }
+
     /**
      * Destroys and cleans up this controller object.
      * After this is called, the controller object cannot be used again.
      */
     public void shutdown() {
-        disconnect();
-        LocalBroadcastManager.getInstance(mContext).unregisterReceiver(mUsbAttachedReceiver);
-        mContext.unregisterReceiver(mUsbDetachedReceiver);
-        mContext.unregisterReceiver(mUsbPermissionReceiver);
+        mIsRunning = false;
+        LockSupport.unpark(mWriterThread);
+        synchronized (mUsbLock) {
+            disconnect();
+            setState(ConnectionState.DISCONNECTED);
+
+            // Release any readers waiting for a connection.
+            mUsbLock.notifyAll();
+        }
+
+        if (mContext != null) {
+            mHandler.removeCallbacks(mReconnectTask);
+            LocalBroadcastManager.getInstance(mContext).unregisterReceiver(mUsbAttachedReceiver);
+            mContext.unregisterReceiver(mUsbDetachedReceiver);
+            mContext.unregisterReceiver(mUsbPermissionReceiver);
+        }
     }
 
     /**
@@ -142,12 +399,23 @@ public class Controller {
             // TODO: only detect Platypus Hardware!
             // At the moment, request permission to use the first accessory.
             // (Only one is supported at a time in Android.)
-            PendingIntent permissionIntent = PendingIntent.getBroadcast(
-                    mContext, 0, new Intent(ACTION_USB_PERMISSION), 0);
-            usbManager.requestPermission(usbAccessoryList[0], permissionIntent);
+            synchronized (mUsbLock) {
+                requestPermission(usbAccessoryList[0]);
+            }
         }
     }
 
+    /**
+     * Requests permission to open an accessory.  Must be called while holding the connection lock.
+     */
+    private void requestPermission(UsbAccessory accessory) {
+        UsbManager usbManager = (UsbManager) mContext.getSystemService(Context.USB_SERVICE);
+        PendingIntent permissionIntent = PendingIntent.getBroadcast(
+                mContext, 0, new Intent(ACTION_USB_PERMISSION), 0);
+        setState(ConnectionState.PERMISSION_PENDING);
+        usbManager.requestPermission(accessory, permissionIntent);
+    }
+
     /**
      * Attempt to open the USB accessory.
      */
@@ -166,69 +434,184 @@ public class Controller {
             ParcelFileDescriptor usbDescriptor = usbManager.openAccessory(mUsbAccessory);
             if (usbDescriptor == null) {
                 Log.e(TAG, "Failed to open accessory: " + mUsbAccessory.getDescription());
+                setState(ConnectionState.FAILED);
+                scheduleReconnect();
                 return false;
             }
 
             // Make a connection to the USB descriptor.
-            mUsbDescriptor = usbDescriptor;
-            mUsbInputStream = new FileInputStream(usbDescriptor.getFileDescriptor());
-            mUsbOutputStream = new FileOutputStream(usbDescriptor.getFileDescriptor());
-
-            Log.i(TAG, "Opened " + mUsbAccessory);
+            setConnection(new AccessoryTransport(mUsbAccessory, usbDescriptor));
             return true;
         }
     }
 
+    /**
+     * Connects to a board over the given transport, closing any existing connection.
+     * If the transport fails, the controller becomes {@link ConnectionState#FAILED} and the
+     * caller is responsible for opening a new transport.
+     *
+     * @param transport an open transport to the board
+     */
+    public void open(Transport transport) {
+        synchronized (mUsbLock) {
+            if (!mIsRunning) {
+                transport.close();
+                return;
+            }
+
+            disconnect();
+            setConnection(transport);
+        }
+    }
+
+    /**
+     * Starts using a newly opened transport.  Must be called while holding the connection lock.
+     */
+    private void setConnection(Transport transport) {
+        mConnection = new Connection(transport);
+
+        // Ask the board to switch to binary framing before anything else is sent.
+        if (mIsBinaryEnabled) {
+            byte[] request = (BinaryFrameCodec.NEGOTIATION_REQUEST + "\r\n").getBytes(ASCII);
+            mSendQueue.offer(OutboundQueue.LANE_BULK, request, 0, request.length);
+            LockSupport.unpark(mWriterThread);
+        }
+        mReconnectDelayMs = RECONNECT_MIN_DELAY_MS;
+        setState(ConnectionState.CONNECTED);
+
+        // Wake up any readers waiting for a connection.
+        mUsbLock.notifyAll();
+
+        Log.i(TAG, "Opened " + transport);
+    }
+
     /**
      * Close existing USB accessory.
      */
     protected void disconnect() {
         synchronized (mUsbLock) {
-            // Clear input stream if it exists.
-            if (mUsbInputStream != null) {
-                try {
-                    mUsbInputStream.close();
-                } catch (IOException e) {
-                    Log.w(TAG, "Failed to close accessory input stream.");
-                }
+            if (mConnection != null) {
+                mConnection.transport.close();
+                Log.i(TAG, "Closed " + mConnection.transport);
+                mConnection = null;
             }
-            mUsbInputStream = null;
 
-            // Clear output stream if it exists.
-            if (mUsbOutputStream != null) {
-                try {
-                    mUsbOutputStream.close();
-                } catch (IOException e) {
-                    Log.w(TAG, "Failed to close accessory output stream.");
-                }
-            }
-            mUsbOutputStream = null;
+            // Clear old accessory references.
+            mUsbAccessory = null;
+        }
+    }
 
-            // Clear descriptor reference after input and output are cleared.
-            if (mUsbDescriptor != null) {
+    /**
+     * Closes the given connection after an I/O error if it is still the current one, and
+     * schedules an attempt to reopen it.  This is used by the reader and writer, so that an
+     * error on an old connection does not close a newer one.
+     */
+    private void fail(Connection connection) {
+        synchronized (mUsbLock) {
+            if (mConnection != connection)
+                return;
+
+            UsbAccessory accessory = mUsbAccessory;
+            disconnect();
+            mUsbAccessory = accessory;
+            setState(ConnectionState.FAILED);
+            scheduleReconnect();
+        }
+    }
+
+    /**
+     * Schedules an attempt to reopen the accessory, doubling the delay after each attempt.
+     * Must be called while holding the connection lock.
+     */
+    private void scheduleReconnect() {
+        if (!mIsRunning || mHandler == null)
+            return;
+
+        Log.i(TAG, "Reconnecting in " + mReconnectDelayMs + "ms.");
+        mHandler.removeCallbacks(mReconnectTask);
+        mHandler.postDelayed(mReconnectTask, mReconnectDelayMs);
+        mReconnectDelayMs = Math.min(2 * mReconnectDelayMs, RECONNECT_MAX_DELAY_MS);
+    }
+
+    /**
+     * Changes the connection state and notifies the listener.
+     * Must be called while holding the connection lock.
+     */
+    private void setState(ConnectionState state) {
+        if (mState == state)
+            return;
+
+        mState = state;
+        if (state == ConnectionState.DISCONNECTED && mHandler != null) {
+            mHandler.removeCallbacks(mReconnectTask);
+            mReconnectDelayMs = RECONNECT_MIN_DELAY_MS;
+        }
+
+        Log.i(TAG, "Connection state: " + state);
+        if (mListener != null)
+            mListener.onConnectionStateChanged(state);
+    }
+
+    /**
+     * Returns the current state of the connection to the controller board.
+     */
+    public ConnectionState getConnectionState() {
+        synchronized (mUsbLock) {
+            return mState;
+        }
+    }
+
+    /**
+     * Sets a listener that is notified whenever the connection state changes.
+     *
+     * @param listener the listener, or null to remove the current listener
+     */
+    public void setConnectionListener(ConnectionListener listener) {
+        synchronized (mUsbLock) {
+            mListener = listener;
+        }
+    }
+
+    /**
+     * Returns whether this controller has been shut down.
+     */
+    public boolean isShutdown() {
+        return !mIsRunning;
+    }
+
+    /**
+     * Blocks until a connection to a controller board is open.
+     *
+     * @return the open connection
+     * @throws ConnectionException if the controller is shut down or the wait is interrupted
+     */
+    private Connection awaitConnection() throws ConnectionException {
+        Connection connection = mConnection;
+        if (connection != null)
+            return connection;
+
+        synchronized (mUsbLock) {
+            while ((connection = mConnection) == null) {
+                if (!mIsRunning)
+                    throw new ConnectionException("Controller was shut down.");
                 try {
-                    mUsbDescriptor.close();
-                } catch (IOException e) {
-                    Log.w(TAG, "Failed to close accessory device descriptor.");
+                    mUsbLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new ConnectionException("Interrupted while waiting for hardware.");
                 }
             }
-            mUsbDescriptor = null;
-
-            // Clear old accessory references.
-            Log.i(TAG, "Closed " + mUsbAccessory);
-            mUsbAccessory = null;
+            return connection;
         }
     }
 
     /**
-     * Returns whether a controller board is currently connected via USB.
+     * Returns whether a controller board is currently connected.
      *
      * @return true if a controller board is currently connected
      */
     public boolean isConnected() {
-        synchronized (mUsbLock) {
-            return (mUsbDescriptor != null);
-        }
+        return (mConnection != null);
     }
 
     /**
@@ -239,63 +622,784 @@ public class Controller {
     public void send(JSONObject obj) throws IOException {
         // Construct message string as single byte array.
         byte[] message = (obj + "\r\n").getBytes(ASCII);
+        send(message, 0, message.length);
+    }
 
-        synchronized (mUsbLock) {
-            if (mUsbOutputStream == null)
-                throw new ConnectionException("Not connected to hardware.");
+    /**
+     * Sends a preformatted message to the controller board.
+     * <p/>
+     * The message must already be terminated with "\r\n".  It is copied into the bulk lane of
+     * the send queue and written to the board asynchronously, so this returns without waiting
+     * for the write, and callers may reuse the buffer immediately.  If too many messages are
+     * already waiting to be written, the message is dropped and counted.
+     *
+     * @param buffer the buffer containing the message
+     * @param offset the offset of the message within the buffer
+     * @param length the length of the message
+     * @throws IOException if there is not a valid connection to a controller board.
+     */
+    public void send(byte[] buffer, int offset, int length) throws IOException {
+        send(OutboundQueue.LANE_BULK, buffer, offset, length);
+    }
+
+    /**
+     * Sends an actuator command to the controller board, using binary records if the board
+     * has accepted binary framing and JSON otherwise.  The command must already have been
+     * encoded with {@link CommandEncoder#encode()}.
+     *
+     * @param command the encoded command
+     * @throws IOException if there is not a valid connection to a controller board.
+     */
+    public void send(CommandEncoder command) throws IOException {
+        send(OutboundQueue.LANE_BULK, command);
+    }
+
+    /**
+     * Sends an actuator command to the controller board ahead of all other waiting messages,
+     * and discards any posted or flushed command that has not been written yet, since it was
+     * computed before this one.  This is used to stop the vehicle.  The command must already
+     * have been encoded with {@link CommandEncoder#encode()}.
+     *
+     * @param command the encoded command
+     * @throws IOException if there is not a valid connection to a controller board.
+     */
+    public void sendSafety(CommandEncoder command) throws IOException {
+        synchronized (mPendingCommand) {
+            mPendingCommand.clear();
+        }
+        send(OutboundQueue.LANE_SAFETY, command);
+    }
+
+    private void send(int lane, CommandEncoder command) throws IOException {
+        send(lane, command, 0);
+    }
+
+    private void send(int lane, CommandEncoder command, long originTimeNs) throws IOException {
+        Connection connection = mConnection;
+        if (connection != null && connection.isBinary) {
+            int length = command.encodeBinary();
+            if (length >= 0) {
+                if (length > 0)
+                    send(lane, command.getBinaryBuffer(), 0, length, originTimeNs);
+                return;
+            }
+        }
+        send(lane, command.getBuffer(), 0, command.getLength(), originTimeNs);
+    }
+
+    private void send(int lane, byte[] buffer, int offset, int length) throws IOException {
+        send(lane, buffer, offset, length, 0);
+    }
+
+    private void send(int lane, byte[] buffer, int offset, int length, long originTimeNs)
+            throws IOException {
+        if (mConnection == null)
+            throw new ConnectionException("Not connected to hardware.");
+
+        if (mSendQueue.offer(lane, buffer, offset, length, originTimeNs)) {
+            LockSupport.unpark(mWriterThread);
+        } else {
+            mDroppedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Adds an actuator setpoint to the command that will be sent by the next call to
+     * {@link #flush()}.  Fields that were already posted since the last flush are replaced
+     * by their newest values, so each field is sent at most once per flush.  The posted command
+     * may never be written if a newer one is flushed first or the vehicle is stopped, so
+     * commands that must reach the board are sent with {@link #send(CommandEncoder)} instead.
+     * This may be called from any thread.
+     *
+     * @param command the command to merge, which does not need to be encoded
+     * @throws IOException if there is not a valid connection to a controller board.
+     */
+    public void post(CommandEncoder command) throws IOException {
+        if (mConnection == null)
+            throw new ConnectionException("Not connected to hardware.");
+
+        synchronized (mPendingCommand) {
+            mPendingCommand.putAll(command);
+        }
+    }
+
+    /**
+     * Sends all commands posted since the last flush to the controller board as a single
+     * message.  This is called once per control loop tick, so that however many commands are
+     * produced during a tick, the board receives one write.  If the message from the previous
+     * flush has not been written yet, it is replaced.  Posted commands are discarded if the
+     * board has been disconnected.
+     *
+     * @throws IOException if the board was disconnected while the commands were being sent.
+     */
+    public void flush() throws IOException {
+        flush(0);
+    }
+
+    /**
+     * Sends all commands posted since the last flush, as {@link #flush()} does, and measures
+     * the time from the given event to finishing the write of the resulting message.
+     *
+     * @param originTimeNs the monotonic time of the event the commands were computed from,
+     *                     such as sampling the vehicle state, or 0 if it is unknown
+     * @throws IOException if the board was disconnected while the commands were being sent.
+     * @see #getPipelineLatency()
+     */
+    public void flush(long originTimeNs) throws IOException {
+        synchronized (mPendingCommand) {
+            if (mPendingCommand.isEmpty())
+                return;
+
+            // Commands posted to a board that has since been disconnected are stale.
+            if (mConnection == null) {
+                mPendingCommand.clear();
+                return;
+            }
 
             try {
-                mUsbOutputStream.write(message);
-                mUsbOutputStream.flush();
+                if (mIsSequenceEnabled) {
+                    int sequence = mNextSequence;
+                    mNextSequence = (sequence + 1) & Integer.MAX_VALUE;
+                    int slot = sequence % SEQUENCE_WINDOW;
+                    mSequenceNumbers.set(slot, sequence);
+                    mSequenceTimesNs.set(slot, System.nanoTime());
+                    mPendingCommand.setSequence(sequence);
+                }
+                mPendingCommand.encode();
+                send(OutboundQueue.LANE_CONTROL, mPendingCommand, originTimeNs);
+            } finally {
+                mPendingCommand.clear();
+            }
+        }
+    }
+
+    /**
+     * Enables or disables negotiation of binary framing.  This takes effect the next time
+     * a board is connected.
+     *
+     * @param isEnabled whether to request binary framing from newly connected boards
+     */
+    public void setBinaryEnabled(boolean isEnabled) {
+        mIsBinaryEnabled = isEnabled;
+    }
+
+    /**
+     * Enables or disables attaching sequence numbers to flushed commands, so that their round
+     * trip time is measured when the board echoes them.  This requires board firmware that
+     * echoes the {@code "seq"} field, or sequence records when using binary framing.
+     *
+     * @param isEnabled whether to attach sequence numbers to flushed commands
+     */
+    public void setSequenceEnabled(boolean isEnabled) {
+        mIsSequenceEnabled = isEnabled;
+    }
+
+    /**
+     * Returns whether the currently connected board is using binary framing.
+     */
+    public boolean isBinary() {
+        Connection connection = mConnection;
+        return (connection != null) && connection.isBinary;
+    }
+
+    /**
+     * Writes queued messages to the board until the controller is shut down.
+     * Waiting messages are gathered into a single write, highest priority first, by copying
+     * them straight from the queue into a direct buffer that is handed to the transport.
+     */
+    private void writeLoop() {
+        ByteBuffer writeBuffer = ByteBuffer.allocateDirect(MAX_WRITE_LENGTH);
+        byte[] message = new byte[MAX_PACKET_SIZE];
+        byte[] frame = new byte[MAX_WRITE_LENGTH];
+        while (mIsRunning) {
+            // Messages queued before a disconnection are stale, so discard them.
+            Connection connection = mConnection;
+            if (connection == null) {
+                mDroppedCount.addAndGet(mSendQueue.drain());
+                LockSupport.park(this);
+                continue;
+            }
+
+            // Messages are queued either as JSON lines or as binary records.  Convert JSON lines
+            // for boards using binary framing, and drop records encoded for an earlier board.
+            boolean isBinary = connection.isBinary;
+            int overhead = isBinary
+                    ? BinaryFrameCodec.HEADER_LENGTH + BinaryFrameCodec.CHECKSUM_LENGTH : 0;
+            long oldestTimeNs = Long.MAX_VALUE;
+            long oldestSafetyTimeNs = Long.MAX_VALUE;
+            long originTimeNs = 0;
+            int messageCount = 0;
+            int messageLength;
+            writeBuffer.clear();
+            while ((messageLength = mSendQueue.poll(writeBuffer,
+                    writeBuffer.remaining() - overhead)) >= 0) {
+                int start = writeBuffer.position() - messageLength;
+                boolean isFrame = (writeBuffer.get(start) == BinaryFrameCodec.SYNC);
+                if (isBinary && !isFrame) {
+                    // Lines are only queued for a binary board until it has switched over,
+                    // so the extra copies needed to wrap them in records are rare.
+                    writeBuffer.position(start);
+                    writeBuffer.get(message, 0, messageLength);
+                    int frameLength = BinaryFrameCodec.encodeJson(
+                            frame, 0, message, 0, messageLength);
+                    writeBuffer.position(start);
+                    writeBuffer.put(frame, 0, frameLength);
+                } else if (!isBinary && isFrame) {
+                    writeBuffer.position(start);
+                    mDroppedCount.incrementAndGet();
+                    continue;
+                }
+
+                messageCount++;
+                long timeNs = mSendQueue.getPolledTimeNs();
+                oldestTimeNs = Math.min(oldestTimeNs, timeNs);
+                if (mSendQueue.getPolledLane() == OutboundQueue.LANE_SAFETY)
+                    oldestSafetyTimeNs = Math.min(oldestSafetyTimeNs, timeNs);
+                if (mSendQueue.getPolledOriginTimeNs() != 0)
+                    originTimeNs = mSendQueue.getPolledOriginTimeNs();
+            }
+
+            int length = writeBuffer.position();
+            if (length == 0) {
+                LockSupport.park(this);
+                continue;
+            }
+            mSentMessageCount += messageCount;
+
+            try {
+                writeBuffer.flip();
+                connection.transport.write(writeBuffer);
             } catch (IOException e) {
-                disconnect();
-                throw e;
+                Log.w(TAG, "Failed to write to " + connection.transport + ".", e);
+                fail(connection);
+                continue;
             }
+
+            mSentByteCount += length;
+            mWriteCount++;
+            long now = System.nanoTime();
+            mSendLatency.record(now - oldestTimeNs);
+            if (oldestSafetyTimeNs != Long.MAX_VALUE)
+                mSafetyLatency.record(now - oldestSafetyTimeNs);
+            if (originTimeNs != 0)
+                mPipelineLatency.record(now - originTimeNs);
+            TraceBuffer trace = mTrace;
+            if (trace != null)
+                trace.record(TraceBuffer.USB_WRITE_DONE, length);
         }
     }
 
+    /**
+     * Returns statistics of the time from queueing the oldest message of each write to
+     * finishing the write to the board.
+     */
+    public LatencyHistogram getSendLatency() {
+        return mSendLatency;
+    }
+
+    /**
+     * Returns statistics of the time from the event given to {@link #flush(long)} to finishing
+     * writing the resulting command to the board.
+     */
+    public LatencyHistogram getPipelineLatency() {
+        return mPipelineLatency;
+    }
+
+    /**
+     * Returns statistics of the time from queueing each safety message to finishing writing it
+     * to the board.
+     */
+    public LatencyHistogram getSafetyLatency() {
+        return mSafetyLatency;
+    }
+
+    /**
+     * Returns the total number of flushed commands that were replaced by a newer command
+     * before they could be written to the board.
+     */
+    public long getReplacedCount() {
+        return mSendQueue.getReplacedCount();
+    }
+
+    /**
+     * Returns the total number of outgoing messages that were dropped because the send queue
+     * was full or the board was disconnected before they could be written.
+     */
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    /**
+     * Sets a buffer in which to record a {@link TraceBuffer#USB_WRITE_DONE} event each time
+     * a message is written to the board.
+     *
+     * @param trace the trace buffer, or null to disable tracing
+     */
+    public void setTrace(TraceBuffer trace) {
+        mTrace = trace;
+    }
+
     /**
      * Receives a JSON object from the controller board.
-     * This method blocks until a valid message is received.
+     * This method blocks until a complete message is received, waiting for a board to be
+     * connected if necessary.  Messages may arrive split
+     * across several USB transfers or combined into one; each call returns the next message.
+     * This should only be called from a single thread.
      *
-     * @throws IOException if there is not a valid connection to a controller board.
+     * @throws ConnectionException if the controller is shut down.
+     * @throws IOException if the connection fails while reading.
      */
     public JSONObject receive() throws IOException, ControllerException {
-        // Allocate a buffer for the data packet.
-        byte[] buffer = new byte[MAX_PACKET_SIZE];
-        int len;
+        receive(null);
+        return mMessage;
+    }
 
-        // Try to read a line from the device.
-        // If the stream is not open, just wait longer.
-        synchronized (mUsbLock) {
-            if (mUsbInputStream == null)
-                throw new ConnectionException("Not connected to hardware.");
+    /**
+     * Receives the next message from the controller board, decoding sensor readings directly
+     * from the received bytes.
+     * <p/>
+     * If the message is a sensor reading of a type registered with the given decoders, it is
+     * decoded without building any JSON and the reading is returned.  Otherwise null is returned
+     * and the message is available as JSON from {@link #getMessage()}.  Sensor messages that
+     * are decoded but produce no reading are skipped.  Like {@link #receive()}, this blocks until
+     * a message is received and should only be called from a single thread.
+     *
+     * @param decoders the sensor decoders, or null to receive every message as JSON
+     * @return the decoded reading, which is reused as described by
+     * {@link SensorDecoderRegistry}, or null if the message was not a decoded reading
+     * @throws ConnectionException if the controller is shut down.
+     * @throws IOException if the connection fails while reading, or a reading is malformed.
+     */
+    public SensorData receive(SensorDecoderRegistry decoders)
+            throws IOException, ControllerException {
+        mMessage = null;
+        while (true) {
+            Connection connection = awaitConnection();
+
+            // Discard partial data left over from a previous connection.
+            if (connection != mFramedConnection) {
+                mFramer.clear();
+                mDecoder.clear();
+                mFramedConnection = connection;
+
+                // A different board has a different clock.
+                mBoardClock.reset();
+                mPendingBoardTimeMs = -1;
+                mLastBoardTimeMs = -1;
+            }
+
+            // Return the next complete message, if one is available.
+            if (connection.isBinary) {
+                if (mDecoder.next()) {
+                    int type = mDecoder.getType();
+                    if (type == BinaryFrameCodec.TYPE_SENSOR && decoders != null
+                            && mSensorMessage.parseRecord(mDecoder.getPayload(),
+                            mDecoder.getPayloadLength())) {
+                        SensorDecoder decoder = decoders.find(mSensorMessage);
+                        if (decoder != null) {
+                            SensorData reading = decodeReading(decoders, decoder);
+                            if (reading != null)
+                                return reading;
+                            continue;
+                        }
+                    }
+                    if (type != BinaryFrameCodec.TYPE_SEQUENCE && type != BinaryFrameCodec.TYPE_TIME) {
+                        mMessage = decodeRecord();
+                        stamp();
+                        return null;
+                    }
+
+                    if (mDecoder.getPayloadLength() >= 4) {
+                        int value = BinaryFrameCodec.readInt(mDecoder.getPayload(), 0);
+                        if (type == BinaryFrameCodec.TYPE_SEQUENCE) {
+                            onSequenceEcho(value);
+                        } else {
+                            mPendingBoardTimeMs = value & 0xFFFFFFFFL;
+                        }
+                    }
+                    continue;
+                }
+            } else if (mFramer.next()) {
+                if (decoders != null && mSensorMessage.parseJson(mFramer.getFrame(), 0,
+                        mFramer.getFrameLength())) {
+                    SensorDecoder decoder = decoders.find(mSensorMessage);
+                    if (decoder != null) {
+                        mPendingBoardTimeMs = mSensorMessage.getBoardTimeMs();
+                        SensorData reading = decodeReading(decoders, decoder);
+                        if (reading != null)
+                            return reading;
+                        continue;
+                    }
+                }
+
+                JSONObject response = parseLine(mFramer.getFrame(), 0, mFramer.getFrameLength());
+                if (!isNegotiationReply(response)) {
+                    mMessage = response;
+                    stamp();
+                    return null;
+                }
+
+                // The board accepted binary framing, so decode the rest of the stream as records.
+                Log.i(TAG, "Using binary framing.");
+                int length = mFramer.takeBuffered(mHandoverBuffer);
+                mDecoder.write(mHandoverBuffer, 0, length);
+                connection.isBinary = true;
+                continue;
+            }
+
+            // Block without holding any lock, so that sending can proceed during the read.
+            int len;
             try {
-                len = mUsbInputStream.read(buffer);
+                mReadBuffer.clear();
+                len = connection.transport.read(mReadBuffer);
             } catch (IOException e) {
-                disconnect();
+                fail(connection);
                 throw e;
             }
+
+            if (len < 0) {
+                fail(connection);
+                throw new ConnectionException("Connection to hardware was closed.");
+            }
+            mReceivedByteCount += len;
+            mReceiveTimeNs = System.nanoTime();
+
+            mReadBuffer.flip();
+            if (connection.isBinary) {
+                mDecoder.write(mReadBuffer);
+            } else {
+                mFramer.write(mReadBuffer);
+            }
         }
+    }
 
-        // Terminate and convert the buffers to an ASCII string.
-        buffer[len] = '\0';
-        String line = new String(buffer, 0, len, ASCII);
+    /**
+     * Parses a JSON message from the board, converting reported errors into exceptions.
+     */
+    private JSONObject parseLine(byte[] buffer, int offset, int length)
+            throws IOException, ControllerException {
+        // Convert the line to an ASCII string.
+        String line = new String(buffer, offset, length, ASCII);
 
         // Turn the line into a JSON object and return it.
         // If the line is malformed, wait for the next line.
         try {
             JSONObject response = new JSONObject(line);
             if (response.has("error")) {
+                mBoardErrorCount++;
                 throw new ControllerException(response.getString("error"),
                         response.optString("args"));
             }
+
+            // Echoed sequence numbers are only used for measuring round trips.
+            if (response.has("seq")) {
+                onSequenceEcho(response.optInt("seq", -1));
+                response.remove("seq");
+            }
+
+            // Board timestamps are applied to the message by receive().  A malformed timestamp
+            // is ignored, rather than taken as a jump of the board clock.
+            if (response.has("t")) {
+                long boardTimeMs = response.optLong("t", -1);
+                if (boardTimeMs >= 0)
+                    mPendingBoardTimeMs = boardTimeMs & 0xFFFFFFFFL;
+                response.remove("t");
+            }
             return response;
         } catch (JSONException e) {
+            mParseErrorCount++;
             throw new IOException("Failed to parse response '" + line + "'.", e);
         }
     }
 
+    /**
+     * Decodes the current sensor message and stamps the resulting reading.
+     *
+     * @return the reading, or null if the message produced no reading
+     * @throws IOException if the message is malformed
+     */
+    private SensorData decodeReading(SensorDecoderRegistry decoders, SensorDecoder decoder)
+            throws IOException {
+        SensorData reading;
+        try {
+            reading = decoders.decode(decoder, mSensorMessage);
+        } catch (NumberFormatException e) {
+            mParseErrorCount++;
+            mPendingBoardTimeMs = -1;
+            throw new IOException("Malformed sensor reading on channel "
+                    + mSensorMessage.getChannel() + ".", e);
+        }
+
+        if (reading == null) {
+            mPendingBoardTimeMs = -1;
+            return null;
+        }
+        stamp();
+        return reading;
+    }
+
+    /**
+     * Sets the acquisition time of a message that is about to be returned by {@link #receive()},
+     * from the board timestamp sent with it if there was one.
+     */
+    private void stamp() {
+        mMessageTimeNs = mReceiveTimeNs;
+        long boardTimeMs = mPendingBoardTimeMs;
+        if (boardTimeMs < 0)
+            return;
+        mPendingBoardTimeMs = -1;
+
+        // Board timestamps are 32-bit milliseconds, which wrap around every 49 days.  A large
+        // backwards step instead means that the board was reset.
+        long deltaMs = (boardTimeMs - mLastBoardTimeMs) & 0xFFFFFFFFL;
+        if (mLastBoardTimeMs < 0 || deltaMs >= 0x80000000L) {
+            mBoardClock.reset();
+            mBoardTimeMs = boardTimeMs;
+        } else {
+            mBoardTimeMs += deltaMs;
+        }
+        mLastBoardTimeMs = boardTimeMs;
+
+        long boardTimeNs = mBoardTimeMs * 1000000L;
+        mBoardClock.add(boardTimeNs, mReceiveTimeNs);
+        mClockOffsetNs = mBoardClock.getOffsetNs(boardTimeNs);
+        mClockDriftPpm = mBoardClock.getDriftPpm();
+
+        // A message cannot have been acquired after it was received.
+        mMessageTimeNs = Math.min(mBoardClock.toLocalNs(boardTimeNs), mReceiveTimeNs);
+    }
+
+    /**
+     * Returns the message most recently received by {@link #receive(SensorDecoderRegistry)},
+     * if it was not a decoded sensor reading.
+     * This should only be called from the thread calling {@link #receive()}.
+     *
+     * @return the message, or null if the most recent message was a decoded reading
+     */
+    public JSONObject getMessage() {
+        return mMessage;
+    }
+
+    /**
+     * Records the round trip time of the flushed command with the given sequence number.
+     */
+    private void onSequenceEcho(int sequence) {
+        int slot = sequence % SEQUENCE_WINDOW;
+        if (sequence < 0 || mSequenceNumbers.get(slot) != sequence) {
+            mUnmatchedEchoCount++;
+            return;
+        }
+
+        // Each command is only measured once, even if it is echoed more than once.
+        long sentNs = mSequenceTimesNs.getAndSet(slot, 0);
+        if (sentNs == 0) {
+            mUnmatchedEchoCount++;
+            return;
+        }
+        mRoundTripLatency.record(System.nanoTime() - sentNs);
+    }
+
+    /**
+     * Returns whether a message is the reply of a board accepting binary framing.
+     */
+    private boolean isNegotiationReply(JSONObject response) {
+        return mIsBinaryEnabled
+                && BinaryFrameCodec.PROTOCOL_NAME.equals(response.optString("proto"));
+    }
+
+    /**
+     * Converts the most recently decoded binary record into the equivalent JSON message.
+     */
+    private JSONObject decodeRecord() throws IOException, ControllerException {
+        byte[] payload = mDecoder.getPayload();
+        int length = mDecoder.getPayloadLength();
+
+        try {
+            switch (mDecoder.getType()) {
+                case BinaryFrameCodec.TYPE_SENSOR: {
+                    int channel = payload[0] & 0xFF;
+                    int nameLength = payload[1] & 0xFF;
+                    String type = new String(payload, 2, nameLength, ASCII);
+
+                    StringBuilder data = new StringBuilder();
+                    for (int i = 2 + nameLength; i + 4 <= length; i += 4) {
+                        if (data.length() > 0)
+                            data.append(' ');
+                        data.append(BinaryFrameCodec.readFloat(payload, i));
+                    }
+                    return new JSONObject().put("s" + channel, new JSONObject()
+                            .put("type", type)
+                            .put("data", data.toString()));
+                }
+                case BinaryFrameCodec.TYPE_MOTOR:
+                case BinaryFrameCodec.TYPE_SERVO: {
+                    char prefix = (mDecoder.getType() == BinaryFrameCodec.TYPE_MOTOR) ? 'm' : 's';
+                    JSONObject response = new JSONObject();
+                    for (int i = 0; i + BinaryFrameCodec.ACTUATOR_ENTRY_LENGTH <= length;
+                         i += BinaryFrameCodec.ACTUATOR_ENTRY_LENGTH) {
+                        String name = prefix + Integer.toString(payload[i] & 0xFF);
+                        JSONObject actuator = response.optJSONObject(name);
+                        if (actuator == null) {
+                            actuator = new JSONObject();
+                            response.put(name, actuator);
+                        }
+                        actuator.put(String.valueOf((char) payload[i + 1]),
+                                (double) BinaryFrameCodec.readFloat(payload, i + 2));
+                    }
+                    return response;
+                }
+                case BinaryFrameCodec.TYPE_ERROR:
+                    mBoardErrorCount++;
+                    mPendingBoardTimeMs = -1;
+                    throw new ControllerException(new String(payload, 0, length, ASCII), "");
+                case BinaryFrameCodec.TYPE_JSON:
+                    return parseLine(payload, 0, length);
+                default:
+                    throw new IOException("Unknown record type: " + mDecoder.getType());
+            }
+        } catch (JSONException e) {
+            throw new IOException("Failed to convert binary record.", e);
+        }
+    }
+
+    /**
+     * Returns the monotonic time, in the {@link System#nanoTime()} timebase, at which the
+     * message most recently returned by {@link #receive()} was read from the board.
+     * This should only be called from the thread calling {@link #receive()}.
+     */
+    public long getReceiveTimeNs() {
+        return mReceiveTimeNs;
+    }
+
+    /**
+     * Returns the best estimate of the monotonic time, in the {@link System#nanoTime()}
+     * timebase, at which the board produced the message most recently returned by
+     * {@link #receive()}.  This is derived from the board timestamp of the message if it had
+     * one, and is otherwise the time at which the message was read.
+     * This should only be called from the thread calling {@link #receive()}.
+     */
+    public long getMessageTimeNs() {
+        return mMessageTimeNs;
+    }
+
+    /**
+     * Returns the most recent estimate of the offset from the board clock to the monotonic
+     * clock of the phone, or 0 if the board does not send timestamps.
+     */
+    public long getClockOffsetNs() {
+        return mClockOffsetNs;
+    }
+
+    /**
+     * Returns the most recent estimate of the drift of the board clock relative to the phone,
+     * in parts per million.
+     *
+     * @see ClockOffsetEstimator#getDriftPpm()
+     */
+    public double getClockDriftPpm() {
+        return mClockDriftPpm;
+    }
+
+    /**
+     * Returns the total number of messages received from the controller board.
+     */
+    public long getReceivedCount() {
+        return mFramer.getFrameCount() + mDecoder.getFrameCount();
+    }
+
+    /**
+     * Returns the total number of messages from the controller board that were dropped
+     * for exceeding the maximum message length.
+     */
+    public long getOversizedCount() {
+        return mFramer.getOversizedCount();
+    }
+
+    /**
+     * Returns the number of times invalid binary data from the controller board was skipped,
+     * such as records with a bad checksum.
+     */
+    public long getCorruptCount() {
+        return mDecoder.getErrorCount();
+    }
+
+    /**
+     * Returns the total number of bytes received from the controller board.
+     */
+    public long getReceivedByteCount() {
+        return mReceivedByteCount;
+    }
+
+    /**
+     * Returns the total number of messages from the controller board that could not be parsed.
+     */
+    public long getParseErrorCount() {
+        return mParseErrorCount;
+    }
+
+    /**
+     * Returns the total number of errors reported by the controller board, each of which was
+     * raised as a {@link ControllerException}.
+     */
+    public long getBoardErrorCount() {
+        return mBoardErrorCount;
+    }
+
+    /**
+     * Returns the total number of messages written to the controller board.
+     */
+    public long getSentCount() {
+        return mSentMessageCount;
+    }
+
+    /**
+     * Returns the total number of bytes written to the controller board.
+     */
+    public long getSentByteCount() {
+        return mSentByteCount;
+    }
+
+    /**
+     * Returns the total number of writes to the controller board.  Each write may contain
+     * several messages.
+     */
+    public long getWriteCount() {
+        return mWriteCount;
+    }
+
+    /**
+     * Returns statistics of the time from flushing a command to receiving its echo from the
+     * board.  This is only recorded while sequence numbers are enabled.
+     *
+     * @see #setSequenceEnabled(boolean)
+     */
+    public LatencyHistogram getRoundTripLatency() {
+        return mRoundTripLatency;
+    }
+
+    /**
+     * Returns the total number of echoed sequence numbers that did not match a recently flushed
+     * command, such as echoes arriving after the command left the tracking window.
+     */
+    public long getUnmatchedEchoCount() {
+        return mUnmatchedEchoCount;
+    }
+
+    /**
+     * An open transport and the framing negotiated over it.
+     */
+    private static class Connection {
+        final Transport transport;
+        /**
+         * Whether the board has accepted binary framing.  This is only set by the reader.
+         */
+        volatile boolean isBinary = false;
+
+        Connection(Transport transport) {
+            this.transport = transport;
+        }
+    }
+
     /**
      * Exception used to denote an error returned by the controller itself.
      */
@@ -1,10 +1,12 @@
 package com.platypus.android.server;
 
 import android.app.Fragment;
+import android.content.Intent;
 import android.content.SharedPreferences;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
+import android.support.v4.content.LocalBroadcastManager;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -63,6 +65,24 @@ public class DebugFragment extends Fragment
         SensorView sensorView = (SensorView) view.findViewById(R.id.sensors);
         sensorView.setVehicleServer(mServer);
 
+        // Ask the vehicle service to write out its control loop trace.
+        view.findViewById(R.id.dump_trace).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                LocalBroadcastManager.getInstance(getActivity())
+                        .sendBroadcast(new Intent(VehicleService.DUMP_TRACE_ACTION));
+            }
+        });
+
+        // Ask the vehicle service to write out the sensor readings it has kept.
+        view.findViewById(R.id.dump_sensor_history).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                LocalBroadcastManager.getInstance(getActivity())
+                        .sendBroadcast(new Intent(VehicleService.DUMP_SENSOR_HISTORY_ACTION));
+            }
+        });
+
         return view;
     }
 
@@ -0,0 +1,30 @@
+package com.platypus.android.server;
+
+import com.platypus.crw.data.Twist;
+
+/**
+ * Drive model for vehicles with two fixed thrusters that steer by differential thrust.
+ * <p/>
+ * Thrust and turning rate are mixed into a left and right motor velocity, sent as
+ * {@code m0} and {@code m1}.
+ */
+public class DifferentialDriveModel implements VehicleDriveModel {
+    private final double mMaxThrust;
+
+    /**
+     * @param maxThrust the largest motor velocity magnitude that will be commanded
+     */
+    public DifferentialDriveModel(double maxThrust) {
+        mMaxThrust = maxThrust;
+    }
+
+    @Override
+    public void actuate(Twist velocity, CommandEncoder command) {
+        double constrainedV0 = VehicleServerImpl.clip(velocity.dx() - velocity.drz(), -1.0, 1.0);
+        double constrainedV1 = VehicleServerImpl.clip(velocity.dx() + velocity.drz(), -1.0, 1.0);
+
+        // Until ESC reboot is fixed, scale the range [-1.0, 1.0] to [-maxThrust, maxThrust].
+        command.put("m0", "v", (float) (constrainedV0 * mMaxThrust))
+                .put("m1", "v", (float) (constrainedV1 * mMaxThrust));
+    }
+}
@@ -0,0 +1,89 @@
+package com.platypus.android.server;
+
+/**
+ * A streaming Hampel filter, which replaces values far from the median of the recent values
+ * of a stream with that median.
+ * <p/>
+ * A value is an outlier if it differs from the median of the previous values in the window by
+ * more than a threshold times the scaled median absolute deviation (MAD) of those values.  The
+ * MAD is approximated by the sliding median of each value's deviation from the median at the
+ * time it arrived, so each value takes O(log w) time and no allocation.  Outliers still enter
+ * the window, so a lasting change in level is accepted once it fills half of the window.
+ * <p/>
+ * This class is not thread-safe.
+ */
+public class HampelFilter {
+    /**
+     * Scales the MAD of normally distributed values to their standard deviation.
+     */
+    public static final double MAD_SCALE = 1.4826;
+
+    private final SlidingMedian mValues;
+    private final SlidingMedian mDeviations;
+    private final int mMinCount;
+    private final double mThreshold;
+    private final double mMinDeviation;
+    private boolean mIsOutlier = false;
+
+    /**
+     * Creates a filter.
+     *
+     * @param window       the number of recent values over which the median is taken
+     * @param threshold    the number of standard deviations beyond which a value is an
+     *                     outlier, usually 3
+     * @param minDeviation the smallest standard deviation assumed, so that small changes in
+     *                     nearly constant values are not rejected
+     */
+    public HampelFilter(int window, double threshold, double minDeviation) {
+        if (window < 3 || !(threshold > 0) || minDeviation < 0)
+            throw new IllegalArgumentException("Invalid filter: window " + window
+                    + ", threshold " + threshold + ", deviation " + minDeviation);
+        mValues = new SlidingMedian(window);
+        mDeviations = new SlidingMedian(window);
+        mMinCount = window / 2 + 1;
+        mThreshold = threshold;
+        mMinDeviation = minDeviation;
+    }
+
+    /**
+     * Filters the next value of the stream.  Values are passed through until the window is
+     * half full.  Values that are not finite are replaced with the median, if there is one,
+     * and do not enter the window.
+     *
+     * @param value the raw value
+     * @return the value, or the median if the value is an outlier
+     */
+    public double filter(double value) {
+        double median = mValues.getMedian();
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            mIsOutlier = (mValues.size() > 0);
+            return mIsOutlier ? median : value;
+        }
+
+        mIsOutlier = false;
+        if (mValues.size() >= mMinCount) {
+            double deviation = Math.abs(value - median);
+            double sigma = Math.max(MAD_SCALE * mDeviations.getMedian(), mMinDeviation);
+            mIsOutlier = (mDeviations.size() > 0 && deviation > mThreshold * sigma);
+            mDeviations.add(deviation);
+        }
+        mValues.add(value);
+        return mIsOutlier ? median : value;
+    }
+
+    /**
+     * Returns whether the most recent value was replaced as an outlier.
+     */
+    public boolean isOutlier() {
+        return mIsOutlier;
+    }
+
+    /**
+     * Discards the values seen so far.
+     */
+    public void reset() {
+        mValues.clear();
+        mDeviations.clear();
+        mIsOutlier = false;
+    }
+}
@@ -0,0 +1,92 @@
+package com.platypus.android.server;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Summary statistics over a stream of measured durations, together with a histogram from which
+ * percentiles can be read.
+ * <p/>
+ * Durations are counted in logarithmic buckets, each power of two being split into
+ * {@link #SUB_BUCKETS} linear steps, so every percentile is accurate to within 1/8 of its value
+ * over the full range of a long.  Recording does not allocate and takes constant time.
+ * <p/>
+ * As with {@link TimingStats}, samples are expected to be recorded from a single thread, while
+ * the statistics may be read from any thread.
+ */
+public class LatencyHistogram extends TimingStats {
+    private static final int SUB_BUCKET_BITS = 3;
+    /**
+     * Number of buckets into which each power of two is divided.
+     */
+    public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+
+    /**
+     * Returns the bucket containing a non-negative duration.
+     */
+    static int bucketOf(long ns) {
+        if (ns < SUB_BUCKETS)
+            return (int) ns;
+        int shift = 63 - Long.numberOfLeadingZeros(ns) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((ns >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * Returns the largest duration that falls into a bucket.
+     */
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int shift = bucket / SUB_BUCKETS - 1;
+        long base = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return base + (1L << shift) - 1;
+    }
+
+    @Override
+    public void record(long ns) {
+        super.record(ns);
+        int bucket = bucketOf(Math.max(ns, 0));
+        // Only one thread records, so an ordered write is enough to publish the new count.
+        mCounts.lazySet(bucket, mCounts.get(bucket) + 1);
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        for (int i = 0; i < BUCKET_COUNT; ++i)
+            mCounts.set(i, 0);
+    }
+
+    /**
+     * Returns an upper bound on the duration below which the given fraction of the recorded
+     * durations fall, never more than the largest recorded duration.
+     *
+     * @param fraction the fraction of durations, such as 0.99 for the 99th percentile
+     * @return the duration in nanoseconds, or 0 if nothing has been recorded
+     */
+    public long getPercentileNs(double fraction) {
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; ++i)
+            total += mCounts.get(i);
+        if (total == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            seen += mCounts.get(i);
+            if (seen >= rank)
+                return Math.min(upperBoundOf(i), getMaxNs());
+        }
+        return getMaxNs();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%s p50=%.3fms p99=%.3fms", super.toString(),
+                getPercentileNs(0.5) / 1e6, getPercentileNs(0.99) / 1e6);
+    }
+}
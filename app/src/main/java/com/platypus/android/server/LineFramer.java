@@ -0,0 +1,206 @@
+package com.platypus.android.server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Splits a stream of bytes into newline-terminated frames using reusable buffers.
+ * <p/>
+ * Bytes are written into a ring buffer as they arrive, in chunks of up to the maximum frame length,
+ * and complete frames are then extracted one at a time with {@link #next()}.  A frame may be split across several
+ * writes, and a single write may contain several frames.  Frames are terminated by {@code "\n"};
+ * a preceding {@code "\r"} is stripped and empty frames are skipped.
+ * <p/>
+ * Frames longer than the maximum frame length are dropped in their entirety, up to and including
+ * their terminator, and counted as oversized.  This bounds memory use if the stream is corrupted
+ * or a terminator is lost.
+ * <p/>
+ * This class is not thread-safe, except that the frame counters may be read from any thread.
+ */
+public class LineFramer {
+    private final byte[] mRing;
+    private final int mMask;
+    private final int mMaxFrameLength;
+
+    private final byte[] mFrame;
+    private int mFrameLength = 0;
+
+    // Absolute stream positions: frames start at mHead, mScan is the next byte to search for a
+    // terminator, and mTail is the next byte to be written.
+    private long mHead = 0;
+    private long mScan = 0;
+    private long mTail = 0;
+    private boolean mIsDiscarding = false;
+
+    private volatile long mFrameCount = 0;
+    private volatile long mOversizedCount = 0;
+
+    /**
+     * Creates a new framer.
+     *
+     * @param maxFrameLength the maximum length of a frame, excluding its terminator, and also
+     *                       the maximum number of bytes that may be written at once
+     */
+    public LineFramer(int maxFrameLength) {
+        // Leave room for a full write in addition to the longest partial frame that is kept.
+        int capacity = Integer.highestOneBit(2 * maxFrameLength + 1) << 1;
+        mRing = new byte[capacity];
+        mMask = capacity - 1;
+        mMaxFrameLength = maxFrameLength;
+        mFrame = new byte[maxFrameLength];
+    }
+
+    /**
+     * Returns the maximum length of a frame, excluding its terminator.
+     */
+    public int getMaxFrameLength() {
+        return mMaxFrameLength;
+    }
+
+    /**
+     * Discards all buffered data, including any partial frame.
+     * This should be called when the underlying stream is reopened.
+     */
+    public void clear() {
+        mHead = mScan = mTail = 0;
+        mIsDiscarding = false;
+        mFrameLength = 0;
+    }
+
+    /**
+     * Adds received bytes to the framer.  All available frames must be extracted with
+     * {@link #next()} before writing more data.
+     *
+     * @param buffer the buffer containing the received bytes
+     * @param offset the offset of the received bytes within the buffer
+     * @param length the number of received bytes, at most the maximum frame length
+     * @throws IllegalArgumentException if more bytes are written than the framer can hold
+     */
+    public void write(byte[] buffer, int offset, int length) {
+        if (length > mRing.length - (mTail - mHead))
+            throw new IllegalArgumentException("Cannot write " + length + " bytes to framer.");
+
+        int start = (int) (mTail & mMask);
+        int first = Math.min(length, mRing.length - start);
+        System.arraycopy(buffer, offset, mRing, start, first);
+        System.arraycopy(buffer, offset + first, mRing, 0, length - first);
+        mTail += length;
+    }
+
+    /**
+     * Adds all remaining bytes of a buffer to the framer, such as the bytes just read from
+     * a channel, without an intermediate copy.
+     *
+     * @param buffer the buffer containing the received bytes, at most the maximum frame length
+     * @throws IllegalArgumentException if more bytes are written than the framer can hold
+     * @see #write(byte[], int, int)
+     */
+    public void write(ByteBuffer buffer) {
+        int length = buffer.remaining();
+        if (length > mRing.length - (mTail - mHead))
+            throw new IllegalArgumentException("Cannot write " + length + " bytes to framer.");
+
+        int start = (int) (mTail & mMask);
+        int first = Math.min(length, mRing.length - start);
+        buffer.get(mRing, start, first);
+        buffer.get(mRing, 0, length - first);
+        mTail += length;
+    }
+
+    /**
+     * Extracts the next complete frame, if one is available.  The frame can then be read with
+     * {@link #getFrame()} and {@link #getFrameLength()} until the next call to this method.
+     *
+     * @return true if a frame was extracted, or false if more data is needed
+     */
+    public boolean next() {
+        while (mScan < mTail) {
+            if (mRing[(int) (mScan++ & mMask)] != '\n')
+                continue;
+
+            // A terminator was found, so consume everything up to and including it.
+            long start = mHead;
+            long end = mScan - 1;
+            mHead = mScan;
+
+            if (end > start && mRing[(int) ((end - 1) & mMask)] == '\r')
+                end--;
+
+            int length = (int) (end - start);
+            if (mIsDiscarding || length > mMaxFrameLength) {
+                mIsDiscarding = false;
+                mOversizedCount++;
+                continue;
+            }
+            if (length == 0)
+                continue;
+
+            int first = Math.min(length, mRing.length - (int) (start & mMask));
+            System.arraycopy(mRing, (int) (start & mMask), mFrame, 0, first);
+            System.arraycopy(mRing, 0, mFrame, first, length - first);
+            mFrameLength = length;
+            mFrameCount++;
+            return true;
+        }
+
+        // If the partial frame is already too long, drop it and skip the rest of it as it arrives.
+        // One extra byte is allowed for a carriage return that has not been stripped yet.
+        if (mTail - mHead > mMaxFrameLength + 1 || mIsDiscarding) {
+            mIsDiscarding = true;
+            mHead = mTail;
+        }
+        return false;
+    }
+
+    /**
+     * Removes all buffered bytes that have not been returned as frames and copies them into the
+     * given buffer.  This is used to hand the rest of the stream over to a different decoder.
+     *
+     * @param buffer a buffer large enough to hold {@link #getBufferedLength()} bytes
+     * @return the number of bytes copied
+     */
+    public int takeBuffered(byte[] buffer) {
+        int length = getBufferedLength();
+        int start = (int) (mHead & mMask);
+        int first = Math.min(length, mRing.length - start);
+        System.arraycopy(mRing, start, buffer, 0, first);
+        System.arraycopy(mRing, 0, buffer, first, length - first);
+        clear();
+        return length;
+    }
+
+    /**
+     * Returns the number of buffered bytes that have not been returned as frames.
+     */
+    public int getBufferedLength() {
+        return mIsDiscarding ? 0 : (int) (mTail - mHead);
+    }
+
+    /**
+     * Returns the buffer containing the most recently extracted frame, without its terminator.
+     * The buffer is reused and will be overwritten by the next call to {@link #next()}.
+     */
+    public byte[] getFrame() {
+        return mFrame;
+    }
+
+    /**
+     * Returns the length of the most recently extracted frame.
+     */
+    public int getFrameLength() {
+        return mFrameLength;
+    }
+
+    /**
+     * Returns the total number of frames extracted.
+     */
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Returns the total number of frames dropped for exceeding the maximum frame length.
+     */
+    public long getOversizedCount() {
+        return mOversizedCount;
+    }
+}
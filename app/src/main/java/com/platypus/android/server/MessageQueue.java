@@ -0,0 +1,149 @@
+package com.platypus.android.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded, lock-free queue of byte messages with many producers and a single consumer.
+ * <p/>
+ * Messages are copied into preallocated slots, so neither adding nor removing a message
+ * allocates.  Producers claim slots with a compare-and-set on the tail position and publish them
+ * by advancing a per-slot sequence number, so a producer never waits for the consumer or for
+ * another producer.  If the queue is full, new messages are rejected rather than blocking.
+ * <p/>
+ * Each message is stamped with the monotonic time at which it was added, so the consumer can
+ * measure how long messages wait in the queue.
+ */
+public class MessageQueue {
+    private final byte[][] mData;
+    private final int[] mLengths;
+    private final long[] mTimes;
+    private final AtomicLongArray mSequences;
+    private final int mMask;
+    private final int mMaxLength;
+
+    private final AtomicLong mTail = new AtomicLong();
+    private long mHead = 0;
+    private long mPolledTimeNs = 0;
+
+    /**
+     * Creates a new queue.
+     *
+     * @param capacity  the minimum number of messages that can be queued, rounded up to a
+     *                  power of two
+     * @param maxLength the maximum length of a single message
+     */
+    public MessageQueue(int capacity, int maxLength) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        mData = new byte[size][maxLength];
+        mLengths = new int[size];
+        mTimes = new long[size];
+        mSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; ++i)
+            mSequences.set(i, i);
+        mMask = size - 1;
+        mMaxLength = maxLength;
+    }
+
+    /**
+     * Copies a message into the queue.  This may be called from any thread.
+     *
+     * @param buffer the buffer containing the message
+     * @param offset the offset of the message within the buffer
+     * @param length the length of the message
+     * @return true if the message was added, or false if the queue is full
+     * @throws IllegalArgumentException if the message is longer than the maximum length
+     */
+    public boolean offer(byte[] buffer, int offset, int length) {
+        if (length > mMaxLength)
+            throw new IllegalArgumentException("Message is too long: " + length + " bytes.");
+
+        // Claim the slot at the tail, unless it has not been consumed yet.
+        long pos = mTail.get();
+        int i;
+        while (true) {
+            i = (int) (pos & mMask);
+            long available = mSequences.get(i) - pos;
+            if (available == 0) {
+                if (mTail.compareAndSet(pos, pos + 1))
+                    break;
+                pos = mTail.get();
+            } else if (available < 0) {
+                return false;
+            } else {
+                pos = mTail.get();
+            }
+        }
+
+        // Fill the slot, then publish it to the consumer.
+        System.arraycopy(buffer, offset, mData[i], 0, length);
+        mLengths[i] = length;
+        mTimes[i] = System.nanoTime();
+        mSequences.lazySet(i, pos + 1);
+        return true;
+    }
+
+    /**
+     * Removes the oldest message from the queue and copies it into the given buffer at its
+     * position, such as the direct buffer of a pending write, advancing the position.
+     * This must only be called from the consumer thread.
+     *
+     * @param buffer a buffer with room for the oldest message
+     * @return the length of the message, or -1 if the queue is empty
+     */
+    public int poll(ByteBuffer buffer) {
+        long pos = mHead;
+        int i = (int) (pos & mMask);
+        if (mSequences.get(i) != pos + 1)
+            return -1;
+
+        int length = mLengths[i];
+        buffer.put(mData[i], 0, length);
+        mPolledTimeNs = mTimes[i];
+
+        // Release the slot for reuse on the next pass around the ring.
+        mSequences.lazySet(i, pos + mData.length);
+        mHead = pos + 1;
+        return length;
+    }
+
+    /**
+     * Returns the length of the oldest message without removing it.
+     * This must only be called from the consumer thread.
+     *
+     * @return the length of the message, or -1 if the queue is empty
+     */
+    public int peekLength() {
+        int i = (int) (mHead & mMask);
+        if (mSequences.get(i) != mHead + 1)
+            return -1;
+        return mLengths[i];
+    }
+
+    /**
+     * Returns the monotonic time at which the most recently polled message was added.
+     * This must only be called from the consumer thread.
+     */
+    public long getPolledTimeNs() {
+        return mPolledTimeNs;
+    }
+
+    /**
+     * Removes all messages from the queue.  This must only be called from the consumer thread.
+     *
+     * @return the number of messages that were removed
+     */
+    public int drain() {
+        int count = 0;
+        long pos = mHead;
+        int i;
+        while (mSequences.get(i = (int) (pos & mMask)) == pos + 1) {
+            mSequences.lazySet(i, pos + mData.length);
+            pos++;
+            count++;
+        }
+        mHead = pos;
+        return count;
+    }
+}
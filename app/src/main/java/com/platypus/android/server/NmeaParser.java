@@ -0,0 +1,304 @@
+package com.platypus.android.server;
+
+/**
+ * Tokenizes NMEA 0183 sentences in place, validating their checksums, without allocating.
+ * <p/>
+ * A sentence has the form {@code $TTSSS,field1,field2,...*hh}, where {@code TT} is the talker,
+ * {@code SSS} the sentence type and {@code hh} the hexadecimal XOR of every character between
+ * the {@code $} and the {@code *}.  A single pass over the sentence computes the checksum and
+ * records the position of every field, and fields are only parsed when they are read.  The
+ * sentence type is checked first, so unsupported sentences are rejected after reading six bytes.
+ * <p/>
+ * The supported sentences are:
+ * <ul>
+ * <li>{@link #DBT}: depth below transducer</li>
+ * <li>{@link #DPT}: depth below transducer and the offset of the transducer</li>
+ * <li>{@link #MTW}: water temperature</li>
+ * <li>{@link #VHW}: heading and speed through the water</li>
+ * <li>{@link #RMC}: recommended minimum GPS fix</li>
+ * </ul>
+ * This class is not thread-safe.
+ */
+public class NmeaParser {
+    public static final int UNKNOWN = 0;
+    public static final int DBT = 1;
+    public static final int DPT = 2;
+    public static final int MTW = 3;
+    public static final int VHW = 4;
+    public static final int RMC = 5;
+
+    /**
+     * Maximum number of fields in a sentence, not counting the sentence name.
+     */
+    public static final int MAX_FIELDS = 24;
+
+    private static final double FEET_TO_METERS = 0.3048;
+    private static final double FATHOMS_TO_METERS = 1.8288;
+
+    private byte[] mBuffer;
+    private int mSentence = UNKNOWN;
+    // Field i spans [mFieldStarts[i], mFieldEnds[i]), with field 0 being the sentence name.
+    private final int[] mFieldStarts = new int[MAX_FIELDS + 1];
+    private final int[] mFieldEnds = new int[MAX_FIELDS + 1];
+    private int mFieldCount = 0;
+
+    // Written only by the parsing thread, read by any thread.
+    private volatile long mSentenceCount = 0;
+    private volatile long mUnknownCount = 0;
+    private volatile long mErrorCount = 0;
+
+    /**
+     * Parses a sentence.
+     *
+     * @param buffer the buffer containing the sentence
+     * @param offset the offset of the {@code $} that starts the sentence
+     * @param length the length of the sentence, optionally including a line terminator
+     * @return the type of the sentence, or {@link #UNKNOWN} if it is not supported
+     * @throws NumberFormatException if the sentence is malformed or its checksum is wrong
+     */
+    public int parse(byte[] buffer, int offset, int length) {
+        mBuffer = buffer;
+        mSentence = UNKNOWN;
+        mFieldCount = 0;
+        int end = offset + length;
+        while (end > offset && (buffer[end - 1] == '\n' || buffer[end - 1] == '\r'))
+            end--;
+
+        if (end - offset < 6 || buffer[offset] != '$') {
+            mErrorCount++;
+            throw new NumberFormatException("Not an NMEA sentence.");
+        }
+
+        int sentence = sentenceOf(buffer[offset + 3], buffer[offset + 4], buffer[offset + 5]);
+        if (sentence == UNKNOWN) {
+            mUnknownCount++;
+            return UNKNOWN;
+        }
+
+        // Find the fields and compute the checksum in a single pass.
+        int checksum = 0;
+        int fieldStart = offset + 1;
+        int pos = offset + 1;
+        for (; pos < end && buffer[pos] != '*'; ++pos) {
+            checksum ^= buffer[pos];
+            if (buffer[pos] == ',') {
+                if (!addField(fieldStart, pos))
+                    return fail("Too many NMEA fields.");
+                fieldStart = pos + 1;
+            }
+        }
+        if (!addField(fieldStart, pos))
+            return fail("Too many NMEA fields.");
+
+        if (pos + 3 != end)
+            return fail("Missing NMEA checksum.");
+        int expected = (hexValue(buffer[pos + 1]) << 4) | hexValue(buffer[pos + 2]);
+        if (expected != (checksum & 0xFF))
+            return fail("NMEA checksum mismatch.");
+
+        mSentence = sentence;
+        mSentenceCount++;
+        return sentence;
+    }
+
+    private boolean addField(int start, int end) {
+        if (mFieldCount > MAX_FIELDS)
+            return false;
+        mFieldStarts[mFieldCount] = start;
+        mFieldEnds[mFieldCount] = end;
+        mFieldCount++;
+        return true;
+    }
+
+    private int fail(String message) {
+        mFieldCount = 0;
+        mErrorCount++;
+        throw new NumberFormatException(message);
+    }
+
+    private static int sentenceOf(byte a, byte b, byte c) {
+        switch (a) {
+            case 'D':
+                if (b == 'B' && c == 'T')
+                    return DBT;
+                if (b == 'P' && c == 'T')
+                    return DPT;
+                break;
+            case 'M':
+                if (b == 'T' && c == 'W')
+                    return MTW;
+                break;
+            case 'V':
+                if (b == 'H' && c == 'W')
+                    return VHW;
+                break;
+            case 'R':
+                if (b == 'M' && c == 'C')
+                    return RMC;
+                break;
+        }
+        return UNKNOWN;
+    }
+
+    private static int hexValue(byte b) {
+        if (b >= '0' && b <= '9')
+            return b - '0';
+        if (b >= 'A' && b <= 'F')
+            return b - 'A' + 10;
+        if (b >= 'a' && b <= 'f')
+            return b - 'a' + 10;
+        return -1 << 8;
+    }
+
+    /**
+     * Returns the type of the most recently parsed sentence.
+     */
+    public int getSentence() {
+        return mSentence;
+    }
+
+    /**
+     * Returns the number of fields in the most recently parsed sentence, not counting the
+     * sentence name.
+     */
+    public int getFieldCount() {
+        return Math.max(0, mFieldCount - 1);
+    }
+
+    /**
+     * Returns whether a field is missing or empty.
+     *
+     * @param field the index of the field, starting from 1
+     */
+    public boolean isEmpty(int field) {
+        return field >= mFieldCount || mFieldStarts[field] == mFieldEnds[field];
+    }
+
+    /**
+     * Parses a numeric field.
+     *
+     * @param field the index of the field, starting from 1
+     * @throws NumberFormatException if the field is missing, empty or not a number
+     */
+    public double getDouble(int field) {
+        if (isEmpty(field))
+            throw new NumberFormatException("Missing NMEA field " + field + ".");
+        return SensorMessage.parseDouble(mBuffer, mFieldStarts[field],
+                mFieldEnds[field] - mFieldStarts[field]);
+    }
+
+    /**
+     * Returns the first character of a field, or 0 if it is empty.
+     *
+     * @param field the index of the field, starting from 1
+     */
+    public char getChar(int field) {
+        return isEmpty(field) ? 0 : (char) mBuffer[mFieldStarts[field]];
+    }
+
+    /**
+     * Returns the depth below the transducer of a {@link #DBT} or {@link #DPT} sentence.
+     * A DBT sentence in only feet or fathoms is converted to meters.
+     *
+     * @return the depth in meters
+     * @throws NumberFormatException if the sentence has no depth
+     */
+    public double getDepthMeters() {
+        if (mSentence == DPT)
+            return getDouble(1);
+        if (mSentence != DBT)
+            throw new NumberFormatException("Not a depth sentence.");
+
+        if (!isEmpty(3))
+            return getDouble(3);
+        if (!isEmpty(1))
+            return getDouble(1) * FEET_TO_METERS;
+        return getDouble(5) * FATHOMS_TO_METERS;
+    }
+
+    /**
+     * Returns the water temperature of an {@link #MTW} sentence.
+     *
+     * @return the temperature in degrees Celsius
+     * @throws NumberFormatException if the sentence has no temperature
+     */
+    public double getTemperature() {
+        if (mSentence != MTW)
+            throw new NumberFormatException("Not a temperature sentence.");
+        return getDouble(1);
+    }
+
+    /**
+     * Returns the speed through the water of a {@link #VHW} sentence, or the speed over ground
+     * of an {@link #RMC} sentence.
+     *
+     * @return the speed in knots
+     * @throws NumberFormatException if the sentence has no speed
+     */
+    public double getSpeedKnots() {
+        if (mSentence == VHW)
+            return getDouble(5);
+        if (mSentence == RMC)
+            return getDouble(7);
+        throw new NumberFormatException("Not a speed sentence.");
+    }
+
+    /**
+     * Returns whether an {@link #RMC} sentence reports a valid fix.
+     */
+    public boolean isFixValid() {
+        return mSentence == RMC && getChar(2) == 'A';
+    }
+
+    /**
+     * Returns the latitude of an {@link #RMC} sentence.
+     *
+     * @return the latitude in degrees, negative in the southern hemisphere
+     * @throws NumberFormatException if the sentence has no position
+     */
+    public double getLatitude() {
+        return getCoordinate(3, 'S');
+    }
+
+    /**
+     * Returns the longitude of an {@link #RMC} sentence.
+     *
+     * @return the longitude in degrees, negative in the western hemisphere
+     * @throws NumberFormatException if the sentence has no position
+     */
+    public double getLongitude() {
+        return getCoordinate(5, 'W');
+    }
+
+    private double getCoordinate(int field, char negative) {
+        if (mSentence != RMC)
+            throw new NumberFormatException("Not a position sentence.");
+
+        // Coordinates are written as degrees and decimal minutes, such as 4807.038.
+        double value = getDouble(field);
+        double degrees = Math.floor(value / 100.0);
+        double result = degrees + (value - degrees * 100.0) / 60.0;
+        return (getChar(field + 1) == negative) ? -result : result;
+    }
+
+    /**
+     * Returns the total number of supported sentences parsed successfully.
+     */
+    public long getSentenceCount() {
+        return mSentenceCount;
+    }
+
+    /**
+     * Returns the total number of unsupported sentences that were skipped.
+     */
+    public long getUnknownCount() {
+        return mUnknownCount;
+    }
+
+    /**
+     * Returns the total number of sentences rejected as malformed or for a wrong checksum.
+     */
+    public long getErrorCount() {
+        return mErrorCount;
+    }
+}
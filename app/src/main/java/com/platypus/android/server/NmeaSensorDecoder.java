@@ -0,0 +1,79 @@
+package com.platypus.android.server;
+
+import com.platypus.crw.VehicleServer.SensorType;
+import com.platypus.crw.data.SensorData;
+
+/**
+ * Decodes NMEA 0183 sentences forwarded from a depth sounder, such as a Lowrance HDS.
+ * <p/>
+ * Depth ({@code DBT} and {@code DPT}) sentences produce {@link SensorType#HDS_DEPTH} readings in
+ * meters below the transducer, and water temperature ({@code MTW}) sentences produce
+ * {@link SensorType#HDS_TEMP} readings.  Speed through the water ({@code VHW}) and GPS fix
+ * ({@code RMC}) sentences produce no reading, but are passed to the {@link Listener} if one is
+ * set.  Other sentences are skipped, and sentences with a wrong checksum are rejected.
+ */
+public class NmeaSensorDecoder implements SensorDecoder {
+    /**
+     * Receives valid sentences that do not produce sensor readings.
+     */
+    public interface Listener {
+        /**
+         * Called on the receive thread for each such sentence.
+         *
+         * @param parser  the parser holding the fields of the sentence
+         * @param message the sensor message containing the sentence
+         */
+        void onSentence(NmeaParser parser, SensorMessage message);
+    }
+
+    private final NmeaParser mParser = new NmeaParser();
+    private volatile Listener mListener;
+
+    /**
+     * Sets the listener for sentences that do not produce sensor readings.
+     *
+     * @param listener the listener, or null to ignore such sentences
+     */
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Returns the parser used by this decoder, from which sentence counts may be read.
+     */
+    public NmeaParser getParser() {
+        return mParser;
+    }
+
+    @Override
+    public int getValueCount() {
+        return 1;
+    }
+
+    @Override
+    public boolean decode(SensorMessage message, SensorData reading) {
+        int length = message.getDataLength();
+        if (length < 0 || message.isBinary())
+            throw new NumberFormatException("Missing NMEA sentence.");
+
+        switch (mParser.parse(message.getBuffer(), message.getDataOffset(), length)) {
+            case NmeaParser.DBT:
+            case NmeaParser.DPT:
+                reading.type = SensorType.HDS_DEPTH;
+                reading.data[0] = mParser.getDepthMeters();
+                return true;
+            case NmeaParser.MTW:
+                reading.type = SensorType.HDS_TEMP;
+                reading.data[0] = mParser.getTemperature();
+                return true;
+            case NmeaParser.VHW:
+            case NmeaParser.RMC:
+                Listener listener = mListener;
+                if (listener != null)
+                    listener.onSentence(mParser, message);
+                return false;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.platypus.android.server;
+
+import com.platypus.crw.VehicleServer.SensorType;
+import com.platypus.crw.data.SensorData;
+
+/**
+ * Decodes sensor messages whose data is a fixed number of values, such as the conductivity and
+ * temperature reported by an ES2 probe.  Any additional values are ignored.
+ */
+public class NumericSensorDecoder implements SensorDecoder {
+    private final SensorType mType;
+    private final int mValueCount;
+
+    /**
+     * Creates a decoder for readings of the given type.
+     *
+     * @param type       the type of the readings
+     * @param valueCount the number of values in each reading
+     */
+    public NumericSensorDecoder(SensorType type, int valueCount) {
+        mType = type;
+        mValueCount = valueCount;
+    }
+
+    @Override
+    public int getValueCount() {
+        return mValueCount;
+    }
+
+    @Override
+    public boolean decode(SensorMessage message, SensorData reading) {
+        int count = message.getValues(reading.data);
+        if (count < mValueCount)
+            throw new NumberFormatException("Expected " + mValueCount + " values for " + mType
+                    + " but received " + count + ".");
+        reading.type = mType;
+        return true;
+    }
+}
@@ -0,0 +1,220 @@
+package com.platypus.android.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Outgoing messages for the controller board, held in lanes of decreasing priority.
+ * <ul>
+ * <li>The safety lane holds messages that must reach the board as soon as possible, such as
+ * commands that stop the motors.  Adding a safety message also discards any control message
+ * that has not been sent yet, since it was computed before the stop.</li>
+ * <li>The control lane holds only the most recent actuator command.  A newer command replaces
+ * one that has not been sent yet, because only the latest setpoint matters to the board.</li>
+ * <li>The bulk lane holds all other messages, such as configuration and one-off commands,
+ * which are sent in order.</li>
+ * </ul>
+ * The consumer removes messages with {@link #poll(ByteBuffer, int)}, which always returns a
+ * message from the highest priority lane that has one.  If the consumer gathers messages into
+ * writes of at most a fixed length, a safety message is therefore delayed by at most the write
+ * in progress and any safety messages ahead of it, however much bulk traffic is waiting.
+ * <p/>
+ * Messages may be added from any thread, but must only be removed from a single thread.
+ * Adding to the safety and bulk lanes never blocks; the control lane is a single slot guarded
+ * by a lock that is only held while a message is copied.
+ */
+public class OutboundQueue {
+    /**
+     * Lane of messages that preempt all other traffic.
+     */
+    public static final int LANE_SAFETY = 0;
+    /**
+     * Lane holding only the newest actuator command.
+     */
+    public static final int LANE_CONTROL = 1;
+    /**
+     * Lane of all other messages, which are sent in order.
+     */
+    public static final int LANE_BULK = 2;
+
+    private final MessageQueue mSafety;
+    private final MessageQueue mBulk;
+    private final int mMaxLength;
+
+    // The control slot, guarded by its buffer.  A length of -1 means the slot is empty.
+    private final byte[] mControl;
+    private int mControlLength = -1;
+    private long mControlTimeNs = 0;
+    private long mControlOriginNs = 0;
+
+    private final AtomicLong mReplacedCount = new AtomicLong();
+    private int mPolledLane = -1;
+    private long mPolledTimeNs = 0;
+    private long mPolledOriginNs = 0;
+
+    /**
+     * Creates a new queue.
+     *
+     * @param safetyCapacity the minimum number of messages that can wait in the safety lane
+     * @param bulkCapacity   the minimum number of messages that can wait in the bulk lane
+     * @param maxLength      the maximum length of a single message
+     */
+    public OutboundQueue(int safetyCapacity, int bulkCapacity, int maxLength) {
+        mSafety = new MessageQueue(safetyCapacity, maxLength);
+        mBulk = new MessageQueue(bulkCapacity, maxLength);
+        mControl = new byte[maxLength];
+        mMaxLength = maxLength;
+    }
+
+    /**
+     * Copies a message into one of the lanes.  This may be called from any thread.
+     *
+     * @param lane   the lane, such as {@link #LANE_SAFETY}
+     * @param buffer the buffer containing the message
+     * @param offset the offset of the message within the buffer
+     * @param length the length of the message
+     * @return true if the message was added, or false if its lane is full
+     * @throws IllegalArgumentException if the lane is unknown or the message is too long
+     */
+    public boolean offer(int lane, byte[] buffer, int offset, int length) {
+        return offer(lane, buffer, offset, length, 0);
+    }
+
+    /**
+     * Copies a message into one of the lanes, together with the time of the event it was
+     * produced from, so that the consumer can measure the latency up to writing it.
+     * This may be called from any thread.
+     *
+     * @param lane         the lane, such as {@link #LANE_SAFETY}
+     * @param buffer       the buffer containing the message
+     * @param offset       the offset of the message within the buffer
+     * @param length       the length of the message
+     * @param originTimeNs the monotonic time of the event the message was produced from, or 0
+     *                     if it is unknown; this is only kept for the control lane
+     * @return true if the message was added, or false if its lane is full
+     * @throws IllegalArgumentException if the lane is unknown or the message is too long
+     * @see #getPolledOriginTimeNs()
+     */
+    public boolean offer(int lane, byte[] buffer, int offset, int length, long originTimeNs) {
+        switch (lane) {
+            case LANE_SAFETY:
+                // A pending control message predates this one, so it must not follow it.
+                synchronized (mControl) {
+                    if (mControlLength >= 0) {
+                        mControlLength = -1;
+                        mReplacedCount.incrementAndGet();
+                    }
+                }
+                return mSafety.offer(buffer, offset, length);
+            case LANE_CONTROL:
+                if (length > mMaxLength)
+                    throw new IllegalArgumentException("Message is too long: " + length + " bytes.");
+                synchronized (mControl) {
+                    if (mControlLength >= 0)
+                        mReplacedCount.incrementAndGet();
+                    System.arraycopy(buffer, offset, mControl, 0, length);
+                    mControlLength = length;
+                    mControlTimeNs = System.nanoTime();
+                    mControlOriginNs = originTimeNs;
+                }
+                return true;
+            case LANE_BULK:
+                return mBulk.offer(buffer, offset, length);
+            default:
+                throw new IllegalArgumentException("Unknown lane: " + lane);
+        }
+    }
+
+    /**
+     * Removes the highest priority message, if it is no longer than the given length, and copies
+     * it into the given buffer at its position, advancing the position.  Messages can therefore
+     * be gathered straight into the buffer of a write.  If the highest priority message is too
+     * long, nothing is removed, so that it is still the first message returned once there is
+     * room for it.  This must only be called from the consumer thread.
+     *
+     * @param buffer    a buffer with at least {@code maxLength} bytes remaining
+     * @param maxLength the longest message that may be returned
+     * @return the length of the message, or -1 if there is no message or it is too long
+     */
+    public int poll(ByteBuffer buffer, int maxLength) {
+        int length = mSafety.peekLength();
+        if (length >= 0)
+            return (length <= maxLength) ? take(mSafety, LANE_SAFETY, buffer) : -1;
+
+        synchronized (mControl) {
+            length = mControlLength;
+            if (length >= 0) {
+                if (length > maxLength)
+                    return -1;
+
+                buffer.put(mControl, 0, length);
+                mControlLength = -1;
+                mPolledLane = LANE_CONTROL;
+                mPolledTimeNs = mControlTimeNs;
+                mPolledOriginNs = mControlOriginNs;
+                return length;
+            }
+        }
+
+        length = mBulk.peekLength();
+        if (length >= 0)
+            return (length <= maxLength) ? take(mBulk, LANE_BULK, buffer) : -1;
+        return -1;
+    }
+
+    private int take(MessageQueue queue, int lane, ByteBuffer buffer) {
+        int length = queue.poll(buffer);
+        mPolledLane = lane;
+        mPolledTimeNs = queue.getPolledTimeNs();
+        mPolledOriginNs = 0;
+        return length;
+    }
+
+    /**
+     * Returns the lane of the most recently polled message.
+     * This must only be called from the consumer thread.
+     */
+    public int getPolledLane() {
+        return mPolledLane;
+    }
+
+    /**
+     * Returns the monotonic time at which the most recently polled message was added.
+     * This must only be called from the consumer thread.
+     */
+    public long getPolledTimeNs() {
+        return mPolledTimeNs;
+    }
+
+    /**
+     * Returns the time of the event that the most recently polled message was produced from,
+     * or 0 if it is unknown.  This must only be called from the consumer thread.
+     */
+    public long getPolledOriginTimeNs() {
+        return mPolledOriginNs;
+    }
+
+    /**
+     * Removes all messages from every lane.  This must only be called from the consumer thread.
+     *
+     * @return the number of messages that were removed
+     */
+    public int drain() {
+        int count = mSafety.drain() + mBulk.drain();
+        synchronized (mControl) {
+            if (mControlLength >= 0) {
+                mControlLength = -1;
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the total number of control messages that were replaced by a newer message
+     * before they could be sent.
+     */
+    public long getReplacedCount() {
+        return mReplacedCount.get();
+    }
+}
@@ -0,0 +1,200 @@
+package com.platypus.android.server;
+
+import com.platypus.crw.VehicleServer.SensorType;
+import com.platypus.crw.data.SensorData;
+
+/**
+ * Removes spikes from decoded sensor readings, such as those caused by a probe losing contact
+ * with the water, using a {@link HampelFilter} on each value of each sensor.
+ * <p/>
+ * Filtering is configured per {@link SensorType}, and each channel reporting a configured type
+ * gets its own filters.  {@link #apply(SensorData)} replaces the values of a reading with the
+ * filtered values, keeping the raw values so that both can be logged.  Filters are created
+ * when a channel first reports a configured type; after that, filtering does not allocate.
+ * <p/>
+ * Readings should be filtered from a single thread.  Filtering may be configured from any
+ * thread.
+ */
+public class OutlierRejector {
+    /**
+     * Number of sensor types that may be configured.
+     */
+    public static final int MAX_CONFIGS = 16;
+    /**
+     * Number of channels for which filters are kept.
+     */
+    public static final int MAX_CHANNELS = 16;
+
+    private static final int TYPE_COUNT = SensorType.values().length;
+
+    private static class Config {
+        final SensorType type;
+        final int window;
+        final double threshold;
+        final double[] minDeviations;
+
+        Config(SensorType type, int window, double threshold, double[] minDeviations) {
+            this.type = type;
+            this.window = window;
+            this.threshold = threshold;
+            this.minDeviations = minDeviations;
+        }
+
+        double minDeviation(int k) {
+            if (minDeviations.length == 0)
+                return 0.0;
+            return minDeviations[Math.min(k, minDeviations.length - 1)];
+        }
+    }
+
+    private volatile Config[] mConfigs = new Config[0];
+
+    // Filters of each channel and type, indexed by channel and then by type, so that they
+    // survive changes to the configuration of other types.  Only used by the filtering thread.
+    private final Config[] mBankConfigs = new Config[MAX_CHANNELS * TYPE_COUNT];
+    private final HampelFilter[][] mBanks = new HampelFilter[MAX_CHANNELS * TYPE_COUNT][];
+    private double[] mRaw = new double[8];
+
+    // Written only by the filtering thread.
+    private volatile long mFilteredCount = 0;
+    private volatile long mOutlierCount = 0;
+
+    /**
+     * Filters the readings of a type of sensor, replacing any previous configuration.  The
+     * filters of every channel reporting that type are restarted.
+     *
+     * @param type          the type of sensor
+     * @param window        the number of recent readings over which the median is taken
+     * @param threshold     the number of standard deviations beyond which a value is rejected
+     * @param minDeviations the smallest standard deviation assumed for each value of a reading;
+     *                      the last one is used for any further values
+     * @see HampelFilter#HampelFilter(int, double, double)
+     */
+    public synchronized void configure(SensorType type, int window, double threshold,
+                                       double... minDeviations) {
+        if (window < 3 || !(threshold > 0))
+            throw new IllegalArgumentException("Invalid filter for " + type + ": window "
+                    + window + ", threshold " + threshold);
+        for (double minDeviation : minDeviations) {
+            if (!(minDeviation >= 0))
+                throw new IllegalArgumentException("Invalid deviation for " + type + ": "
+                        + minDeviation);
+        }
+        Config config = new Config(type, window, threshold, minDeviations.clone());
+
+        Config[] current = mConfigs;
+        for (int i = 0; i < current.length; ++i) {
+            if (current[i].type == type) {
+                Config[] updated = current.clone();
+                updated[i] = config;
+                mConfigs = updated;
+                return;
+            }
+        }
+        if (current.length == MAX_CONFIGS)
+            throw new IllegalStateException("Too many outlier filters.");
+
+        Config[] updated = new Config[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, current.length);
+        updated[current.length] = config;
+        mConfigs = updated;
+    }
+
+    /**
+     * Stops filtering the readings of a type of sensor.
+     */
+    public synchronized void remove(SensorType type) {
+        Config[] current = mConfigs;
+        for (int i = 0; i < current.length; ++i) {
+            if (current[i].type == type) {
+                Config[] updated = new Config[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                mConfigs = updated;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns whether the readings of a type of sensor are filtered.
+     */
+    public boolean isConfigured(SensorType type) {
+        for (Config config : mConfigs) {
+            if (config.type == type)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Filters a reading if its type is configured, replacing its values with the filtered
+     * values.  The raw values are then available from {@link #getRawValues()}.
+     *
+     * @param reading the reading to filter in place
+     * @return true if the reading was filtered
+     */
+    public boolean apply(SensorData reading) {
+        if (reading.channel < 0 || reading.channel >= MAX_CHANNELS)
+            return false;
+
+        Config config = null;
+        for (Config c : mConfigs) {
+            if (c.type == reading.type) {
+                config = c;
+                break;
+            }
+        }
+        if (config == null)
+            return false;
+
+        // Restart the filters if the configuration or the number of values changed.
+        double[] data = reading.data;
+        int bank = reading.channel * TYPE_COUNT + reading.type.ordinal();
+        HampelFilter[] filters = mBanks[bank];
+        if (filters == null || mBankConfigs[bank] != config
+                || filters.length != data.length) {
+            filters = new HampelFilter[data.length];
+            for (int k = 0; k < data.length; ++k)
+                filters[k] = new HampelFilter(config.window, config.threshold,
+                        config.minDeviation(k));
+            mBanks[bank] = filters;
+            mBankConfigs[bank] = config;
+        }
+
+        if (mRaw.length < data.length)
+            mRaw = new double[data.length];
+        long outliers = 0;
+        for (int k = 0; k < data.length; ++k) {
+            mRaw[k] = data[k];
+            data[k] = filters[k].filter(data[k]);
+            if (filters[k].isOutlier())
+                outliers++;
+        }
+        mFilteredCount++;
+        mOutlierCount += outliers;
+        return true;
+    }
+
+    /**
+     * Returns the raw values of the reading most recently filtered by {@link #apply(SensorData)},
+     * in an array that is reused and may be longer than the reading.
+     */
+    public double[] getRawValues() {
+        return mRaw;
+    }
+
+    /**
+     * Returns the total number of readings filtered.
+     */
+    public long getFilteredCount() {
+        return mFilteredCount;
+    }
+
+    /**
+     * Returns the total number of values replaced as outliers.
+     */
+    public long getOutlierCount() {
+        return mOutlierCount;
+    }
+}
@@ -0,0 +1,32 @@
+package com.platypus.android.server;
+
+import com.platypus.crw.data.SensorData;
+
+/**
+ * Converts one type of sensor message from the controller board into sensor readings.
+ * <p/>
+ * Decoders are registered with a {@link SensorDecoderRegistry} under the type name the board
+ * sends, such as "es2".  They are called on the controller receive thread for every message of
+ * that type, so they must not allocate in {@link #decode(SensorMessage, SensorData)}.
+ *
+ * @see SensorDecoderRegistry
+ */
+public interface SensorDecoder {
+    /**
+     * Returns the number of values in each reading produced by this decoder.  This is used to
+     * preallocate the readings passed to {@link #decode(SensorMessage, SensorData)}.
+     */
+    int getValueCount();
+
+    /**
+     * Decodes a sensor message.
+     *
+     * @param message the sensor message
+     * @param reading a reading with its channel already set and a data array of
+     *                {@link #getValueCount()} values, into which the type and values of the
+     *                reading should be written
+     * @return true if a reading was produced, or false if the message holds nothing of interest
+     * @throws NumberFormatException if the message is malformed
+     */
+    boolean decode(SensorMessage message, SensorData reading);
+}
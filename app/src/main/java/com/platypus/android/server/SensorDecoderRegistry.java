@@ -0,0 +1,140 @@
+package com.platypus.android.server;
+
+import com.platypus.crw.VehicleServer.SensorType;
+import com.platypus.crw.data.SensorData;
+
+/**
+ * A table of {@link SensorDecoder}s keyed by the sensor type names sent by the controller board.
+ * <p/>
+ * Type names are matched case-insensitively against the bytes of each message, through an
+ * open-addressed hash table built when decoders are registered, so looking up a decoder does
+ * not create a String.  Each decoder has a ring of preallocated readings that are reused in
+ * turn, so decoding does not allocate either.  A reading returned by
+ * {@link #decode(SensorDecoder, SensorMessage)} stays valid until {@link #SLOT_COUNT} more
+ * readings of the same type have been decoded; consumers that keep readings for longer must
+ * copy them.
+ * <p/>
+ * Decoders should be registered before messages are decoded.  Decoding should only be done
+ * from a single thread.
+ */
+public class SensorDecoderRegistry {
+    /**
+     * Number of reusable readings kept for each type of sensor.
+     */
+    public static final int SLOT_COUNT = 8;
+    private static final int TABLE_SIZE = 64;
+
+    private final byte[][] mNames = new byte[TABLE_SIZE][];
+    private final SensorDecoder[] mDecoders = new SensorDecoder[TABLE_SIZE];
+    private final SensorData[][] mSlots = new SensorData[TABLE_SIZE][];
+    private final int[] mNextSlots = new int[TABLE_SIZE];
+    private int mCount = 0;
+
+    /**
+     * Creates a registry containing decoders for the sensors supported by the standard
+     * controller firmware: ES2, Atlas DO and pH probes, battery reports and HDS depth sounders.
+     */
+    public static SensorDecoderRegistry createDefault() {
+        SensorDecoderRegistry registry = new SensorDecoderRegistry();
+        registry.register("es2", new NumericSensorDecoder(SensorType.ES2, 2));
+        registry.register("atlas_do", new NumericSensorDecoder(SensorType.ATLAS_DO, 1));
+        registry.register("atlas_ph", new NumericSensorDecoder(SensorType.ATLAS_PH, 1));
+        registry.register("battery", new NumericSensorDecoder(SensorType.BATTERY, 3));
+        registry.register("hds", new NmeaSensorDecoder());
+        return registry;
+    }
+
+    /**
+     * Registers a decoder for a type of sensor, replacing any decoder already registered for
+     * that type.
+     *
+     * @param type    the type name sent by the board, in ASCII
+     * @param decoder the decoder for messages of this type
+     */
+    public void register(String type, SensorDecoder decoder) {
+        byte[] name = new byte[type.length()];
+        for (int i = 0; i < name.length; ++i)
+            name[i] = (byte) Character.toLowerCase(type.charAt(i));
+
+        int i = indexOf(name, 0, name.length);
+        if (mNames[i] == null) {
+            if (mCount >= TABLE_SIZE / 2)
+                throw new IllegalStateException("Too many sensor decoders.");
+            mCount++;
+        }
+
+        SensorData[] slots = new SensorData[SLOT_COUNT];
+        for (int j = 0; j < SLOT_COUNT; ++j) {
+            slots[j] = new SensorData();
+            slots[j].data = new double[decoder.getValueCount()];
+        }
+
+        mNames[i] = name;
+        mDecoders[i] = decoder;
+        mSlots[i] = slots;
+        mNextSlots[i] = 0;
+    }
+
+    /**
+     * Returns the decoder registered for the type of a message.
+     *
+     * @param message the sensor message
+     * @return the decoder, or null if no decoder is registered for the type of the message
+     */
+    public SensorDecoder find(SensorMessage message) {
+        return mDecoders[indexOf(message.getBuffer(), message.getTypeOffset(),
+                message.getTypeLength())];
+    }
+
+    /**
+     * Decodes a message with a decoder found by {@link #find(SensorMessage)}.
+     *
+     * @param decoder the decoder registered for the type of the message
+     * @param message the sensor message
+     * @return the decoded reading, or null if the message produced no reading
+     * @throws NumberFormatException if the message is malformed
+     */
+    public SensorData decode(SensorDecoder decoder, SensorMessage message) {
+        int i = indexOf(message.getBuffer(), message.getTypeOffset(), message.getTypeLength());
+        if (mDecoders[i] != decoder)
+            throw new IllegalArgumentException("Decoder is not registered for this message.");
+
+        SensorData reading = mSlots[i][mNextSlots[i]];
+        reading.channel = message.getChannel();
+        if (!decoder.decode(message, reading))
+            return null;
+
+        mNextSlots[i] = (mNextSlots[i] + 1) % SLOT_COUNT;
+        return reading;
+    }
+
+    /**
+     * Returns the table index holding a type name, or the empty index at which it would be
+     * inserted.
+     */
+    private int indexOf(byte[] buffer, int offset, int length) {
+        // FNV-1a over the lower case name.
+        int hash = 0x811C9DC5;
+        for (int i = offset; i < offset + length; ++i)
+            hash = (hash ^ toLowerCase(buffer[i])) * 0x01000193;
+
+        int i = hash & (TABLE_SIZE - 1);
+        while (mNames[i] != null && !equalsIgnoreCase(mNames[i], buffer, offset, length))
+            i = (i + 1) & (TABLE_SIZE - 1);
+        return i;
+    }
+
+    private static boolean equalsIgnoreCase(byte[] name, byte[] buffer, int offset, int length) {
+        if (name.length != length)
+            return false;
+        for (int i = 0; i < length; ++i) {
+            if (name[i] != toLowerCase(buffer[offset + i]))
+                return false;
+        }
+        return true;
+    }
+
+    private static byte toLowerCase(byte b) {
+        return (b >= 'A' && b <= 'Z') ? (byte) (b + ('a' - 'A')) : b;
+    }
+}
@@ -0,0 +1,540 @@
+package com.platypus.android.server;
+
+import com.platypus.crw.VehicleServer.SensorType;
+import com.platypus.crw.data.SensorData;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Queues sensor readings by channel and forwards them to a {@link Sink} at a controlled rate.
+ * <p/>
+ * Readings are copied into a bounded queue for their channel by {@link #offer(SensorData)}
+ * as they are decoded, dropping the oldest reading if the queue is full.  Each call to
+ * {@link #dispatch(long)} then drains every queue according to the policy of its channel:
+ * <ul>
+ * <li>{@link #PASS_THROUGH} forwards every reading.</li>
+ * <li>{@link #DECIMATE} forwards the newest reading at most at a fixed rate, discarding the
+ * others.</li>
+ * <li>{@link #BATCH} forwards the newest readings of each type, up to a fixed count, as a
+ * single reading on channel {@link #BATCH_CHANNEL} of type {@link #BATCH_TYPE}.  Its data
+ * starts with a header of {@link #BATCH_HEADER_LENGTH} values: the channel of the readings, the
+ * ordinal of their type, the number of values in each reading and the number of readings.  The
+ * values of each reading follow in turn, oldest first.  A batch of a single reading is
+ * forwarded as that reading.</li>
+ * </ul>
+ * Rates are limited by how often {@link #dispatch(long)} is called.  Channels from 0 to
+ * {@link #MAX_CHANNELS} - 1 are queued; readings from other channels are forwarded
+ * immediately.
+ * <p/>
+ * Readings should be offered from a single thread and dispatched from a single, possibly
+ * different, thread.  Neither allocates once each queue has held readings of every size.
+ * {@link #start(long)} runs a thread that dispatches readings periodically, and forwards the
+ * readings of pass-through channels as soon as they are offered.
+ */
+public class SensorDispatcher {
+    public static final int PASS_THROUGH = 0;
+    public static final int DECIMATE = 1;
+    public static final int BATCH = 2;
+
+    /**
+     * Number of channels with their own queue and policy.
+     */
+    public static final int MAX_CHANNELS = 16;
+    /**
+     * Default number of readings held for each channel between dispatches.
+     */
+    public static final int DEFAULT_CAPACITY = 32;
+    /**
+     * Channel on which batches are forwarded, so that listeners do not mistake a batch for a
+     * single reading.  Sensor types are defined by the vehicle protocol and cannot be extended,
+     * and {@link SensorType#UNKNOWN} is already used by sensors such as the winch, so batches
+     * are marked by a channel that no sensor uses instead.  The channel of the batched readings
+     * is the first value of the batch header.
+     */
+    public static final int BATCH_CHANNEL = -1;
+    /**
+     * Type of the readings that hold a batch.  This alone does not identify a batch.
+     */
+    public static final SensorType BATCH_TYPE = SensorType.UNKNOWN;
+    /**
+     * Number of values at the start of a batch that describe the readings it holds.
+     */
+    public static final int BATCH_HEADER_LENGTH = 4;
+
+    /**
+     * Receives the readings forwarded by a dispatcher.
+     */
+    public interface Sink {
+        /**
+         * Forwards a reading, which is reused after this returns.
+         */
+        void send(int channel, SensorData reading);
+    }
+
+    private final Sink mSink;
+    private final Channel[] mChannels = new Channel[MAX_CHANNELS];
+
+    // Written only by the offering thread.
+    private volatile long mOfferedCount = 0;
+    private volatile long mDroppedCount = 0;
+    // Written only by the dispatching thread.
+    private volatile long mDispatchedCount = 0;
+    private volatile long mDiscardedCount = 0;
+    private volatile long mPacketCount = 0;
+
+    private volatile Thread mThread = null;
+
+    /**
+     * Creates a dispatcher in which every channel passes readings through.
+     *
+     * @param sink     the destination of dispatched readings
+     * @param capacity the number of readings held for each channel between dispatches
+     */
+    public SensorDispatcher(Sink sink, int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        mSink = sink;
+        for (int i = 0; i < MAX_CHANNELS; ++i)
+            mChannels[i] = new Channel(capacity);
+    }
+
+    /**
+     * Starts a thread that dispatches queued readings at a fixed interval, and forwards the
+     * readings of pass-through channels as soon as they are offered.  This keeps the sink, which
+     * may block on network I/O, off the threads that produce readings.
+     *
+     * @param intervalMs the time between periodic dispatches, in milliseconds
+     * @throws IllegalStateException if the dispatcher is already started
+     */
+    public synchronized void start(long intervalMs) {
+        if (intervalMs < 1)
+            throw new IllegalArgumentException("Invalid interval: " + intervalMs);
+        if (mThread != null)
+            throw new IllegalStateException("Dispatcher is already started.");
+
+        final long intervalNs = TimeUnit.MILLISECONDS.toNanos(intervalMs);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dispatchLoop(intervalNs);
+            }
+        }, SensorDispatcher.class.getName());
+        thread.setDaemon(true);
+        mThread = thread;
+        thread.start();
+    }
+
+    /**
+     * Stops the dispatching thread, if it is running.  Readings that are still queued are not
+     * forwarded.
+     */
+    public synchronized void shutdown() {
+        Thread thread = mThread;
+        mThread = null;
+        if (thread != null)
+            LockSupport.unpark(thread);
+    }
+
+    private void dispatchLoop(long intervalNs) {
+        Thread self = Thread.currentThread();
+        long nextNs = System.nanoTime();
+        while (mThread == self) {
+            long nowNs = System.nanoTime();
+            if (nowNs - nextNs >= 0) {
+                dispatch(nowNs);
+                nextNs = nowNs + intervalNs;
+            } else {
+                dispatchPassThrough();
+            }
+            // Offering a reading to a pass-through channel wakes this thread early.
+            LockSupport.parkNanos(this, nextNs - System.nanoTime());
+        }
+    }
+
+    /**
+     * Forwards every reading from a channel.
+     */
+    public void setPassThrough(int channel) {
+        setPolicy(channel, PASS_THROUGH, 0, 1);
+    }
+
+    /**
+     * Forwards only the newest reading from a channel, at most at the given rate.
+     *
+     * @param channel the sensor channel
+     * @param rateHz  the largest number of readings forwarded each second
+     */
+    public void setDecimation(int channel, double rateHz) {
+        if (!(rateHz > 0))
+            throw new IllegalArgumentException("Invalid rate: " + rateHz);
+        setPolicy(channel, DECIMATE, Math.round(1e9 / rateHz), 1);
+    }
+
+    /**
+     * Forwards the newest readings from a channel in batches, once per dispatch.
+     *
+     * @param channel the sensor channel
+     * @param count   the largest number of readings in a batch
+     */
+    public void setBatch(int channel, int count) {
+        if (count < 1)
+            throw new IllegalArgumentException("Invalid batch size: " + count);
+        setPolicy(channel, BATCH, 0, count);
+    }
+
+    private void setPolicy(int channel, int mode, long periodNs, int batchCount) {
+        if (channel < 0 || channel >= MAX_CHANNELS)
+            throw new IllegalArgumentException("Invalid channel: " + channel);
+        Channel c = mChannels[channel];
+        synchronized (c) {
+            c.mode = mode;
+            c.periodNs = periodNs;
+            c.nextDueNs = Long.MIN_VALUE;
+            c.batchCount = batchCount;
+        }
+    }
+
+    /**
+     * Returns the policy of a channel: {@link #PASS_THROUGH}, {@link #DECIMATE} or
+     * {@link #BATCH}.
+     */
+    public int getPolicy(int channel) {
+        if (channel < 0 || channel >= MAX_CHANNELS)
+            return PASS_THROUGH;
+        Channel c = mChannels[channel];
+        synchronized (c) {
+            return c.mode;
+        }
+    }
+
+    /**
+     * Sets the policies of several channels from a comma-separated list of entries such as
+     * {@code "1=all, 4=2hz, 5=batch10"}: {@code all} passes readings through, {@code <rate>hz}
+     * decimates them and {@code batch<count>} batches them.  Channels that are not listed pass
+     * readings through.
+     *
+     * @param spec the list of channel policies, which may be empty
+     * @throws IllegalArgumentException if the list is malformed, in which case no policies are
+     *                                  changed
+     */
+    public void setPolicies(String spec) {
+        String[] entries = spec.trim().isEmpty() ? new String[0] : spec.split(",");
+        int[] channels = new int[entries.length];
+        double[] values = new double[entries.length];
+        int[] modes = new int[entries.length];
+
+        for (int i = 0; i < entries.length; ++i) {
+            String entry = entries[i].trim().toLowerCase(Locale.US);
+            int separator = entry.indexOf('=');
+            if (separator < 0)
+                throw new IllegalArgumentException("Invalid sensor policy: " + entry);
+            try {
+                channels[i] = Integer.parseInt(entry.substring(0, separator).trim());
+                String policy = entry.substring(separator + 1).trim();
+                if (policy.equals("all")) {
+                    modes[i] = PASS_THROUGH;
+                } else if (policy.endsWith("hz")) {
+                    modes[i] = DECIMATE;
+                    values[i] = Double.parseDouble(policy.substring(0, policy.length() - 2));
+                    if (!(values[i] > 0))
+                        throw new IllegalArgumentException("Invalid rate: " + entry);
+                } else if (policy.startsWith("batch")) {
+                    modes[i] = BATCH;
+                    values[i] = Integer.parseInt(policy.substring(5));
+                    if (values[i] < 1)
+                        throw new IllegalArgumentException("Invalid batch size: " + entry);
+                } else {
+                    throw new IllegalArgumentException("Invalid sensor policy: " + entry);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid sensor policy: " + entry, e);
+            }
+            if (channels[i] < 0 || channels[i] >= MAX_CHANNELS)
+                throw new IllegalArgumentException("Invalid channel: " + entry);
+        }
+
+        for (int channel = 0; channel < MAX_CHANNELS; ++channel)
+            setPassThrough(channel);
+        for (int i = 0; i < entries.length; ++i) {
+            if (modes[i] == DECIMATE)
+                setDecimation(channels[i], values[i]);
+            else if (modes[i] == BATCH)
+                setBatch(channels[i], (int) values[i]);
+        }
+    }
+
+    /**
+     * Queues a copy of a reading for dispatch, dropping the oldest queued reading from the same
+     * channel if its queue is full.
+     *
+     * @param reading the reading, which may be reused after this returns
+     */
+    public void offer(SensorData reading) {
+        mOfferedCount++;
+        if (reading.channel < 0 || reading.channel >= MAX_CHANNELS) {
+            mSink.send(reading.channel, reading);
+            return;
+        }
+
+        Channel c = mChannels[reading.channel];
+        synchronized (c) {
+            if (c.size == c.readings.length) {
+                c.head = (c.head + 1) % c.readings.length;
+                c.size--;
+                mDroppedCount++;
+            }
+            int slot = (c.head + c.size) % c.readings.length;
+            copy(reading, c.readings[slot]);
+            c.size++;
+        }
+
+        if (c.mode == PASS_THROUGH) {
+            Thread thread = mThread;
+            if (thread != null)
+                LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Forwards queued readings according to the policy of each channel.
+     *
+     * @param nowNs the current monotonic time
+     */
+    public void dispatch(long nowNs) {
+        for (int channel = 0; channel < MAX_CHANNELS; ++channel) {
+            Channel c = mChannels[channel];
+            switch (c.mode) {
+                case DECIMATE:
+                    dispatchNewest(channel, c, nowNs);
+                    break;
+                case BATCH:
+                    while (dispatchBatch(channel, c)) {
+                        // Send one batch for each type of reading.
+                    }
+                    break;
+                default:
+                    while (dispatchOldest(channel, c)) {
+                        // Send every reading.
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Forwards the queued readings of the channels that pass readings through.
+     */
+    private void dispatchPassThrough() {
+        for (int channel = 0; channel < MAX_CHANNELS; ++channel) {
+            Channel c = mChannels[channel];
+            if (c.mode != PASS_THROUGH)
+                continue;
+            while (dispatchOldest(channel, c)) {
+                // Send every reading.
+            }
+        }
+    }
+
+    private boolean dispatchOldest(int channel, Channel c) {
+        synchronized (c) {
+            if (c.size == 0)
+                return false;
+            copy(c.readings[c.head], c.out);
+            c.head = (c.head + 1) % c.readings.length;
+            c.size--;
+        }
+        send(channel, c.out, 1);
+        return true;
+    }
+
+    private void dispatchNewest(int channel, Channel c, long nowNs) {
+        synchronized (c) {
+            if (c.size == 0)
+                return;
+
+            // Only the newest reading can ever be sent.
+            int newest = (c.head + c.size - 1) % c.readings.length;
+            mDiscardedCount += c.size - 1;
+            c.head = newest;
+            c.size = 1;
+            if (c.nextDueNs != Long.MIN_VALUE && nowNs < c.nextDueNs)
+                return;
+
+            copy(c.readings[newest], c.out);
+            c.size = 0;
+            // Stay in phase with the first reading sent, unless dispatch fell behind.
+            c.nextDueNs = (c.nextDueNs == Long.MIN_VALUE || nowNs - c.nextDueNs >= c.periodNs)
+                    ? nowNs + c.periodNs : c.nextDueNs + c.periodNs;
+        }
+        send(channel, c.out, 1);
+    }
+
+    /**
+     * Sends the newest readings of the type of the newest queued reading as one batch, and
+     * removes all readings of that type from the queue.  A batch of one reading is sent as is.
+     *
+     * @return false if the queue was empty
+     */
+    private boolean dispatchBatch(int channel, Channel c) {
+        int count = 0;
+        synchronized (c) {
+            if (c.size == 0)
+                return false;
+
+            int capacity = c.readings.length;
+            SensorData newest = c.readings[(c.head + c.size - 1) % capacity];
+            SensorType type = newest.type;
+            int valueCount = newest.data.length;
+
+            // Count the readings that go into the batch, newest first.
+            int first = c.size;
+            for (int i = c.size - 1; i >= 0 && count < c.batchCount; --i) {
+                SensorData reading = c.readings[(c.head + i) % capacity];
+                if (reading.type == type && reading.data.length == valueCount) {
+                    first = i;
+                    count++;
+                }
+            }
+
+            // Copy them oldest first, then compact the queue without readings of this type.
+            double[] data = c.batchData(count, valueCount);
+            data[0] = channel;
+            data[1] = type.ordinal();
+            data[2] = valueCount;
+            data[3] = count;
+            int offset = BATCH_HEADER_LENGTH;
+            int kept = 0;
+            for (int i = 0; i < c.size; ++i) {
+                int slot = (c.head + i) % capacity;
+                SensorData reading = c.readings[slot];
+                if (reading.type != type) {
+                    int target = (c.head + kept) % capacity;
+                    SensorData swap = c.readings[target];
+                    c.readings[target] = reading;
+                    c.readings[slot] = swap;
+                    kept++;
+                } else if (i >= first && reading.data.length == valueCount) {
+                    System.arraycopy(reading.data, 0, data, offset, valueCount);
+                    offset += valueCount;
+                }
+            }
+            mDiscardedCount += c.size - kept - count;
+            c.size = kept;
+
+            if (count > 1) {
+                c.out.channel = BATCH_CHANNEL;
+                c.out.type = BATCH_TYPE;
+                c.out.data = data;
+            } else {
+                c.out.channel = channel;
+                c.out.type = type;
+                c.out.data = c.single(valueCount);
+                System.arraycopy(data, BATCH_HEADER_LENGTH, c.out.data, 0, valueCount);
+            }
+        }
+        send(c.out.channel, c.out, count);
+        return true;
+    }
+
+    private void send(int channel, SensorData reading, int count) {
+        mSink.send(channel, reading);
+        mDispatchedCount += count;
+        mPacketCount++;
+    }
+
+    private static void copy(SensorData from, SensorData to) {
+        if (to.data == null || to.data.length != from.data.length)
+            to.data = new double[from.data.length];
+        System.arraycopy(from.data, 0, to.data, 0, from.data.length);
+        to.channel = from.channel;
+        to.type = from.type;
+    }
+
+    /**
+     * Returns the total number of readings offered for dispatch.
+     */
+    public long getOfferedCount() {
+        return mOfferedCount;
+    }
+
+    /**
+     * Returns the total number of readings forwarded, counting each reading within a batch.
+     */
+    public long getDispatchedCount() {
+        return mDispatchedCount;
+    }
+
+    /**
+     * Returns the total number of readings forwarded to the sink, counting each batch once.
+     */
+    public long getPacketCount() {
+        return mPacketCount;
+    }
+
+    /**
+     * Returns the total number of readings dropped because their queue was full.
+     */
+    public long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * Returns the total number of readings discarded by decimation or batching.
+     */
+    public long getDiscardedCount() {
+        return mDiscardedCount;
+    }
+
+    /**
+     * The queue and policy of one channel, guarded by its own lock.
+     */
+    private static class Channel {
+        final SensorData[] readings;
+        int head = 0;
+        int size = 0;
+
+        // Also read without the lock to choose how to drain the queue.
+        volatile int mode = PASS_THROUGH;
+        long periodNs = 0;
+        long nextDueNs = Long.MIN_VALUE;
+        int batchCount = 1;
+
+        // Only used by the dispatching thread.
+        final SensorData out = new SensorData();
+        private double[][] mBatchData = new double[0][];
+        private int mBatchValueCount = -1;
+        private double[] mSingleData = new double[0];
+
+        Channel(int capacity) {
+            readings = new SensorData[capacity];
+            for (int i = 0; i < capacity; ++i) {
+                readings[i] = new SensorData();
+                readings[i].data = new double[0];
+            }
+        }
+
+        /**
+         * Returns a reused array for a batch of readings, including its header.
+         */
+        double[] batchData(int count, int valueCount) {
+            if (valueCount != mBatchValueCount) {
+                mBatchData = new double[readings.length + 1][];
+                mBatchValueCount = valueCount;
+            }
+            if (mBatchData[count] == null)
+                mBatchData[count] = new double[BATCH_HEADER_LENGTH + count * valueCount];
+            return mBatchData[count];
+        }
+
+        /**
+         * Returns a reused array for a single reading sent by the batch policy.
+         */
+        double[] single(int valueCount) {
+            if (mSingleData.length != valueCount)
+                mSingleData = new double[valueCount];
+            return mSingleData;
+        }
+    }
+}
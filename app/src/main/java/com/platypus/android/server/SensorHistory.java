@@ -0,0 +1,383 @@
+package com.platypus.android.server;
+
+import com.platypus.crw.VehicleServer.SensorType;
+import com.platypus.crw.data.SensorData;
+
+/**
+ * Keeps the recent readings of every sensor in memory, so that they can be plotted or sent to
+ * clients that connect late.
+ * <p/>
+ * Readings are stored in a {@link Series} for each combination of channel and sensor type, as
+ * one channel may report several types of reading.  Each series holds up to a fixed number of
+ * samples and drops samples older than a maximum age.  Series are created as new types of
+ * reading are recorded; after that, recording does not allocate.
+ * <p/>
+ * Readings should be recorded from a single thread.  Series may be read from any thread.
+ */
+public class SensorHistory {
+    private final int mCapacity;
+    private final long mMaxAgeNs;
+    private volatile Series[] mSeries = new Series[0];
+
+    /**
+     * Creates an empty history.
+     *
+     * @param capacity the largest number of samples kept in each series
+     * @param maxAgeNs the largest age of the samples kept, or {@link Long#MAX_VALUE} to keep
+     *                 samples until the series is full
+     */
+    public SensorHistory(int capacity, long maxAgeNs) {
+        if (capacity < 1 || maxAgeNs <= 0)
+            throw new IllegalArgumentException("Invalid history size: " + capacity + " samples, "
+                    + maxAgeNs + "ns");
+        mCapacity = capacity;
+        mMaxAgeNs = maxAgeNs;
+    }
+
+    /**
+     * Records a sensor reading.
+     *
+     * @param reading the reading, which may be reused after this returns
+     * @param timeNs  the monotonic time at which the reading was acquired
+     */
+    public void record(SensorData reading, long timeNs) {
+        Series series = getSeries(reading.channel, reading.type);
+        if (series == null || series.getValueCount() != reading.data.length) {
+            series = new Series(reading.channel, reading.type, reading.data.length,
+                    mCapacity, mMaxAgeNs);
+            addSeries(series);
+        }
+        series.append(timeNs, reading.data);
+    }
+
+    /**
+     * Adds a series, replacing any series with the same channel and type.
+     */
+    private synchronized void addSeries(Series series) {
+        Series[] current = mSeries;
+        for (int i = 0; i < current.length; ++i) {
+            if (current[i].getChannel() == series.getChannel()
+                    && current[i].getType() == series.getType()) {
+                Series[] updated = current.clone();
+                updated[i] = series;
+                mSeries = updated;
+                return;
+            }
+        }
+
+        Series[] updated = new Series[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, current.length);
+        updated[current.length] = series;
+        mSeries = updated;
+    }
+
+    /**
+     * Returns the series of readings of a type from a channel.
+     *
+     * @return the series, or null if no such readings have been recorded
+     */
+    public Series getSeries(int channel, SensorType type) {
+        for (Series series : mSeries) {
+            if (series.getChannel() == channel && series.getType() == type)
+                return series;
+        }
+        return null;
+    }
+
+    /**
+     * Returns every series in this history, in the order in which they were created.
+     */
+    public Series[] getSeries() {
+        return mSeries.clone();
+    }
+
+    /**
+     * A ring buffer of timestamped readings from one sensor, with rolling statistics of each
+     * value over the samples it holds.
+     * <p/>
+     * Appending a sample takes amortized constant time, and finding the samples in a range of
+     * times takes logarithmic time.  The minimum and maximum of each value are maintained with
+     * monotonic queues of sample indices, and the mean with a running sum that is recomputed
+     * each time the buffer wraps around to bound rounding errors.
+     * <p/>
+     * Sample times must not decrease; a sample older than the newest one is stored at the time
+     * of the newest one.  Values are expected to be finite.  All methods are synchronized, so
+     * series can be read while they are being appended to.
+     */
+    public static class Series {
+        private final int mChannel;
+        private final SensorType mType;
+        private final int mValueCount;
+        private final int mCapacity;
+        private final long mMaxAgeNs;
+
+        private final long[] mTimes;
+        private final double[] mValues;
+        // Absolute index of the oldest sample, and number of samples held.
+        private long mFirst = 0;
+        private int mSize = 0;
+
+        private final double[] mSums;
+        // Absolute indices of samples that may still become the minimum or maximum of a value,
+        // in rings of mCapacity entries per value, with values increasing from the front of
+        // the minimum queue and decreasing from the front of the maximum queue.
+        private final long[] mMinQueues;
+        private final long[] mMaxQueues;
+        private final int[] mMinHeads;
+        private final int[] mMinSizes;
+        private final int[] mMaxHeads;
+        private final int[] mMaxSizes;
+
+        /**
+         * Creates an empty series.
+         *
+         * @param channel    the sensor channel
+         * @param type       the type of reading
+         * @param valueCount the number of values in each reading
+         * @param capacity   the largest number of samples kept
+         * @param maxAgeNs   the largest age of the samples kept
+         */
+        public Series(int channel, SensorType type, int valueCount, int capacity, long maxAgeNs) {
+            mChannel = channel;
+            mType = type;
+            mValueCount = valueCount;
+            mCapacity = capacity;
+            mMaxAgeNs = maxAgeNs;
+
+            mTimes = new long[capacity];
+            mValues = new double[capacity * valueCount];
+            mSums = new double[valueCount];
+            mMinQueues = new long[capacity * valueCount];
+            mMaxQueues = new long[capacity * valueCount];
+            mMinHeads = new int[valueCount];
+            mMinSizes = new int[valueCount];
+            mMaxHeads = new int[valueCount];
+            mMaxSizes = new int[valueCount];
+        }
+
+        public int getChannel() {
+            return mChannel;
+        }
+
+        public SensorType getType() {
+            return mType;
+        }
+
+        public int getValueCount() {
+            return mValueCount;
+        }
+
+        /**
+         * Appends a sample, dropping the oldest samples if the series is full or they are too
+         * old.
+         *
+         * @param timeNs the monotonic time of the sample
+         * @param values the values of the sample, of which {@link #getValueCount()} are stored
+         */
+        public synchronized void append(long timeNs, double[] values) {
+            if (mSize > 0)
+                timeNs = Math.max(timeNs, timeAt(mSize - 1));
+            if (mSize == mCapacity)
+                removeOldest();
+            expire(timeNs);
+
+            long index = mFirst + mSize;
+            int slot = (int) (index % mCapacity);
+            mTimes[slot] = timeNs;
+            for (int k = 0; k < mValueCount; ++k) {
+                double value = values[k];
+                mValues[slot * mValueCount + k] = value;
+                mSums[k] += value;
+
+                // Drop queued samples that can no longer be the minimum or maximum.
+                int base = k * mCapacity;
+                while (mMinSizes[k] > 0
+                        && valueAt(mMinQueues[base + last(mMinHeads[k], mMinSizes[k])], k) >= value)
+                    mMinSizes[k]--;
+                mMinQueues[base + last(mMinHeads[k], ++mMinSizes[k])] = index;
+
+                while (mMaxSizes[k] > 0
+                        && valueAt(mMaxQueues[base + last(mMaxHeads[k], mMaxSizes[k])], k) <= value)
+                    mMaxSizes[k]--;
+                mMaxQueues[base + last(mMaxHeads[k], ++mMaxSizes[k])] = index;
+            }
+            mSize++;
+        }
+
+        /**
+         * Drops samples older than the maximum age at the given time.
+         *
+         * @param nowNs the current monotonic time
+         */
+        public synchronized void expire(long nowNs) {
+            while (mSize > 0 && nowNs - timeAt(0) > mMaxAgeNs)
+                removeOldest();
+        }
+
+        private void removeOldest() {
+            int slot = (int) (mFirst % mCapacity);
+            for (int k = 0; k < mValueCount; ++k) {
+                mSums[k] -= mValues[slot * mValueCount + k];
+                int base = k * mCapacity;
+                if (mMinSizes[k] > 0 && mMinQueues[base + mMinHeads[k]] == mFirst) {
+                    mMinHeads[k] = (mMinHeads[k] + 1) % mCapacity;
+                    mMinSizes[k]--;
+                }
+                if (mMaxSizes[k] > 0 && mMaxQueues[base + mMaxHeads[k]] == mFirst) {
+                    mMaxHeads[k] = (mMaxHeads[k] + 1) % mCapacity;
+                    mMaxSizes[k]--;
+                }
+            }
+            mFirst++;
+            mSize--;
+
+            // Recompute the sums once per pass over the buffer, so rounding errors stay bounded.
+            if (mFirst % mCapacity == 0) {
+                for (int k = 0; k < mValueCount; ++k) {
+                    double sum = 0;
+                    for (int i = 0; i < mSize; ++i)
+                        sum += valueAt(mFirst + i, k);
+                    mSums[k] = sum;
+                }
+            }
+        }
+
+        /**
+         * Returns the ring position of the last entry of a queue.
+         */
+        private int last(int head, int size) {
+            return (head + size - 1) % mCapacity;
+        }
+
+        private long timeAt(int i) {
+            return mTimes[(int) ((mFirst + i) % mCapacity)];
+        }
+
+        private double valueAt(long index, int k) {
+            return mValues[(int) (index % mCapacity) * mValueCount + k];
+        }
+
+        /**
+         * Returns the number of samples held.
+         */
+        public synchronized int size() {
+            return mSize;
+        }
+
+        /**
+         * Returns the time of a sample.
+         *
+         * @param i the index of the sample, from 0 for the oldest to {@link #size()} - 1
+         */
+        public synchronized long getTimeNs(int i) {
+            return timeAt(i);
+        }
+
+        /**
+         * Returns one value of a sample.
+         *
+         * @param i the index of the sample, from 0 for the oldest to {@link #size()} - 1
+         * @param k the index of the value within the sample
+         */
+        public synchronized double getValue(int i, int k) {
+            return valueAt(mFirst + i, k);
+        }
+
+        /**
+         * Returns the index of the oldest sample at or after a time, using a binary search.
+         *
+         * @param timeNs the monotonic time
+         * @return the index of the sample, or {@link #size()} if all samples are older
+         */
+        public synchronized int indexOf(long timeNs) {
+            int low = 0;
+            int high = mSize;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (timeAt(mid) < timeNs)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            return low;
+        }
+
+        /**
+         * Copies the samples taken in a range of times.
+         *
+         * @param fromNs the start of the range, inclusive
+         * @param toNs   the end of the range, exclusive
+         * @param times  an array receiving the times of the samples
+         * @param values an array receiving the values of the samples, one sample after another
+         * @return the number of samples copied, limited by the length of {@code times}
+         */
+        public synchronized int copy(long fromNs, long toNs, long[] times, double[] values) {
+            int start = indexOf(fromNs);
+            int count = Math.min(indexOf(toNs) - start, times.length);
+            for (int i = 0; i < count; ++i) {
+                times[i] = timeAt(start + i);
+                for (int k = 0; k < mValueCount; ++k)
+                    values[i * mValueCount + k] = valueAt(mFirst + start + i, k);
+            }
+            return count;
+        }
+
+        /**
+         * Returns the smallest of one value over the samples held, or NaN if there are none.
+         */
+        public synchronized double getMin(int k) {
+            return (mMinSizes[k] > 0) ? valueAt(mMinQueues[k * mCapacity + mMinHeads[k]], k)
+                    : Double.NaN;
+        }
+
+        /**
+         * Returns the largest of one value over the samples held, or NaN if there are none.
+         */
+        public synchronized double getMax(int k) {
+            return (mMaxSizes[k] > 0) ? valueAt(mMaxQueues[k * mCapacity + mMaxHeads[k]], k)
+                    : Double.NaN;
+        }
+
+        /**
+         * Returns the mean of one value over the samples held, or NaN if there are none.
+         */
+        public synchronized double getMean(int k) {
+            return (mSize > 0) ? mSums[k] / mSize : Double.NaN;
+        }
+
+        /**
+         * Appends the samples taken since a time as a single-line JSON object, in the form
+         * <pre>
+         *     {"channel":1,"type":"ES2","time_ns":[10,20],"data":[[1.5,20.1],[1.6,20.1]]}
+         * </pre>
+         *
+         * @param out    the builder to append to
+         * @param fromNs the monotonic time of the oldest sample to include
+         */
+        public synchronized void appendJson(StringBuilder out, long fromNs) {
+            int start = indexOf(fromNs);
+            out.append("{\"channel\":").append(mChannel)
+                    .append(",\"type\":\"").append(mType).append("\",\"time_ns\":[");
+            for (int i = start; i < mSize; ++i) {
+                if (i > start)
+                    out.append(',');
+                out.append(timeAt(i));
+            }
+            out.append("],\"data\":[");
+            for (int i = start; i < mSize; ++i) {
+                out.append(i > start ? ",[" : "[");
+                for (int k = 0; k < mValueCount; ++k) {
+                    if (k > 0)
+                        out.append(',');
+                    double value = valueAt(mFirst + i, k);
+                    if (Double.isNaN(value) || Double.isInfinite(value))
+                        out.append("null");
+                    else
+                        out.append(value);
+                }
+                out.append(']');
+            }
+            out.append("]}");
+        }
+    }
+}
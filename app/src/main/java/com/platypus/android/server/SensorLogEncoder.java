@@ -0,0 +1,115 @@
+package com.platypus.android.server;
+
+import com.platypus.crw.data.SensorData;
+
+/**
+ * Writes sensor readings as JSON log entries into a reused byte buffer, in the form
+ * <pre>
+ *     {"time_ns":123456789,"channel":1,"type":"ES2","data":[1.52,20.3]}
+ * </pre>
+ * for use with {@link VehicleLogger#info(String, byte[], int, int)}.  Numbers are written the
+ * same way as by {@link CommandEncoder}, so encoding does not allocate.
+ * <p/>
+ * This class is not thread-safe.
+ */
+public class SensorLogEncoder {
+    /**
+     * Largest number of values of a reading that are written.
+     */
+    public static final int MAX_VALUES = 32;
+
+    private final byte[] mBuffer = new byte[128 + MAX_VALUES * 48];
+
+    /**
+     * Writes a reading into the internal buffer.
+     *
+     * @param reading the reading, whose values must be finite
+     * @param timeNs  the monotonic time at which the reading was acquired
+     * @return the length of the entry, or -1 if the reading cannot be encoded
+     */
+    public int encode(SensorData reading, long timeNs) {
+        return encode(reading, timeNs, null);
+    }
+
+    /**
+     * Writes a filtered reading into the internal buffer, followed by its raw values, as in
+     * <pre>
+     *     {"time_ns":123456789,"channel":2,"type":"ATLAS_DO","data":[8.02],"raw":[0.0]}
+     * </pre>
+     *
+     * @param reading the filtered reading, whose values must be finite
+     * @param timeNs  the monotonic time at which the reading was acquired
+     * @param raw     the raw values of the reading, which must be finite, or null to omit them
+     * @return the length of the entry, or -1 if the reading cannot be encoded
+     */
+    public int encode(SensorData reading, long timeNs, double[] raw) {
+        byte[] buf = mBuffer;
+        double[] data = reading.data;
+        if (!isEncodable(data, data.length)
+                || (raw != null && !isEncodable(raw, data.length)))
+            return -1;
+
+        int pos = 0;
+        buf[pos++] = '{';
+        pos = CommandEncoder.writeName(buf, pos, "time_ns");
+        buf[pos++] = ':';
+        if (timeNs < 0)
+            buf[pos++] = '-';
+        pos = CommandEncoder.writeDigits(buf, pos, Math.abs(timeNs));
+
+        buf[pos++] = ',';
+        pos = CommandEncoder.writeName(buf, pos, "channel");
+        buf[pos++] = ':';
+        pos = CommandEncoder.writeDigits(buf, pos, Math.max(reading.channel, 0));
+
+        buf[pos++] = ',';
+        pos = CommandEncoder.writeName(buf, pos, "type");
+        buf[pos++] = ':';
+        pos = CommandEncoder.writeName(buf, pos, reading.type.name());
+
+        buf[pos++] = ',';
+        pos = CommandEncoder.writeName(buf, pos, "data");
+        buf[pos++] = ':';
+        buf[pos++] = '[';
+        for (int i = 0; i < data.length; ++i) {
+            if (i > 0)
+                buf[pos++] = ',';
+            pos = CommandEncoder.writeNumber(buf, pos, data[i]);
+        }
+        buf[pos++] = ']';
+
+        if (raw != null) {
+            buf[pos++] = ',';
+            pos = CommandEncoder.writeName(buf, pos, "raw");
+            buf[pos++] = ':';
+            buf[pos++] = '[';
+            for (int i = 0; i < data.length; ++i) {
+                if (i > 0)
+                    buf[pos++] = ',';
+                pos = CommandEncoder.writeNumber(buf, pos, raw[i]);
+            }
+            buf[pos++] = ']';
+        }
+        buf[pos++] = '}';
+        return pos;
+    }
+
+    private static boolean isEncodable(double[] values, int count) {
+        if (count > MAX_VALUES || values.length < count)
+            return false;
+        for (int i = 0; i < count; ++i) {
+            double value = values[i];
+            if (Double.isNaN(value) || Double.isInfinite(value)
+                    || Math.abs(value) >= CommandEncoder.MAX_VALUE)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the buffer containing the most recently encoded entry.
+     */
+    public byte[] getBuffer() {
+        return mBuffer;
+    }
+}
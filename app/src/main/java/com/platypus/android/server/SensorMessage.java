@@ -0,0 +1,453 @@
+package com.platypus.android.server;
+
+/**
+ * A view of a single sensor message from the controller board, scanned in place from the bytes
+ * in which it was received.
+ * <p/>
+ * A JSON sensor message holds one sensor object, optionally followed by a board timestamp:
+ * <pre>
+ *     {"s1":{"type":"es2","data":"1.52 20.3"},"t":123456}
+ * </pre>
+ * The {@code "data"} field holds either a number or a string of numbers separated by spaces,
+ * and any other numeric fields of the sensor object, such as the {@code "depth"} of a winch, can
+ * be read by name.  A binary {@link BinaryFrameCodec#TYPE_SENSOR} record is viewed the same way,
+ * with its float values as the data.
+ * <p/>
+ * Scanning records the positions of the type, data and fields in the original buffer rather
+ * than copying them, and numbers are parsed from those positions only when they are asked for,
+ * so reading a message does not allocate.  Messages in any other form, including JSON that uses
+ * string escapes or nested values, are rejected so that they can be handled as generic JSON.
+ * <p/>
+ * The view is only valid until its buffer is reused.  This class is not thread-safe.
+ */
+public class SensorMessage {
+    /**
+     * Maximum number of named fields in a sensor object, besides its type and data.
+     */
+    public static final int MAX_FIELDS = 8;
+
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    static {
+        POWERS_OF_TEN[0] = 1.0;
+        for (int i = 1; i < POWERS_OF_TEN.length; ++i)
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10.0;
+    }
+
+    private byte[] mBuffer;
+    private boolean mIsBinary;
+    private int mChannel;
+    private int mTypeOffset;
+    private int mTypeLength;
+    private int mDataOffset;
+    private int mDataLength;
+    private long mBoardTimeMs;
+
+    private final int[] mNameOffsets = new int[MAX_FIELDS];
+    private final int[] mNameLengths = new int[MAX_FIELDS];
+    private final int[] mValueOffsets = new int[MAX_FIELDS];
+    private final int[] mValueLengths = new int[MAX_FIELDS];
+    private int mFieldCount;
+
+    // Position of the JSON scanner.
+    private int mPos;
+    private int mEnd;
+
+    /**
+     * Scans a JSON line as a sensor message.
+     *
+     * @param buffer the buffer containing the line
+     * @param offset the offset of the line in the buffer
+     * @param length the length of the line, excluding any line terminator
+     * @return true if the line is a sensor message, or false if it has some other form
+     */
+    public boolean parseJson(byte[] buffer, int offset, int length) {
+        mBuffer = buffer;
+        mIsBinary = false;
+        mChannel = -1;
+        mTypeLength = -1;
+        mDataLength = -1;
+        mBoardTimeMs = -1;
+        mFieldCount = 0;
+        mPos = offset;
+        mEnd = offset + length;
+
+        if (!expect('{'))
+            return false;
+        if (peek() == '}')
+            return false;
+
+        do {
+            int nameOffset = scanString();
+            if (nameOffset < 0)
+                return false;
+            int nameLength = mPos - nameOffset - 1;
+            if (!expect(':'))
+                return false;
+
+            if (nameLength == 1 && buffer[nameOffset] == 't') {
+                // A board timestamp.
+                int valueOffset = scanNumber();
+                if (valueOffset < 0)
+                    return false;
+                try {
+                    mBoardTimeMs = parseLong(buffer, valueOffset, mPos - valueOffset);
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            } else if (nameLength >= 2 && buffer[nameOffset] == 's' && mChannel < 0) {
+                // A sensor object, named by its channel.
+                int channel = 0;
+                for (int i = nameOffset + 1; i < nameOffset + nameLength; ++i) {
+                    if (buffer[i] < '0' || buffer[i] > '9' || channel > 1000)
+                        return false;
+                    channel = channel * 10 + (buffer[i] - '0');
+                }
+                mChannel = channel;
+                if (!scanSensor())
+                    return false;
+            } else {
+                return false;
+            }
+        } while (expect(','));
+
+        return expect('}') && skipWhitespace() == mEnd && mChannel >= 0 && mTypeLength >= 0;
+    }
+
+    /**
+     * Views the payload of a binary sensor record as a sensor message.
+     *
+     * @param payload the payload of the record
+     * @param length  the length of the payload
+     * @return true if the payload is a well-formed sensor record
+     */
+    public boolean parseRecord(byte[] payload, int length) {
+        if (length < 2 || length < 2 + (payload[1] & 0xFF))
+            return false;
+
+        mBuffer = payload;
+        mIsBinary = true;
+        mChannel = payload[0] & 0xFF;
+        mTypeOffset = 2;
+        mTypeLength = payload[1] & 0xFF;
+        mDataOffset = 2 + mTypeLength;
+        mDataLength = (length - mDataOffset) & ~3;
+        mBoardTimeMs = -1;
+        mFieldCount = 0;
+        return true;
+    }
+
+    /**
+     * Scans the fields of a sensor object.
+     */
+    private boolean scanSensor() {
+        byte[] buffer = mBuffer;
+        if (!expect('{'))
+            return false;
+        if (peek() == '}') {
+            mPos++;
+            return false;
+        }
+
+        do {
+            int nameOffset = scanString();
+            if (nameOffset < 0)
+                return false;
+            int nameLength = mPos - nameOffset - 1;
+            if (!expect(':'))
+                return false;
+
+            skipWhitespace();
+            boolean isString = (peek() == '"');
+            int valueOffset = isString ? scanString() : scanNumber();
+            if (valueOffset < 0)
+                return false;
+            int valueLength = isString ? mPos - valueOffset - 1 : mPos - valueOffset;
+
+            if (matches(buffer, nameOffset, nameLength, "type")) {
+                if (!isString)
+                    return false;
+                mTypeOffset = valueOffset;
+                mTypeLength = valueLength;
+            } else if (matches(buffer, nameOffset, nameLength, "data")) {
+                mDataOffset = valueOffset;
+                mDataLength = valueLength;
+            } else if (!isString && mFieldCount < MAX_FIELDS) {
+                mNameOffsets[mFieldCount] = nameOffset;
+                mNameLengths[mFieldCount] = nameLength;
+                mValueOffsets[mFieldCount] = valueOffset;
+                mValueLengths[mFieldCount] = valueLength;
+                mFieldCount++;
+            }
+        } while (expect(','));
+
+        return expect('}');
+    }
+
+    private int skipWhitespace() {
+        while (mPos < mEnd && (mBuffer[mPos] == ' ' || mBuffer[mPos] == '\t'))
+            mPos++;
+        return mPos;
+    }
+
+    private int peek() {
+        skipWhitespace();
+        return (mPos < mEnd) ? mBuffer[mPos] : -1;
+    }
+
+    private boolean expect(char c) {
+        if (peek() != c)
+            return false;
+        mPos++;
+        return true;
+    }
+
+    /**
+     * Scans a string without escapes, leaving the position after its closing quote.
+     *
+     * @return the offset of the first character of the string, or -1 if there is no string
+     */
+    private int scanString() {
+        if (!expect('"'))
+            return -1;
+        int start = mPos;
+        while (mPos < mEnd && mBuffer[mPos] != '"') {
+            if (mBuffer[mPos] == '\\')
+                return -1;
+            mPos++;
+        }
+        if (mPos == mEnd)
+            return -1;
+        mPos++;
+        return start;
+    }
+
+    /**
+     * Scans the characters of a number, leaving the position after it.
+     *
+     * @return the offset of the number, or -1 if there is no number
+     */
+    private int scanNumber() {
+        skipWhitespace();
+        int start = mPos;
+        while (mPos < mEnd) {
+            byte b = mBuffer[mPos];
+            if ((b < '0' || b > '9') && b != '-' && b != '+' && b != '.' && b != 'e' && b != 'E')
+                break;
+            mPos++;
+        }
+        return (mPos > start) ? start : -1;
+    }
+
+    private static boolean matches(byte[] buffer, int offset, int length, String name) {
+        if (length != name.length())
+            return false;
+        for (int i = 0; i < length; ++i) {
+            if (buffer[offset + i] != name.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the sensor channel of the message.
+     */
+    public int getChannel() {
+        return mChannel;
+    }
+
+    /**
+     * Returns the buffer containing the message.
+     */
+    public byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    public int getTypeOffset() {
+        return mTypeOffset;
+    }
+
+    public int getTypeLength() {
+        return mTypeLength;
+    }
+
+    /**
+     * Returns the offset of the data in the buffer.  For JSON messages this is the text of the
+     * data, without quotes.
+     */
+    public int getDataOffset() {
+        return mDataOffset;
+    }
+
+    /**
+     * Returns the length of the data in the buffer, or -1 if the message has no data.
+     */
+    public int getDataLength() {
+        return mDataLength;
+    }
+
+    /**
+     * Returns whether the message was a binary record, whose data holds 32-bit floats.
+     */
+    public boolean isBinary() {
+        return mIsBinary;
+    }
+
+    /**
+     * Returns the board timestamp of the message in milliseconds, or -1 if it has none.
+     */
+    public long getBoardTimeMs() {
+        return mBoardTimeMs;
+    }
+
+    /**
+     * Parses the numbers in the data of the message.
+     *
+     * @param values the array to fill with values, from the start
+     * @return the number of values in the data, which may be more than the length of the array
+     * @throws NumberFormatException if the data is missing or contains something other than
+     *                               numbers
+     */
+    public int getValues(double[] values) {
+        if (mDataLength < 0)
+            throw new NumberFormatException("Missing sensor data.");
+
+        if (mIsBinary) {
+            int count = mDataLength / 4;
+            for (int i = 0; i < Math.min(count, values.length); ++i)
+                values[i] = BinaryFrameCodec.readFloat(mBuffer, mDataOffset + 4 * i);
+            return count;
+        }
+
+        int count = 0;
+        int pos = mDataOffset;
+        int end = mDataOffset + mDataLength;
+        while (true) {
+            while (pos < end && mBuffer[pos] == ' ')
+                pos++;
+            if (pos == end)
+                break;
+
+            int start = pos;
+            while (pos < end && mBuffer[pos] != ' ')
+                pos++;
+            if (count < values.length)
+                values[count] = parseDouble(mBuffer, start, pos - start);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Parses a named numeric field of the sensor object, such as the depth of a winch.
+     *
+     * @param name the name of the field
+     * @return the value of the field
+     * @throws NumberFormatException if the message has no such numeric field
+     */
+    public double getField(String name) {
+        for (int i = 0; i < mFieldCount; ++i) {
+            if (matches(mBuffer, mNameOffsets[i], mNameLengths[i], name))
+                return parseDouble(mBuffer, mValueOffsets[i], mValueLengths[i]);
+        }
+        throw new NumberFormatException("Missing sensor field: " + name);
+    }
+
+    /**
+     * Parses a decimal number from ASCII bytes without allocating.
+     * <p/>
+     * Numbers with at most 15 significant digits and a small exponent, which covers all numbers
+     * printed by the boards, are converted with a single exact multiplication or division and
+     * so are correctly rounded.  Anything else falls back to {@link Double#parseDouble(String)}.
+     *
+     * @throws NumberFormatException if the bytes are not a number
+     */
+    public static double parseDouble(byte[] buffer, int offset, int length) {
+        int pos = offset;
+        int end = offset + length;
+        boolean isNegative = false;
+        if (pos < end && (buffer[pos] == '-' || buffer[pos] == '+'))
+            isNegative = (buffer[pos++] == '-');
+
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean hasDigits = false;
+        while (pos < end && buffer[pos] >= '0' && buffer[pos] <= '9') {
+            hasDigits = true;
+            if (mantissa != 0 || buffer[pos] != '0')
+                digits++;
+            mantissa = mantissa * 10 + (buffer[pos++] - '0');
+            if (digits > 15)
+                return parseSlow(buffer, offset, length);
+        }
+        if (pos < end && buffer[pos] == '.') {
+            pos++;
+            while (pos < end && buffer[pos] >= '0' && buffer[pos] <= '9') {
+                hasDigits = true;
+                if (mantissa != 0 || buffer[pos] != '0')
+                    digits++;
+                mantissa = mantissa * 10 + (buffer[pos++] - '0');
+                exponent--;
+                if (digits > 15)
+                    return parseSlow(buffer, offset, length);
+            }
+        }
+        if (!hasDigits)
+            throw new NumberFormatException("Invalid number.");
+        if (pos < end && (buffer[pos] == 'e' || buffer[pos] == 'E')) {
+            pos++;
+            boolean isExponentNegative = false;
+            if (pos < end && (buffer[pos] == '-' || buffer[pos] == '+'))
+                isExponentNegative = (buffer[pos++] == '-');
+            if (pos == end)
+                throw new NumberFormatException("Invalid number.");
+            int value = 0;
+            while (pos < end && buffer[pos] >= '0' && buffer[pos] <= '9' && value < 1000)
+                value = value * 10 + (buffer[pos++] - '0');
+            exponent += isExponentNegative ? -value : value;
+        }
+        if (pos != end)
+            throw new NumberFormatException("Invalid number.");
+
+        double result;
+        if (exponent >= 0 && exponent < POWERS_OF_TEN.length) {
+            result = mantissa * POWERS_OF_TEN[exponent];
+        } else if (exponent < 0 && -exponent < POWERS_OF_TEN.length) {
+            result = mantissa / POWERS_OF_TEN[-exponent];
+        } else {
+            return parseSlow(buffer, offset, length);
+        }
+        return isNegative ? -result : result;
+    }
+
+    private static double parseSlow(byte[] buffer, int offset, int length) {
+        char[] text = new char[length];
+        for (int i = 0; i < length; ++i)
+            text[i] = (char) buffer[offset + i];
+        return Double.parseDouble(new String(text));
+    }
+
+    /**
+     * Parses a decimal integer from ASCII bytes without allocating.
+     *
+     * @throws NumberFormatException if the bytes are not an integer
+     */
+    public static long parseLong(byte[] buffer, int offset, int length) {
+        int pos = offset;
+        int end = offset + length;
+        boolean isNegative = (pos < end && buffer[pos] == '-');
+        if (isNegative)
+            pos++;
+        if (pos == end || end - pos > 18)
+            throw new NumberFormatException("Invalid integer.");
+
+        long value = 0;
+        for (; pos < end; ++pos) {
+            if (buffer[pos] < '0' || buffer[pos] > '9')
+                throw new NumberFormatException("Invalid integer.");
+            value = value * 10 + (buffer[pos] - '0');
+        }
+        return isNegative ? -value : value;
+    }
+}
@@ -0,0 +1,650 @@
+package com.platypus.android.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A stand-in for the Platypus controller board, used to load test the command and sensor
+ * paths without a vehicle.
+ * <p/>
+ * The simulated board echoes every command it receives, and emits sensor messages of each
+ * {@link Stream} type at a configurable rate, up to several kHz, in the same format as the real
+ * board.  It can also inject malformed messages at a configurable rate, such as truncated,
+ * oversized or corrupted frames.  If the controller requests binary framing, the board accepts
+ * it unless {@link #setBinarySupported(boolean)} is used to emulate older firmware.
+ * <p/>
+ * Sensor messages that are due at the same time are written together, and if the reader falls
+ * so far behind that writes block for too long, overdue messages are skipped and counted rather
+ * than sent in one large burst.
+ * <p/>
+ * A board is usually connected to a {@link Controller} through an in-process pipe:
+ * <pre>
+ *     ChannelTransport[] pipe = ChannelTransport.createPipe();
+ *     SimulatedBoard board = new SimulatedBoard(pipe[1]);
+ *     board.setRate(SimulatedBoard.Stream.ES2, 1000.0);
+ *     board.start();
+ *     controller.open(pipe[0]);
+ * </pre>
+ * It can also be served over TCP by the {@code SimulatedBoardServer} test tool.
+ * This class does not depend on Android.
+ */
+public class SimulatedBoard {
+    /**
+     * The sensor streams that can be generated, and the channels on which they are reported.
+     */
+    public enum Stream {
+        BATTERY(0), ES2(1), ATLAS_DO(2), ATLAS_PH(3), HDS(4), WINCH(2);
+
+        /**
+         * The sensor channel on which this stream is reported.
+         */
+        public final int channel;
+
+        Stream(int channel) {
+            this.channel = channel;
+        }
+    }
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    /**
+     * Longest line that the board accepts, matching the controller.
+     */
+    private static final int MAX_LINE_LENGTH = 1024;
+    /**
+     * Longest single message written by the board, including oversized malformed messages.
+     */
+    private static final int MAX_MESSAGE_LENGTH = 2 * MAX_LINE_LENGTH;
+    /**
+     * Most bytes of sensor messages gathered into one write.
+     */
+    private static final int BATCH_LENGTH = 4 * MAX_MESSAGE_LENGTH;
+    /**
+     * Messages overdue by more than this are skipped rather than sent late.
+     */
+    private static final long MAX_BACKLOG_NS = 100000000L;
+    /**
+     * Longest time the generator sleeps when no stream is enabled.
+     */
+    private static final long IDLE_NS = 100000000L;
+    private static final Stream[] STREAMS = Stream.values();
+    private static final byte[] NEGOTIATION_REQUEST =
+            BinaryFrameCodec.NEGOTIATION_REQUEST.getBytes(ASCII);
+
+    private final Transport mTransport;
+    private final Object mWriteLock = new Object();
+    private volatile boolean mIsRunning = false;
+    private volatile boolean mIsBinarySupported = true;
+    private volatile boolean mIsBinary = false;
+    private volatile double[] mRates = new double[STREAMS.length];
+    private volatile double mMalformedRate = 0.0;
+    private Thread mReaderThread;
+    private Thread mGeneratorThread;
+
+    private volatile long mCommandCount = 0;
+    private volatile long mSentCount = 0;
+    private volatile long mMalformedCount = 0;
+    private volatile long mSkippedCount = 0;
+
+    // Buffers and simulated readings used only by the generator thread.
+    private final byte[] mBatch = new byte[BATCH_LENGTH];
+    private final ByteBuffer mBatchBuffer = ByteBuffer.wrap(mBatch);
+    private final byte[] mLine = new byte[MAX_MESSAGE_LENGTH];
+    private final StringBuilder mText = new StringBuilder(MAX_MESSAGE_LENGTH);
+    private final StringBuilder mNmea = new StringBuilder(128);
+    private final double[] mValues1 = new double[1];
+    private final double[] mValues2 = new double[2];
+    private final double[] mValues3 = new double[3];
+    private final Random mRandom = new Random();
+    private double mConductivity = 300.0;
+    private double mTemperature = 20.0;
+    private double mOxygen = 8.0;
+    private double mPh = 7.0;
+    private double mDepth = 5.0;
+    private double mVoltage = 12.6;
+    private double mWinchDepth = 0.0;
+    private int mNmeaIndex = 0;
+    private int mMalformedIndex = 0;
+
+    // Buffer used only by the reader thread.
+    private final byte[] mEcho = new byte[MAX_MESSAGE_LENGTH];
+    private final ByteBuffer mEchoBuffer = ByteBuffer.wrap(mEcho);
+
+    /**
+     * Creates a simulated board that communicates over the given transport.
+     *
+     * @param transport the board's end of the connection
+     */
+    public SimulatedBoard(Transport transport) {
+        mTransport = transport;
+    }
+
+    /**
+     * Sets the rate at which a sensor stream is generated.
+     *
+     * @param stream the sensor stream
+     * @param hz     the number of messages per second, or 0 to disable the stream
+     */
+    public synchronized void setRate(Stream stream, double hz) {
+        double[] rates = mRates.clone();
+        rates[stream.ordinal()] = Math.max(0.0, hz);
+        mRates = rates;
+        LockSupport.unpark(mGeneratorThread);
+    }
+
+    /**
+     * Sets the rate of every sensor stream.
+     *
+     * @param hz the number of messages per second of each stream, or 0 to disable all streams
+     */
+    public synchronized void setRate(double hz) {
+        double[] rates = new double[STREAMS.length];
+        for (int i = 0; i < rates.length; ++i)
+            rates[i] = Math.max(0.0, hz);
+        mRates = rates;
+        LockSupport.unpark(mGeneratorThread);
+    }
+
+    /**
+     * Sets the rate at which malformed messages are injected.
+     *
+     * @param hz the number of malformed messages per second, or 0 to disable them
+     */
+    public void setMalformedRate(double hz) {
+        mMalformedRate = Math.max(0.0, hz);
+        LockSupport.unpark(mGeneratorThread);
+    }
+
+    /**
+     * Sets whether the board accepts requests for binary framing.  This only affects
+     * subsequent requests.
+     *
+     * @param isSupported true to accept binary framing, or false to emulate older firmware
+     */
+    public void setBinarySupported(boolean isSupported) {
+        mIsBinarySupported = isSupported;
+    }
+
+    /**
+     * Returns whether the board has switched to binary framing.
+     */
+    public boolean isBinary() {
+        return mIsBinary;
+    }
+
+    /**
+     * Starts echoing commands and generating sensor messages.
+     */
+    public synchronized void start() {
+        if (mIsRunning)
+            return;
+        mIsRunning = true;
+
+        mReaderThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readLoop();
+            }
+        }, "SimulatedBoardReader");
+        mReaderThread.setDaemon(true);
+        mReaderThread.start();
+
+        mGeneratorThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                generateLoop();
+            }
+        }, "SimulatedBoardGenerator");
+        mGeneratorThread.setDaemon(true);
+        mGeneratorThread.start();
+    }
+
+    /**
+     * Stops the board and closes its transport.
+     */
+    public synchronized void stop() {
+        mIsRunning = false;
+        mTransport.close();
+        LockSupport.unpark(mGeneratorThread);
+    }
+
+    /**
+     * Waits until the board stops, either because {@link #stop()} was called or because the
+     * other end of the connection was closed.
+     *
+     * @throws InterruptedException if the wait is interrupted
+     */
+    public void join() throws InterruptedException {
+        Thread reader;
+        synchronized (this) {
+            reader = mReaderThread;
+        }
+        if (reader != null)
+            reader.join();
+    }
+
+    /**
+     * Returns the total number of commands received by the board.
+     */
+    public long getCommandCount() {
+        return mCommandCount;
+    }
+
+    /**
+     * Returns the total number of sensor messages sent by the board.
+     */
+    public long getSentCount() {
+        return mSentCount;
+    }
+
+    /**
+     * Returns the total number of malformed messages sent by the board.
+     */
+    public long getMalformedCount() {
+        return mMalformedCount;
+    }
+
+    /**
+     * Returns the total number of sensor messages skipped because the other end of the
+     * connection could not keep up.
+     */
+    public long getSkippedCount() {
+        return mSkippedCount;
+    }
+
+    /**
+     * Reads commands, echoing each one back to the controller.
+     */
+    private void readLoop() {
+        byte[] input = new byte[4 * MAX_LINE_LENGTH];
+        ByteBuffer inputBuffer = ByteBuffer.wrap(input);
+        int start = 0;
+        int end = 0;
+        try {
+            while (mIsRunning) {
+                inputBuffer.limit(input.length).position(end);
+                int length = mTransport.read(inputBuffer);
+                if (length < 0)
+                    break;
+                end += length;
+
+                start = parse(input, start, end);
+
+                // Keep any partial message at the start of the buffer.  A partial line that
+                // fills the whole buffer can never be completed, so it is dropped.
+                System.arraycopy(input, start, input, 0, end - start);
+                end -= start;
+                start = 0;
+                if (end == input.length)
+                    end = 0;
+            }
+        } catch (IOException e) {
+            // The connection was closed.
+        } finally {
+            stop();
+        }
+    }
+
+    /**
+     * Handles all complete messages in the buffer.  JSON lines and binary records may be
+     * mixed, since the controller keeps sending JSON lines until it sees the reply to a request
+     * for binary framing.
+     *
+     * @return the position of the first byte that has not been handled
+     */
+    private int parse(byte[] input, int start, int end) throws IOException {
+        while (start < end) {
+            if (input[start] == BinaryFrameCodec.SYNC) {
+                if (end - start < BinaryFrameCodec.HEADER_LENGTH)
+                    break;
+                int length = (input[start + 2] & 0xFF) | (input[start + 3] & 0xFF) << 8;
+                if (length > BinaryFrameCodec.MAX_PAYLOAD_LENGTH) {
+                    start++;
+                    continue;
+                }
+
+                int total = BinaryFrameCodec.HEADER_LENGTH + length + BinaryFrameCodec.CHECKSUM_LENGTH;
+                if (end - start < total)
+                    break;
+                int crcPos = start + BinaryFrameCodec.HEADER_LENGTH + length;
+                int crc = (input[crcPos] & 0xFF) | (input[crcPos + 1] & 0xFF) << 8;
+                if (crc != BinaryFrameCodec.crc16(input, start + 1,
+                        BinaryFrameCodec.HEADER_LENGTH - 1 + length)) {
+                    start++;
+                    continue;
+                }
+
+                onRecord(input[start + 1], input, start + BinaryFrameCodec.HEADER_LENGTH, length);
+                start += total;
+            } else {
+                int newline = start;
+                while (newline < end && input[newline] != '\n')
+                    newline++;
+                if (newline == end)
+                    break;
+
+                int lineEnd = newline;
+                if (lineEnd > start && input[lineEnd - 1] == '\r')
+                    lineEnd--;
+                if (lineEnd > start && lineEnd - start <= MAX_LINE_LENGTH)
+                    onLine(input, start, lineEnd - start);
+                start = newline + 1;
+            }
+        }
+        return start;
+    }
+
+    private void onLine(byte[] buffer, int offset, int length) throws IOException {
+        mCommandCount++;
+
+        // Accept a request for binary framing by replying with the same message.
+        if (isNegotiationRequest(buffer, offset, length)) {
+            if (!mIsBinarySupported)
+                return;
+
+            synchronized (mWriteLock) {
+                System.arraycopy(buffer, offset, mEcho, 0, length);
+                mEcho[length] = '\r';
+                mEcho[length + 1] = '\n';
+                writeEcho(length + 2);
+                mIsBinary = true;
+            }
+            return;
+        }
+
+        synchronized (mWriteLock) {
+            int echoLength;
+            if (mIsBinary) {
+                echoLength = BinaryFrameCodec.encodeJson(mEcho, 0, buffer, offset, length);
+            } else {
+                System.arraycopy(buffer, offset, mEcho, 0, length);
+                mEcho[length] = '\r';
+                mEcho[length + 1] = '\n';
+                echoLength = length + 2;
+            }
+            writeEcho(echoLength);
+        }
+    }
+
+    private void onRecord(int type, byte[] buffer, int offset, int length) throws IOException {
+        // Sequence records belong to the command records just before them.
+        if (type != BinaryFrameCodec.TYPE_SEQUENCE)
+            mCommandCount++;
+        synchronized (mWriteLock) {
+            int echoLength = BinaryFrameCodec.encodeRecord(mEcho, 0, type, buffer, offset, length);
+            writeEcho(echoLength);
+        }
+    }
+
+    /**
+     * Writes the start of the echo buffer.  This must be called while holding the write lock.
+     */
+    private void writeEcho(int length) throws IOException {
+        mEchoBuffer.limit(length).position(0);
+        mTransport.write(mEchoBuffer);
+    }
+
+    private static boolean isNegotiationRequest(byte[] buffer, int offset, int length) {
+        if (length != NEGOTIATION_REQUEST.length)
+            return false;
+        for (int i = 0; i < length; ++i) {
+            if (buffer[offset + i] != NEGOTIATION_REQUEST[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Writes sensor and malformed messages as they become due.
+     */
+    private void generateLoop() {
+        long[] due = new long[STREAMS.length];
+        double[] rates = null;
+        long malformedDue = 0;
+        double malformedRate = -1.0;
+
+        try {
+            while (mIsRunning) {
+                long now = System.nanoTime();
+
+                // Restart the schedules whenever the rates are changed.
+                double[] currentRates = mRates;
+                if (currentRates != rates) {
+                    rates = currentRates;
+                    for (int i = 0; i < due.length; ++i)
+                        due[i] = now;
+                }
+                if (mMalformedRate != malformedRate) {
+                    malformedRate = mMalformedRate;
+                    malformedDue = now;
+                }
+
+                long next = now + IDLE_NS;
+                synchronized (mWriteLock) {
+                    boolean isBinary = mIsBinary;
+                    int pos = 0;
+                    for (int i = 0; i < STREAMS.length; ++i) {
+                        if (rates[i] <= 0.0)
+                            continue;
+
+                        long interval = (long) (1e9 / rates[i]);
+                        due[i] = skipBacklog(due[i], now, interval);
+                        while (due[i] <= now) {
+                            if (pos + MAX_MESSAGE_LENGTH > mBatch.length)
+                                pos = flush(pos);
+                            pos = writeSensor(STREAMS[i], isBinary, pos);
+                            mSentCount++;
+                            due[i] += interval;
+                        }
+                        next = Math.min(next, due[i]);
+                    }
+
+                    if (malformedRate > 0.0) {
+                        long interval = (long) (1e9 / malformedRate);
+                        malformedDue = Math.max(malformedDue, now - MAX_BACKLOG_NS);
+                        while (malformedDue <= now) {
+                            if (pos + MAX_MESSAGE_LENGTH > mBatch.length)
+                                pos = flush(pos);
+                            pos = writeMalformed(isBinary, pos);
+                            mMalformedCount++;
+                            malformedDue += interval;
+                        }
+                        next = Math.min(next, malformedDue);
+                    }
+                    flush(pos);
+                }
+
+                long waitNs = next - System.nanoTime();
+                if (waitNs > 0)
+                    LockSupport.parkNanos(this, waitNs);
+            }
+        } catch (IOException e) {
+            // The connection was closed.
+        } finally {
+            stop();
+        }
+    }
+
+    /**
+     * Moves a schedule forward if it is too far behind, counting the skipped messages.
+     */
+    private long skipBacklog(long due, long now, long interval) {
+        long backlog = now - MAX_BACKLOG_NS - due;
+        if (backlog <= 0)
+            return due;
+
+        long skipped = backlog / interval + 1;
+        mSkippedCount += skipped;
+        return due + skipped * interval;
+    }
+
+    private int flush(int length) throws IOException {
+        if (length > 0) {
+            mBatchBuffer.limit(length).position(0);
+            mTransport.write(mBatchBuffer);
+        }
+        return 0;
+    }
+
+    /**
+     * Writes the next reading of a stream into the batch, updating the simulated readings
+     * with a small random walk.
+     *
+     * @return the position in the batch after the message
+     */
+    private int writeSensor(Stream stream, boolean isBinary, int pos) {
+        StringBuilder text = mText;
+        text.setLength(0);
+        text.append("{\"s").append(stream.channel).append("\":{\"type\":\"");
+
+        switch (stream) {
+            case BATTERY:
+                mVoltage = walk(mVoltage, 0.01, 11.0, 13.0);
+                if (isBinary)
+                    return writeValues(pos, stream, "battery", mValues3, mVoltage, 0.0, 0.0);
+                text.append("battery\",\"data\":\"").append(round(mVoltage))
+                        .append(" 0.0 0.0\"}}");
+                break;
+            case ES2:
+                mConductivity = walk(mConductivity, 1.0, 100.0, 1000.0);
+                mTemperature = walk(mTemperature, 0.01, 5.0, 35.0);
+                if (isBinary)
+                    return writeValues(pos, stream, "es2", mValues2, mConductivity, mTemperature, 0.0);
+                text.append("es2\",\"data\":\"").append(round(mConductivity)).append(' ')
+                        .append(round(mTemperature)).append("\"}}");
+                break;
+            case ATLAS_DO:
+                mOxygen = walk(mOxygen, 0.01, 0.0, 20.0);
+                if (isBinary)
+                    return writeValues(pos, stream, "atlas_do", mValues1, mOxygen, 0.0, 0.0);
+                text.append("atlas_do\",\"data\":").append(round(mOxygen)).append("}}");
+                break;
+            case ATLAS_PH:
+                mPh = walk(mPh, 0.01, 0.0, 14.0);
+                if (isBinary)
+                    return writeValues(pos, stream, "atlas_ph", mValues1, mPh, 0.0, 0.0);
+                text.append("atlas_ph\",\"data\":").append(round(mPh)).append("}}");
+                break;
+            case HDS:
+                text.append("hds\",\"data\":\"").append(nextNmea()).append("\"}}");
+                break;
+            case WINCH:
+                mWinchDepth = walk(mWinchDepth, 0.05, 0.0, 10.0);
+                text.append("winch\",\"depth\":").append(round(mWinchDepth)).append("}}");
+                break;
+        }
+        return writeText(pos, isBinary);
+    }
+
+    private int writeValues(int pos, Stream stream, String type, double[] values,
+                            double a, double b, double c) {
+        values[0] = a;
+        if (values.length > 1)
+            values[1] = b;
+        if (values.length > 2)
+            values[2] = c;
+        return BinaryFrameCodec.encodeSensor(mBatch, pos, stream.channel, type, values);
+    }
+
+    /**
+     * Writes the contents of the text buffer into the batch as a JSON line or JSON record.
+     */
+    private int writeText(int pos, boolean isBinary) {
+        int length = mText.length();
+        for (int i = 0; i < length; ++i)
+            mLine[i] = (byte) mText.charAt(i);
+
+        if (isBinary)
+            return BinaryFrameCodec.encodeJson(mBatch, pos, mLine, 0, length);
+
+        System.arraycopy(mLine, 0, mBatch, pos, length);
+        pos += length;
+        mBatch[pos++] = '\r';
+        mBatch[pos++] = '\n';
+        return pos;
+    }
+
+    /**
+     * Returns the next NMEA sentence of the depth sounder, cycling through depth, water
+     * temperature and position sentences.
+     */
+    private CharSequence nextNmea() {
+        StringBuilder nmea = mNmea;
+        nmea.setLength(0);
+        switch (mNmeaIndex++ % 3) {
+            case 0:
+                mDepth = walk(mDepth, 0.05, 0.5, 50.0);
+                nmea.append("$SDDBT,").append(round(mDepth * 3.28084)).append(",f,")
+                        .append(round(mDepth)).append(",M,")
+                        .append(round(mDepth * 0.546807)).append(",F");
+                break;
+            case 1:
+                nmea.append("$SDMTW,").append(round(mTemperature)).append(",C");
+                break;
+            default:
+                nmea.append("$SDRMC,123519,A,4807.038,N,01131.000,E,022.4,084.4,230394,003.1,W");
+                break;
+        }
+
+        int checksum = 0;
+        for (int i = 1; i < nmea.length(); ++i)
+            checksum ^= nmea.charAt(i);
+        nmea.append('*')
+                .append(Character.toUpperCase(Character.forDigit(checksum >> 4, 16)))
+                .append(Character.toUpperCase(Character.forDigit(checksum & 0xF, 16)));
+        return nmea;
+    }
+
+    /**
+     * Writes the next kind of malformed message into the batch.
+     *
+     * @return the position in the batch after the message
+     */
+    private int writeMalformed(boolean isBinary, int pos) {
+        byte[] batch = mBatch;
+        switch (mMalformedIndex++ % 4) {
+            case 0:
+                // A message that was cut off.
+                mText.setLength(0);
+                mText.append("{\"s1\":{\"type\":\"es2\",\"da");
+                return writeText(pos, isBinary);
+            case 1:
+                // Text that is not JSON at all.
+                mText.setLength(0);
+                mText.append("#ERR@").append(Long.toHexString(mRandom.nextLong()));
+                return writeText(pos, isBinary);
+            case 2:
+                // A message longer than the controller accepts, or a record with a bad checksum.
+                if (isBinary) {
+                    mValues1[0] = mOxygen;
+                    int end = BinaryFrameCodec.encodeSensor(batch, pos, 2, "atlas_do", mValues1);
+                    batch[end - 1] ^= 0x55;
+                    return end;
+                }
+                batch[pos++] = '{';
+                for (int i = 0; i < MAX_LINE_LENGTH + 16; ++i)
+                    batch[pos++] = 'x';
+                batch[pos++] = '}';
+                batch[pos++] = '\r';
+                batch[pos++] = '\n';
+                return pos;
+            default:
+                // Random bytes, terminated so that line framing can recover.
+                for (int i = 0; i < 32; ++i)
+                    batch[pos++] = (byte) mRandom.nextInt(256);
+                batch[pos++] = '\n';
+                return pos;
+        }
+    }
+
+    private double walk(double value, double step, double min, double max) {
+        value += step * mRandom.nextGaussian();
+        return Math.max(min, Math.min(max, value));
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 100.0) / 100.0;
+    }
+}
@@ -0,0 +1,177 @@
+package com.platypus.android.server;
+
+/**
+ * The median of the most recent values of a stream, over a window of fixed size.
+ * <p/>
+ * The window is kept in a ring of slots, each held in one of two heaps: a max-heap of the lower
+ * half of the values and a min-heap of the upper half, whose tops give the median.  Each slot
+ * records its position in its heap, so the value leaving the window can be removed directly.
+ * Adding a value therefore takes O(log w) time for a window of w values, and does not
+ * allocate.
+ * <p/>
+ * This class is not thread-safe.
+ */
+public class SlidingMedian {
+    private final double[] mValues;
+    // Heap position of each slot: i for mLow[i], or -1 - i for mHigh[i].
+    private final int[] mPositions;
+    private final int[] mLow;
+    private final int[] mHigh;
+    private int mLowSize = 0;
+    private int mHighSize = 0;
+    private int mNext = 0;
+    private int mSize = 0;
+
+    /**
+     * Creates an empty window.
+     *
+     * @param window the number of values over which the median is taken
+     */
+    public SlidingMedian(int window) {
+        if (window < 1)
+            throw new IllegalArgumentException("Invalid window: " + window);
+        mValues = new double[window];
+        mPositions = new int[window];
+        mLow = new int[window];
+        mHigh = new int[window];
+    }
+
+    /**
+     * Adds a value, removing the oldest value if the window is full.
+     *
+     * @param value the value, which must not be NaN
+     */
+    public void add(double value) {
+        int slot = mNext;
+        mNext = (mNext + 1) % mValues.length;
+        if (mSize == mValues.length)
+            remove(slot);
+        else
+            mSize++;
+
+        mValues[slot] = value;
+        if (mLowSize == 0 || value <= mValues[mLow[0]]) {
+            mLow[mLowSize] = slot;
+            siftUp(mLow, mLowSize++, true);
+        } else {
+            mHigh[mHighSize] = slot;
+            siftUp(mHigh, mHighSize++, false);
+        }
+        rebalance();
+    }
+
+    /**
+     * Removes all values.
+     */
+    public void clear() {
+        mLowSize = 0;
+        mHighSize = 0;
+        mNext = 0;
+        mSize = 0;
+    }
+
+    /**
+     * Returns the number of values in the window.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the median of the values in the window, or NaN if it is empty.
+     */
+    public double getMedian() {
+        if (mSize == 0)
+            return Double.NaN;
+        if (mLowSize > mHighSize)
+            return mValues[mLow[0]];
+        return 0.5 * (mValues[mLow[0]] + mValues[mHigh[0]]);
+    }
+
+    private void remove(int slot) {
+        int position = mPositions[slot];
+        if (position >= 0) {
+            removeAt(mLow, --mLowSize, position, true);
+        } else {
+            removeAt(mHigh, --mHighSize, -1 - position, false);
+        }
+        rebalance();
+    }
+
+    /**
+     * Keeps the lower heap equal in size to the upper heap, or larger by one.
+     */
+    private void rebalance() {
+        if (mLowSize > mHighSize + 1) {
+            int slot = mLow[0];
+            removeAt(mLow, --mLowSize, 0, true);
+            mHigh[mHighSize] = slot;
+            siftUp(mHigh, mHighSize++, false);
+        } else if (mHighSize > mLowSize) {
+            int slot = mHigh[0];
+            removeAt(mHigh, --mHighSize, 0, false);
+            mLow[mLowSize] = slot;
+            siftUp(mLow, mLowSize++, true);
+        }
+    }
+
+    /**
+     * Replaces the entry at a position of a heap with its last entry, which is at the new size.
+     */
+    private void removeAt(int[] heap, int size, int position, boolean isMax) {
+        if (position == size)
+            return;
+        int moved = heap[size];
+        heap[position] = moved;
+        siftUp(heap, position, isMax);
+        if (heap[position] == moved)
+            siftDown(heap, size, position, isMax);
+    }
+
+    private void siftUp(int[] heap, int position, boolean isMax) {
+        int slot = heap[position];
+        while (position > 0) {
+            int parent = (position - 1) / 2;
+            if (!before(slot, heap[parent], isMax))
+                break;
+            heap[position] = heap[parent];
+            setPosition(heap, position, isMax);
+            position = parent;
+        }
+        heap[position] = slot;
+        setPosition(heap, position, isMax);
+    }
+
+    private void siftDown(int[] heap, int size, int position, boolean isMax) {
+        int slot = heap[position];
+        while (true) {
+            int child = 2 * position + 1;
+            if (child >= size)
+                break;
+            if (child + 1 < size && before(heap[child + 1], heap[child], isMax))
+                child++;
+            if (!before(heap[child], slot, isMax))
+                break;
+            heap[position] = heap[child];
+            setPosition(heap, position, isMax);
+            position = child;
+        }
+        heap[position] = slot;
+        setPosition(heap, position, isMax);
+    }
+
+    /**
+     * Returns whether one slot belongs above another in a heap.
+     */
+    private boolean before(int a, int b, boolean isMax) {
+        return isMax ? mValues[a] > mValues[b] : mValues[a] < mValues[b];
+    }
+
+    private void setPosition(int[] heap, int position, boolean isMax) {
+        mPositions[heap[position]] = encode(position, isMax);
+    }
+
+    private static int encode(int position, boolean isMax) {
+        return isMax ? position : -1 - position;
+    }
+}
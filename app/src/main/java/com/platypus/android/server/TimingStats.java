@@ -0,0 +1,71 @@
+package com.platypus.android.server;
+
+import java.util.Locale;
+
+/**
+ * Accumulates summary statistics over a stream of measured durations.
+ * <p/>
+ * Samples are expected to be recorded from a single thread, while the statistics may be read
+ * from any thread.  Reads are not atomic across fields, which is acceptable for monitoring.
+ */
+public class TimingStats {
+    private volatile long mCount = 0;
+    private volatile long mLastNs = 0;
+    private volatile long mMinNs = Long.MAX_VALUE;
+    private volatile long mMaxNs = 0;
+    private volatile long mTotalNs = 0;
+
+    /**
+     * Adds a single duration to the statistics.
+     *
+     * @param ns the measured duration in nanoseconds
+     */
+    public void record(long ns) {
+        mLastNs = ns;
+        if (ns < mMinNs)
+            mMinNs = ns;
+        if (ns > mMaxNs)
+            mMaxNs = ns;
+        mTotalNs += ns;
+        mCount++;
+    }
+
+    /**
+     * Clears all accumulated statistics.
+     */
+    public void reset() {
+        mCount = 0;
+        mLastNs = 0;
+        mMinNs = Long.MAX_VALUE;
+        mMaxNs = 0;
+        mTotalNs = 0;
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+
+    public long getLastNs() {
+        return mLastNs;
+    }
+
+    public long getMinNs() {
+        return (mCount > 0) ? mMinNs : 0;
+    }
+
+    public long getMaxNs() {
+        return mMaxNs;
+    }
+
+    public long getMeanNs() {
+        long count = mCount;
+        return (count > 0) ? mTotalNs / count : 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "n=%d last=%.3fms mean=%.3fms min=%.3fms max=%.3fms",
+                getCount(), getLastNs() / 1e6, getMeanNs() / 1e6,
+                getMinNs() / 1e6, getMaxNs() / 1e6);
+    }
+}
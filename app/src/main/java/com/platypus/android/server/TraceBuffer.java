@@ -0,0 +1,144 @@
+package com.platypus.android.server;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed-size ring buffer of timestamped trace events, used to see where the time of each
+ * control loop tick goes.
+ * <p/>
+ * All storage is allocated up front, and recording an event only claims a slot with an atomic
+ * increment and writes three array elements, so it is cheap enough to call on every tick from
+ * any thread.  Once the buffer is full, the oldest events are overwritten.
+ * <p/>
+ * The buffer can be dumped at any time as CSV lines of the form
+ * {@code sequence,time_ns,delta_ns,event,arg}, where {@code delta_ns} is the time since the
+ * previous event in the dump.  Events recorded while a dump is in progress may overwrite the
+ * oldest entries being written, so a dump taken while the vehicle is running may contain a
+ * few inconsistent entries at its start.
+ */
+public class TraceBuffer {
+    /**
+     * A control loop tick has started.  The argument is the tick number.
+     */
+    public static final int TICK_START = 0;
+    /**
+     * The vehicle state has been updated from the filter.  The argument is the state sequence.
+     */
+    public static final int FILTER_DONE = 1;
+    /**
+     * The navigation controller has computed a command.  The argument is the state sequence.
+     */
+    public static final int CONTROLLER_DONE = 2;
+    /**
+     * A command has been written to the controller board.  The argument is its length in bytes.
+     */
+    public static final int USB_WRITE_DONE = 3;
+    /**
+     * The vehicle pose has been sent to listeners.  The argument is the state sequence.
+     */
+    public static final int UDP_SEND_DONE = 4;
+
+    private static final String[] EVENT_NAMES = {
+            "tick_start", "filter_done", "controller_done", "usb_write_done", "udp_send_done"
+    };
+
+    private final long[] mTimes;
+    private final int[] mEvents;
+    private final long[] mArgs;
+    private final int mMask;
+    private final AtomicLong mCursor = new AtomicLong();
+
+    /**
+     * Creates a new trace buffer.
+     *
+     * @param capacity the minimum number of events to retain, rounded up to a power of two
+     */
+    public TraceBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        mTimes = new long[size];
+        mEvents = new int[size];
+        mArgs = new long[size];
+        mMask = size - 1;
+    }
+
+    /**
+     * Records an event at the current monotonic time.  This may be called from any thread.
+     *
+     * @param event the type of the event, such as {@link #TICK_START}
+     * @param arg   an event-specific argument
+     */
+    public void record(int event, long arg) {
+        int i = (int) (mCursor.getAndIncrement() & mMask);
+        mTimes[i] = System.nanoTime();
+        mEvents[i] = event;
+        mArgs[i] = arg;
+    }
+
+    /**
+     * Returns the number of events that can be retained before the oldest are overwritten.
+     */
+    public int getCapacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * Returns the total number of events recorded, including events that have been overwritten.
+     */
+    public long getCount() {
+        return mCursor.get();
+    }
+
+    /**
+     * Writes the retained events, oldest first, as CSV lines.
+     *
+     * @param writer the destination of the dump
+     * @throws IOException if the dump could not be written
+     */
+    public void dump(Writer writer) throws IOException {
+        PrintWriter out = new PrintWriter(writer);
+        out.println("sequence,time_ns,delta_ns,event,arg");
+
+        long end = mCursor.get();
+        long start = Math.max(0, end - getCapacity());
+        long previous = 0;
+        for (long seq = start; seq < end; ++seq) {
+            int i = (int) (seq & mMask);
+            long time = mTimes[i];
+            int event = mEvents[i];
+            out.print(seq);
+            out.print(',');
+            out.print(time);
+            out.print(',');
+            out.print((seq == start) ? 0 : time - previous);
+            out.print(',');
+            out.print((event >= 0 && event < EVENT_NAMES.length) ? EVENT_NAMES[event] : event);
+            out.print(',');
+            out.println(mArgs[i]);
+            previous = time;
+        }
+
+        out.flush();
+        if (out.checkError())
+            throw new IOException("Failed to write trace.");
+    }
+
+    /**
+     * Writes the retained events, oldest first, to a CSV file.
+     *
+     * @param file the file to create or overwrite
+     * @throws IOException if the file could not be written
+     */
+    public void dump(File file) throws IOException {
+        Writer writer = new FileWriter(file);
+        try {
+            dump(writer);
+        } finally {
+            writer.close();
+        }
+    }
+}
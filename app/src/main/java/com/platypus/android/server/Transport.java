@@ -0,0 +1,39 @@
+package com.platypus.android.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A bidirectional byte channel to a controller board, such as a USB accessory, a serial port or
+ * a socket.
+ * <p/>
+ * Reads and writes use {@link ByteBuffer}s so that direct buffers can be passed to the
+ * underlying device without being copied through the Java heap.  Reading and writing may happen
+ * at the same time on different threads, but each direction must only be used by one thread at
+ * a time.  Closing a transport causes any blocked read to return or fail.
+ */
+public interface Transport {
+    /**
+     * Reads available bytes into the remaining space of a buffer, blocking until at least one
+     * byte is available.
+     *
+     * @param dst the buffer into which bytes are read
+     * @return the number of bytes read, or -1 if the channel has been closed
+     * @throws IOException if the read fails
+     */
+    int read(ByteBuffer dst) throws IOException;
+
+    /**
+     * Writes all remaining bytes of a buffer, blocking until all of them have been handed to
+     * the underlying device.
+     *
+     * @param src the buffer containing the bytes
+     * @throws IOException if the write fails
+     */
+    void write(ByteBuffer src) throws IOException;
+
+    /**
+     * Closes the transport and releases its resources.  This may be called more than once.
+     */
+    void close();
+}
@@ -0,0 +1,32 @@
+package com.platypus.android.server;
+
+import com.platypus.crw.data.Twist;
+
+/**
+ * Drive model for vehicles with a single thruster that steers with a rudder or rotating thrust.
+ * <p/>
+ * Thrust is sent as the velocity of motor {@code m0}, and turning rate as the position of
+ * servo {@code s0}.
+ */
+public class VectoredDriveModel implements VehicleDriveModel {
+    private final double mMaxThrust;
+
+    /**
+     * @param maxThrust the largest motor velocity magnitude that will be commanded
+     */
+    public VectoredDriveModel(double maxThrust) {
+        mMaxThrust = maxThrust;
+    }
+
+    @Override
+    public void actuate(Twist velocity, CommandEncoder command) {
+        // Until ESC reboot is fixed, scale the range [0.0, 1.0] to [0.0, maxThrust].
+        double constrainedV = VehicleServerImpl.clip(velocity.dx(), -1.0, 1.0) * mMaxThrust;
+
+        // Rudder is constrained to +/-1.0, and reversed to match the servo direction.
+        double constrainedP = -VehicleServerImpl.clip(velocity.drz(), -1.0, 1.0);
+
+        command.put("m0", "v", (float) constrainedV)
+                .put("s0", "p", (float) constrainedP);
+    }
+}
@@ -0,0 +1,23 @@
+package com.platypus.android.server;
+
+import com.platypus.crw.data.Twist;
+
+/**
+ * Converts desired vehicle velocities into actuator commands for a particular hull and
+ * propulsion layout.
+ * <p/>
+ * Implementations are called on every control loop tick, so they should precompute any
+ * constants in their constructor and must not allocate in {@link #actuate(Twist, CommandEncoder)}.
+ *
+ * @see VehicleType
+ */
+public interface VehicleDriveModel {
+    /**
+     * Computes the actuator commands that achieve the given velocity.
+     *
+     * @param velocity the desired velocity, with thrust in dx() and turning rate in drz(),
+     *                 each normalized to the range [-1.0, 1.0]
+     * @param command  an empty command to which the actuator fields should be added
+     */
+    void actuate(Twist velocity, CommandEncoder command);
+}
@@ -41,6 +41,10 @@ public class VehicleLogger {
      * The default prefix for Platypus Vehicle data log files.
      */
     private static final String DEFAULT_LOG_PREFIX = "platypus_";
+    /**
+     * The maximum number of digits in a log timestamp.
+     */
+    private static final int MAX_TIMESTAMP_LENGTH = 20;
     /**
      * File reference to the log file that this logger is creating.
      */
@@ -54,6 +58,10 @@ public class VehicleLogger {
      * Internal timestamp of when log was created.
      */
     private long mStartTime;
+    /**
+     * Reusable buffer used to assemble preformatted log entries.
+     */
+    private char[] mLineBuffer = new char[256];
 
     /**
      * Create a new vehicle log file.
@@ -97,6 +105,13 @@ public class VehicleLogger {
         return DEFAULT_LOG_PREFIX + sdf.format(d) + ".txt";
     }
 
+    /**
+     * Returns the directory in which vehicle logs are stored.
+     */
+    public File getDirectory() {
+        return mLogFileFinal.getParentFile();
+    }
+
     public synchronized void close() {
         // Close the data log (a new one will be created on restart)
         if (mLogWriter != null) {
@@ -124,6 +139,65 @@ public class VehicleLogger {
         mLogWriter.println(message);
     }
 
+    /**
+     * Creates a log entry from a preformatted JSON value without allocating.
+     * <p/>
+     * The entry is written as a JSON object with a single key whose value is the given
+     * ASCII-encoded JSON text, e.g. <code>{"cmd":{"m0":{"v":0.5}}}</code>.
+     *
+     * @param level  the level of the log entry
+     * @param key    the key under which the value is logged
+     * @param json   the buffer containing the JSON value
+     * @param offset the offset of the JSON value in the buffer
+     * @param length the length of the JSON value
+     */
+    public synchronized void log(Level level, String key, byte[] json, int offset, int length) {
+        if (mLogWriter == null)
+            return;
+
+        // Grow the line buffer if this entry is longer than any previous one.
+        int maxLength = MAX_TIMESTAMP_LENGTH + key.length() + length + 16;
+        if (mLineBuffer.length < maxLength)
+            mLineBuffer = new char[maxLength];
+        char[] line = mLineBuffer;
+
+        // Write the elapsed time, least-significant digit first, then reverse it.
+        int pos = 0;
+        long elapsed = Math.max(0, System.currentTimeMillis() - mStartTime);
+        do {
+            line[pos++] = (char) ('0' + elapsed % 10);
+            elapsed /= 10;
+        } while (elapsed > 0);
+        for (int i = 0, j = pos - 1; i < j; ++i, --j) {
+            char tmp = line[i];
+            line[i] = line[j];
+            line[j] = tmp;
+        }
+
+        line[pos++] = '\t';
+        String code = level.code();
+        for (int i = 0; i < code.length(); ++i)
+            line[pos++] = code.charAt(i);
+        line[pos++] = '\t';
+
+        line[pos++] = '{';
+        line[pos++] = '"';
+        for (int i = 0; i < key.length(); ++i)
+            line[pos++] = key.charAt(i);
+        line[pos++] = '"';
+        line[pos++] = ':';
+        for (int i = 0; i < length; ++i)
+            line[pos++] = (char) (json[offset + i] & 0xFF);
+        line[pos++] = '}';
+
+        mLogWriter.write(line, 0, pos);
+        mLogWriter.println();
+    }
+
+    public synchronized void info(String key, byte[] json, int offset, int length) {
+        log(Level.INFO, key, json, offset, length);
+    }
+
     public synchronized void debug(JSONObject obj) {
         log(Level.DEBUG, obj);
     }
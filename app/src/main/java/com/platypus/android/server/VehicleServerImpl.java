@@ -19,13 +19,18 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.Iterator;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -39,6 +44,13 @@ import java.util.concurrent.atomic.AtomicBoolean;
  */
 public class VehicleServerImpl extends AbstractVehicleServer {
 
+    /**
+     * Base period of the control loop, at which vehicle commands are sent.
+     */
+    public static final int CONTROL_INTERVAL_MS = 20;
+    /**
+     * Period at which navigation controllers are updated.
+     */
     public static final int UPDATE_INTERVAL_MS = 100;
     public static final int NUM_SENSORS = 5;
     public static final VehicleController DEFAULT_CONTROLLER = AirboatController.STOP.controller;
@@ -48,9 +60,28 @@ public class VehicleServerImpl extends AbstractVehicleServer {
     public static final double[] NAN_GAINS =
             new double[]{Double.NaN, Double.NaN, Double.NaN};
     public static final double[] DEFAULT_TWIST = {0, 0, 0, 0, 0, 0};
+    private static final Twist STOP_VELOCITY = new Twist(DEFAULT_TWIST);
     public static final double SAFE_DIFFERENTIAL_THRUST = 1.0;
     public static final double SAFE_VECTORED_THRUST = 1.0;
     public static final long VELOCITY_TIMEOUT_MS = 2000;
+    public static final long LOOP_STATS_INTERVAL_MS = 10000;
+    public static final long CONTROLLER_STATS_INTERVAL_MS = 30000;
+    /**
+     * Period at which decimated and batched sensor readings are sent to listeners.
+     */
+    public static final int SENSOR_DISPATCH_INTERVAL_MS = 100;
+    /**
+     * Number of samples and age in seconds of the sensor readings kept in memory, per sensor.
+     */
+    public static final int SENSOR_HISTORY_SAMPLES = 4096;
+    public static final long SENSOR_HISTORY_SECONDS = 600;
+    /**
+     * Number of recent readings over which probe outliers are judged, and the number of
+     * standard deviations from their median beyond which a value is rejected.
+     */
+    public static final int OUTLIER_WINDOW = 15;
+    public static final double OUTLIER_THRESHOLD = 3.0;
+    public static final int TRACE_CAPACITY = 8192;
     private static final String TAG = VehicleServerImpl.class.getName();
     protected final SharedPreferences mPrefs;
     protected final SensorType[] _sensorTypes = new SensorType[NUM_SENSORS];
@@ -64,24 +95,51 @@ public class VehicleServerImpl extends AbstractVehicleServer {
     final Context _context;
     final VehicleLogger mLogger;
     final Controller mController;
-    // Velocity shutdown timer.
-    final ScheduledThreadPoolExecutor mVelocityExecutor = new ScheduledThreadPoolExecutor(1);
+    // Velocity shutdown watchdog.
+    final Object mVelocityLock = new Object();
     /**
      * Raw gyroscopic readings from the phone gyro.
+     * A new array is published on each reading, so readers always see a complete reading.
      */
-    final double[] _gyroPhone = new double[3];
-    private final Timer _updateTimer = new Timer();
-    private final Timer _navigationTimer = new Timer();
-    private final Timer _captureTimer = new Timer();
-    protected UtmPose[] _waypoints = new UtmPose[0];
-    protected TimerTask _captureTask = null;
-    protected TimerTask _navigationTask = null;
-    ScheduledFuture mVelocityFuture = null;
+    volatile double[] _gyroPhone = new double[3];
     /**
-     * Inertial state vector, currently containing a 6D pose estimate:
-     * [x,y,z,roll,pitch,yaw]
+     * Timestamped events of each stage of the control loop, for diagnosing where its time goes.
      */
-    UtmPose _utmPose = new UtmPose(new Pose3D(476608.34, 4671214.40, 172.35, 0, 0, 0), new Utm(17, true));
+    final TraceBuffer mTrace = new TraceBuffer(TRACE_CAPACITY);
+    /**
+     * Scheduler that runs all periodic vehicle work on a single high-priority thread.
+     */
+    final ControlLoop mControlLoop = new ControlLoop(CONTROL_INTERVAL_MS, mTrace);
+    /**
+     * Worker used to take camera images without stalling the control loop.
+     */
+    final ExecutorService mCaptureExecutor = Executors.newSingleThreadExecutor();
+    protected final WaypointQueue _waypoints = new WaypointQueue();
+    protected CaptureTask _captureTask = null;
+    protected ControlLoop.Task _navigationTask = null;
+    /**
+     * Controller of the current mission, and whether the mission is still active.  A mission
+     * stays active after its waypoints run out, so that appended waypoints resume navigation.
+     */
+    protected String _navigationController = null;
+    protected boolean _isNavigating = false;
+    /**
+     * Monotonic time after which the commanded velocity is stale and the vehicle is stopped,
+     * or {@link Long#MAX_VALUE} if the watchdog is not armed.  Only non-zero velocities arm it.
+     */
+    long mVelocityDeadlineNs = Long.MAX_VALUE;
+    /**
+     * Number of times the velocity watchdog has stopped the vehicle.
+     */
+    volatile long mVelocityTimeouts = 0;
+    /**
+     * Snapshot of the vehicle state, including a 6D pose estimate:
+     * [x,y,z,roll,pitch,yaw].  This is replaced once per control loop tick.
+     */
+    volatile VehicleState mState = new VehicleState(
+            new UtmPose(new Pose3D(476608.34, 4671214.40, 172.35, 0, 0, 0), new Utm(17, true)),
+            new Twist(DEFAULT_TWIST), new double[3],
+            System.currentTimeMillis(), System.nanoTime(), 0);
 
     /**
      * Filter used internally to update the current pose estimate
@@ -91,8 +149,9 @@ public class VehicleServerImpl extends AbstractVehicleServer {
     /**
      * Inertial velocity vector, containing a 6D angular velocity estimate: [rx,
      * ry, rz, rPhi, rPsi, rOmega]
+     * This object is replaced rather than modified, so it can be shared with readers.
      */
-    Twist _velocities = new Twist(DEFAULT_TWIST);
+    volatile Twist _velocities = new Twist(DEFAULT_TWIST);
     /**
      * Hard-coded PID gains and thrust limits per vehicle type.
      * These values are loaded from the application SharedPreferences in the class constructor.
@@ -101,112 +160,283 @@ public class VehicleServerImpl extends AbstractVehicleServer {
     double[] t_PID = new double[3];
 
     // TODO: Remove this variable, it is totally arbitrary
-    private double winch_depth_ = Double.NaN;
+    private volatile double winch_depth_ = Double.NaN;
+    /**
+     * Decoders for sensor messages from the controller board, and the encoder used to log the
+     * resulting readings.  These are only used by the receive thread.
+     */
+    private final SensorDecoderRegistry mSensorDecoders = SensorDecoderRegistry.createDefault();
+    private final SensorLogEncoder mSensorLogEncoder = new SensorLogEncoder();
+    private final NmeaSensorDecoder mNmeaDecoder = new NmeaSensorDecoder();
+    private final byte[] mNmeaLogBuffer = new byte[256];
+    /**
+     * Rejects spikes in probe readings before they are recorded or sent.
+     */
+    private final OutlierRejector mOutlierRejector = new OutlierRejector();
+    /**
+     * Recent sensor readings, recorded on the receive thread and readable from any thread.
+     */
+    private final SensorHistory mSensorHistory = new SensorHistory(SENSOR_HISTORY_SAMPLES,
+            TimeUnit.SECONDS.toNanos(SENSOR_HISTORY_SECONDS));
+    /**
+     * Rate-limits the sensor readings sent to listeners, channel by channel.  Readings are
+     * offered on the receive thread and sent on the dispatcher's own thread, so that sending
+     * them never delays the control loop.
+     */
+    private final SensorDispatcher mSensorDispatcher = new SensorDispatcher(
+            new SensorDispatcher.Sink() {
+                @Override
+                public void send(int channel, SensorData reading) {
+                    sendSensor(channel, reading);
+                }
+            }, SensorDispatcher.DEFAULT_CAPACITY);
     // Last known temperature and EC values for sensor compensation
     private double _lastTemp = 20.0; // Deg C
     private double _lastEC = 0.0; // uS/cm
     /**
-     * Internal update function called at regular intervals to process command
-     * and control events.
+     * Reusable encoder for the motor command sent on each update.
+     * This is only accessed from the control loop thread.
+     */
+    private final CommandEncoder mCommand = new CommandEncoder();
+    /**
+     * Encoder for actuator commands resent outside of the control loop on reconnection.
+     */
+    private final CommandEncoder mResendCommand = new CommandEncoder();
+    /**
+     * Encoder for commands that stop the vehicle, which may be sent from any thread.
+     */
+    private final CommandEncoder mStopCommand = new CommandEncoder();
+    /**
+     * The drive model of the current vehicle type, or null if the vehicle type is unknown.
+     * This is resolved from the application SharedPreferences whenever the setting changes.
      */
-    private TimerTask _updateTask = new TimerTask() {
+    private volatile VehicleDriveModel mDriveModel = null;
+    /**
+     * Listens for changes to settings that are cached by the server.
+     * (This must be kept as a field, as SharedPreferences only holds weak references to it.)
+     */
+    private final SharedPreferences.OnSharedPreferenceChangeListener mPreferenceListener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+                    if ("pref_vehicle_type".equals(key))
+                        updateDriveModel();
+                    else if ("pref_pose_broadcast_rate".equals(key) || "pref_pose_log_rate".equals(key))
+                        updateTelemetryRates();
+                    else if ("pref_binary_protocol".equals(key))
+                        mController.setBinaryEnabled(sharedPreferences.getBoolean(key, false));
+                    else if ("pref_command_sequence".equals(key))
+                        mController.setSequenceEnabled(sharedPreferences.getBoolean(key, false));
+                    else if ("pref_sensor_dispatch".equals(key))
+                        updateSensorDispatch();
+                    else if ("pref_sensor_outlier_filter".equals(key))
+                        updateOutlierFilters();
+                }
+            };
+    /**
+     * First stage of each control loop tick, which updates the vehicle state.
+     * Navigation controllers run after this, in the control stage of the same tick.
+     */
+    private final ControlLoop.Task _senseTask = new ControlLoop.Task() {
 
         @Override
-        public void run() {
+        public void run(double dt) {
+            // Stop the vehicle if velocity commands are no longer arriving
+            checkVelocityTimeout();
+
             // Do an intelligent state prediction update here
-            _utmPose = filter.pose(System.currentTimeMillis()); // TODO: what the hell is this?
+            VehicleState state = updateState();
+            mTrace.record(TraceBuffer.FILTER_DONE, state.getSequence());
+        }
+    };
+    /**
+     * Final stage of each control loop tick, which sends the velocity commanded during this
+     * tick to the vehicle, together with any other commands posted since the previous tick.
+     */
+    private final ControlLoop.Task _actuateTask = new ControlLoop.Task() {
+
+        @Override
+        public void run(double dt) {
+            // Send vehicle command by converting raw command to appropriate vehicle model.
+            VehicleDriveModel driveModel = mDriveModel;
+            if (driveModel != null) {
+                driveModel.actuate(_velocities, mCommand.clear());
+                sendCommand(mCommand);
+            }
+
+            // Write everything posted during this tick to the board at once, measuring how
+            // long it takes for the sensed state to reach the board.
+            try {
+                mController.flush(mState.getTimeNs());
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to send commands.", e);
+            }
+        }
+    };
+
+    /**
+     * Sends the current pose to listeners at the pose broadcast rate.
+     */
+    private final ControlLoop.Task _poseBroadcastTask = new ControlLoop.Task() {
+
+        @Override
+        public void run(double dt) {
+            VehicleState state = mState;
+            sendState(state.getPose().clone());
+            mTrace.record(TraceBuffer.UDP_SEND_DONE, state.getSequence());
+        }
+    };
+
+    /**
+     * Records the current pose, and the most recent motor command, in the log file at the pose
+     * logging rate.  Commands are sent every tick, so they are not logged as they are sent.
+     */
+    private final ControlLoop.Task _poseLogTask = new ControlLoop.Task() {
+
+        @Override
+        public void run(double dt) {
+            VehicleState state = mState;
+            UtmPose utmPose = state.getPose();
             try {
                 mLogger.info(new JSONObject()
                         .put("pose", new JSONObject()
-                                .put("p", new JSONArray(_utmPose.pose.getPosition()))
-                                .put("q", new JSONArray(_utmPose.pose.getRotation().getArray()))
-                                .put("zone", _utmPose.origin.toString())));
+                                .put("time_ns", state.getTimeNs())
+                                .put("p", new JSONArray(utmPose.pose.getPosition()))
+                                .put("q", new JSONArray(utmPose.pose.getRotation().getArray()))
+                                .put("zone", utmPose.origin.toString())));
             } catch (JSONException e) {
                 Log.w(TAG, "Unable to serialize pose.");
             }
-            sendState(_utmPose.clone());
 
-            // Send vehicle command by converting raw command to appropriate vehicle model.
-            JSONObject command = new JSONObject();
-            String vehicleType = mPrefs.getString("pref_vehicle_type",
-                    _context.getResources().getString(R.string.pref_vehicle_type_default));
-            switch (vehicleType) {
-                case "DIFFERENTIAL":
-                    // Construct objects to hold velocities
-                    JSONObject velocity0 = new JSONObject();
-                    JSONObject velocity1 = new JSONObject();
-
-                    // Send velocities as a JSON command
-                    try {
-                        double constrainedV0 = clip(_velocities.dx() - _velocities.drz(), -1.0, 1.0);
-                        double constrainedV1 = clip(_velocities.dx() + _velocities.drz(), -1.0, 1.0);
-
-                        // Until ESC reboot is fixed, set the upper limit to SAFE_THRUST
-                        constrainedV0 = map(constrainedV0,
-                                -1.0, 1.0, // Original range.
-                                -VehicleServerImpl.SAFE_DIFFERENTIAL_THRUST, VehicleServerImpl.SAFE_DIFFERENTIAL_THRUST); // New range.
-                        constrainedV1 = map(constrainedV1,
-                                -1.0, 1.0, // Original range.
-                                -VehicleServerImpl.SAFE_DIFFERENTIAL_THRUST, VehicleServerImpl.SAFE_DIFFERENTIAL_THRUST); // New range.
-
-                        velocity0.put("v", (float) constrainedV0);
-                        velocity1.put("v", (float) constrainedV1);
-
-                        command.put("m0", velocity0);
-                        command.put("m1", velocity1);
-
-                        // Send and log the transmitted command.
-                        if (mController.isConnected())
-                            mController.send(command);
-                        mLogger.info(new JSONObject().put("cmd", command));
-                    } catch (JSONException e) {
-                        Log.w(TAG, "Failed to serialize command.", e);
-                    } catch (IOException e) {
-                        Log.w(TAG, "Failed to send command.", e);
-                    }
-                    break;
+            // This runs after the actuation stage, so the command is the one sent this tick.
+            if (mDriveModel != null && !mCommand.isEmpty())
+                mLogger.info("cmd", mCommand.getBuffer(), 0, mCommand.getJsonLength());
+        }
+    };
 
-                case "VECTORED":
-                    // Construct objects to hold velocities
-                    JSONObject thrust = new JSONObject();
-                    JSONObject rudder = new JSONObject();
+    /**
+     * Periodically reports the timing performance of the control loop in the log file.
+     */
+    private final ControlLoop.Task _loopStatsTask = new ControlLoop.Task() {
+        long mLastReceivedCount = 0;
 
-                    // Send velocities as a JSON command
-                    try {
-                        double constrainedV = clip(_velocities.dx(), -1.0, 1.0);
+        @Override
+        public void run(double dt) {
+            // Measure the rate at which messages are being received from the controller board.
+            long receivedCount = mController.getReceivedCount();
+            double receiveRate = (receivedCount - mLastReceivedCount) / dt;
+            mLastReceivedCount = receivedCount;
 
-                        // Until ESC reboot is fixed, set the upper limit to SAFE_THRUST
-                        constrainedV = map(constrainedV,
-                                0.0, 1.0, // Original range.
-                                0.0, VehicleServerImpl.SAFE_VECTORED_THRUST); // New range.
+            try {
+                mLogger.info(new JSONObject()
+                        .put("loop", new JSONObject()
+                                .put("ticks", mControlLoop.getTickCount())
+                                .put("overruns", mControlLoop.getOverrunCount())
+                                .put("missed", mControlLoop.getMissedCount())
+                                .put("jitter_mean_us", mControlLoop.getJitter().getMeanNs() / 1000)
+                                .put("jitter_max_us", mControlLoop.getJitter().getMaxNs() / 1000)
+                                .put("tick_max_us", mControlLoop.getTickDuration().getMaxNs() / 1000)
+                                .put("latency_mean_us", mController.getPipelineLatency().getMeanNs() / 1000)
+                                .put("latency_max_us", mController.getPipelineLatency().getMaxNs() / 1000)
+                                .put("rx_msgs_per_s", Math.round(receiveRate))
+                                .put("rx_oversized", mController.getOversizedCount())
+                                .put("tx_latency_mean_us", mController.getSendLatency().getMeanNs() / 1000)
+                                .put("tx_latency_max_us", mController.getSendLatency().getMaxNs() / 1000)
+                                .put("tx_safety_max_us", mController.getSafetyLatency().getMaxNs() / 1000)
+                                .put("tx_replaced", mController.getReplacedCount())
+                                .put("tx_dropped", mController.getDroppedCount())));
+            } catch (JSONException e) {
+                Log.w(TAG, "Unable to serialize loop statistics.");
+            }
+        }
+    };
 
-                        // Rudder is constrained to +/-1.0
-                        double constrainedP = clip(_velocities.drz(), -1.0, 1.0);
+    /**
+     * Periodically reports the traffic and latency of the controller board link in the log file.
+     */
+    private final ControlLoop.Task _controllerStatsTask = new ControlLoop.Task() {
+        long mLastReceivedCount = 0;
+        long mLastReceivedBytes = 0;
+        long mLastSentCount = 0;
+        long mLastSentBytes = 0;
+        long mLastOfferedReadings = 0;
+        long mLastDispatchedReadings = 0;
 
-                        // Fix for rudder being reversed.
-                        constrainedP *= -1.0;
+        @Override
+        public void run(double dt) {
+            long receivedCount = mController.getReceivedCount();
+            long receivedBytes = mController.getReceivedByteCount();
+            long sentCount = mController.getSentCount();
+            long sentBytes = mController.getSentByteCount();
+            LatencyHistogram sendLatency = mController.getSendLatency();
+            LatencyHistogram roundTrip = mController.getRoundTripLatency();
+            NmeaParser nmea = mNmeaDecoder.getParser();
+            long offeredReadings = mSensorDispatcher.getOfferedCount();
+            long dispatchedReadings = mSensorDispatcher.getDispatchedCount();
 
-                        thrust.put("v", (float) constrainedV);
-                        rudder.put("p", (float) constrainedP);
+            try {
+                mLogger.info(new JSONObject()
+                        .put("controller", new JSONObject()
+                                .put("rx_msgs_per_s", Math.round((receivedCount - mLastReceivedCount) / dt))
+                                .put("rx_bytes_per_s", Math.round((receivedBytes - mLastReceivedBytes) / dt))
+                                .put("tx_msgs_per_s", Math.round((sentCount - mLastSentCount) / dt))
+                                .put("tx_bytes_per_s", Math.round((sentBytes - mLastSentBytes) / dt))
+                                .put("tx_writes", mController.getWriteCount())
+                                .put("rx_parse_errors", mController.getParseErrorCount())
+                                .put("rx_board_errors", mController.getBoardErrorCount())
+                                .put("rx_corrupt", mController.getCorruptCount())
+                                .put("tx_p50_us", sendLatency.getPercentileNs(0.50) / 1000)
+                                .put("tx_p99_us", sendLatency.getPercentileNs(0.99) / 1000)
+                                .put("rtt_count", roundTrip.getCount())
+                                .put("rtt_p50_us", roundTrip.getPercentileNs(0.50) / 1000)
+                                .put("rtt_p99_us", roundTrip.getPercentileNs(0.99) / 1000)
+                                .put("rtt_max_us", roundTrip.getMaxNs() / 1000)
+                                .put("rtt_unmatched", mController.getUnmatchedEchoCount())
+                                .put("clock_offset_us", mController.getClockOffsetNs() / 1000)
+                                .put("clock_drift_ppm", mController.getClockDriftPpm())
+                                .put("nmea_sentences", nmea.getSentenceCount())
+                                .put("nmea_unknown", nmea.getUnknownCount())
+                                .put("nmea_errors", nmea.getErrorCount())
+                                .put("sensor_in_per_s", Math.round((offeredReadings - mLastOfferedReadings) / dt))
+                                .put("sensor_out_per_s", Math.round((dispatchedReadings - mLastDispatchedReadings) / dt))
+                                .put("sensor_packets", mSensorDispatcher.getPacketCount())
+                                .put("sensor_dropped", mSensorDispatcher.getDroppedCount())
+                                .put("sensor_discarded", mSensorDispatcher.getDiscardedCount())
+                                .put("sensor_filtered", mOutlierRejector.getFilteredCount())
+                                .put("sensor_outliers", mOutlierRejector.getOutlierCount())));
+            } catch (JSONException e) {
+                Log.w(TAG, "Unable to serialize controller statistics.");
+            }
 
-                        command.put("m0", thrust);
-                        command.put("s0", rudder);
+            mLastReceivedCount = receivedCount;
+            mLastReceivedBytes = receivedBytes;
+            mLastSentCount = sentCount;
+            mLastSentBytes = sentBytes;
+            mLastOfferedReadings = offeredReadings;
+            mLastDispatchedReadings = dispatchedReadings;
+        }
+    };
 
-                        // Send and log the transmitted command.
-                        if (mController.isConnected())
-                            mController.send(command);
-                        mLogger.info(new JSONObject().put("cmd", command));
+    /**
+     * Records changes in the connection to the controller board, and restores the actuator
+     * state as soon as a board is reconnected.
+     */
+    private final Controller.ConnectionListener mConnectionListener =
+            new Controller.ConnectionListener() {
+                @Override
+                public void onConnectionStateChanged(Controller.ConnectionState state) {
+                    if (state == Controller.ConnectionState.CONNECTED)
+                        resendActuatorState();
+
+                    try {
+                        mLogger.info(new JSONObject()
+                                .put("controller", new JSONObject()
+                                        .put("state", state.toString())));
                     } catch (JSONException e) {
-                        Log.w(TAG, "Failed to serialize command.", e);
-                    } catch (IOException e) {
-                        Log.w(TAG, "Failed to send command.", e);
+                        Log.w(TAG, "Unable to serialize controller state.");
                     }
-                    break;
-                default:
-                    Log.w(TAG, "Unknown vehicle type: " + vehicleType);
-            }
-        }
-    };
+                }
+            };
 
     /**
      * Creates a new instance of the vehicle implementation. This function
@@ -220,6 +450,30 @@ public class VehicleServerImpl extends AbstractVehicleServer {
         _context = context;
         mLogger = logger;
         mController = controller;
+        mController.setTrace(mTrace);
+        mController.setConnectionListener(mConnectionListener);
+
+        // The winch reports its depth rather than sensor data.
+        mSensorDecoders.register("winch", new SensorDecoder() {
+            @Override
+            public int getValueCount() {
+                return 1;
+            }
+
+            @Override
+            public boolean decode(SensorMessage message, SensorData reading) {
+                reading.type = SensorType.UNKNOWN;
+                reading.data[0] = message.getField("depth");
+
+                // TODO: Remove this hack to store winch depth
+                winch_depth_ = reading.data[0];
+                return true;
+            }
+        });
+
+        // Depth sounder sentences that are not sensor readings are logged verbatim.
+        mNmeaDecoder.setListener(mNmeaListener);
+        mSensorDecoders.register("hds", mNmeaDecoder);
 
         // Connect to the Shared Preferences for this process.
         mPrefs = PreferenceManager.getDefaultSharedPreferences(_context);
@@ -234,23 +488,45 @@ public class VehicleServerImpl extends AbstractVehicleServer {
         t_PID[1] = mPrefs.getFloat("gain_tI", 0.0f);
         t_PID[2] = mPrefs.getFloat("gain_tD", 0.0f);
 
-        // Start a regular update function
-        _updateTimer.scheduleAtFixedRate(_updateTask, 0, UPDATE_INTERVAL_MS);
+        // Select the framing used with the controller board.
+        mController.setBinaryEnabled(mPrefs.getBoolean("pref_binary_protocol", false));
+        mController.setSequenceEnabled(mPrefs.getBoolean("pref_command_sequence", false));
+
+        // Resolve the vehicle drive model and listen for changes to it.
+        updateDriveModel();
+        mPrefs.registerOnSharedPreferenceChangeListener(mPreferenceListener);
+
+        // Start a regular update pipeline, followed by lower rate telemetry.
+        mControlLoop.schedule(_senseTask, 1, ControlLoop.STAGE_SENSE);
+        mControlLoop.schedule(_actuateTask, 1, ControlLoop.STAGE_ACTUATE);
+        updateTelemetryRates();
+        updateSensorDispatch();
+        updateOutlierFilters();
+        mControlLoop.schedule(_loopStatsTask, mControlLoop.ticks(LOOP_STATS_INTERVAL_MS));
+        mControlLoop.schedule(_controllerStatsTask, mControlLoop.ticks(CONTROLLER_STATS_INTERVAL_MS));
+        mControlLoop.start();
+        mSensorDispatcher.start(SENSOR_DISPATCH_INTERVAL_MS);
 
         // Create a thread to read data from the controller board.
         Thread receiveThread = new Thread(new Runnable() {
             @Override
             public void run() {
                 // Start a loop to receive data from accessory.
+                // This blocks while no controller board is connected.
                 while (_isRunning.get()) {
                     try {
-                        onCommand(mController.receive());
+                        SensorData reading = mController.receive(mSensorDecoders);
+                        if (reading != null) {
+                            onSensor(reading, mController.getMessageTimeNs());
+                        } else {
+                            onCommand(mController.getMessage(), mController.getMessageTimeNs());
+                        }
                     } catch (Controller.ConnectionException e) {
-                        // Do nothing, we don't need to detect this here.
+                        // Stop if the controller was shut down.
+                        if (mController.isShutdown())
+                            break;
                     } catch (IOException | Controller.ControllerException e) {
                         Log.w(TAG, e);
-                    } finally {
-                        Thread.yield();
                     }
                 }
             }
@@ -314,22 +590,23 @@ public class VehicleServerImpl extends AbstractVehicleServer {
         // TODO: Get rid of this, it is a hack.
         // Special case to handle winch commands...
         if (axis == 3) {
-            JSONObject command = new JSONObject();
-            JSONObject winchSettings = new JSONObject();
+            CommandEncoder command = new CommandEncoder();
 
             // Call command to adjust winch
             try {
                 //Set desired winch movement distance
-                winchSettings.put("p", (float) Math.abs(k[0]));
+                command.put("s2", "p", (float) Math.abs(k[0]));
 
                 //Hardcoded velocity - get rid of this eventually
-                winchSettings.put("v", 500 * Math.signum(k[0]));
-                command.put("s2", winchSettings);
+                command.put("s2", "v", 500 * Math.signum(k[0]));
 
+                // Winch movements are one-off commands, so they must not be merged into the
+                // actuator setpoint, which may be replaced or discarded before it is written.
+                command.encode();
                 mController.send(command);
-                mLogger.info(new JSONObject().put("winch", command));
-            } catch (JSONException e) {
-                Log.w(TAG, "Unable to construct JSON string from winch command: " + Arrays.toString(k));
+                mLogger.info("winch", command.getBuffer(), 0, command.getJsonLength());
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Invalid winch command: " + Arrays.toString(k));
             } catch (IOException e) {
                 Log.w(TAG, "Unable to send winch command.", e);
             }
@@ -365,6 +642,247 @@ public class VehicleServerImpl extends AbstractVehicleServer {
         }
     }
 
+    /**
+     * Looks up the drive model for the vehicle type in the application SharedPreferences.
+     */
+    void updateDriveModel() {
+        String vehicleType = mPrefs.getString("pref_vehicle_type",
+                _context.getResources().getString(R.string.pref_vehicle_type_default));
+        try {
+            mDriveModel = VehicleType.valueOf(vehicleType).model;
+            Log.i(TAG, "Using vehicle type: " + vehicleType);
+        } catch (IllegalArgumentException e) {
+            mDriveModel = null;
+            Log.w(TAG, "Unknown vehicle type: " + vehicleType);
+        }
+    }
+
+    /**
+     * Schedules pose broadcast and pose logging at the rates in the application SharedPreferences.
+     * Both run on the control loop clock, so they stay phase-aligned with vehicle commands.
+     */
+    void updateTelemetryRates() {
+        mControlLoop.schedule(_poseBroadcastTask,
+                ticksForRate("pref_pose_broadcast_rate", R.string.pref_pose_broadcast_rate_default));
+        mControlLoop.schedule(_poseLogTask,
+                ticksForRate("pref_pose_log_rate", R.string.pref_pose_log_rate_default));
+    }
+
+    /**
+     * Applies the per-channel sensor dispatch policies in the application SharedPreferences,
+     * passing every reading through if they are invalid.
+     */
+    void updateSensorDispatch() {
+        String spec = mPrefs.getString("pref_sensor_dispatch", "");
+        try {
+            mSensorDispatcher.setPolicies(spec);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Invalid sensor dispatch policies: " + spec, e);
+            mSensorDispatcher.setPolicies("");
+        }
+    }
+
+    /**
+     * Enables or disables the rejection of outliers in probe readings, according to the
+     * application SharedPreferences.  The smallest deviations assumed are a little above the
+     * resolution of each probe, so that readings that are steady are not rejected for
+     * changing by a single step.
+     */
+    void updateOutlierFilters() {
+        if (mPrefs.getBoolean("pref_sensor_outlier_filter", true)) {
+            // Dissolved oxygen in mg/L.
+            mOutlierRejector.configure(SensorType.ATLAS_DO,
+                    OUTLIER_WINDOW, OUTLIER_THRESHOLD, 0.05);
+            // pH.
+            mOutlierRejector.configure(SensorType.ATLAS_PH,
+                    OUTLIER_WINDOW, OUTLIER_THRESHOLD, 0.02);
+            // Conductivity in uS/cm and temperature in degrees Celsius.
+            mOutlierRejector.configure(SensorType.ES2,
+                    OUTLIER_WINDOW, OUTLIER_THRESHOLD, 5.0, 0.1);
+        } else {
+            mOutlierRejector.remove(SensorType.ATLAS_DO);
+            mOutlierRejector.remove(SensorType.ATLAS_PH);
+            mOutlierRejector.remove(SensorType.ES2);
+        }
+    }
+
+    /**
+     * Converts a rate setting in Hz into an interval in control loop ticks.
+     *
+     * @param key          the name of the rate setting
+     * @param defaultResId the resource ID of the default rate
+     * @return the number of ticks between updates at the requested rate
+     */
+    private long ticksForRate(String key, int defaultResId) {
+        String defaultRate = _context.getResources().getString(defaultResId);
+        String rate = mPrefs.getString(key, defaultRate);
+        try {
+            double hz = Double.parseDouble(rate.trim());
+            if (hz > 0.0)
+                return mControlLoop.ticks(1000.0 / hz);
+        } catch (NumberFormatException e) {
+            // Fall through to the default rate.
+        }
+
+        Log.w(TAG, "Invalid rate for " + key + ": " + rate);
+        return mControlLoop.ticks(1000.0 / Double.parseDouble(defaultRate));
+    }
+
+    /**
+     * Posts a command to the controller board if one is connected.  The command is sent with
+     * any other commands posted during the same tick at the end of the tick.
+     * This does not allocate or log, so it is safe to call on every control loop tick.
+     *
+     * @param command the command to send
+     */
+    void sendCommand(CommandEncoder command) {
+        command.encode();
+        try {
+            if (mController.isConnected())
+                mController.post(command);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to send command.", e);
+        }
+    }
+
+    /**
+     * Posts the current actuator command, so that it is sent at the end of the current control
+     * loop tick.  This is used to restore the actuators of a newly connected board.
+     * One-off commands, such as relative winch movements and sampler triggers, are not repeated.
+     */
+    private void resendActuatorState() {
+        VehicleDriveModel driveModel = mDriveModel;
+        if (driveModel == null)
+            return;
+
+        synchronized (mResendCommand) {
+            driveModel.actuate(_velocities, mResendCommand.clear());
+            sendCommand(mResendCommand);
+            mLogger.info("cmd", mResendCommand.getBuffer(), 0, mResendCommand.getJsonLength());
+        }
+    }
+
+    /**
+     * Sends a command that stops the vehicle ahead of any other waiting commands, rather than
+     * waiting for the end of the control loop tick.  The commanded velocity should already have
+     * been set to zero, so that subsequent ticks keep the vehicle stopped.
+     */
+    private void sendStop() {
+        VehicleDriveModel driveModel = mDriveModel;
+        if (driveModel == null || !mController.isConnected())
+            return;
+
+        synchronized (mStopCommand) {
+            driveModel.actuate(STOP_VELOCITY, mStopCommand.clear());
+            mStopCommand.encode();
+            try {
+                mController.sendSafety(mStopCommand);
+                mLogger.info("cmd", mStopCommand.getBuffer(), 0, mStopCommand.getJsonLength());
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to send stop command.", e);
+            }
+        }
+    }
+
+    /**
+     * Stops the vehicle if no velocity command has been received within the timeout.
+     * This is only called from the control loop thread.
+     */
+    private void checkVelocityTimeout() {
+        synchronized (mVelocityLock) {
+            if (mVelocityDeadlineNs == Long.MAX_VALUE || System.nanoTime() < mVelocityDeadlineNs)
+                return;
+
+            // Stop the vehicle and disarm the watchdog until the next velocity command.
+            _velocities = new Twist();
+            mVelocityDeadlineNs = Long.MAX_VALUE;
+            mVelocityTimeouts++;
+        }
+        sendStop();
+
+        Log.w(TAG, "Velocity command timed out, stopping vehicle.");
+        try {
+            mLogger.warn(new JSONObject()
+                    .put("timeout", new JSONObject()
+                            .put("velocity", VELOCITY_TIMEOUT_MS)
+                            .put("count", mVelocityTimeouts)));
+        } catch (JSONException e) {
+            Log.w(TAG, "Unable to serialize velocity timeout.");
+        }
+    }
+
+    /**
+     * Returns the number of times the velocity watchdog has stopped the vehicle because no
+     * velocity command was received within {@link #VELOCITY_TIMEOUT_MS}.
+     */
+    public long getVelocityTimeoutCount() {
+        return mVelocityTimeouts;
+    }
+
+    /**
+     * Publishes a new snapshot of the vehicle state from the latest filter estimate, commanded
+     * velocity and gyro reading.  This is only called from the control loop thread.
+     *
+     * @return the newly published state
+     */
+    private VehicleState updateState() {
+        long timeMs = System.currentTimeMillis();
+        VehicleState state = new VehicleState(filter.pose(timeMs), _velocities, _gyroPhone,
+                timeMs, System.nanoTime(), mState.getSequence() + 1);
+        mState = state;
+        return state;
+    }
+
+    /**
+     * Returns the most recent snapshot of the vehicle state.
+     * <p/>
+     * This is the preferred way to read the vehicle state: it does not lock or allocate,
+     * and all of the values in the snapshot are consistent with each other.
+     */
+    public VehicleState getState() {
+        return mState;
+    }
+
+    /**
+     * Returns statistics of the time from sampling the vehicle state at the start of a control
+     * loop tick to finishing the write of the resulting actuator command to the board.
+     * Ticks whose command is replaced before it is written are not recorded.
+     */
+    public TimingStats getPipelineLatency() {
+        return mController.getPipelineLatency();
+    }
+
+    /**
+     * Returns the buffer of timestamped control loop events.
+     */
+    public TraceBuffer getTrace() {
+        return mTrace;
+    }
+
+    /**
+     * Writes the contents of the trace buffer to a CSV file next to the vehicle log.
+     * This performs file I/O, so it should not be called from the control loop.
+     *
+     * @return the file that was written
+     * @throws IOException if the trace could not be written
+     */
+    public File dumpTrace() throws IOException {
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US);
+        File file = new File(mLogger.getDirectory(), "trace_" + sdf.format(new Date()) + ".csv");
+        mTrace.dump(file);
+        Log.i(TAG, "Wrote " + Math.min(mTrace.getCount(), mTrace.getCapacity())
+                + " trace events to " + file);
+        return file;
+    }
+
+    /**
+     * Returns the control loop that schedules periodic vehicle work.
+     * This can be used to query the timing performance of the loop.
+     */
+    public ControlLoop getControlLoop() {
+        return mControlLoop;
+    }
+
     /**
      * Returns the current gyro readings
      */
@@ -373,8 +891,10 @@ public class VehicleServerImpl extends AbstractVehicleServer {
     }
 
     public void setPhoneGyro(float[] gyroValues) {
+        double[] gyro = new double[3];
         for (int i = 0; i < gyroValues.length; i++)
-            _gyroPhone[i] = (double) gyroValues[i];
+            gyro[i] = (double) gyroValues[i];
+        _gyroPhone = gyro;
     }
 
     /**
@@ -390,6 +910,17 @@ public class VehicleServerImpl extends AbstractVehicleServer {
      * @param cmd the list of arguments composing a command
      */
     protected void onCommand(JSONObject cmd) {
+        onCommand(cmd, System.nanoTime());
+    }
+
+    /**
+     * Handles complete Arduino commands, once they are reassembled.
+     *
+     * @param cmd    the list of arguments composing a command
+     * @param timeNs the monotonic time at which the board produced the command, in the
+     *               {@link System#nanoTime()} timebase used by {@link VehicleState#getTimeNs()}
+     */
+    protected void onCommand(JSONObject cmd, long timeNs) {
 
         @SuppressWarnings("unchecked")
         Iterator<String> keyIterator = cmd.keys();
@@ -402,110 +933,12 @@ public class VehicleServerImpl extends AbstractVehicleServer {
                 if (name.startsWith("m")) {
                     int motor = name.charAt(1) - 48;
                 } else if (name.startsWith("s")) {
-                    int sensor = name.charAt(1) - 48;
-
-                    // Hacks to send sensor information
+                    // Readings of known sensor types are handled by the sensor decoders, so
+                    // anything left here is of a type that no decoder is registered for.  It is
+                    // logged with its acquisition time, like the readings that are decoded.
                     if (value.has("type")) {
-                        String type = value.getString("type");
-                        SensorData reading = new SensorData();
-
-                        if (type.equalsIgnoreCase("es2")) {
-                            try {
-                                // Parse out temperature and ec values
-                                String[] data = value.getString("data").trim().split(" ");
-                                double ecData = Double.parseDouble(data[0]);
-                                double tempData = Double.parseDouble(data[1]);
-
-                                // Todo: update stored temp and ec values then push to DO/pH probes
-                                // Fill in readings from parsed sensor data.
-                                reading.channel = sensor;
-                                reading.type = SensorType.ES2;
-                                reading.data = new double[]{ecData, tempData};
-                            } catch (NumberFormatException e) {
-                                Log.w(TAG, "Received malformed ES2 Sensor Data: " + value);
-                                continue;
-                            }
-                        } else if (type.equalsIgnoreCase("atlas_do")) {
-                            // Fill in readings from parsed sensor data.
-                            reading.channel = sensor;
-                            reading.type = SensorType.ATLAS_DO;
-                            reading.data = new double[]{value.getDouble("data")};
-                        } else if (type.equalsIgnoreCase("atlas_ph")) {
-                            // Fill in readings from parsed sensor data.
-                            reading.channel = sensor;
-                            reading.type = SensorType.ATLAS_PH;
-                            reading.data = new double[]{value.getDouble("data")};
-                        } else if (type.equalsIgnoreCase("hds")) {
-                            String nmea = value.getString("data");
-                            if (nmea.startsWith("$SDDBT")) { //Depth Below Transducer
-                                try {
-                                    double depth = Double.parseDouble(nmea.split(",")[3]);
-
-                                    // Fill in readings from parsed sensor data.
-                                    reading.type = SensorType.HDS_DEPTH;
-                                    reading.channel = sensor;
-                                    reading.data = new double[]{depth};
-                                } catch (Exception e) {
-                                    Log.w(TAG, "Failed to parse depth reading: " + nmea);
-                                    continue;
-                                }
-                            } else if (nmea.startsWith("$SDMTW")) { //Water Temperature
-                                try {
-                                    double temp = Double.parseDouble((nmea.split(",")[1]));
-
-                                    reading.type = SensorType.HDS_TEMP;
-                                    reading.channel = sensor;
-                                    reading.data = new double[]{temp};
-                                } catch (Exception e) {
-                                    Log.w(TAG, "Failed to parse temperature reading: " + nmea);
-                                    continue;
-                                }
-                            } else if (nmea.startsWith("$SDRMC")) { //GPS
-                                continue;
-                            } else {
-                                Log.w(TAG, "Unknown NMEA String: " + nmea);
-                                continue;
-                            }
-                        } else if (type.equalsIgnoreCase("battery")) {
-                            try {
-                                // Parse out voltage and motor velocity values
-                                String[] data = value.getString("data").trim().split(" ");
-                                double voltage = Double.parseDouble(data[0]);
-                                double motor0Velocity = Double.parseDouble(data[1]);
-                                double motor1Velocity = Double.parseDouble(data[2]);
-
-                                // Fill in readings from parsed sensor data.
-                                reading.channel = sensor;
-                                reading.type = SensorType.BATTERY;
-                                reading.data = new double[]{voltage, motor0Velocity, motor1Velocity};
-                            } catch (NumberFormatException e) {
-                                Log.w(TAG, "Received malformed Battery Sensor Data: " + value);
-                            }
-                        } else if (type.equalsIgnoreCase("winch")) {
-                            // Fill in readings from parsed sensor data.
-                            reading.channel = sensor;
-                            reading.type = SensorType.UNKNOWN;
-                            reading.data = new double[]{value.getDouble("depth")};
-
-                            // TODO: Remove this hack to store winch depth
-                            winch_depth_ = reading.data[0];
-                        } else {
-                            Log.w(TAG, "Received sensor data of unknown type '" + cmd + "'.");
-                            mLogger.warn(cmd);
-
-                            // Don't want to call sendSensor on unknown sensor type
-                            continue;
-                        }
-
-                        // Attempt to log the collected sensor reading
-                        mLogger.info(new JSONObject()
-                                .put("sensor", new JSONObject()
-                                        .put("channel", reading.channel)
-                                        .put("type", reading.type.toString())
-                                        .put("data", new JSONArray(reading.data))));
-
-                        // Send out the collected sensor reading
-                        sendSensor(sensor, reading);
+                        Log.w(TAG, "Received sensor data of unknown type '" + cmd + "'.");
+                        mLogger.warn(new JSONObject().put("time_ns", timeNs).put(name, value));
                     }
                 } else {
                     Log.w(TAG, "Received unknown param '" + cmd + "'.");
@@ -516,14 +949,116 @@ public class VehicleServerImpl extends AbstractVehicleServer {
         }
     }
 
+    /**
+     * Handles a sensor reading decoded by one of the registered {@link SensorDecoder}s, by
+     * rejecting outliers, logging both the raw and filtered values, recording the filtered
+     * values in the sensor history and queueing them for sensor listeners.
+     * This is called on the receive thread.
+     *
+     * @param reading the decoded reading, which is reused after this returns
+     * @param timeNs  the monotonic time at which the board produced the reading
+     */
+    protected void onSensor(SensorData reading, long timeNs) {
+        boolean isFiltered = mOutlierRejector.apply(reading);
+        int length = mSensorLogEncoder.encode(reading, timeNs,
+                isFiltered ? mOutlierRejector.getRawValues() : null);
+        if (length >= 0) {
+            mLogger.info("sensor", mSensorLogEncoder.getBuffer(), 0, length);
+        } else {
+            Log.w(TAG, "Unable to log " + reading.type + " reading.");
+        }
+        mSensorHistory.record(reading, timeNs);
+        mSensorDispatcher.offer(reading);
+    }
+
+    /**
+     * Logs depth sounder sentences that do not produce sensor readings, such as GPS fixes, as
+     * JSON strings.  This is called on the receive thread.
+     */
+    private final NmeaSensorDecoder.Listener mNmeaListener = new NmeaSensorDecoder.Listener() {
+        @Override
+        public void onSentence(NmeaParser parser, SensorMessage message) {
+            int length = message.getDataLength();
+            if (length + 2 > mNmeaLogBuffer.length)
+                return;
+
+            // Sentences with a valid checksum contain no quotes or escapes.
+            mNmeaLogBuffer[0] = '"';
+            System.arraycopy(message.getBuffer(), message.getDataOffset(),
+                    mNmeaLogBuffer, 1, length);
+            mNmeaLogBuffer[length + 1] = '"';
+            mLogger.info("nmea", mNmeaLogBuffer, 0, length + 2);
+        }
+    };
+
+    /**
+     * Returns the filter that rejects outliers in sensor readings, which may be configured for
+     * additional types of sensor.
+     */
+    public OutlierRejector getOutlierRejector() {
+        return mOutlierRejector;
+    }
+
+    /**
+     * Returns the recent readings of every sensor.
+     */
+    public SensorHistory getSensorHistory() {
+        return mSensorHistory;
+    }
+
+    /**
+     * Writes the recent readings of every sensor to a file in the log directory, with one line
+     * of JSON for each sensor, as described by {@link SensorHistory.Series#appendJson}.
+     *
+     * @param seconds how far back to include readings
+     * @return the file that was written
+     * @throws IOException if the file could not be written
+     */
+    public File dumpSensorHistory(double seconds) throws IOException {
+        long fromNs = System.nanoTime() - (long) (seconds * 1e9);
+        StringBuilder json = new StringBuilder();
+        int count = 0;
+        for (SensorHistory.Series series : mSensorHistory.getSeries()) {
+            series.appendJson(json, fromNs);
+            json.append('\n');
+            count++;
+        }
+
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US);
+        File file = new File(mLogger.getDirectory(), "sensors_" + sdf.format(new Date()) + ".json");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(json.toString());
+        } finally {
+            writer.close();
+        }
+        Log.i(TAG, "Wrote the last " + seconds + "s of " + count + " sensors to " + file);
+        return file;
+    }
+
+    /**
+     * Returns the dispatcher that forwards sensor readings to listeners.
+     */
+    public SensorDispatcher getSensorDispatcher() {
+        return mSensorDispatcher;
+    }
+
+    /**
+     * Returns the registry of decoders used for sensor messages from the controller board.
+     * Decoders for additional sensor types may be registered before the server is started.
+     */
+    public SensorDecoderRegistry getSensorDecoders() {
+        return mSensorDecoders;
+    }
+
     // TODO: Revert capture image to take images
     // This is a hack to support the water sampler until PID is working again.
     public synchronized byte[] captureImage(int width, int height) {
         // Call command to fire sampler
         try {
-            JSONObject samplerCommand = new JSONObject()
-                    .put("s0", new JSONObject()
-                            .put("sample", true));
+            CommandEncoder samplerCommand = new CommandEncoder()
+                    .put("s0", "sample", true);
+            samplerCommand.encode();
             mController.send(samplerCommand);
             mLogger.info(new JSONObject().put("sampler", true));
             Log.i(TAG, "Triggering sampler.");
@@ -554,37 +1089,15 @@ public class VehicleServerImpl extends AbstractVehicleServer {
                 + height + ") frames @ " + interval + "s");
 
         // Create a camera capture task
-        TimerTask newCaptureTask = new TimerTask() {
-            int iFrame = 0;
-
-            @Override
-            public void run() {
-                synchronized (_captureLock) {
-                    // Take a new image and send it out
-                    sendImage(captureImageInternal(width, height));
-                    iFrame++;
-
-                    // If we exceed numFrames, we finished
-                    if (numFrames > 0 && iFrame >= numFrames) {
-                        sendCameraUpdate(CameraState.DONE);
-                        this.cancel();
-                        _captureTask = null;
-                    } else {
-                        sendCameraUpdate(CameraState.CAPTURING);
-                    }
-                }
-            }
-        };
+        CaptureTask newCaptureTask = new CaptureTask(numFrames, width, height);
 
         synchronized (_captureLock) {
             // Cancel any previous capture tasks
-            if (_captureTask != null)
-                _captureTask.cancel();
+            mControlLoop.cancel(_captureTask);
 
             // Schedule this task for execution
             _captureTask = newCaptureTask;
-            _captureTimer.scheduleAtFixedRate(_captureTask, 0,
-                    (long) (interval * 1000.0));
+            mControlLoop.schedule(_captureTask, mControlLoop.ticks(interval * 1000.0));
         }
 
         // Report the new imaging job in the log file
@@ -606,7 +1119,7 @@ public class VehicleServerImpl extends AbstractVehicleServer {
         // navigation flag and then removing the reference to the old flag.
         synchronized (_captureLock) {
             if (_captureTask != null) {
-                _captureTask.cancel();
+                mControlLoop.cancel(_captureTask);
                 _captureTask = null;
             }
         }
@@ -639,9 +1152,12 @@ public class VehicleServerImpl extends AbstractVehicleServer {
         return NUM_SENSORS;
     }
 
+    /**
+     * Returns the pose from the most recent vehicle state.  The result must not be modified.
+     */
     @Override
     public UtmPose getPose() {
-        return _utmPose;
+        return mState.getPose();
     }
 
     /**
@@ -657,32 +1173,122 @@ public class VehicleServerImpl extends AbstractVehicleServer {
         // Change the offset of this vehicle by modifying filter
         filter.reset(pose, System.currentTimeMillis());
 
-        // Copy this pose over the existing value
-        _utmPose = pose.clone();
+        // Copy this pose (it will be published in the next vehicle state)
+        UtmPose utmPose = pose.clone();
 
         // Report the new pose in the log file and to listeners.
         try {
             mLogger.info(new JSONObject()
                     .put("pose", new JSONObject()
-                            .put("p", new JSONArray(_utmPose.pose.getPosition()))
-                            .put("q", new JSONArray(_utmPose.pose.getRotation().getArray()))
-                            .put("zone", _utmPose.origin.toString())));
+                            .put("p", new JSONArray(utmPose.pose.getPosition()))
+                            .put("q", new JSONArray(utmPose.pose.getRotation().getArray()))
+                            .put("zone", utmPose.origin.toString())));
         } catch (JSONException e) {
             Log.w(TAG, "Unable to serialize pose.");
         }
-        sendState(_utmPose);
+        sendState(utmPose);
     }
 
     @Override
     public void startWaypoints(final UtmPose[] waypoints,
                                final String controller) {
-        Log.i(TAG, "Starting waypoints with " + controller + ": "
-                + Arrays.toString(waypoints));
+        Log.i(TAG, "Starting " + waypoints.length + " waypoints with " + controller);
 
-        // Create a waypoint navigation task
-        TimerTask newNavigationTask = new TimerTask() {
-            final double dt = (double) UPDATE_INTERVAL_MS / 1000.0;
+        synchronized (_navigationLock) {
+            // Change waypoints to new set of waypoints
+            _waypoints.set(waypoints);
+            startNavigation(controller);
+        }
+
+        // Report the new waypoint in the log file.
+        try {
+            mLogger.info(new JSONObject()
+                    .put("nav", new JSONObject()
+                            .put("controller", controller)
+                            .put("waypoints", new JSONArray(waypoints))));
+        } catch (JSONException e) {
+            Log.w(TAG, "Unable to serialize waypoints.");
+        }
+    }
 
+    /**
+     * Adds waypoints to the end of the current mission.  If the vehicle had finished the
+     * previous waypoints, navigation resumes with the controller of the current mission.
+     * Only the added waypoints are recorded in the log file.
+     *
+     * @param waypoints the waypoints to add
+     */
+    public void appendWaypoints(UtmPose[] waypoints) {
+        int position;
+        synchronized (_navigationLock) {
+            position = _waypoints.size();
+            _waypoints.append(waypoints);
+            resumeNavigation();
+        }
+        logWaypointChange("append", position, waypoints);
+    }
+
+    /**
+     * Inserts waypoints into the current mission.  Positions are relative to the waypoint that
+     * the vehicle is currently navigating towards, so inserting at position 0 redirects the
+     * vehicle to the first inserted waypoint.  Only the inserted waypoints are recorded in the
+     * log file.
+     *
+     * @param position  the position before which to insert the waypoints
+     * @param waypoints the waypoints to insert
+     * @throws IndexOutOfBoundsException if the position is beyond the end of the mission
+     */
+    public void insertWaypoints(int position, UtmPose[] waypoints) {
+        synchronized (_navigationLock) {
+            _waypoints.insert(position, waypoints);
+            resumeNavigation();
+        }
+        logWaypointChange("insert", position, waypoints);
+    }
+
+    /**
+     * Removes a range of waypoints from the current mission.  Positions are relative to the
+     * waypoint that the vehicle is currently navigating towards.  To truncate the mission,
+     * remove the range from the desired position to the end of the mission.
+     *
+     * @param from the position of the first waypoint to remove
+     * @param to   the position after the last waypoint to remove, or -1 for the end of the mission
+     * @throws IndexOutOfBoundsException if the range is out of bounds
+     */
+    public void removeWaypoints(int from, int to) {
+        synchronized (_navigationLock) {
+            if (to < 0)
+                to = _waypoints.size();
+            _waypoints.remove(from, to);
+        }
+
+        try {
+            mLogger.info(new JSONObject()
+                    .put("nav", new JSONObject()
+                            .put("remove", new JSONObject()
+                                    .put("from", from)
+                                    .put("to", to))));
+        } catch (JSONException e) {
+            Log.w(TAG, "Unable to serialize waypoint removal.");
+        }
+    }
+
+    /**
+     * Returns the number of waypoints in the current mission that have not yet been reached.
+     */
+    public int getWaypointCount() {
+        synchronized (_navigationLock) {
+            return _waypoints.size();
+        }
+    }
+
+    /**
+     * Replaces the navigation task with a new one using the given controller.
+     * Must be called while holding the navigation lock.
+     */
+    private void startNavigation(final String controller) {
+        // Create a waypoint navigation task
+        ControlLoop.Task newNavigationTask = new ControlLoop.Task() {
             // Retrieve the appropriate controller in initializer
             VehicleController vc = DEFAULT_CONTROLLER;
 
@@ -697,28 +1303,26 @@ public class VehicleServerImpl extends AbstractVehicleServer {
             }
 
             @Override
-            public void run() {
+            public void run(double dt) {
                 synchronized (_navigationLock) {
                     //Log.i(TAG, "Synchronized");
 
                     if (!_isAutonomous.get()) {
                         // If we are not autonomous, do nothing
-                        Log.i(TAG, "Paused");
                         sendWaypointUpdate(WaypointState.PAUSED);
-                    } else if (_waypoints.length == 0) {
+                    } else if (_waypoints.isEmpty()) {
                         // If we are finished with waypoints, stop in place
                         Log.i(TAG, "Done");
                         sendWaypointUpdate(WaypointState.DONE);
                         setVelocity(new Twist(DEFAULT_TWIST));
-                        this.cancel();
+                        mControlLoop.cancel(this);
                         _navigationTask = null;
 
                     } else {
                         // If we are still executing waypoints, use a
                         // controller to figure out how to get to waypoint
-                        // TODO: measure dt directly instead of approximating
-                        Log.i(TAG, "controller :" + controller);
                         vc.update(VehicleServerImpl.this, dt);
+                        mTrace.record(TraceBuffer.CONTROLLER_DONE, mState.getSequence());
                         sendWaypointUpdate(WaypointState.GOING);
                         //Log.i(TAG, "Waypoint Status: POINT_AND_SHOOT");
                     }
@@ -726,26 +1330,33 @@ public class VehicleServerImpl extends AbstractVehicleServer {
             }
         };
 
-        synchronized (_navigationLock) {
-            // Change waypoints to new set of waypoints
-            _waypoints = new UtmPose[waypoints.length];
-            System.arraycopy(waypoints, 0, _waypoints, 0, _waypoints.length);
+        // Cancel any previous navigation tasks
+        mControlLoop.cancel(_navigationTask);
 
-            // Cancel any previous navigation tasks
-            if (_navigationTask != null)
-                _navigationTask.cancel();
+        // Schedule this task for execution
+        _navigationController = controller;
+        _isNavigating = true;
+        _navigationTask = newNavigationTask;
+        mControlLoop.schedule(_navigationTask, mControlLoop.ticks(UPDATE_INTERVAL_MS),
+                ControlLoop.STAGE_CONTROL);
+    }
 
-            // Schedule this task for execution
-            _navigationTask = newNavigationTask;
-            _navigationTimer.scheduleAtFixedRate(_navigationTask, 0, UPDATE_INTERVAL_MS);
-        }
+    /**
+     * Restarts navigation if the current mission has run out of waypoints but was not stopped.
+     * Must be called while holding the navigation lock.
+     */
+    private void resumeNavigation() {
+        if (_navigationTask == null && _isNavigating && !_waypoints.isEmpty())
+            startNavigation(_navigationController);
+    }
 
-        // Report the new waypoint in the log file.
+    private void logWaypointChange(String change, int position, UtmPose[] waypoints) {
         try {
             mLogger.info(new JSONObject()
                     .put("nav", new JSONObject()
-                            .put("controller", controller)
-                            .put("waypoints", new JSONArray(waypoints))));
+                            .put(change, new JSONObject()
+                                    .put("at", position)
+                                    .put("waypoints", new JSONArray(waypoints)))));
         } catch (JSONException e) {
             Log.w(TAG, "Unable to serialize waypoints.");
         }
@@ -756,11 +1367,13 @@ public class VehicleServerImpl extends AbstractVehicleServer {
         // Stop the thread that is doing the "navigation" by terminating its
         // navigation process, clear all the waypoints, and stop the vehicle.
         synchronized (_navigationLock) {
+            _isNavigating = false;
             if (_navigationTask != null) {
-                _navigationTask.cancel();
+                mControlLoop.cancel(_navigationTask);
                 _navigationTask = null;
-                _waypoints = new UtmPose[0];
+                _waypoints.clear();
                 setVelocity(new Twist(DEFAULT_TWIST));
+                sendStop();
                 Log.i(TAG, "StopWaypoint");
             }
         }
@@ -769,18 +1382,52 @@ public class VehicleServerImpl extends AbstractVehicleServer {
 
     @Override
     public UtmPose[] getWaypoints() {
-        UtmPose[] wpts;
         synchronized (_navigationLock) {
-            wpts = new UtmPose[_waypoints.length];
-            System.arraycopy(_waypoints, 0, wpts, 0, wpts.length);
+            return _waypoints.toArray();
+        }
+    }
+
+    /**
+     * Returns the waypoint that the vehicle is currently navigating towards.
+     * Unlike {@link #getWaypoints()}, this does not copy the remaining waypoints.
+     *
+     * @return the current waypoint, or null if there are no remaining waypoints
+     */
+    public UtmPose getCurrentWaypoint() {
+        synchronized (_navigationLock) {
+            return _waypoints.peek();
+        }
+    }
+
+    /**
+     * Marks the current waypoint as reached and moves on to the next one, without
+     * interrupting the navigation task.  The event is recorded in the log file.
+     */
+    public void advanceWaypoint() {
+        int index;
+        int remaining;
+        synchronized (_navigationLock) {
+            index = _waypoints.index();
+            if (!_waypoints.advance())
+                return;
+            remaining = _waypoints.size();
+        }
+
+        Log.i(TAG, "Reached waypoint " + index + ", " + remaining + " remaining.");
+        try {
+            mLogger.info(new JSONObject()
+                    .put("nav", new JSONObject()
+                            .put("reached", index)
+                            .put("remaining", remaining)));
+        } catch (JSONException e) {
+            Log.w(TAG, "Unable to serialize waypoint progress.");
         }
-        return wpts;
     }
 
     @Override
     public WaypointState getWaypointStatus() {
         synchronized (_navigationLock) {
-            if (_waypoints.length > 0) {
+            if (!_waypoints.isEmpty()) {
                 return _isAutonomous.get() ? WaypointState.PAUSED
                         : WaypointState.GOING;
             } else {
@@ -800,26 +1447,27 @@ public class VehicleServerImpl extends AbstractVehicleServer {
      * Sets a desired 6D velocity for the vehicle.
      */
     public void setVelocity(Twist vel) {
-        _velocities = vel.clone();
-
-        // Schedule a task to shutdown the velocity if no command is received within the timeout.
-        // Normally, this task will be canceled by a subsequent call to the setVelocity function,
-        // but if no call is made within the timeout, the task will execute, stopping the vehicle.
-        synchronized (mVelocityExecutor) {
-            // Cancel the previous shutdown task.
-            if (mVelocityFuture != null)
-                mVelocityFuture.cancel(false);
-
-            // Schedule a new shutdown task.
-            mVelocityFuture = mVelocityExecutor.schedule(new Runnable() {
-                @Override
-                public void run() {
-                    setVelocity(new Twist());
-                }
-            }, VELOCITY_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        Twist velocity = vel.clone();
+
+        // Move the shutdown deadline forward.  Normally, a subsequent call to this function
+        // will arrive before the deadline, but if no call is made within the timeout, the
+        // control loop will stop the vehicle.  A zero velocity already stops the vehicle, so
+        // it disarms the watchdog rather than counting as a timeout later.
+        synchronized (mVelocityLock) {
+            _velocities = velocity;
+            mVelocityDeadlineNs = isZero(velocity) ? Long.MAX_VALUE
+                    : System.nanoTime() + VELOCITY_TIMEOUT_MS * 1000000L;
         }
     }
 
+    /**
+     * Returns whether every component of a velocity is zero.
+     */
+    private static boolean isZero(Twist velocity) {
+        return velocity.dx() == 0 && velocity.dy() == 0 && velocity.dz() == 0
+                && velocity.drx() == 0 && velocity.dry() == 0 && velocity.drz() == 0;
+    }
+
     @Override
     public boolean isAutonomous() {
         return _isAutonomous.get();
@@ -829,8 +1477,12 @@ public class VehicleServerImpl extends AbstractVehicleServer {
     public void setAutonomous(boolean isAutonomous) {
         _isAutonomous.set(isAutonomous);
 
-        // Set velocities to zero to allow for safer transitions
-        _velocities = new Twist(DEFAULT_TWIST);
+        // Set velocities to zero to allow for safer transitions.  The vehicle is no longer
+        // being driven, so the velocity watchdog is disarmed as well.
+        synchronized (mVelocityLock) {
+            _velocities = new Twist(DEFAULT_TWIST);
+            mVelocityDeadlineNs = Long.MAX_VALUE;
+        }
     }
 
     /**
@@ -844,13 +1496,64 @@ public class VehicleServerImpl extends AbstractVehicleServer {
         _isConnected.set(false);
         _isRunning.set(false);
 
-        _updateTimer.cancel();
-        _updateTimer.purge();
+        mPrefs.unregisterOnSharedPreferenceChangeListener(mPreferenceListener);
+        mController.setConnectionListener(null);
+        mController.setTrace(null);
+        mControlLoop.shutdown();
+        mSensorDispatcher.shutdown();
+        mCaptureExecutor.shutdown();
+    }
+
+    /**
+     * Periodic task that takes a series of camera images.
+     * <p/>
+     * The control loop only triggers each capture; the capture itself runs on a separate worker
+     * because the camera may block for much longer than a control loop period.  If a capture is
+     * still in progress when the next one is due, that frame is skipped.
+     */
+    protected class CaptureTask implements ControlLoop.Task, Runnable {
+        final int mNumFrames;
+        final int mWidth;
+        final int mHeight;
+        final AtomicBoolean mIsCapturing = new AtomicBoolean(false);
+        int mFrame = 0;
+
+        CaptureTask(int numFrames, int width, int height) {
+            mNumFrames = numFrames;
+            mWidth = width;
+            mHeight = height;
+        }
+
+        @Override
+        public void run(double dt) {
+            if (mIsCapturing.compareAndSet(false, true))
+                mCaptureExecutor.execute(this);
+        }
+
+        @Override
+        public void run() {
+            try {
+                synchronized (_captureLock) {
+                    // Ignore captures that were triggered before this task was cancelled
+                    if (_captureTask != this)
+                        return;
 
-        _navigationTimer.cancel();
-        _navigationTimer.purge();
+                    // Take a new image and send it out
+                    sendImage(captureImageInternal(mWidth, mHeight));
+                    mFrame++;
 
-        _captureTimer.cancel();
-        _captureTimer.purge();
+                    // If we exceed numFrames, we finished
+                    if (mNumFrames > 0 && mFrame >= mNumFrames) {
+                        sendCameraUpdate(CameraState.DONE);
+                        mControlLoop.cancel(this);
+                        _captureTask = null;
+                    } else {
+                        sendCameraUpdate(CameraState.CAPTURING);
+                    }
+                }
+            } finally {
+                mIsCapturing.set(false);
+            }
+        }
     }
 }
@@ -4,8 +4,10 @@ import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
@@ -44,6 +46,7 @@ import org.jscience.geography.coordinates.LatLong;
 import org.jscience.geography.coordinates.UTM;
 import org.jscience.geography.coordinates.crs.ReferenceEllipsoid;
 
+import java.io.IOException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.measure.unit.NonSI;
@@ -60,6 +63,9 @@ import javax.measure.unit.SI;
 public class VehicleService extends Service {
     public static final String START_ACTION = "com.platypus.android.server.SERVICE_START";
     public static final String STOP_ACTION = "com.platypus.android.server.SERVICE_STOP";
+    public static final String DUMP_TRACE_ACTION = "com.platypus.android.server.DUMP_TRACE";
+    public static final String DUMP_SENSOR_HISTORY_ACTION =
+            "com.platypus.android.server.DUMP_SENSOR_HISTORY";
     private static final int SERVICE_ID = 11312;
     private static final String TAG = VehicleService.class.getSimpleName();
     final int GPS_UPDATE_RATE = 200; // in milliseconds
@@ -76,6 +82,9 @@ public class VehicleService extends Service {
     // Reference to vehicle controller;
     private Controller mController;
 
+    // Simulated controller board used in place of hardware, if enabled.
+    private SimulatedBoard mSimulatedBoard;
+
     // Objects implementing actual functionality
     private VehicleServerImpl _vehicleServerImpl;
     private UdpVehicleService _udpService;
@@ -185,6 +194,55 @@ public class VehicleService extends Service {
         }
     };
 
+    /**
+     * Writes the control loop trace of the running vehicle to a file when requested
+     * by a local broadcast, such as from the debug panel.
+     */
+    private final BroadcastReceiver mTraceReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final VehicleServerImpl server = _vehicleServerImpl;
+            if (server == null)
+                return;
+
+            // Write the trace in the background to avoid file I/O on the main thread.
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        server.dumpTrace();
+                    } catch (IOException e) {
+                        Log.e(TAG, "Failed to write trace.", e);
+                    }
+                }
+            }).start();
+        }
+    };
+
+    /**
+     * Writes the sensor readings kept by the running vehicle to a file when requested by a
+     * local broadcast from the debug panel.  The file is uploaded with the vehicle logs.
+     */
+    private final BroadcastReceiver mSensorHistoryReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final VehicleServerImpl server = _vehicleServerImpl;
+            if (server == null)
+                return;
+            // Write the history in the background to avoid file I/O on the main thread.
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        server.dumpSensorHistory(VehicleServerImpl.SENSOR_HISTORY_SECONDS);
+                    } catch (IOException e) {
+                        Log.e(TAG, "Failed to write sensor history.", e);
+                    }
+                }
+            }).start();
+        }
+    };
+
     /**
      * A shared preference listener that changes settings on the implementation if
      * settings are changed.
@@ -195,6 +253,9 @@ public class VehicleService extends Service {
                 public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
                     if ("pref_server_port".equals(key))
                         startOrUpdateUdpServer();
+                    else if ("pref_simulated_board_rate".equals(key)
+                            || "pref_simulated_board_malformed_rate".equals(key))
+                        updateSimulatedBoardRates(sharedPreferences);
                 }
             };
 
@@ -217,10 +278,57 @@ public class VehicleService extends Service {
         // Get reference to vehicle controller service.
         mController = new Controller(this);
 
+        // Connect to a simulated controller board instead of hardware, if requested.
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
+        if (preferences.getBoolean("pref_simulated_board", false))
+            startSimulatedBoard(preferences);
+
+        // Listen for requests to dump the control loop trace and the sensor history.
+        LocalBroadcastManager.getInstance(this).registerReceiver(mTraceReceiver,
+                new IntentFilter(DUMP_TRACE_ACTION));
+        LocalBroadcastManager.getInstance(this).registerReceiver(mSensorHistoryReceiver,
+                new IntentFilter(DUMP_SENSOR_HISTORY_ACTION));
+
         // TODO: optimize this to allocate resources up here and handle multiple
         // start commands
     }
 
+    /**
+     * Connects the controller to a simulated board in this process, so that the command and
+     * sensor paths can be load tested without hardware.
+     */
+    private void startSimulatedBoard(SharedPreferences preferences) {
+        try {
+            ChannelTransport[] pipe = ChannelTransport.createPipe();
+            mSimulatedBoard = new SimulatedBoard(pipe[1]);
+            updateSimulatedBoardRates(preferences);
+            mSimulatedBoard.start();
+            mController.open(pipe[0]);
+            Log.i(TAG, "Using simulated controller board.");
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to start simulated controller board.", e);
+            mSimulatedBoard = null;
+        }
+    }
+
+    /**
+     * Applies the message rates in the application SharedPreferences to the simulated board.
+     */
+    private void updateSimulatedBoardRates(SharedPreferences preferences) {
+        SimulatedBoard board = mSimulatedBoard;
+        if (board == null)
+            return;
+
+        try {
+            board.setRate(Double.parseDouble(
+                    preferences.getString("pref_simulated_board_rate", "10").trim()));
+            board.setMalformedRate(Double.parseDouble(
+                    preferences.getString("pref_simulated_board_malformed_rate", "0").trim()));
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Invalid simulated board rate.", e);
+        }
+    }
+
     /**
      * Access method to get underlying implementation of server functionality.
      *
@@ -419,11 +527,19 @@ public class VehicleService extends Service {
             mController.shutdown();
             mController = null;
         }
+        if (mSimulatedBoard != null) {
+            mSimulatedBoard.stop();
+            mSimulatedBoard = null;
+        }
 
         // Unregister shared preference listener to listen for updates.
         PreferenceManager.getDefaultSharedPreferences(this)
                 .unregisterOnSharedPreferenceChangeListener(mPreferenceListener);
 
+        // Stop listening for trace requests.
+        LocalBroadcastManager.getInstance(this).unregisterReceiver(mTraceReceiver);
+        LocalBroadcastManager.getInstance(this).unregisterReceiver(mSensorHistoryReceiver);
+
         // Shutdown the vehicle services
         if (_udpService != null) {
             try {
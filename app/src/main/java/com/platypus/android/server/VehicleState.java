@@ -0,0 +1,86 @@
+package com.platypus.android.server;
+
+import com.platypus.crw.data.Twist;
+import com.platypus.crw.data.UtmPose;
+
+/**
+ * An immutable snapshot of the vehicle state at a single control loop tick.
+ * <p/>
+ * A new snapshot is published once per tick by {@link VehicleServerImpl}, so readers on any
+ * thread always see a pose, velocity and gyro reading that belong together.  The pose and
+ * velocity objects are shared by all readers and must not be modified.
+ */
+public final class VehicleState {
+    private final UtmPose mPose;
+    private final Twist mVelocity;
+    private final double[] mGyro;
+    private final long mTimeMs;
+    private final long mTimeNs;
+    private final long mSequence;
+
+    /**
+     * Creates a new snapshot.  Ownership of the arguments is transferred to the snapshot, so
+     * they must not be modified afterwards.
+     *
+     * @param pose     the estimated pose of the vehicle
+     * @param velocity the commanded velocity of the vehicle
+     * @param gyro     the rotation rates of the vehicle [rx, ry, rz]
+     * @param timeMs   the wall-clock time of the pose estimate, in milliseconds
+     * @param timeNs   the monotonic time at which the snapshot was taken, in nanoseconds
+     * @param sequence the number of the snapshot, incremented on each tick
+     */
+    public VehicleState(UtmPose pose, Twist velocity, double[] gyro,
+                        long timeMs, long timeNs, long sequence) {
+        mPose = pose;
+        mVelocity = velocity;
+        mGyro = gyro;
+        mTimeMs = timeMs;
+        mTimeNs = timeNs;
+        mSequence = sequence;
+    }
+
+    /**
+     * Returns the estimated pose of the vehicle.  The result must not be modified.
+     */
+    public UtmPose getPose() {
+        return mPose;
+    }
+
+    /**
+     * Returns the commanded velocity of the vehicle.  The result must not be modified.
+     */
+    public Twist getVelocity() {
+        return mVelocity;
+    }
+
+    /**
+     * Returns a single axis of the gyro reading.
+     *
+     * @param axis the index of the axis [rx, ry, rz]
+     * @return the rotation rate around the axis in radians per second
+     */
+    public double getGyro(int axis) {
+        return mGyro[axis];
+    }
+
+    /**
+     * Returns the wall-clock time of the pose estimate, in milliseconds.
+     */
+    public long getTimeMs() {
+        return mTimeMs;
+    }
+
+    /**
+     * Returns the monotonic time at which this snapshot was taken, in nanoseconds.
+     */
+    public long getTimeNs() {
+        return mTimeNs;
+    }
+
+    /**
+     * Returns the sequence number of this snapshot, which increases by one on each tick.
+     */
+    public long getSequence() {
+        return mSequence;
+    }
+}
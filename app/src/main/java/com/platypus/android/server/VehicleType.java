@@ -0,0 +1,27 @@
+package com.platypus.android.server;
+
+/**
+ * A library of supported vehicle configurations, selected by the "pref_vehicle_type" setting.
+ * <p/>
+ * The names of these entries match the values stored in the application SharedPreferences.
+ * To support a new propulsion layout, implement a {@link VehicleDriveModel} and add it here.
+ */
+public enum VehicleType {
+    /**
+     * Dual thrusters that steer by differential thrust.
+     */
+    DIFFERENTIAL(new DifferentialDriveModel(VehicleServerImpl.SAFE_DIFFERENTIAL_THRUST)),
+    /**
+     * Single thruster that steers with a rudder or rotating thrust.
+     */
+    VECTORED(new VectoredDriveModel(VehicleServerImpl.SAFE_VECTORED_THRUST));
+
+    /**
+     * The drive model associated with this vehicle type.
+     */
+    public final VehicleDriveModel model;
+
+    VehicleType(VehicleDriveModel model) {
+        this.model = model;
+    }
+}
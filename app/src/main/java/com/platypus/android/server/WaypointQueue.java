@@ -0,0 +1,238 @@
+package com.platypus.android.server;
+
+import com.platypus.crw.data.Pose3D;
+import com.platypus.crw.data.Utm;
+import com.platypus.crw.data.UtmPose;
+
+/**
+ * An ordered queue of navigation waypoints with a cursor marking the current waypoint.
+ * <p/>
+ * Waypoints are stored in primitive arrays (eastings, northings, altitudes and UTM zones)
+ * rather than as objects, so very large missions take little memory.  Reaching a waypoint simply
+ * advances the cursor, and waypoints can be appended, inserted and removed without rebuilding the
+ * mission, so the cost of each change scales with the size of the change rather than the size of
+ * the mission.  Positions passed to these methods are relative to the current waypoint, which is
+ * at position 0.
+ * <p/>
+ * Only the position and zone of each waypoint are kept; waypoint orientations are discarded.
+ * <p/>
+ * This class is not thread-safe; callers must provide their own synchronization.
+ */
+public class WaypointQueue {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private double[] mEastings = new double[INITIAL_CAPACITY];
+    private double[] mNorthings = new double[INITIAL_CAPACITY];
+    private double[] mAltitudes = new double[INITIAL_CAPACITY];
+    private int[] mZones = new int[INITIAL_CAPACITY];
+
+    // The remaining waypoints are stored in the array range [mStart, mEnd).
+    private int mStart = 0;
+    private int mEnd = 0;
+    private int mReached = 0;
+
+    // Object form of the current waypoint, created on demand.
+    private UtmPose mCurrent = null;
+
+    /**
+     * Replaces the contents of the queue with the given waypoints.
+     *
+     * @param waypoints the new list of waypoints, starting with the current waypoint
+     */
+    public void set(UtmPose[] waypoints) {
+        clear();
+        insert(0, waypoints);
+    }
+
+    /**
+     * Removes all waypoints from the queue.
+     */
+    public void clear() {
+        mStart = 0;
+        mEnd = 0;
+        mReached = 0;
+        mCurrent = null;
+    }
+
+    /**
+     * Adds waypoints to the end of the queue.
+     *
+     * @param waypoints the waypoints to add
+     */
+    public void append(UtmPose[] waypoints) {
+        insert(size(), waypoints);
+    }
+
+    /**
+     * Inserts waypoints into the queue before the given position.
+     *
+     * @param position  the position at which to insert, from 0 (before the current waypoint)
+     *                  to {@link #size()} (after the last waypoint)
+     * @param waypoints the waypoints to insert
+     * @throws IndexOutOfBoundsException if the position is out of range
+     */
+    public void insert(int position, UtmPose[] waypoints) {
+        if (position < 0 || position > size())
+            throw new IndexOutOfBoundsException("Invalid waypoint position: " + position);
+
+        int count = waypoints.length;
+        reserve(count);
+
+        // Open a gap for the new waypoints.
+        int at = mStart + position;
+        int tail = mEnd - at;
+        System.arraycopy(mEastings, at, mEastings, at + count, tail);
+        System.arraycopy(mNorthings, at, mNorthings, at + count, tail);
+        System.arraycopy(mAltitudes, at, mAltitudes, at + count, tail);
+        System.arraycopy(mZones, at, mZones, at + count, tail);
+        mEnd += count;
+
+        for (int i = 0; i < count; ++i) {
+            UtmPose waypoint = waypoints[i];
+            mEastings[at + i] = waypoint.pose.getX();
+            mNorthings[at + i] = waypoint.pose.getY();
+            mAltitudes[at + i] = waypoint.pose.getZ();
+            mZones[at + i] = encodeZone(waypoint.origin);
+        }
+
+        if (position == 0)
+            mCurrent = null;
+    }
+
+    /**
+     * Removes a range of waypoints from the queue.
+     *
+     * @param from the position of the first waypoint to remove
+     * @param to   the position after the last waypoint to remove
+     * @throws IndexOutOfBoundsException if the range is out of bounds
+     */
+    public void remove(int from, int to) {
+        if (from < 0 || to > size() || from > to)
+            throw new IndexOutOfBoundsException("Invalid waypoint range: [" + from + ", " + to + ")");
+
+        int count = to - from;
+        int at = mStart + from;
+        int tail = mEnd - (at + count);
+        System.arraycopy(mEastings, at + count, mEastings, at, tail);
+        System.arraycopy(mNorthings, at + count, mNorthings, at, tail);
+        System.arraycopy(mAltitudes, at + count, mAltitudes, at, tail);
+        System.arraycopy(mZones, at + count, mZones, at, tail);
+        mEnd -= count;
+
+        if (from == 0 && count > 0)
+            mCurrent = null;
+    }
+
+    /**
+     * Returns the number of waypoints that have not yet been reached.
+     */
+    public int size() {
+        return mEnd - mStart;
+    }
+
+    /**
+     * Returns whether all waypoints have been reached.
+     */
+    public boolean isEmpty() {
+        return mEnd <= mStart;
+    }
+
+    /**
+     * Returns the number of waypoints that have been reached since the queue was last set.
+     * This is also the index of the current waypoint within the mission, if the mission
+     * has not been modified since it was set.
+     */
+    public int index() {
+        return mReached;
+    }
+
+    /**
+     * Returns the current waypoint without removing it.
+     * <p/>
+     * The returned object is cached until the current waypoint changes, so this does not
+     * allocate when called repeatedly.  It must not be modified.
+     *
+     * @return the current waypoint, or null if the queue is empty
+     */
+    public UtmPose peek() {
+        if (isEmpty())
+            return null;
+
+        if (mCurrent == null)
+            mCurrent = get(mStart);
+        return mCurrent;
+    }
+
+    /**
+     * Marks the current waypoint as reached and moves on to the next waypoint.
+     *
+     * @return whether there was a current waypoint to advance past
+     */
+    public boolean advance() {
+        if (isEmpty())
+            return false;
+
+        mStart++;
+        mReached++;
+        mCurrent = null;
+        return true;
+    }
+
+    /**
+     * Returns a copy of the waypoints that have not yet been reached.
+     */
+    public UtmPose[] toArray() {
+        UtmPose[] remaining = new UtmPose[size()];
+        for (int i = 0; i < remaining.length; ++i)
+            remaining[i] = get(mStart + i);
+        return remaining;
+    }
+
+    private UtmPose get(int index) {
+        int zone = mZones[index];
+        return new UtmPose(
+                new Pose3D(mEastings[index], mNorthings[index], mAltitudes[index], 0, 0, 0),
+                new Utm(zone >> 1, (zone & 1) != 0));
+    }
+
+    private static int encodeZone(Utm origin) {
+        return (origin.zone << 1) | (origin.isNorth ? 1 : 0);
+    }
+
+    /**
+     * Ensures there is space for the given number of additional waypoints, first by reclaiming
+     * the space of waypoints that have been reached, then by growing the arrays.
+     */
+    private void reserve(int count) {
+        int size = size();
+        int capacity = mEastings.length;
+        if (mEnd + count <= capacity)
+            return;
+
+        if (size + count <= capacity / 2 || (size + count <= capacity && mStart >= size)) {
+            compact(capacity);
+        } else {
+            compact(Math.max(capacity * 2, size + count));
+        }
+    }
+
+    private void compact(int capacity) {
+        int size = size();
+        mEastings = move(mEastings, capacity, size);
+        mNorthings = move(mNorthings, capacity, size);
+        mAltitudes = move(mAltitudes, capacity, size);
+
+        int[] zones = (capacity == mZones.length) ? mZones : new int[capacity];
+        System.arraycopy(mZones, mStart, zones, 0, size);
+        mZones = zones;
+
+        mStart = 0;
+        mEnd = size;
+    }
+
+    private double[] move(double[] src, int capacity, int size) {
+        double[] dst = (capacity == src.length) ? src : new double[capacity];
+        System.arraycopy(src, mStart, dst, 0, size);
+        return dst;
+    }
+}
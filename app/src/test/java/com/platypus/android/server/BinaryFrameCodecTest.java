@@ -0,0 +1,138 @@
+package com.platypus.android.server;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the binary framing codec on a plain JVM.
+ */
+public class BinaryFrameCodecTest {
+    @Test
+    public void crc_matchesReferenceValue() throws Exception {
+        byte[] check = "123456789".getBytes("US-ASCII");
+        assertEquals(0x29B1, BinaryFrameCodec.crc16(check, 0, check.length));
+    }
+
+    @Test
+    public void command_roundTrips() throws Exception {
+        CommandEncoder command = new CommandEncoder()
+                .put("m0", "v", 0.5)
+                .put("s0", "p", -1.0)
+                .put("m1", "v", -0.25);
+        int length = command.encodeBinary();
+        assertTrue(length > 0);
+
+        BinaryFrameCodec.Decoder decoder = new BinaryFrameCodec.Decoder();
+        decoder.write(command.getBinaryBuffer(), 0, length);
+
+        assertTrue(decoder.next());
+        assertEquals(BinaryFrameCodec.TYPE_MOTOR, decoder.getType());
+        assertEquals(2 * BinaryFrameCodec.ACTUATOR_ENTRY_LENGTH, decoder.getPayloadLength());
+        byte[] payload = decoder.getPayload();
+        assertEquals(0, payload[0]);
+        assertEquals('v', payload[1]);
+        assertEquals(0.5f, BinaryFrameCodec.readFloat(payload, 2), 0.0f);
+        assertEquals(1, payload[6]);
+        assertEquals(-0.25f, BinaryFrameCodec.readFloat(payload, 8), 0.0f);
+
+        assertTrue(decoder.next());
+        assertEquals(BinaryFrameCodec.TYPE_SERVO, decoder.getType());
+        assertEquals(-1.0f, BinaryFrameCodec.readFloat(decoder.getPayload(), 2), 0.0f);
+
+        assertFalse(decoder.next());
+        assertEquals(0, decoder.getErrorCount());
+    }
+
+    @Test
+    public void command_carriesSequenceNumber() throws Exception {
+        CommandEncoder command = new CommandEncoder().put("m0", "v", 0.5).setSequence(1234567);
+        command.encode();
+        String json = new String(command.getBuffer(), 0, command.getJsonLength(), "US-ASCII");
+        assertEquals("{\"m0\":{\"v\":0.5},\"seq\":1234567}", json);
+
+        BinaryFrameCodec.Decoder decoder = new BinaryFrameCodec.Decoder();
+        decoder.write(command.getBinaryBuffer(), 0, command.encodeBinary());
+        assertTrue(decoder.next());
+        assertEquals(BinaryFrameCodec.TYPE_MOTOR, decoder.getType());
+        assertTrue(decoder.next());
+        assertEquals(BinaryFrameCodec.TYPE_SEQUENCE, decoder.getType());
+        assertEquals(1234567, BinaryFrameCodec.readInt(decoder.getPayload(), 0));
+
+        assertFalse(command.clear().hasSequence());
+    }
+
+    @Test
+    public void command_withFlagHasNoBinaryForm() throws Exception {
+        CommandEncoder command = new CommandEncoder().put("s0", "sample", true);
+        assertEquals(-1, command.encodeBinary());
+    }
+
+    @Test
+    public void decoder_handlesSplitAndCombinedRecords() throws Exception {
+        byte[] stream = new byte[256];
+        int length = BinaryFrameCodec.encodeSensor(stream, 0, 1, "es2", new double[]{1.5, 20.0});
+        length = BinaryFrameCodec.encodeError(stream, length, "bad");
+        byte[] json = "{\"s2\":{\"type\":\"winch\",\"depth\":3}}\r\n".getBytes("US-ASCII");
+        length = BinaryFrameCodec.encodeJson(stream, length, json, 0, json.length);
+
+        // Deliver the stream a few bytes at a time.
+        BinaryFrameCodec.Decoder decoder = new BinaryFrameCodec.Decoder();
+        int[] types = new int[3];
+        int count = 0;
+        for (int i = 0; i < length; i += 5) {
+            decoder.write(stream, i, Math.min(5, length - i));
+            while (decoder.next())
+                types[count++] = decoder.getType();
+        }
+
+        assertEquals(3, count);
+        assertArrayEquals(new int[]{BinaryFrameCodec.TYPE_SENSOR, BinaryFrameCodec.TYPE_ERROR,
+                BinaryFrameCodec.TYPE_JSON}, types);
+        assertEquals(json.length - 2, decoder.getPayloadLength());
+    }
+
+    @Test
+    public void decoder_skipsCorruptRecord() throws Exception {
+        byte[] stream = new byte[256];
+        int first = BinaryFrameCodec.encodeSensor(stream, 0, 1, "atlas_do", new double[]{8.0});
+        int length = BinaryFrameCodec.encodeSensor(stream, first, 2, "atlas_ph", new double[]{7.0});
+        stream[first - 3] ^= 0x01;
+
+        BinaryFrameCodec.Decoder decoder = new BinaryFrameCodec.Decoder();
+        decoder.write(stream, 0, length);
+
+        assertTrue(decoder.next());
+        assertEquals(2, decoder.getPayload()[0]);
+        assertFalse(decoder.next());
+        assertTrue(decoder.getErrorCount() > 0);
+    }
+
+    /**
+     * Compares binary records with JSON lines for a typical motor command.  The time bound is
+     * far above the expected cost, so that it only catches gross regressions.
+     */
+    @Test
+    public void benchmark_encodeAndDecode() throws Exception {
+        CommandEncoder command = new CommandEncoder();
+        BinaryFrameCodec.Decoder decoder = new BinaryFrameCodec.Decoder();
+        int iterations = 200000;
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; ++i) {
+            command.clear().put("m0", "v", i * 1e-6).put("m1", "v", -i * 1e-6);
+            decoder.write(command.getBinaryBuffer(), 0, command.encodeBinary());
+            assertTrue(decoder.next());
+        }
+        long binaryNs = (System.nanoTime() - start) / iterations;
+
+        assertEquals(iterations, decoder.getFrameCount());
+        assertTrue("Binary encode and decode: " + binaryNs + " ns/command", binaryNs < 20000);
+
+        // Binary records are smaller than the equivalent JSON lines.
+        command.clear().put("m0", "v", 0.123456).put("m1", "v", -0.654321);
+        int binaryLength = command.encodeBinary();
+        command.encode();
+        assertTrue(binaryLength + " >= " + command.getLength(), binaryLength < command.getLength());
+    }
+}
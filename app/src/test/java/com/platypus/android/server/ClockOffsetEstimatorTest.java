@@ -0,0 +1,57 @@
+package com.platypus.android.server;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the board clock offset estimator against a simulated drifting clock and a link with
+ * variable delay.
+ */
+public class ClockOffsetEstimatorTest {
+    private static final long MS = 1000000L;
+
+    @Test
+    public void estimate_tracksOffsetAndDrift() throws Exception {
+        ClockOffsetEstimator estimator = new ClockOffsetEstimator();
+        Random random = new Random(3);
+        long offsetNs = 123456 * MS;
+        double drift = 80e-6;
+
+        long maxErrorNs = 0;
+        for (long boardNs = 0; boardNs < 120000 * MS; boardNs += 20 * MS) {
+            // Delays of a few milliseconds, with occasional stalls of up to 200ms.
+            long delayNs = (long) (0.3 * MS - Math.log(random.nextDouble()) * 5 * MS);
+            if (random.nextInt(50) == 0)
+                delayNs += random.nextInt(200) * MS;
+
+            long trueLocalNs = offsetNs + boardNs + (long) (drift * boardNs);
+            estimator.add(boardNs, trueLocalNs + delayNs);
+
+            // Check accuracy once enough windows have been seen to estimate the drift.
+            if (boardNs > 10000 * MS)
+                maxErrorNs = Math.max(maxErrorNs,
+                        Math.abs(estimator.toLocalNs(boardNs) - trueLocalNs));
+        }
+
+        assertTrue("Clock offset error: " + maxErrorNs + " ns", maxErrorNs < 2 * MS);
+        assertEquals(80.0, estimator.getDriftPpm(), 10.0);
+    }
+
+    @Test
+    public void estimate_restartsWhenBoardClockGoesBackwards() throws Exception {
+        ClockOffsetEstimator estimator = new ClockOffsetEstimator();
+        assertFalse(estimator.isValid());
+
+        for (long boardNs = 0; boardNs < 5000 * MS; boardNs += 100 * MS)
+            estimator.add(boardNs, boardNs + 1000 * MS);
+        assertEquals(1000 * MS, estimator.getOffsetNs(5000 * MS));
+
+        // After a reset of the board, its clock starts from zero again.
+        estimator.add(0, 7000 * MS);
+        assertEquals(1, estimator.getObservationCount());
+        assertEquals(7000 * MS, estimator.toLocalNs(0));
+    }
+}
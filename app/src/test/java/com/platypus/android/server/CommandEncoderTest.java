@@ -0,0 +1,105 @@
+package com.platypus.android.server;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the exact JSON wire format written by {@link CommandEncoder}.
+ */
+public class CommandEncoderTest {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static String encode(CommandEncoder command) {
+        int length = command.encode();
+        return new String(command.getBuffer(), 0, length, ASCII);
+    }
+
+    @Test
+    public void encode_writesActuatorObjects() throws Exception {
+        CommandEncoder command = new CommandEncoder()
+                .put("m0", "v", 0.5)
+                .put("m1", "v", -0.25);
+        assertEquals("{\"m0\":{\"v\":0.5},\"m1\":{\"v\":-0.25}}\r\n", encode(command));
+        assertEquals(command.getLength() - 2, command.getJsonLength());
+
+        assertEquals("{}\r\n", encode(new CommandEncoder()));
+    }
+
+    @Test
+    public void encode_roundsNumbers() throws Exception {
+        CommandEncoder command = new CommandEncoder()
+                .put("a", "v", 0.9999999)
+                .put("b", "v", -0.0000004)
+                .put("c", "v", 2.0)
+                .put("d", "v", -1.0000005)
+                .put("e", "v", 123.4560001);
+        assertEquals("{\"a\":{\"v\":1},\"b\":{\"v\":0},\"c\":{\"v\":2},"
+                + "\"d\":{\"v\":-1.000001},\"e\":{\"v\":123.456}}\r\n", encode(command));
+    }
+
+    @Test
+    public void encode_groupsFieldsByActuator() throws Exception {
+        CommandEncoder command = new CommandEncoder()
+                .put("m0", "v", 1)
+                .put("s0", "sample", true)
+                .put("m0", "p", 0.1)
+                .put("s0", "reset", false);
+        assertEquals("{\"m0\":{\"v\":1,\"p\":0.1},\"s0\":{\"sample\":true,\"reset\":false}}\r\n",
+                encode(command));
+    }
+
+    @Test
+    public void putAll_mergesCommands() throws Exception {
+        CommandEncoder command = new CommandEncoder()
+                .put("m0", "v", 0.5)
+                .put("m1", "v", 0.5);
+        CommandEncoder update = new CommandEncoder()
+                .put("m1", "v", -0.5)
+                .put("w0", "d", 3);
+        command.putAll(update);
+        assertEquals(3, command.getFieldCount());
+        assertEquals("{\"m0\":{\"v\":0.5},\"m1\":{\"v\":-0.5},\"w0\":{\"d\":3}}\r\n",
+                encode(command));
+    }
+
+    @Test
+    public void encode_appendsSequence() throws Exception {
+        CommandEncoder command = new CommandEncoder().put("m0", "v", 0).setSequence(42);
+        assertTrue(command.hasSequence());
+        assertEquals("{\"m0\":{\"v\":0},\"seq\":42}\r\n", encode(command));
+
+        assertEquals("{\"seq\":7}\r\n", encode(new CommandEncoder().setSequence(7)));
+
+        command.clear();
+        assertFalse(command.hasSequence());
+        assertEquals("{}\r\n", encode(command));
+    }
+
+    @Test
+    public void put_rejectsOverflowAndInvalidValues() throws Exception {
+        CommandEncoder command = new CommandEncoder();
+        for (int i = 0; i < CommandEncoder.MAX_FIELDS; ++i)
+            command.put("m" + i, "v", i);
+        // Replacing an existing field still works when the command is full.
+        command.put("m0", "v", 1);
+
+        try {
+            command.put("m" + CommandEncoder.MAX_FIELDS, "v", 0);
+            fail("Field beyond the maximum was accepted.");
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+        assertEquals(CommandEncoder.MAX_FIELDS, command.getFieldCount());
+
+        try {
+            command.put("m0", "v", Double.NaN);
+            fail("NaN was accepted.");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+        assertEquals(1.0, command.getValue(0), 0.0);
+    }
+}
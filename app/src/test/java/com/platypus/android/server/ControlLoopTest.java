@@ -0,0 +1,187 @@
+package com.platypus.android.server;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the scheduling of tasks by the control loop.  Ticks are driven by the test with
+ * synthetic times, in place of the loop thread.
+ */
+public class ControlLoopTest {
+    private static final long MS = 1000000L;
+    private static final long PERIOD_MS = 10;
+    private static final long BASE_NS = 1000 * MS;
+
+    /**
+     * Records the ticks at which it runs, and the time it was given, in a shared log.
+     */
+    private static class RecordingTask implements ControlLoop.Task {
+        final String name;
+        final ControlLoop loop;
+        final List<String> log;
+        final List<Long> ticks = new ArrayList<>();
+        final List<Double> dts = new ArrayList<>();
+
+        RecordingTask(String name, ControlLoop loop, List<String> log) {
+            this.name = name;
+            this.loop = loop;
+            this.log = log;
+        }
+
+        @Override
+        public void run(double dt) {
+            log.add(name);
+            ticks.add(loop.getTickCount());
+            dts.add(dt);
+        }
+    }
+
+    /**
+     * Runs one tick starting at its deadline and taking the given time, and returns the next
+     * deadline.
+     */
+    private static long tick(ControlLoop loop, long deadline, long durationNs) {
+        loop.runTasks(deadline);
+        return loop.advance(deadline, deadline, deadline + durationNs);
+    }
+
+    @Test
+    public void runTasks_ordersTasksByStage() throws Exception {
+        ControlLoop loop = new ControlLoop(PERIOD_MS);
+        List<String> log = new ArrayList<>();
+        loop.schedule(new RecordingTask("report", loop, log), 1);
+        loop.schedule(new RecordingTask("actuate", loop, log), 1, ControlLoop.STAGE_ACTUATE);
+        loop.schedule(new RecordingTask("control", loop, log), 1, ControlLoop.STAGE_CONTROL);
+        loop.schedule(new RecordingTask("sense", loop, log), 1, ControlLoop.STAGE_SENSE);
+        loop.schedule(new RecordingTask("control2", loop, log), 1, ControlLoop.STAGE_CONTROL);
+
+        tick(loop, BASE_NS, MS);
+        String[] expected = {"sense", "control", "control2", "actuate", "report"};
+        assertArrayEquals(expected, log.toArray(new String[log.size()]));
+    }
+
+    @Test
+    public void runTasks_alignsIntervalsAndMeasuresDt() throws Exception {
+        ControlLoop loop = new ControlLoop(PERIOD_MS);
+        List<String> log = new ArrayList<>();
+        RecordingTask fast = new RecordingTask("fast", loop, log);
+        RecordingTask slow = new RecordingTask("slow", loop, log);
+        loop.schedule(fast, 1);
+        loop.schedule(slow, 4);
+
+        long deadline = BASE_NS;
+        for (int i = 0; i < 9; ++i) {
+            // Every third tick starts late, which is reflected in the measured times.
+            long late = (i % 3 == 2) ? 2 * MS : 0;
+            loop.runTasks(deadline + late);
+            deadline = loop.advance(deadline, deadline + late, deadline + late + MS);
+        }
+
+        assertEquals(9, fast.ticks.size());
+        assertEquals(Arrays.asList(0L, 4L, 8L), slow.ticks);
+
+        // The first run is given the nominal interval.
+        assertEquals(0.010, fast.dts.get(0), 1e-9);
+        assertEquals(0.040, slow.dts.get(0), 1e-9);
+        assertEquals(0.012, fast.dts.get(2), 1e-9);
+        assertEquals(0.008, fast.dts.get(3), 1e-9);
+        assertEquals(0.040, slow.dts.get(1), 1e-9);
+        assertEquals(0.042, slow.dts.get(2), 1e-9);
+        assertEquals(9, loop.getTickCount());
+        assertEquals(0, loop.getOverrunCount());
+        assertEquals(0, loop.getMissedCount());
+    }
+
+    @Test
+    public void advance_skipsMissedTicksButRunsOverdueTasks() throws Exception {
+        ControlLoop loop = new ControlLoop(PERIOD_MS);
+        List<String> log = new ArrayList<>();
+        RecordingTask fast = new RecordingTask("fast", loop, log);
+        RecordingTask slow = new RecordingTask("slow", loop, log);
+        loop.schedule(fast, 1);
+        loop.schedule(slow, 5);
+
+        long deadline = BASE_NS;
+        for (int i = 0; i < 3; ++i)
+            deadline = tick(loop, deadline, MS);
+
+        // Tick 3 takes four and a half periods, so ticks 4 to 6, including tick 5, are missed.
+        assertEquals(3, loop.getTickCount());
+        deadline = tick(loop, deadline, 45 * MS);
+        assertEquals(7, loop.getTickCount());
+        assertEquals(BASE_NS + 70 * MS, deadline);
+        assertEquals(1, loop.getOverrunCount());
+        assertEquals(3, loop.getMissedCount());
+
+        for (int i = 0; i < 9; ++i)
+            deadline = tick(loop, deadline, MS);
+
+        // The overdue task runs once at tick 7, then at its usual ticks again.
+        assertEquals(Arrays.asList(0L, 7L, 10L, 15L), slow.ticks);
+        assertEquals(0.070, slow.dts.get(1), 1e-9);
+        assertEquals(0.030, slow.dts.get(2), 1e-9);
+        assertEquals(13, fast.ticks.size());
+        assertEquals(0.040, fast.dts.get(4), 1e-9);
+        assertEquals(16, loop.getTickCount());
+    }
+
+    @Test
+    public void schedule_startsNewTasksAtNextMultipleOfInterval() throws Exception {
+        ControlLoop loop = new ControlLoop(PERIOD_MS);
+        List<String> log = new ArrayList<>();
+
+        long deadline = BASE_NS;
+        for (int i = 0; i < 3; ++i)
+            deadline = tick(loop, deadline, MS);
+
+        RecordingTask task = new RecordingTask("task", loop, log);
+        loop.schedule(task, 4);
+        for (int i = 0; i < 10; ++i)
+            deadline = tick(loop, deadline, MS);
+
+        assertEquals(Arrays.asList(4L, 8L, 12L), task.ticks);
+    }
+
+    @Test
+    public void shutdown_waitsForTickInProgress() throws Exception {
+        final ControlLoop loop = new ControlLoop(1);
+        final Object lock = new Object();
+        final boolean[] state = new boolean[2];
+        loop.schedule(new ControlLoop.Task() {
+            @Override
+            public void run(double dt) {
+                synchronized (lock) {
+                    state[0] = true;
+                    lock.notifyAll();
+                }
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                synchronized (lock) {
+                    state[1] = true;
+                }
+            }
+        }, 1);
+        loop.start();
+
+        synchronized (lock) {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!state[0]) {
+                long remaining = deadline - System.currentTimeMillis();
+                assertTrue("Task did not run.", remaining > 0);
+                lock.wait(remaining);
+            }
+        }
+        loop.shutdown();
+        synchronized (lock) {
+            assertTrue(state[1]);
+        }
+    }
+}
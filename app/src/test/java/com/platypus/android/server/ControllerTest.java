@@ -0,0 +1,214 @@
+package com.platypus.android.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the ordering of commands written to the board by the controller's writer thread.
+ */
+public class ControllerTest {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final long TIMEOUT_MS = 5000;
+
+    /**
+     * Records each write as a string.  Writes can be held until the test allows them, so that
+     * the test knows exactly what was queued while a write was in progress.
+     */
+    private static class RecordingTransport implements Transport {
+        final Semaphore started = new Semaphore(0);
+        final Semaphore allowed;
+        final List<String> writes = new ArrayList<>();
+        int length = 0;
+
+        RecordingTransport(int allowedWrites) {
+            allowed = new Semaphore(allowedWrites);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return 0;
+        }
+
+        @Override
+        public void write(ByteBuffer src) throws IOException {
+            started.release();
+            allowed.acquireUninterruptibly();
+            byte[] bytes = new byte[src.remaining()];
+            src.get(bytes);
+            synchronized (this) {
+                writes.add(new String(bytes, ASCII));
+                length += bytes.length;
+                notifyAll();
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+
+        /**
+         * Waits until the given number of bytes have been written, and returns them.
+         */
+        synchronized String awaitLength(int expected) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (length < expected) {
+                long remaining = deadline - System.currentTimeMillis();
+                assertTrue("Only " + length + " of " + expected + " bytes were written.",
+                        remaining > 0);
+                wait(remaining);
+            }
+            StringBuilder wire = new StringBuilder();
+            for (String write : writes)
+                wire.append(write);
+            return wire.toString();
+        }
+    }
+
+    private Controller mController;
+
+    @Before
+    public void setUp() {
+        mController = new Controller();
+    }
+
+    @After
+    public void tearDown() {
+        mController.shutdown();
+    }
+
+    private static String encode(CommandEncoder command) {
+        command.encode();
+        return new String(command.getBuffer(), 0, command.getLength(), ASCII);
+    }
+
+    @Test
+    public void sendSafety_discardsPostedCommands() throws Exception {
+        RecordingTransport transport = new RecordingTransport(Integer.MAX_VALUE);
+        mController.open(transport);
+
+        CommandEncoder stop = new CommandEncoder().put("m0", "v", 0).put("m1", "v", 0);
+        String stopMessage = encode(stop);
+        String marker = "{\"e\":{\"marker\":true}}\r\n";
+
+        // A setpoint posted during a tick is stale once the vehicle is stopped.
+        mController.post(new CommandEncoder().put("m0", "v", 0.8).put("m1", "v", 0.8));
+        mController.sendSafety(stop);
+        mController.flush();
+
+        // Control commands are written before bulk messages, so once the marker is written,
+        // anything flushed would have been written too.
+        byte[] bytes = marker.getBytes(ASCII);
+        mController.send(bytes, 0, bytes.length);
+        String wire = transport.awaitLength(stopMessage.length() + marker.length());
+        assertEquals(stopMessage + marker, wire);
+    }
+
+    /**
+     * Sends a one-off command while a write is in progress, then flushes two setpoints before
+     * the write completes.  The second setpoint replaces the first, but the one-off command must
+     * still be written.
+     */
+    @Test
+    public void flush_keepsOneOffCommands() throws Exception {
+        RecordingTransport transport = new RecordingTransport(0);
+        mController.open(transport);
+
+        String blocker = "{\"e\":{\"blocker\":true}}\r\n";
+        byte[] bytes = blocker.getBytes(ASCII);
+        mController.send(bytes, 0, bytes.length);
+        transport.started.acquire();
+
+        CommandEncoder winch = new CommandEncoder().put("s2", "p", 1.5).put("s2", "v", 500);
+        String winchMessage = encode(winch);
+        mController.send(winch);
+        mController.post(new CommandEncoder().put("m0", "v", 0.2));
+        mController.flush();
+        CommandEncoder setpoint = new CommandEncoder().put("m0", "v", 0.4);
+        String setpointMessage = encode(setpoint);
+        mController.post(setpoint);
+        mController.flush();
+
+        transport.allowed.release(Integer.MAX_VALUE / 2);
+        String wire = transport.awaitLength(
+                blocker.length() + setpointMessage.length() + winchMessage.length());
+        assertEquals(blocker + setpointMessage + winchMessage, wire);
+        assertEquals(1, mController.getReplacedCount());
+    }
+
+    /**
+     * Stopping the vehicle discards a pending setpoint, but not a one-off command sent just
+     * before the stop, such as a sampler trigger.
+     */
+    @Test
+    public void sendSafety_keepsOneOffCommands() throws Exception {
+        RecordingTransport transport = new RecordingTransport(0);
+        mController.open(transport);
+
+        String blocker = "{\"e\":{\"blocker\":true}}\r\n";
+        byte[] bytes = blocker.getBytes(ASCII);
+        mController.send(bytes, 0, bytes.length);
+        transport.started.acquire();
+
+        CommandEncoder sampler = new CommandEncoder().put("s0", "sample", true);
+        String samplerMessage = encode(sampler);
+        mController.send(sampler);
+        mController.post(new CommandEncoder().put("m0", "v", 0.4));
+        mController.flush();
+        CommandEncoder stop = new CommandEncoder().put("m0", "v", 0);
+        String stopMessage = encode(stop);
+        mController.sendSafety(stop);
+
+        transport.allowed.release(Integer.MAX_VALUE / 2);
+        String wire = transport.awaitLength(
+                blocker.length() + stopMessage.length() + samplerMessage.length());
+        assertEquals(blocker + stopMessage + samplerMessage, wire);
+    }
+
+    /**
+     * Queues a backlog of bulk messages while a write is in progress, then sends a stop.  The
+     * stop must be the first message of the next write, however much bulk traffic is waiting.
+     */
+    @Test
+    public void sendSafety_overtakesBulkBacklog() throws Exception {
+        RecordingTransport transport = new RecordingTransport(0);
+        mController.open(transport);
+
+        StringBuilder padding = new StringBuilder();
+        for (int i = 0; i < 80; ++i)
+            padding.append('x');
+        int backlogLength = 0;
+        for (int i = 0; i < 32; ++i) {
+            byte[] bulk = ("{\"e\":{\"n\":" + i + ",\"pad\":\"" + padding + "\"}}\r\n")
+                    .getBytes(ASCII);
+            mController.send(bulk, 0, bulk.length);
+            backlogLength += bulk.length;
+        }
+
+        // Wait until the writer is blocked in its first write before stopping.
+        transport.started.acquire();
+        CommandEncoder stop = new CommandEncoder().put("m0", "v", 0);
+        String stopMessage = encode(stop);
+        mController.sendSafety(stop);
+        transport.allowed.release(Integer.MAX_VALUE / 2);
+        transport.awaitLength(backlogLength + stopMessage.length());
+
+        synchronized (transport) {
+            assertTrue("Backlog fit in " + transport.writes.size() + " writes.",
+                    transport.writes.size() > 2);
+            assertFalse(transport.writes.get(0).contains(stopMessage));
+            assertTrue(transport.writes.get(1).startsWith(stopMessage));
+        }
+        assertEquals(1, mController.getSafetyLatency().getCount());
+        assertEquals(0, mController.getDroppedCount());
+    }
+}
@@ -0,0 +1,51 @@
+package com.platypus.android.server;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the percentiles reported by the latency histogram.
+ */
+public class LatencyHistogramTest {
+    @Test
+    public void buckets_coverFullRange() throws Exception {
+        int last = -1;
+        for (long ns = 0; ns < 1 << 16; ++ns) {
+            int bucket = LatencyHistogram.bucketOf(ns);
+            assertTrue(bucket == last || bucket == last + 1);
+            assertTrue(LatencyHistogram.upperBoundOf(bucket) >= ns);
+            last = bucket;
+        }
+        int top = LatencyHistogram.bucketOf(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.upperBoundOf(top));
+    }
+
+    @Test
+    public void percentiles_matchExactValues() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Random random = new Random(7);
+        long[] samples = new long[10000];
+        for (int i = 0; i < samples.length; ++i) {
+            // Log-normal durations around 1ms, like a USB round trip.
+            samples[i] = (long) (1e6 * Math.exp(random.nextGaussian()));
+            histogram.record(samples[i]);
+        }
+        Arrays.sort(samples);
+
+        for (double fraction : new double[]{0.5, 0.9, 0.99, 1.0}) {
+            long exact = samples[(int) Math.ceil(fraction * samples.length) - 1];
+            long estimate = histogram.getPercentileNs(fraction);
+            assertTrue("p" + fraction + " " + estimate + " < " + exact, estimate >= exact);
+            assertTrue("p" + fraction + " " + estimate + " >> " + exact,
+                    estimate <= exact + exact / LatencyHistogram.SUB_BUCKETS);
+        }
+        assertEquals(samples[samples.length - 1], histogram.getMaxNs());
+
+        histogram.reset();
+        assertEquals(0, histogram.getPercentileNs(0.5));
+    }
+}
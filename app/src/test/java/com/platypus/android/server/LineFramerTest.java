@@ -0,0 +1,161 @@
+package com.platypus.android.server;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the splitting of received bytes into newline-terminated frames.
+ */
+public class LineFramerTest {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static void write(LineFramer framer, String data) {
+        byte[] bytes = data.getBytes(ASCII);
+        framer.write(bytes, 0, bytes.length);
+    }
+
+    private static String next(LineFramer framer) {
+        assertTrue(framer.next());
+        return new String(framer.getFrame(), 0, framer.getFrameLength(), ASCII);
+    }
+
+    @Test
+    public void next_joinsFrameSplitAcrossWrites() throws Exception {
+        LineFramer framer = new LineFramer(64);
+
+        write(framer, "{\"m0\":");
+        assertFalse(framer.next());
+        write(framer, "{\"v\":0.5}");
+        assertFalse(framer.next());
+        write(framer, "}\r");
+        assertFalse(framer.next());
+        write(framer, "\n{\"m1\"");
+
+        assertEquals("{\"m0\":{\"v\":0.5}}", next(framer));
+        assertFalse(framer.next());
+        assertEquals(5, framer.getBufferedLength());
+    }
+
+    @Test
+    public void next_splitsSeveralFramesInOneWrite() throws Exception {
+        LineFramer framer = new LineFramer(64);
+
+        write(framer, "one\ntwo\r\n\r\n\nthree\n");
+        assertEquals("one", next(framer));
+        assertEquals("two", next(framer));
+        // Empty frames, with or without a carriage return, are skipped.
+        assertEquals("three", next(framer));
+        assertFalse(framer.next());
+        assertEquals(3, framer.getFrameCount());
+    }
+
+    @Test
+    public void next_stripsOnlyTrailingCarriageReturn() throws Exception {
+        LineFramer framer = new LineFramer(64);
+
+        write(framer, "a\rb\r\n\rc\n");
+        assertEquals("a\rb", next(framer));
+        assertEquals("\rc", next(framer));
+
+        // A carriage return that arrives before its newline is still stripped.
+        write(framer, "d\r");
+        assertFalse(framer.next());
+        write(framer, "\n");
+        assertEquals("d", next(framer));
+    }
+
+    @Test
+    public void next_readsFramesAcrossRingWrapAround() throws Exception {
+        // The ring holds 64 bytes, so these frames wrap around it many times.
+        LineFramer framer = new LineFramer(16);
+
+        for (int i = 0; i < 200; ++i) {
+            String frame = "frame" + i;
+            // Split each frame at a different point, so that every position straddles the end.
+            int split = i % (frame.length() + 1);
+            write(framer, frame.substring(0, split));
+            assertFalse(framer.next());
+            write(framer, frame.substring(split) + "\r\n");
+            assertEquals(frame, next(framer));
+            assertFalse(framer.next());
+        }
+        assertEquals(200, framer.getFrameCount());
+        assertEquals(0, framer.getOversizedCount());
+    }
+
+    @Test
+    public void next_discardsOversizedFramesAndResynchronizes() throws Exception {
+        LineFramer framer = new LineFramer(16);
+
+        // An oversized frame that arrives complete is dropped, and the next frame is kept.
+        write(framer, "0123456789abcdefXYZ\nok\n");
+        assertEquals("ok", next(framer));
+        assertEquals(1, framer.getOversizedCount());
+
+        // A frame of exactly the maximum length, with a carriage return, is kept.
+        write(framer, "0123456789abcdef\r\n");
+        assertEquals("0123456789abcdef", next(framer));
+
+        // An oversized frame that arrives in pieces is skipped until its terminator.
+        write(framer, "0123456789abcdefXYZ");
+        assertFalse(framer.next());
+        assertEquals(0, framer.getBufferedLength());
+        write(framer, "0123456789abcdef");
+        assertFalse(framer.next());
+        write(framer, "end\nnext\n");
+        assertEquals("next", next(framer));
+        assertFalse(framer.next());
+        assertEquals(2, framer.getOversizedCount());
+        assertEquals(3, framer.getFrameCount());
+    }
+
+    @Test
+    public void write_acceptsByteBuffers() throws Exception {
+        LineFramer framer = new LineFramer(16);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(16);
+
+        for (int i = 0; i < 50; ++i) {
+            buffer.clear();
+            buffer.put(("b" + i + "\n").getBytes(ASCII)).flip();
+            framer.write(buffer);
+            assertEquals(0, buffer.remaining());
+            assertEquals("b" + i, next(framer));
+        }
+    }
+
+    /**
+     * Measures the framing throughput for sensor messages of a typical length, read in chunks
+     * of the size returned by the accessory.  The bound is far below the expected rate, so
+     * that it only catches gross regressions, such as allocating per frame.
+     */
+    @Test
+    public void throughput_exceedsSensorRate() throws Exception {
+        byte[] message = "{\"s1\":{\"type\":\"atlas_do\",\"data\":[8.25]}}\r\n".getBytes(ASCII);
+        int chunkLength = 256;
+        byte[] stream = new byte[message.length * 1000];
+        for (int i = 0; i < 1000; ++i)
+            System.arraycopy(message, 0, stream, i * message.length, message.length);
+
+        LineFramer framer = new LineFramer(chunkLength);
+        int passes = 200;
+        long start = System.nanoTime();
+        for (int pass = 0; pass < passes; ++pass) {
+            for (int offset = 0; offset < stream.length; offset += chunkLength) {
+                framer.write(stream, offset, Math.min(chunkLength, stream.length - offset));
+                while (framer.next()) {
+                    // Only count the frames.
+                }
+            }
+        }
+        double seconds = (System.nanoTime() - start) * 1e-9;
+        double messagesPerSecond = framer.getFrameCount() / seconds;
+
+        assertEquals(1000L * passes, framer.getFrameCount());
+        assertTrue("Framing throughput: " + Math.round(messagesPerSecond) + " messages/s",
+                messagesPerSecond > 100000);
+    }
+}
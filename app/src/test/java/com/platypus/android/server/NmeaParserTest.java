@@ -0,0 +1,138 @@
+package com.platypus.android.server;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests tokenizing and validating NMEA 0183 sentences.
+ */
+public class NmeaParserTest {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    /**
+     * Appends the checksum to a sentence body, such as "$SDMTW,18.5,C".
+     */
+    private static byte[] sentence(String body) {
+        int checksum = 0;
+        for (int i = 1; i < body.length(); ++i)
+            checksum ^= body.charAt(i);
+        return String.format(Locale.US, "%s*%02X", body, checksum).getBytes(ASCII);
+    }
+
+    private static int parse(NmeaParser parser, byte[] bytes) {
+        return parser.parse(bytes, 0, bytes.length);
+    }
+
+    @Test
+    public void parse_readsSupportedSentences() throws Exception {
+        NmeaParser parser = new NmeaParser();
+
+        assertEquals(NmeaParser.DBT, parse(parser, sentence("$SDDBT,16.4,f,5.00,M,2.7,F")));
+        assertEquals(6, parser.getFieldCount());
+        assertEquals(5.0, parser.getDepthMeters(), 0.0);
+        assertEquals('f', parser.getChar(2));
+
+        assertEquals(NmeaParser.DBT, parse(parser, sentence("$SDDBT,10.0,f,,M,,F")));
+        assertEquals(3.048, parser.getDepthMeters(), 1e-9);
+
+        assertEquals(NmeaParser.DPT, parse(parser, sentence("$SDDPT,3.6,0.5")));
+        assertEquals(3.6, parser.getDepthMeters(), 0.0);
+
+        assertEquals(NmeaParser.MTW, parse(parser, sentence("$YXMTW,18.5,C")));
+        assertEquals(18.5, parser.getTemperature(), 0.0);
+
+        assertEquals(NmeaParser.VHW, parse(parser, sentence("$VWVHW,,T,,M,4.2,N,7.8,K")));
+        assertEquals(4.2, parser.getSpeedKnots(), 0.0);
+        assertTrue(parser.isEmpty(1));
+
+        assertEquals(NmeaParser.RMC, parse(parser,
+                sentence("$GPRMC,123519,A,4807.038,N,01131.000,W,022.4,084.4,230394,003.1,W")));
+        assertTrue(parser.isFixValid());
+        assertEquals(48.1173, parser.getLatitude(), 1e-9);
+        assertEquals(-11.516666666666667, parser.getLongitude(), 1e-9);
+        assertEquals(22.4, parser.getSpeedKnots(), 0.0);
+
+        assertEquals(6, parser.getSentenceCount());
+        assertEquals(0, parser.getErrorCount());
+    }
+
+    @Test
+    public void parse_acceptsSentenceWithinBuffer() throws Exception {
+        NmeaParser parser = new NmeaParser();
+        byte[] body = sentence("$SDMTW,21.25,C");
+        byte[] buffer = new byte[body.length + 8];
+        System.arraycopy(body, 0, buffer, 3, body.length);
+        buffer[3 + body.length] = '\r';
+        buffer[4 + body.length] = '\n';
+
+        assertEquals(NmeaParser.MTW, parser.parse(buffer, 3, body.length + 2));
+        assertEquals(21.25, parser.getTemperature(), 0.0);
+    }
+
+    @Test
+    public void parse_rejectsBadChecksums() throws Exception {
+        NmeaParser parser = new NmeaParser();
+        byte[] bytes = sentence("$SDDBT,16.4,f,5.00,M,2.7,F");
+        bytes[8] = '7';
+        try {
+            parse(parser, bytes);
+            fail("Corrupted sentence was accepted.");
+        } catch (NumberFormatException e) {
+            // Expected.
+        }
+
+        try {
+            parse(parser, "$SDMTW,18.5,C".getBytes(ASCII));
+            fail("Sentence without a checksum was accepted.");
+        } catch (NumberFormatException e) {
+            // Expected.
+        }
+
+        assertEquals(NmeaParser.UNKNOWN, parser.getSentence());
+        assertEquals(2, parser.getErrorCount());
+        assertEquals(0, parser.getSentenceCount());
+    }
+
+    @Test
+    public void parse_skipsUnknownSentences() throws Exception {
+        NmeaParser parser = new NmeaParser();
+
+        // Unknown sentences are skipped without checking their checksum.
+        assertEquals(NmeaParser.UNKNOWN, parse(parser, "$SDXDR,C,19.5,C,WTHI*FF".getBytes(ASCII)));
+        assertEquals(NmeaParser.UNKNOWN, parse(parser, sentence("$GPGGA,123519,4807.038,N")));
+        assertEquals(2, parser.getUnknownCount());
+        assertEquals(0, parser.getErrorCount());
+    }
+
+    @Test
+    public void decoder_routesSentences() throws Exception {
+        final int[] sentences = new int[1];
+        NmeaSensorDecoder decoder = new NmeaSensorDecoder();
+        decoder.setListener(new NmeaSensorDecoder.Listener() {
+            @Override
+            public void onSentence(NmeaParser parser, SensorMessage message) {
+                assertEquals(NmeaParser.VHW, parser.getSentence());
+                sentences[0]++;
+            }
+        });
+
+        SensorDecoderRegistry registry = new SensorDecoderRegistry();
+        registry.register("hds", decoder);
+        SensorMessage message = new SensorMessage();
+
+        byte[] depth = ("{\"s3\":{\"type\":\"hds\",\"data\":\""
+                + new String(sentence("$SDDPT,3.6,0.5"), ASCII) + "\"}}").getBytes(ASCII);
+        assertTrue(message.parseJson(depth, 0, depth.length));
+        assertEquals(3.6, registry.decode(decoder, message).data[0], 0.0);
+
+        byte[] speed = ("{\"s3\":{\"type\":\"hds\",\"data\":\""
+                + new String(sentence("$VWVHW,,T,,M,4.2,N,7.8,K"), ASCII) + "\"}}").getBytes(ASCII);
+        assertTrue(message.parseJson(speed, 0, speed.length));
+        assertNull(registry.decode(decoder, message));
+        assertEquals(1, sentences[0]);
+    }
+}
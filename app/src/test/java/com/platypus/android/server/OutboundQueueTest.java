@@ -0,0 +1,157 @@
+package com.platypus.android.server;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the priority lanes of the outbound controller queue.
+ */
+public class OutboundQueueTest {
+    private static final int MAX_LENGTH = 64;
+    private static final int MAX_WRITE_LENGTH = 256;
+
+    private static byte[] message(char tag, int length) {
+        byte[] message = new byte[length];
+        Arrays.fill(message, (byte) tag);
+        return message;
+    }
+
+    private static void offer(OutboundQueue queue, int lane, char tag, int length) {
+        byte[] message = message(tag, length);
+        assertTrue(queue.offer(lane, message, 0, length));
+    }
+
+    /**
+     * Polls a single message into the start of a buffer.
+     */
+    private static int poll(OutboundQueue queue, ByteBuffer buffer, int maxLength) {
+        buffer.clear();
+        return queue.poll(buffer, maxLength);
+    }
+
+    @Test
+    public void poll_returnsHighestPriorityFirst() throws Exception {
+        OutboundQueue queue = new OutboundQueue(4, 16, MAX_LENGTH);
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_WRITE_LENGTH);
+
+        offer(queue, OutboundQueue.LANE_BULK, 'a', 3);
+        offer(queue, OutboundQueue.LANE_BULK, 'b', 3);
+        offer(queue, OutboundQueue.LANE_CONTROL, 'c', 3);
+        offer(queue, OutboundQueue.LANE_SAFETY, 's', 3);
+        offer(queue, OutboundQueue.LANE_CONTROL, 'd', 3);
+
+        char[] order = new char[4];
+        int[] lanes = new int[4];
+        for (int i = 0; i < 4; ++i) {
+            assertEquals(3, poll(queue, buffer, MAX_LENGTH));
+            order[i] = (char) buffer.get(0);
+            lanes[i] = queue.getPolledLane();
+        }
+        assertEquals(-1, poll(queue, buffer, MAX_LENGTH));
+
+        // The safety message discards the control message queued before it.
+        assertArrayEquals(new char[]{'s', 'd', 'a', 'b'}, order);
+        assertArrayEquals(new int[]{OutboundQueue.LANE_SAFETY, OutboundQueue.LANE_CONTROL,
+                OutboundQueue.LANE_BULK, OutboundQueue.LANE_BULK}, lanes);
+        assertEquals(1, queue.getReplacedCount());
+    }
+
+    @Test
+    public void control_keepsOnlyNewestMessage() throws Exception {
+        OutboundQueue queue = new OutboundQueue(4, 16, MAX_LENGTH);
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_WRITE_LENGTH);
+
+        for (char tag = 'a'; tag <= 'e'; ++tag)
+            offer(queue, OutboundQueue.LANE_CONTROL, tag, 5);
+
+        assertEquals(5, poll(queue, buffer, MAX_LENGTH));
+        assertEquals('e', buffer.get(0));
+        assertEquals(-1, poll(queue, buffer, MAX_LENGTH));
+        assertEquals(4, queue.getReplacedCount());
+    }
+
+    @Test
+    public void control_keepsOriginOfNewestMessage() throws Exception {
+        OutboundQueue queue = new OutboundQueue(4, 16, MAX_LENGTH);
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_WRITE_LENGTH);
+
+        queue.offer(OutboundQueue.LANE_CONTROL, message('a', 3), 0, 3, 100);
+        queue.offer(OutboundQueue.LANE_CONTROL, message('b', 3), 0, 3, 200);
+        queue.offer(OutboundQueue.LANE_BULK, message('c', 3), 0, 3, 300);
+
+        assertEquals(3, poll(queue, buffer, MAX_LENGTH));
+        assertEquals('b', buffer.get(0));
+        assertEquals(200, queue.getPolledOriginTimeNs());
+
+        // The origin is only kept for control messages.
+        assertEquals(3, poll(queue, buffer, MAX_LENGTH));
+        assertEquals(0, queue.getPolledOriginTimeNs());
+    }
+
+    @Test
+    public void poll_leavesMessagesThatDoNotFit() throws Exception {
+        OutboundQueue queue = new OutboundQueue(4, 16, MAX_LENGTH);
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_WRITE_LENGTH);
+
+        offer(queue, OutboundQueue.LANE_BULK, 'a', 10);
+        offer(queue, OutboundQueue.LANE_SAFETY, 's', 20);
+
+        assertEquals(-1, poll(queue, buffer, 15));
+        assertEquals(20, poll(queue, buffer, 20));
+        assertEquals('s', buffer.get(0));
+        assertEquals(10, poll(queue, buffer, 20));
+        assertEquals(0, queue.drain());
+    }
+
+    /**
+     * Gathers messages into writes the same way the controller writer does, injecting a
+     * safety message at every point of a backlog of bulk traffic, and checks that no more than
+     * one write is ever sent ahead of it.
+     */
+    @Test
+    public void safety_waitsForAtMostOneWrite() throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_WRITE_LENGTH);
+
+        for (int injectAt = 0; injectAt < 40; ++injectAt) {
+            OutboundQueue queue = new OutboundQueue(4, 64, MAX_LENGTH);
+            for (int i = 0; i < 60; ++i)
+                offer(queue, OutboundQueue.LANE_BULK, 'b', 17 + (i % 5) * 9);
+
+            int polled = 0;
+            int bytesAhead = -1;
+            int writesAhead = 0;
+            boolean isFound = false;
+            while (!isFound) {
+                buffer.clear();
+                int length = 0;
+                int messageLength;
+                while ((messageLength = queue.poll(buffer, MAX_WRITE_LENGTH - length)) >= 0) {
+                    if (polled++ == injectAt) {
+                        offer(queue, OutboundQueue.LANE_SAFETY, 's', 8);
+                        bytesAhead = 0;
+                    }
+                    if (queue.getPolledLane() == OutboundQueue.LANE_SAFETY) {
+                        isFound = true;
+                        break;
+                    }
+                    if (bytesAhead >= 0)
+                        bytesAhead += messageLength;
+                    length += messageLength;
+                }
+
+                // A write ends here.
+                if (bytesAhead >= 0 && !isFound)
+                    writesAhead++;
+                assertTrue("Queue ran dry before the safety message.", length > 0 || isFound);
+            }
+
+            assertTrue("Safety message waited for " + writesAhead + " writes.", writesAhead <= 1);
+            assertTrue("Safety message waited for " + bytesAhead + " bytes.",
+                    bytesAhead <= MAX_WRITE_LENGTH);
+        }
+    }
+}
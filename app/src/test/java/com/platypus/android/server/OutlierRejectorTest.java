@@ -0,0 +1,131 @@
+package com.platypus.android.server;
+
+import com.platypus.crw.VehicleServer.SensorType;
+import com.platypus.crw.data.SensorData;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+
+import static com.platypus.android.server.SensorReadings.reading;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the streaming median and the outlier rejection built on it.
+ */
+public class OutlierRejectorTest {
+
+    @Test
+    public void slidingMedian_matchesSortedWindow() throws Exception {
+        Random random = new Random(11);
+        for (int window : new int[]{1, 2, 5, 16}) {
+            SlidingMedian median = new SlidingMedian(window);
+            double[] values = new double[500];
+            for (int n = 0; n < values.length; ++n) {
+                // Include repeated values, which must be handled like any other.
+                values[n] = (n % 7 == 0) ? 3.0 : random.nextInt(20) - 10;
+                median.add(values[n]);
+
+                int first = Math.max(0, n - window + 1);
+                double[] sorted = Arrays.copyOfRange(values, first, n + 1);
+                Arrays.sort(sorted);
+                int size = sorted.length;
+                double expected = (size % 2 == 1) ? sorted[size / 2]
+                        : 0.5 * (sorted[size / 2 - 1] + sorted[size / 2]);
+                assertEquals(expected, median.getMedian(), 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void hampel_rejectsSpikesButFollowsSteps() throws Exception {
+        HampelFilter filter = new HampelFilter(9, 3.0, 0.01);
+        Random random = new Random(3);
+        int outliers = 0;
+
+        for (int n = 0; n < 200; ++n) {
+            double truth = (n < 100) ? 8.0 : 6.0;
+            double raw = truth + 0.05 * random.nextGaussian();
+            if (n == 50 || n == 51 || n == 150)
+                raw = 0.0;
+
+            double clean = filter.filter(raw);
+            if (filter.isOutlier())
+                outliers++;
+            if (n == 50 || n == 51 || n == 150) {
+                assertTrue(filter.isOutlier());
+                assertEquals(truth, clean, 0.2);
+            }
+            // Within half a window of the step, the new level is accepted.
+            if (n >= 105)
+                assertEquals(truth, clean, 0.2);
+        }
+        // Small windows flag a few percent of normal noise, which is replaced by the median.
+        assertTrue("Too many outliers: " + outliers, outliers < 20);
+    }
+
+    @Test
+    public void rejector_keepsRawValues() throws Exception {
+        OutlierRejector rejector = new OutlierRejector();
+        rejector.configure(SensorType.ES2, 5, 3.0, 5.0, 0.1);
+        SensorData reading = new SensorData();
+        reading.channel = 1;
+        reading.type = SensorType.ES2;
+        reading.data = new double[2];
+
+        for (int n = 0; n < 10; ++n) {
+            reading.data[0] = 300.0 + n % 2;
+            reading.data[1] = 20.0;
+            assertTrue(rejector.apply(reading));
+        }
+        assertEquals(0, rejector.getOutlierCount());
+
+        // A spike in conductivity alone is replaced, and the raw value is kept.
+        reading.data[0] = 2000.0;
+        reading.data[1] = 20.05;
+        assertTrue(rejector.apply(reading));
+        assertEquals(301.0, reading.data[0], 0.0);
+        assertEquals(20.05, reading.data[1], 0.0);
+        assertEquals(2000.0, rejector.getRawValues()[0], 0.0);
+        assertEquals(1, rejector.getOutlierCount());
+
+        SensorLogEncoder encoder = new SensorLogEncoder();
+        int length = encoder.encode(reading, 42, rejector.getRawValues());
+        String json = new String(encoder.getBuffer(), 0, length, Charset.forName("US-ASCII"));
+        assertTrue(json, json.endsWith("\"data\":[301,20.05],\"raw\":[2000,20.05]}"));
+
+        // Other types are left alone.
+        reading.type = SensorType.ATLAS_DO;
+        assertFalse(rejector.apply(reading));
+        rejector.remove(SensorType.ES2);
+        reading.type = SensorType.ES2;
+        assertFalse(rejector.apply(reading));
+    }
+
+    @Test
+    public void rejector_keepsFiltersWhenOtherTypesAreRemoved() throws Exception {
+        OutlierRejector rejector = new OutlierRejector();
+        rejector.configure(SensorType.ES2, 5, 3.0, 5.0, 0.1);
+        rejector.configure(SensorType.ATLAS_DO, 5, 3.0, 0.05);
+        SensorData es2 = reading(1, SensorType.ES2, 0.0, 0.0);
+        SensorData oxygen = reading(1, SensorType.ATLAS_DO, 0.0);
+
+        for (int n = 0; n < 10; ++n) {
+            es2.data[0] = 300.0;
+            es2.data[1] = 20.0;
+            assertTrue(rejector.apply(es2));
+            oxygen.data[0] = 8.0 + 0.01 * (n % 2);
+            assertTrue(rejector.apply(oxygen));
+        }
+
+        // Removing one type must not restart the filters of another, so the next spike in
+        // dissolved oxygen is still rejected.
+        rejector.remove(SensorType.ES2);
+        oxygen.data[0] = 0.0;
+        assertTrue(rejector.apply(oxygen));
+        assertEquals(8.0, oxygen.data[0], 0.02);
+        assertEquals(1, rejector.getOutlierCount());
+    }
+}
@@ -0,0 +1,185 @@
+package com.platypus.android.server;
+
+import com.platypus.crw.VehicleServer.SensorType;
+import com.platypus.crw.data.SensorData;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests decoding sensor messages in place, and measures the throughput of the decode path.
+ */
+public class SensorDecoderRegistryTest {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static SensorData decode(SensorDecoderRegistry registry, String line) {
+        byte[] bytes = line.getBytes(ASCII);
+        SensorMessage message = new SensorMessage();
+        assertTrue(message.parseJson(bytes, 0, bytes.length));
+        SensorDecoder decoder = registry.find(message);
+        assertNotNull(decoder);
+        return registry.decode(decoder, message);
+    }
+
+    @Test
+    public void decode_handlesStandardSensors() throws Exception {
+        SensorDecoderRegistry registry = SensorDecoderRegistry.createDefault();
+
+        SensorData es2 = decode(registry, "{\"s1\":{\"type\":\"es2\",\"data\":\"312.5 20.25\"}}");
+        assertEquals(1, es2.channel);
+        assertEquals(SensorType.ES2, es2.type);
+        assertArrayEquals(new double[]{312.5, 20.25}, es2.data, 0.0);
+
+        SensorData oxygen = decode(registry, "{ \"s2\" : { \"data\" : 8.02, \"type\" : \"ATLAS_DO\" } }");
+        assertEquals(SensorType.ATLAS_DO, oxygen.type);
+        assertEquals(8.02, oxygen.data[0], 0.0);
+
+        SensorData depth = decode(registry,
+                "{\"s4\":{\"type\":\"hds\",\"data\":\"$SDDBT,16.4,f,5.00,M,2.7,F*05\"},\"t\":99}");
+        assertEquals(SensorType.HDS_DEPTH, depth.type);
+        assertEquals(5.0, depth.data[0], 0.0);
+
+        assertNull(decode(registry,
+                "{\"s4\":{\"type\":\"hds\",\"data\":\"$SDRMC,123519,A,4807.038,N*57\"}}"));
+    }
+
+    @Test
+    public void decode_acceptsBinaryRecords() throws Exception {
+        SensorDecoderRegistry registry = SensorDecoderRegistry.createDefault();
+        byte[] record = new byte[64];
+        BinaryFrameCodec.encodeSensor(record, 0, 0, "battery", new double[]{12.5, 0.25, -0.5});
+
+        BinaryFrameCodec.Decoder decoder = new BinaryFrameCodec.Decoder();
+        decoder.write(record, 0, record.length);
+        assertTrue(decoder.next());
+
+        SensorMessage message = new SensorMessage();
+        assertTrue(message.parseRecord(decoder.getPayload(), decoder.getPayloadLength()));
+        SensorData reading = registry.decode(registry.find(message), message);
+        assertEquals(SensorType.BATTERY, reading.type);
+        assertArrayEquals(new double[]{12.5, 0.25, -0.5}, reading.data, 0.0);
+    }
+
+    @Test
+    public void parse_rejectsOtherMessages() throws Exception {
+        SensorMessage message = new SensorMessage();
+        String[] lines = {
+                "{\"m0\":{\"v\":0.5}}",
+                "{\"error\":\"bad\",\"args\":\"\"}",
+                "{\"s1\":{\"type\":\"es\\\"2\",\"data\":\"1 2\"}}",
+                "{\"s1\":{\"type\":\"es2\",\"data\":\"1 2\"},\"s2\":{\"type\":\"es2\"}}",
+                "{\"s1\":{\"type\":\"es2\",\"data\":\"1 2\"}",
+                "{\"s1\":{\"type\":\"es2\",\"data\":[1,2]}}",
+        };
+        for (String line : lines) {
+            byte[] bytes = line.getBytes(ASCII);
+            assertFalse(line, message.parseJson(bytes, 0, bytes.length));
+        }
+
+        // Well-formed messages of unknown types are left for the caller to handle.
+        byte[] bytes = "{\"s3\":{\"type\":\"sonar\",\"data\":\"1\"}}".getBytes(ASCII);
+        assertTrue(message.parseJson(bytes, 0, bytes.length));
+        assertNull(SensorDecoderRegistry.createDefault().find(message));
+    }
+
+    @Test
+    public void decode_rejectsMalformedValues() throws Exception {
+        SensorDecoderRegistry registry = SensorDecoderRegistry.createDefault();
+        for (String line : new String[]{
+                "{\"s1\":{\"type\":\"es2\",\"data\":\"312.5\"}}",
+                "{\"s1\":{\"type\":\"es2\",\"data\":\"312.5 nan\"}}",
+                "{\"s1\":{\"type\":\"atlas_ph\"}}"}) {
+            try {
+                decode(registry, line);
+                fail("Decoded " + line);
+            } catch (NumberFormatException e) {
+                // Expected.
+            }
+        }
+    }
+
+    @Test
+    public void parseDouble_matchesJdk() throws Exception {
+        Random random = new Random(11);
+        for (int i = 0; i < 100000; ++i) {
+            String text;
+            switch (i % 4) {
+                case 0:
+                    text = Double.toString(random.nextGaussian() * 1000);
+                    break;
+                case 1:
+                    text = String.format(Locale.US, "%.3f", random.nextDouble() * 100);
+                    break;
+                case 2:
+                    text = Long.toString(random.nextInt());
+                    break;
+                default:
+                    text = Double.toString(random.nextDouble() * Math.pow(10, random.nextInt(40) - 20));
+                    break;
+            }
+            byte[] bytes = text.getBytes(ASCII);
+            assertEquals(text, Double.parseDouble(text),
+                    SensorMessage.parseDouble(bytes, 0, bytes.length), 0.0);
+        }
+    }
+
+    /**
+     * Measures framing, scanning, decoding and log encoding of a stream of sensor lines, after
+     * running once to warm up.  The bound is far below the expected rate, so that it only
+     * catches gross regressions.
+     */
+    @Test
+    public void benchmark_decodeReadings() throws Exception {
+        String[] lines = {
+                "{\"s1\":{\"type\":\"es2\",\"data\":\"312.5 20.25\"}}\r\n",
+                "{\"s2\":{\"type\":\"atlas_do\",\"data\":\"8.02\"}}\r\n",
+                "{\"s3\":{\"type\":\"atlas_ph\",\"data\":\"7.115\"}}\r\n",
+                "{\"s4\":{\"type\":\"hds\",\"data\":\"$SDDBT,16.4,f,5.00,M,2.7,F*05\"}}\r\n",
+                "{\"s0\":{\"type\":\"battery\",\"data\":\"12.61 0.5 -0.25\"}}\r\n",
+        };
+        StringBuilder stream = new StringBuilder();
+        for (int i = 0; i < 100; ++i)
+            stream.append(lines[i % lines.length]);
+        byte[] bytes = stream.toString().getBytes(ASCII);
+        int iterations = 5000;
+
+        decodeStream(bytes, iterations);
+        long start = System.nanoTime();
+        long logBytes = decodeStream(bytes, iterations);
+        long decodeNs = System.nanoTime() - start;
+
+        long readings = iterations * 100L;
+        long readingsPerSecond = Math.round(readings * 1e9 / decodeNs);
+        assertTrue(logBytes > 0);
+        assertTrue("Sensor decode: " + readingsPerSecond + " readings/s",
+                readingsPerSecond > 50000);
+    }
+
+    private static long decodeStream(byte[] bytes, int iterations) {
+        SensorDecoderRegistry registry = SensorDecoderRegistry.createDefault();
+        SensorMessage message = new SensorMessage();
+        SensorLogEncoder log = new SensorLogEncoder();
+        LineFramer framer = new LineFramer(1024);
+        long readings = 0;
+        long logBytes = 0;
+
+        for (int i = 0; i < iterations; ++i) {
+            for (int pos = 0; pos < bytes.length; pos += 512) {
+                framer.write(bytes, pos, Math.min(512, bytes.length - pos));
+                while (framer.next()) {
+                    assertTrue(message.parseJson(framer.getFrame(), 0, framer.getFrameLength()));
+                    SensorData reading = registry.decode(registry.find(message), message);
+                    logBytes += log.encode(reading, i);
+                    readings++;
+                }
+            }
+        }
+        assertEquals(iterations * 100, readings);
+        return logBytes;
+    }
+}
@@ -0,0 +1,205 @@
+package com.platypus.android.server;
+
+import com.platypus.crw.VehicleServer.SensorType;
+import com.platypus.crw.data.SensorData;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.platypus.android.server.SensorReadings.MS;
+import static com.platypus.android.server.SensorReadings.reading;
+import static org.junit.Assert.*;
+
+/**
+ * Tests forwarding sensor readings with per-channel dispatch policies.
+ */
+public class SensorDispatcherTest {
+    /**
+     * Records copies of the readings sent by a dispatcher.
+     */
+    private static class RecordingSink implements SensorDispatcher.Sink {
+        final List<SensorData> readings = new ArrayList<>();
+
+        @Override
+        public synchronized void send(int channel, SensorData reading) {
+            SensorData copy = new SensorData();
+            copy.channel = channel;
+            copy.type = reading.type;
+            copy.data = reading.data.clone();
+            readings.add(copy);
+            notifyAll();
+        }
+
+        /**
+         * Waits until the given number of readings have been sent.
+         */
+        synchronized void await(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (readings.size() < count) {
+                long remaining = deadline - System.currentTimeMillis();
+                assertTrue("Only " + readings.size() + " readings were sent.", remaining > 0);
+                wait(remaining);
+            }
+        }
+    }
+
+    @Test
+    public void passThrough_forwardsEveryReadingInOrder() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        SensorDispatcher dispatcher = new SensorDispatcher(sink, 4);
+
+        SensorData reading = reading(1, SensorType.ES2, 0.0, 0.0);
+        for (int i = 0; i < 6; ++i) {
+            // The dispatcher must copy readings, as the decoder reuses them.
+            reading.data[0] = i;
+            dispatcher.offer(reading);
+        }
+        dispatcher.dispatch(10 * MS);
+
+        // The two oldest readings were dropped from the full queue.
+        assertEquals(4, sink.readings.size());
+        for (int i = 0; i < 4; ++i)
+            assertEquals(i + 2, sink.readings.get(i).data[0], 0.0);
+        assertEquals(6, dispatcher.getOfferedCount());
+        assertEquals(4, dispatcher.getDispatchedCount());
+        assertEquals(2, dispatcher.getDroppedCount());
+    }
+
+    @Test
+    public void decimate_forwardsNewestReadingAtRate() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        SensorDispatcher dispatcher = new SensorDispatcher(sink, 32);
+        dispatcher.setDecimation(4, 2.0);
+
+        // Readings arrive at 20 Hz and are dispatched at 10 Hz for two seconds.
+        for (int tick = 0; tick < 20; ++tick) {
+            long nowNs = tick * 100 * MS;
+            dispatcher.offer(reading(4, SensorType.HDS_DEPTH, tick));
+            dispatcher.offer(reading(4, SensorType.HDS_DEPTH, tick + 0.5));
+            dispatcher.dispatch(nowNs + 60 * MS);
+        }
+
+        assertEquals(4, sink.readings.size());
+        assertEquals(0.5, sink.readings.get(0).data[0], 0.0);
+        assertEquals(5.5, sink.readings.get(1).data[0], 0.0);
+        assertEquals(10.5, sink.readings.get(2).data[0], 0.0);
+        assertEquals(4, dispatcher.getDispatchedCount());
+        assertEquals(0, dispatcher.getDroppedCount());
+        // The newest reading stays queued until the next one is due.
+        assertEquals(35, dispatcher.getDiscardedCount());
+    }
+
+    @Test
+    public void batch_groupsNewestReadingsByType() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        SensorDispatcher dispatcher = new SensorDispatcher(sink, 32);
+        dispatcher.setBatch(4, 3);
+
+        for (int i = 0; i < 5; ++i) {
+            dispatcher.offer(reading(4, SensorType.HDS_DEPTH, i));
+            if (i % 2 == 0)
+                dispatcher.offer(reading(4, SensorType.HDS_TEMP, 20 + i));
+        }
+        dispatcher.dispatch(10 * MS);
+
+        // Batches are marked, so that they are not mistaken for a reading of the batched type.
+        int temp = SensorType.HDS_TEMP.ordinal();
+        int depth = SensorType.HDS_DEPTH.ordinal();
+        assertEquals(2, sink.readings.size());
+        assertEquals(SensorDispatcher.BATCH_CHANNEL, sink.readings.get(0).channel);
+        assertEquals(SensorDispatcher.BATCH_TYPE, sink.readings.get(0).type);
+        assertArrayEquals(new double[]{4, temp, 1, 3, 20, 22, 24},
+                sink.readings.get(0).data, 0.0);
+        assertEquals(SensorDispatcher.BATCH_CHANNEL, sink.readings.get(1).channel);
+        assertEquals(SensorDispatcher.BATCH_TYPE, sink.readings.get(1).type);
+        assertArrayEquals(new double[]{4, depth, 1, 3, 2, 3, 4}, sink.readings.get(1).data, 0.0);
+        assertEquals(6, dispatcher.getDispatchedCount());
+        assertEquals(2, dispatcher.getPacketCount());
+        assertEquals(2, dispatcher.getDiscardedCount());
+
+        dispatcher.dispatch(20 * MS);
+        assertEquals(2, sink.readings.size());
+
+        // A single reading is sent as it is.
+        dispatcher.offer(reading(4, SensorType.HDS_DEPTH, 7.5));
+        dispatcher.dispatch(30 * MS);
+        assertEquals(3, sink.readings.size());
+        assertEquals(4, sink.readings.get(2).channel);
+        assertEquals(SensorType.HDS_DEPTH, sink.readings.get(2).type);
+        assertArrayEquals(new double[]{7.5}, sink.readings.get(2).data, 0.0);
+    }
+
+    /**
+     * The winch reports its depth as a reading of unknown type, which is also the type of a
+     * batch, so a listener must still be able to tell the two apart.
+     */
+    @Test
+    public void batch_isDistinctFromWinchReadings() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        SensorDispatcher dispatcher = new SensorDispatcher(sink, 32);
+        dispatcher.setPassThrough(2);
+        dispatcher.setBatch(3, 10);
+
+        dispatcher.offer(reading(2, SensorType.UNKNOWN, 1.25));
+        dispatcher.offer(reading(3, SensorType.UNKNOWN, 1.5));
+        dispatcher.offer(reading(3, SensorType.UNKNOWN, 1.75));
+        dispatcher.dispatch(10 * MS);
+
+        assertEquals(2, sink.readings.size());
+        SensorData winch = sink.readings.get(0);
+        SensorData batch = sink.readings.get(1);
+        assertEquals(2, winch.channel);
+        assertArrayEquals(new double[]{1.25}, winch.data, 0.0);
+        assertEquals(SensorDispatcher.BATCH_CHANNEL, batch.channel);
+        assertTrue(batch.channel < 0);
+        assertArrayEquals(new double[]{3, SensorType.UNKNOWN.ordinal(), 1, 2, 1.5, 1.75},
+                batch.data, 0.0);
+    }
+
+    @Test
+    public void start_forwardsPassThroughReadingsWithoutWaiting() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        SensorDispatcher dispatcher = new SensorDispatcher(sink, 32);
+        dispatcher.setBatch(4, 10);
+        dispatcher.start(60000);
+        try {
+            // The first reading is sent by the first periodic dispatch at the latest.
+            dispatcher.offer(reading(1, SensorType.ES2, 1.0, 20.0));
+            sink.await(1);
+
+            // The next periodic dispatch is a minute away, so only the pass-through reading
+            // can be sent before it.
+            dispatcher.offer(reading(4, SensorType.HDS_DEPTH, 3.0));
+            dispatcher.offer(reading(1, SensorType.ES2, 2.0, 20.0));
+            sink.await(2);
+            synchronized (sink) {
+                assertEquals(2, sink.readings.size());
+                assertEquals(2.0, sink.readings.get(1).data[0], 0.0);
+            }
+        } finally {
+            dispatcher.shutdown();
+        }
+    }
+
+    @Test
+    public void setPolicies_parsesChannelList() throws Exception {
+        SensorDispatcher dispatcher = new SensorDispatcher(new RecordingSink(), 8);
+        dispatcher.setPolicies("1=all, 4=2.5Hz,5=batch10");
+        assertEquals(SensorDispatcher.PASS_THROUGH, dispatcher.getPolicy(1));
+        assertEquals(SensorDispatcher.DECIMATE, dispatcher.getPolicy(4));
+        assertEquals(SensorDispatcher.BATCH, dispatcher.getPolicy(5));
+
+        try {
+            dispatcher.setPolicies("4=fast");
+            fail("Invalid policy was accepted.");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+        assertEquals(SensorDispatcher.DECIMATE, dispatcher.getPolicy(4));
+
+        dispatcher.setPolicies("");
+        assertEquals(SensorDispatcher.PASS_THROUGH, dispatcher.getPolicy(4));
+    }
+}
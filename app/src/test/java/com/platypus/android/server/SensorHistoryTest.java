@@ -0,0 +1,104 @@
+package com.platypus.android.server;
+
+import com.platypus.crw.VehicleServer.SensorType;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static com.platypus.android.server.SensorReadings.MS;
+import static com.platypus.android.server.SensorReadings.reading;
+import static org.junit.Assert.*;
+
+/**
+ * Tests storing sensor readings and their rolling statistics.
+ */
+public class SensorHistoryTest {
+    @Test
+    public void record_keepsSeriesPerChannelAndType() throws Exception {
+        SensorHistory history = new SensorHistory(16, Long.MAX_VALUE);
+        history.record(reading(4, SensorType.HDS_DEPTH, 3.5), 10 * MS);
+        history.record(reading(4, SensorType.HDS_TEMP, 18.0), 20 * MS);
+        history.record(reading(4, SensorType.HDS_DEPTH, 3.7), 30 * MS);
+        history.record(reading(1, SensorType.ES2, 310.0, 18.1), 40 * MS);
+
+        assertEquals(3, history.getSeries().length);
+        SensorHistory.Series depth = history.getSeries(4, SensorType.HDS_DEPTH);
+        assertEquals(2, depth.size());
+        assertEquals(30 * MS, depth.getTimeNs(1));
+        assertEquals(3.6, depth.getMean(0), 1e-12);
+        assertEquals(2, history.getSeries(1, SensorType.ES2).getValueCount());
+        assertNull(history.getSeries(2, SensorType.ES2));
+
+        StringBuilder json = new StringBuilder();
+        history.getSeries(1, SensorType.ES2).appendJson(json, 0);
+        assertEquals("{\"channel\":1,\"type\":\"ES2\",\"time_ns\":[40000000],"
+                + "\"data\":[[310.0,18.1]]}", json.toString());
+    }
+
+    @Test
+    public void series_findsTimeRanges() throws Exception {
+        SensorHistory.Series series = new SensorHistory.Series(1, SensorType.ATLAS_DO, 1, 8,
+                Long.MAX_VALUE);
+        for (int i = 0; i < 12; ++i)
+            series.append(i * 10 * MS, new double[]{i});
+
+        // Only the last eight samples are kept.
+        assertEquals(8, series.size());
+        assertEquals(4.0, series.getValue(0, 0), 0.0);
+        assertEquals(0, series.indexOf(0));
+        assertEquals(1, series.indexOf(41 * MS));
+        assertEquals(1, series.indexOf(50 * MS));
+        assertEquals(8, series.indexOf(200 * MS));
+
+        long[] times = new long[8];
+        double[] values = new double[8];
+        assertEquals(3, series.copy(55 * MS, 90 * MS, times, values));
+        for (int i = 0; i < 3; ++i) {
+            assertEquals((60 + 10 * i) * MS, times[i]);
+            assertEquals(6 + i, values[i], 0.0);
+        }
+    }
+
+    @Test
+    public void series_expiresOldSamples() throws Exception {
+        SensorHistory.Series series = new SensorHistory.Series(1, SensorType.ATLAS_PH, 1, 100,
+                50 * MS);
+        for (int i = 0; i < 10; ++i)
+            series.append(i * 10 * MS, new double[]{i});
+        assertEquals(6, series.size());
+        assertEquals(4.0, series.getMin(0), 0.0);
+
+        series.expire(200 * MS);
+        assertEquals(0, series.size());
+        assertTrue(Double.isNaN(series.getMean(0)));
+        assertTrue(Double.isNaN(series.getMax(0)));
+    }
+
+    @Test
+    public void series_matchesBruteForceStatistics() throws Exception {
+        int capacity = 50;
+        SensorHistory.Series series = new SensorHistory.Series(1, SensorType.ES2, 2, capacity,
+                Long.MAX_VALUE);
+        double[][] samples = new double[1000][];
+        Random random = new Random(7);
+
+        for (int n = 0; n < samples.length; ++n) {
+            samples[n] = new double[]{random.nextGaussian() * 100, random.nextInt(5)};
+            series.append(n * MS, samples[n]);
+
+            int first = Math.max(0, n - capacity + 1);
+            for (int k = 0; k < 2; ++k) {
+                double min = Double.MAX_VALUE, max = -Double.MAX_VALUE, sum = 0;
+                for (int i = first; i <= n; ++i) {
+                    min = Math.min(min, samples[i][k]);
+                    max = Math.max(max, samples[i][k]);
+                    sum += samples[i][k];
+                }
+                assertEquals(min, series.getMin(k), 0.0);
+                assertEquals(max, series.getMax(k), 0.0);
+                assertEquals(sum / (n - first + 1), series.getMean(k), 1e-9);
+            }
+        }
+    }
+}
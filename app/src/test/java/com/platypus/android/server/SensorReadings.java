@@ -0,0 +1,28 @@
+package com.platypus.android.server;
+
+import com.platypus.crw.VehicleServer.SensorType;
+import com.platypus.crw.data.SensorData;
+
+/**
+ * Helpers shared by the tests of the sensor pipeline.
+ */
+final class SensorReadings {
+    /**
+     * One millisecond, in nanoseconds.
+     */
+    static final long MS = 1000000L;
+
+    private SensorReadings() {
+    }
+
+    /**
+     * Creates a reading that holds the given values.
+     */
+    static SensorData reading(int channel, SensorType type, double... values) {
+        SensorData reading = new SensorData();
+        reading.channel = channel;
+        reading.type = type;
+        reading.data = values;
+        return reading;
+    }
+}
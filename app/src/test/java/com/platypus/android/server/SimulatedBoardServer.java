@@ -0,0 +1,47 @@
+package com.platypus.android.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+
+/**
+ * Serves simulated boards over TCP, one connection at a time, so that a server running on a
+ * phone or emulator can be load tested from a desktop.  This is a development tool, and is
+ * kept out of the application.
+ * <p/>
+ * Usage: {@code SimulatedBoardServer [port] [sensor_hz] [malformed_hz]}, where
+ * {@code sensor_hz} is the rate of each sensor stream.  The counters of each board are printed
+ * when its connection is closed.
+ *
+ * @see SimulatedBoard
+ */
+public class SimulatedBoardServer {
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = (args.length > 0) ? Integer.parseInt(args[0]) : 11511;
+        double sensorRate = (args.length > 1) ? Double.parseDouble(args[1]) : 10.0;
+        double malformedRate = (args.length > 2) ? Double.parseDouble(args[2]) : 0.0;
+
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(port));
+        System.out.println("Simulated board listening on port " + port + ".");
+        try {
+            while (true) {
+                ChannelTransport transport = ChannelTransport.of(server.accept());
+                System.out.println("Connected to " + transport + ".");
+
+                SimulatedBoard board = new SimulatedBoard(transport);
+                board.setRate(sensorRate);
+                board.setMalformedRate(malformedRate);
+                board.start();
+                board.join();
+
+                System.out.println("Closed " + transport + ": received " + board.getCommandCount()
+                        + " commands, sent " + board.getSentCount() + " sensor messages, "
+                        + board.getMalformedCount() + " malformed, "
+                        + board.getSkippedCount() + " skipped.");
+            }
+        } finally {
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.platypus.android.server;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the simulated controller board over an in-process pipe.
+ */
+public class SimulatedBoardTest {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    @Test
+    public void board_echoesCommandsAndSendsSensorStreams() throws Exception {
+        ChannelTransport[] pipe = ChannelTransport.createPipe();
+        SimulatedBoard board = new SimulatedBoard(pipe[1]);
+        board.setRate(SimulatedBoard.Stream.ES2, 500.0);
+        board.setRate(SimulatedBoard.Stream.HDS, 500.0);
+        board.start();
+
+        byte[] command = "{\"m0\":{\"v\":0.5}}\r\n".getBytes(ASCII);
+        pipe[0].write(ByteBuffer.wrap(command));
+
+        LineFramer framer = new LineFramer(1024);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1024);
+        boolean isEchoed = false;
+        int es2Count = 0;
+        int nmeaCount = 0;
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((!isEchoed || es2Count < 10 || nmeaCount < 10)
+                && System.currentTimeMillis() < deadline) {
+            buffer.clear();
+            pipe[0].read(buffer);
+            buffer.flip();
+            framer.write(buffer);
+            while (framer.next()) {
+                String line = new String(framer.getFrame(), 0, framer.getFrameLength(), ASCII);
+                if (line.equals("{\"m0\":{\"v\":0.5}}"))
+                    isEchoed = true;
+                else if (line.contains("\"es2\""))
+                    es2Count++;
+                else if (line.contains("$SD"))
+                    nmeaCount++;
+            }
+        }
+        board.stop();
+
+        assertTrue(isEchoed);
+        assertTrue(es2Count >= 10);
+        assertTrue(nmeaCount >= 10);
+        assertEquals(1, board.getCommandCount());
+    }
+
+    @Test
+    public void board_switchesToBinaryFraming() throws Exception {
+        ChannelTransport[] pipe = ChannelTransport.createPipe();
+        SimulatedBoard board = new SimulatedBoard(pipe[1]);
+        board.setRate(SimulatedBoard.Stream.ATLAS_DO, 500.0);
+        board.start();
+
+        byte[] request = (BinaryFrameCodec.NEGOTIATION_REQUEST + "\r\n").getBytes(ASCII);
+        pipe[0].write(ByteBuffer.wrap(request));
+
+        // Skip JSON lines until the reply, then decode the rest as binary records.
+        LineFramer framer = new LineFramer(1024);
+        BinaryFrameCodec.Decoder decoder = new BinaryFrameCodec.Decoder();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1024);
+        byte[] handover = new byte[4096];
+        boolean isBinary = false;
+        int sensorCount = 0;
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sensorCount < 10 && System.currentTimeMillis() < deadline) {
+            buffer.clear();
+            pipe[0].read(buffer);
+            buffer.flip();
+            if (isBinary) {
+                decoder.write(buffer);
+            } else {
+                framer.write(buffer);
+                while (!isBinary && framer.next()) {
+                    String line = new String(framer.getFrame(), 0, framer.getFrameLength(), ASCII);
+                    if (line.equals(BinaryFrameCodec.NEGOTIATION_REQUEST)) {
+                        isBinary = true;
+                        decoder.write(handover, 0, framer.takeBuffered(handover));
+                    }
+                }
+            }
+            while (decoder.next()) {
+                assertEquals(BinaryFrameCodec.TYPE_SENSOR, decoder.getType());
+                sensorCount++;
+            }
+        }
+        board.stop();
+
+        assertTrue(board.isBinary());
+        assertTrue(sensorCount >= 10);
+        assertEquals(0, decoder.getErrorCount());
+    }
+}
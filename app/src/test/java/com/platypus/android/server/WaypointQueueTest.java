@@ -0,0 +1,177 @@
+package com.platypus.android.server;
+
+import com.platypus.crw.data.Pose3D;
+import com.platypus.crw.data.Utm;
+import com.platypus.crw.data.UtmPose;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests editing and advancing through a queue of waypoints.
+ */
+public class WaypointQueueTest {
+
+    /**
+     * Creates a waypoint whose coordinates and zone are all derived from its id.
+     */
+    private static UtmPose waypoint(int id) {
+        return new UtmPose(new Pose3D(1000.0 + id, 2000.0 + id, 0.5 * id, 0, 0, 0),
+                new Utm(1 + id % 60, id % 2 == 0));
+    }
+
+    private static UtmPose[] waypoints(int first, int count) {
+        UtmPose[] waypoints = new UtmPose[count];
+        for (int i = 0; i < count; ++i)
+            waypoints[i] = waypoint(first + i);
+        return waypoints;
+    }
+
+    private static void assertWaypoint(int id, UtmPose actual) {
+        UtmPose expected = waypoint(id);
+        assertNotNull(actual);
+        assertEquals(expected.pose.getX(), actual.pose.getX(), 0.0);
+        assertEquals(expected.pose.getY(), actual.pose.getY(), 0.0);
+        assertEquals(expected.pose.getZ(), actual.pose.getZ(), 0.0);
+        assertEquals(expected.origin.zone, actual.origin.zone);
+        assertEquals(expected.origin.isNorth, actual.origin.isNorth);
+    }
+
+    /**
+     * Checks that the queue holds exactly the waypoints with the given ids, in order.
+     */
+    private static void assertQueue(WaypointQueue queue, int... ids) {
+        UtmPose[] remaining = queue.toArray();
+        assertEquals(ids.length, queue.size());
+        assertEquals(ids.length, remaining.length);
+        for (int i = 0; i < ids.length; ++i)
+            assertWaypoint(ids[i], remaining[i]);
+        if (ids.length > 0)
+            assertWaypoint(ids[0], queue.peek());
+        else
+            assertNull(queue.peek());
+    }
+
+    @Test
+    public void insert_opensGapAtPosition() throws Exception {
+        WaypointQueue queue = new WaypointQueue();
+        queue.set(waypoints(0, 4));
+
+        queue.insert(2, waypoints(10, 3));
+        assertQueue(queue, 0, 1, 10, 11, 12, 2, 3);
+
+        UtmPose current = queue.peek();
+        queue.insert(0, waypoints(20, 2));
+        assertNotSame(current, queue.peek());
+        assertQueue(queue, 20, 21, 0, 1, 10, 11, 12, 2, 3);
+
+        queue.insert(queue.size(), waypoints(30, 1));
+        queue.insert(1, new UtmPose[0]);
+        assertQueue(queue, 20, 21, 0, 1, 10, 11, 12, 2, 3, 30);
+    }
+
+    @Test
+    public void remove_closesRangeAndInvalidatesCurrent() throws Exception {
+        WaypointQueue queue = new WaypointQueue();
+        queue.set(waypoints(0, 8));
+
+        // Removing waypoints after the current one keeps the cached current waypoint.
+        UtmPose current = queue.peek();
+        queue.remove(2, 5);
+        assertSame(current, queue.peek());
+        assertQueue(queue, 0, 1, 5, 6, 7);
+
+        queue.remove(0, 0);
+        assertSame(current, queue.peek());
+
+        queue.remove(0, 2);
+        assertNotSame(current, queue.peek());
+        assertQueue(queue, 5, 6, 7);
+
+        queue.advance();
+        queue.remove(0, 1);
+        assertQueue(queue, 7);
+        queue.remove(0, 1);
+        assertTrue(queue.isEmpty());
+        assertQueue(queue);
+    }
+
+    @Test
+    public void remove_rejectsInvalidRanges() throws Exception {
+        WaypointQueue queue = new WaypointQueue();
+        queue.set(waypoints(0, 3));
+        queue.advance();
+
+        for (int[] range : new int[][]{{-1, 1}, {0, 3}, {2, 1}}) {
+            try {
+                queue.remove(range[0], range[1]);
+                fail("Removed [" + range[0] + ", " + range[1] + ").");
+            } catch (IndexOutOfBoundsException e) {
+                // Expected.
+            }
+        }
+        try {
+            queue.insert(3, waypoints(10, 1));
+            fail("Inserted after the end.");
+        } catch (IndexOutOfBoundsException e) {
+            // Expected.
+        }
+        assertQueue(queue, 1, 2);
+    }
+
+    @Test
+    public void append_reclaimsReachedWaypoints() throws Exception {
+        WaypointQueue queue = new WaypointQueue();
+        queue.set(waypoints(0, 12));
+
+        for (int i = 0; i < 8; ++i) {
+            assertWaypoint(i, queue.peek());
+            assertTrue(queue.advance());
+        }
+        assertEquals(8, queue.index());
+
+        // The new waypoints do not fit after the last one, but fit once the eight reached
+        // waypoints are reclaimed, so the remaining ones are moved to the front in place.
+        queue.append(waypoints(20, 6));
+        assertQueue(queue, 8, 9, 10, 11, 20, 21, 22, 23, 24, 25);
+        assertEquals(8, queue.index());
+
+        // Inserting into the middle after compaction still moves the right waypoints.
+        queue.advance();
+        queue.insert(3, waypoints(30, 2));
+        assertQueue(queue, 9, 10, 11, 30, 31, 20, 21, 22, 23, 24, 25);
+    }
+
+    @Test
+    public void insert_growsPastInitialCapacity() throws Exception {
+        WaypointQueue queue = new WaypointQueue();
+        queue.set(waypoints(0, 10));
+        queue.advance();
+        queue.advance();
+
+        // Adding more waypoints than the queue can hold grows it, keeping their order.
+        queue.insert(4, waypoints(100, 40));
+        int[] expected = new int[48];
+        int n = 0;
+        for (int id = 2; id < 6; ++id)
+            expected[n++] = id;
+        for (int id = 100; id < 140; ++id)
+            expected[n++] = id;
+        for (int id = 6; id < 10; ++id)
+            expected[n++] = id;
+        assertQueue(queue, expected);
+
+        int reached = 0;
+        while (queue.advance())
+            reached++;
+        assertEquals(48, reached);
+        assertEquals(50, queue.index());
+        assertFalse(queue.advance());
+        assertNull(queue.peek());
+
+        queue.set(waypoints(200, 3));
+        assertEquals(0, queue.index());
+        assertQueue(queue, 200, 201, 202);
+    }
+}